@@ -8,6 +8,7 @@ import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
@@ -25,6 +26,7 @@ import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.NativeScriptFactory;
 import org.elasticsearch.script.ScriptEngineService;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.watcher.ResourceWatcherService;
 import org.wikimedia.search.extra.analysis.filters.PreserveOriginalFilterFactory;
@@ -34,7 +36,17 @@ import org.wikimedia.search.extra.latency.RestGetLatencyStats;
 import org.wikimedia.search.extra.latency.SearchLatencyListener;
 import org.wikimedia.search.extra.latency.TransportLatencyStatsAction;
 import org.wikimedia.search.extra.levenshtein.LevenshteinDistanceScoreBuilder;
+import org.wikimedia.search.extra.regex.CurrentSearchTask;
+import org.wikimedia.search.extra.regex.MultiSourceRegexQueryBuilder;
+import org.wikimedia.search.extra.regex.RegexStatsAction;
+import org.wikimedia.search.extra.regex.RestGetRegexStats;
+import org.wikimedia.search.extra.regex.SourceRegexAdmission;
+import org.wikimedia.search.extra.regex.SourceRegexCache;
 import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder;
+import org.wikimedia.search.extra.regex.SourceRegexServices;
+import org.wikimedia.search.extra.regex.SourceRegexSlowLog;
+import org.wikimedia.search.extra.regex.SourceRegexStats;
+import org.wikimedia.search.extra.regex.TransportRegexStatsAction;
 import org.wikimedia.search.extra.router.DegradedRouterQueryBuilder;
 import org.wikimedia.search.extra.router.SystemLoad;
 import org.wikimedia.search.extra.router.TokenCountRouterQueryBuilder;
@@ -69,11 +81,22 @@ public class ExtraPlugin extends Plugin implements SearchPlugin, AnalysisPlugin,
     private final MutableSupplier<ThreadPool> threadPoolSupplier;
     private final SystemLoad loadStats;
     private final SuperDetectNoopScript.SuperNoopScriptEngineService superDetectNoopService;
+    private final SourceRegexServices sourceRegexServices;
+    private final CurrentSearchTask currentSearchTask;
+    private final SourceRegexStats sourceRegexStats;
+    private final SourceRegexSlowLog sourceRegexSlowLog;
+    private final SourceRegexCache sourceRegexCache;
 
     public ExtraPlugin(Settings settings) {
         threadPoolSupplier = new MutableSupplier<>();
         latencyListener = new SearchLatencyListener(settings, threadPoolSupplier);
         loadStats = new SystemLoad(latencyListener, new OsService(settings));
+        currentSearchTask = new CurrentSearchTask();
+        sourceRegexCache = new SourceRegexCache(settings);
+        sourceRegexStats = new SourceRegexStats(settings, threadPoolSupplier, sourceRegexCache);
+        sourceRegexSlowLog = new SourceRegexSlowLog(settings);
+        sourceRegexServices = new SourceRegexServices(sourceRegexCache, threadPoolSupplier, currentSearchTask,
+                new SourceRegexAdmission(settings), sourceRegexStats, sourceRegexSlowLog);
         superDetectNoopService = new SuperDetectNoopScript.SuperNoopScriptEngineService(
                 unmodifiableSet(new HashSet<>(asList(
                     new ChangeHandler.Equal.Recognizer(),
@@ -89,7 +112,10 @@ public class ExtraPlugin extends Plugin implements SearchPlugin, AnalysisPlugin,
                                                ResourceWatcherService resourceWatcherService, ScriptService scriptService,
                                                NamedXContentRegistry xContentRegistry) {
         threadPoolSupplier.set(threadPool);
-        return singletonList(latencyListener);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(SourceRegexSlowLog.THRESHOLD, sourceRegexSlowLog::setThreshold);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(SourceRegexSlowLog.SAMPLE_RATE,
+                sourceRegexSlowLog::setSampleRate);
+        return asList(latencyListener, sourceRegexStats);
     }
 
     /**
@@ -99,13 +125,36 @@ public class ExtraPlugin extends Plugin implements SearchPlugin, AnalysisPlugin,
     @SuppressWarnings("deprecation")
     public List<QuerySpec<?>> getQueries() {
         return asList(
-                new QuerySpec<>(SourceRegexQueryBuilder.NAME, SourceRegexQueryBuilder::new, SourceRegexQueryBuilder::fromXContent),
+                new QuerySpec<>(SourceRegexQueryBuilder.NAME, (in) -> new SourceRegexQueryBuilder(in, sourceRegexServices),
+                        (pc) -> SourceRegexQueryBuilder.fromXContent(pc, sourceRegexServices)),
+                new QuerySpec<>(MultiSourceRegexQueryBuilder.NAME, (in) -> new MultiSourceRegexQueryBuilder(in, sourceRegexServices),
+                        (pc) -> MultiSourceRegexQueryBuilder.fromXContent(pc, sourceRegexServices)),
                 new QuerySpec<>(FuzzyLikeThisQueryBuilder.NAME, FuzzyLikeThisQueryBuilder::new, FuzzyLikeThisQueryBuilder::fromXContent),
                 new QuerySpec<>(TokenCountRouterQueryBuilder.NAME, TokenCountRouterQueryBuilder::new, TokenCountRouterQueryBuilder::fromXContent),
                 new QuerySpec<>(DegradedRouterQueryBuilder.NAME, (in) -> new DegradedRouterQueryBuilder(in, loadStats), (pc) -> DegradedRouterQueryBuilder.fromXContent(pc, loadStats))
         );
     }
 
+    @Override
+    public List<Setting<?>> getSettings() {
+        return unmodifiableList(asList(
+                SourceRegexCache.AUTOMATON_CACHE_SIZE,
+                SourceRegexCache.EXPRESSION_CACHE_SIZE,
+                SourceRegexAdmission.MAX_CONCURRENT,
+                SourceRegexAdmission.QUEUE_SIZE,
+                SourceRegexAdmission.QUEUE_TIMEOUT,
+                SourceRegexAdmission.ON_OVERLOAD,
+                SourceRegexAdmission.EXPENSIVE_CANDIDATES,
+                SourceRegexSlowLog.THRESHOLD,
+                SourceRegexSlowLog.SAMPLE_RATE
+        ));
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return singletonList(SourceRegexServices.scanExecutorBuilder(settings));
+    }
+
     @Override
     public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         Map<String, AnalysisProvider<TokenFilterFactory>> map = new HashMap<>();
@@ -147,12 +196,15 @@ public class ExtraPlugin extends Plugin implements SearchPlugin, AnalysisPlugin,
     @Override
     public void onIndexModule(IndexModule indexModule) {
         indexModule.addSearchOperationListener(latencyListener);
+        indexModule.addSearchOperationListener(currentSearchTask);
+        indexModule.addIndexEventListener(sourceRegexCache);
     }
 
     @Override
     public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
-        return unmodifiableList(singletonList(
-                new ActionHandler<>(LatencyStatsAction.INSTANCE, TransportLatencyStatsAction.class)
+        return unmodifiableList(asList(
+                new ActionHandler<>(LatencyStatsAction.INSTANCE, TransportLatencyStatsAction.class),
+                new ActionHandler<>(RegexStatsAction.INSTANCE, TransportRegexStatsAction.class)
         ));
     }
 
@@ -161,6 +213,9 @@ public class ExtraPlugin extends Plugin implements SearchPlugin, AnalysisPlugin,
                                              ClusterSettings clusterSettings, IndexScopedSettings indexScopedSettings,
                                              SettingsFilter settingsFilter, IndexNameExpressionResolver indexNameExpressionResolver,
                                              Supplier<DiscoveryNodes> nodesInCluster) {
-        return singletonList(new RestGetLatencyStats(settings, restController));
+        return asList(
+                new RestGetLatencyStats(settings, restController),
+                new RestGetRegexStats(settings, restController)
+        );
     }
 }
@@ -4,12 +4,13 @@ import lombok.EqualsAndHashCode;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.ConstantScoreScorer;
-import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.util.mutable.MutableValueInt;
 import org.wikimedia.search.extra.regex.SourceRegexQuery.Rechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
 import org.wikimedia.search.extra.util.FieldValues.Loader;
@@ -17,11 +18,24 @@ import org.wikimedia.search.extra.util.FieldValues.Loader;
 import java.io.IOException;
 
 /**
- * Accelerated version of the source_regex query.
+ * Accelerated version of the source_regex query. Segments where the
+ * approximation would find nearly every doc are scanned instead: reading
+ * the postings costs more than it saves when almost every doc has to be
+ * rechecked anyway.
  */
-@EqualsAndHashCode( callSuper = true )
+@EqualsAndHashCode(callSuper = true, exclude = "estimatedCandidates")
 class AcceleratedSourceRegexQuery extends UnacceleratedSourceRegexQuery {
+    /**
+     * Segments where the approximation finds more than this share of the
+     * docs are scanned.
+     */
+    static final double MAX_CANDIDATE_RATIO = 0.9;
+
     private final Query approximation;
+    /**
+     * Estimated number of docs matching the approximation, -1 if unknown.
+     */
+    private final long estimatedCandidates;
 
     /**
      * A new accelerated regex query
@@ -32,29 +46,98 @@ class AcceleratedSourceRegexQuery extends UnacceleratedSourceRegexQuery {
      * @param approximation the approximation query build over the trigram index
      */
     public AcceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings, Query approximation) {
-        super(rechecker, fieldPath, loader, settings);
+        this(rechecker, fieldPath, loader, settings, approximation, -1, SourceRegexServices.NONE);
+    }
+
+    /**
+     * A new accelerated regex query
+     * @param rechecker the rechecker used to perform the costly regex on doc content
+     * @param fieldPath the path to the field where the doc content is stored
+     * @param loader the loader used to load the field content
+     * @param settings the regex settings
+     * @param approximation the approximation query build over the trigram index
+     * @param estimatedCandidates estimated number of docs matching the approximation, -1 if unknown
+     * @param services node services providing the executor for parallel scans
+     */
+    AcceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings, Query approximation,
+            long estimatedCandidates, SourceRegexServices services) {
+        this(rechecker, fieldPath, loader, settings, approximation, estimatedCandidates, services, services.newProfile());
+    }
+
+    /**
+     * A new accelerated regex query
+     * @param rechecker the rechecker used to perform the costly regex on doc content
+     * @param fieldPath the path to the field where the doc content is stored
+     * @param loader the loader used to load the field content
+     * @param settings the regex settings
+     * @param approximation the approximation query build over the trigram index
+     * @param estimatedCandidates estimated number of docs matching the approximation, -1 if unknown
+     * @param services node services providing the executor for parallel scans
+     * @param profile counters of the query, already holding those of its rewrite
+     */
+    AcceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings, Query approximation,
+            long estimatedCandidates, SourceRegexServices services, SourceRegexProfile profile) {
+        super(rechecker, fieldPath, loader, settings, services, profile);
         this.approximation = approximation;
+        this.estimatedCandidates = estimatedCandidates;
+    }
+
+    /**
+     * Estimated number of docs matching the approximation, -1 if unknown.
+     */
+    long estimatedCandidates() {
+        return estimatedCandidates;
+    }
+
+    @Override
+    protected void admit() {
+        services.admitAccelerated(estimatedCandidates);
+        services.stats().increment(SourceRegexStats.Metric.ACCELERATED);
     }
 
     @Override
     public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+        // The fetch phase builds the weights of named queries again, they
+        // were already admitted and are logged once by the query phase
+        if (!services.inFetchPhase()) {
+            admit();
+            services.trackSlow(this, searcher);
+        }
         // Build the approximation based on trigrams
         // Creating the Weight from the Searcher with needScore:false allows the searcher to cache our approximation.
         final Weight approxWeight = searcher.createWeight(approximation, false);
-        return new ConstantScoreWeight(this) {
-            // TODO: Get rid of this shared mutable state, we should be able to use
-            // the generic timeout system.
-            private final MutableValueInt inspected = new MutableValueInt();
-            private final TimeoutChecker timeoutChecker = new TimeoutChecker(settings.timeout());
-
+        return new SourceRegexWeight() {
             @Override
-            public Scorer scorer(final LeafReaderContext context) throws IOException {
+            public ScorerSupplier scorerSupplier(final LeafReaderContext context) throws IOException {
                 final Scorer approxScorer = approxWeight.scorer(context);
                 if (approxScorer == null) {
                     return null;
                 }
-                timeoutChecker.nextSegment(context);
-                return new ConstantScoreScorer(this, 1f, new RegexTwoPhaseIterator(approxScorer.iterator(), context, inspected, timeoutChecker));
+                if (!deadline.nextSegment()) {
+                    truncate(deadline, context, inspected.value);
+                    return null;
+                }
+                // Positions of the ngrams are checked before loading the candidates
+                final TwoPhaseIterator verification = approxScorer.twoPhaseIterator();
+                final DocIdSetIterator candidates = verification == null ? approxScorer.iterator() : verification.approximation();
+                if (candidates.cost() > context.reader().maxDoc() * MAX_CANDIDATE_RATIO) {
+                    profile.scannedSegment();
+                    return scanSupplier(context);
+                }
+                profile.acceleratedSegment();
+                final Weight weight = this;
+                return new ScorerSupplier() {
+                    @Override
+                    public Scorer get(boolean randomAccess) throws IOException {
+                        return new ConstantScoreScorer(weight, 1f,
+                                new RegexTwoPhaseIterator(candidates, verification, context, inspected, deadline));
+                    }
+
+                    @Override
+                    public long cost() {
+                        return candidates.cost();
+                    }
+                };
             }
         };
     }
@@ -63,13 +146,19 @@ class AcceleratedSourceRegexQuery extends UnacceleratedSourceRegexQuery {
     public Query rewrite(IndexReader reader) throws IOException {
         Query approxRewritten = approximation.rewrite(reader);
         if (approxRewritten != approximation) {
-            return new AcceleratedSourceRegexQuery(this.rechecker, this.fieldPath, this.loader, this.settings, approxRewritten);
+            return new AcceleratedSourceRegexQuery(this.rechecker, this.fieldPath, this.loader, this.settings, approxRewritten,
+                    estimatedCandidates, this.services, this.profile);
         }
         return super.rewrite(reader);
     }
 
     @Override
     public String toString(String field) {
-        return "source_regex(accelerated):" + field;
+        StringBuilder b = new StringBuilder("source_regex(accelerated");
+        if (estimatedCandidates >= 0) {
+            b.append(", ~").append(estimatedCandidates).append(" candidates");
+        }
+        profile.describe(b);
+        return b.append("):").append(field).toString();
     }
 }
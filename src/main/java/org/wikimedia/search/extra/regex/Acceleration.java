@@ -0,0 +1,49 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.wikimedia.search.extra.regex.expression.Expression;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What accelerating a regex with ngrams needs: the expression of the
+ * ngrams candidates must contain and the literals every match contains.
+ * Ngrams of a literal must be found next to each other so they are checked
+ * with their positions when the ngram field has them.
+ */
+final class Acceleration {
+    private final Expression<String> expression;
+    private final List<String> literals;
+
+    Acceleration(Expression<String> expression, List<String> literals) {
+        this.expression = expression;
+        this.literals = Collections.unmodifiableList(literals);
+    }
+
+    /**
+     * The simplified expression, {@link Expression#alwaysTrue()} if the
+     * regex can't be accelerated or {@link Expression#alwaysFalse()} if it
+     * can't match anything.
+     */
+    Expression<String> expression() {
+        return expression;
+    }
+
+    /**
+     * Literals every match of the lowercased regex contains, empty if the
+     * expression is always true or always false.
+     */
+    List<String> literals() {
+        return literals;
+    }
+
+    long ramBytesUsed() {
+        long size = SourceRegexCache.expressionRamBytesUsed(expression);
+        for (String literal : literals) {
+            size += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + Character.BYTES * literal.length();
+        }
+        return size;
+    }
+}
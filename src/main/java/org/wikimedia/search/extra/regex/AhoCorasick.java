@@ -0,0 +1,222 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Aho-Corasick automaton finding any of a set of literals in a single pass
+ * over the text. Literals are sequences of symbols below 2^16, either chars
+ * or the bytes of UTF-8 encoded text. The automaton is fully built so
+ * stepping is a table lookup whatever the symbol. Case insensitivity is
+ * folded into the table: every symbol lowercasing to a symbol of the
+ * literals steps like it, so the text is never lowercased.
+ */
+final class AhoCorasick {
+    private static final int MAX_SYMBOL = Character.MAX_VALUE;
+
+    /**
+     * Bit set of the symbols stepping out of the initial state: those used
+     * by the literals and those lowercasing to them.
+     */
+    private final long[] symbols;
+    /**
+     * The symbols in symbols, sorted.
+     */
+    private final char[] inputs;
+    /**
+     * The column of the transition table each of inputs steps on.
+     */
+    private final int[] columns;
+    private final int alphabetSize;
+    private final int[] transitions;
+    /**
+     * Lengths of the literals ending on each state, null for states on
+     * which none ends.
+     */
+    private final int[][] matchLengths;
+
+    /**
+     * @param literals the literals to find
+     * @param maxSymbol the largest symbol of the text
+     * @param lowerCase lowercases the symbols of the text
+     */
+    private AhoCorasick(List<int[]> literals, int maxSymbol, IntUnaryOperator lowerCase) {
+        long[] used = new long[(MAX_SYMBOL + 1) / Long.SIZE];
+        int states = 1;
+        for (int[] literal : literals) {
+            states += literal.length;
+            for (int symbol : literal) {
+                used[symbol >>> 6] |= 1L << symbol;
+            }
+        }
+        int usedCount = 0;
+        for (long word : used) {
+            usedCount += Long.bitCount(word);
+        }
+        alphabetSize = usedCount;
+        // The symbols used by the literals, sorted. A symbol's index is its
+        // column in the transition table.
+        char[] alphabet = new char[alphabetSize];
+        int a = 0;
+        for (int symbol = 0; symbol <= MAX_SYMBOL; symbol++) {
+            if (isSet(used, symbol)) {
+                alphabet[a++] = (char) symbol;
+            }
+        }
+        // Every symbol lowercasing to one of them steps on its column
+        symbols = new long[used.length];
+        int inputCount = 0;
+        for (int symbol = 0; symbol <= maxSymbol; symbol++) {
+            if (isSet(used, lowerCase.applyAsInt(symbol))) {
+                symbols[symbol >>> 6] |= 1L << symbol;
+                inputCount++;
+            }
+        }
+        inputs = new char[inputCount];
+        columns = new int[inputCount];
+        int i = 0;
+        for (int symbol = 0; symbol <= maxSymbol; symbol++) {
+            if (isSymbol(symbol)) {
+                inputs[i] = (char) symbol;
+                columns[i++] = Arrays.binarySearch(alphabet, (char) lowerCase.applyAsInt(symbol));
+            }
+        }
+
+        // Build the trie
+        int[] table = new int[states * alphabetSize];
+        Arrays.fill(table, -1);
+        int[][] lengths = new int[states][];
+        int size = 1;
+        for (int[] literal : literals) {
+            int state = 0;
+            for (int symbol : literal) {
+                int next = state * alphabetSize + Arrays.binarySearch(alphabet, (char) symbol);
+                if (table[next] == -1) {
+                    table[next] = size++;
+                }
+                state = table[next];
+            }
+            lengths[state] = new int[] {literal.length};
+        }
+
+        // Turn missing transitions into failure transitions, breadth first
+        int[] fail = new int[size];
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < alphabetSize; c++) {
+            int next = table[c];
+            if (next == -1) {
+                table[c] = 0;
+            } else {
+                fail[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            lengths[state] = merge(lengths[state], lengths[fail[state]]);
+            for (int c = 0; c < alphabetSize; c++) {
+                int next = table[state * alphabetSize + c];
+                int fallback = table[fail[state] * alphabetSize + c];
+                if (next == -1) {
+                    table[state * alphabetSize + c] = fallback;
+                } else {
+                    fail[next] = fallback;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        transitions = Arrays.copyOf(table, size * alphabetSize);
+        matchLengths = Arrays.copyOf(lengths, size);
+    }
+
+    /**
+     * Build an automaton finding any of the literals.
+     */
+    static AhoCorasick forChars(List<char[]> literals) {
+        return forChars(literals, null);
+    }
+
+    /**
+     * Build an automaton finding any of the literals in the text once
+     * lowercased by folding, or as is if folding is null.
+     */
+    static AhoCorasick forChars(List<char[]> literals, @Nullable CaseFolding folding) {
+        return new AhoCorasick(literals.stream().map(l -> new String(l).chars().toArray()).collect(Collectors.toList()),
+                MAX_SYMBOL, folding == null ? c -> c : c -> folding.lowerCase((char) c));
+    }
+
+    /**
+     * Build an automaton finding any of the literals in UTF-8 encoded text
+     * once its bytes are lowercased by folding, or as is if folding is null.
+     * The literals must only hold chars {@link CaseFolding#lowersBytewise(char)}
+     * accepts.
+     */
+    static AhoCorasick forUtf8(List<byte[]> literals, @Nullable CaseFolding folding) {
+        return new AhoCorasick(literals.stream().map(l -> {
+            int[] symbols = new int[l.length];
+            for (int i = 0; i < l.length; i++) {
+                symbols[i] = l[i] & 0xFF;
+            }
+            return symbols;
+        }).collect(Collectors.toList()), 0xFF, folding == null ? b -> b : b -> folding.lowerByte((byte) b) & 0xFF);
+    }
+
+    /**
+     * The state reached from state on symbol. The initial state is 0.
+     */
+    int step(int state, int symbol) {
+        if (symbol > MAX_SYMBOL || !isSymbol(symbol)) {
+            return 0;
+        }
+        return transitions[state * alphabetSize + columns[Arrays.binarySearch(inputs, (char) symbol)]];
+    }
+
+    /**
+     * Lengths of the literals ending on state or null if none does.
+     */
+    int[] matchLengths(int state) {
+        return matchLengths[state];
+    }
+
+    long ramBytesUsed() {
+        long bytes = RamUsageEstimator.shallowSizeOfInstance(AhoCorasick.class)
+                + ContainsCharacterRunAutomaton.arraySize(Long.BYTES, symbols.length)
+                + ContainsCharacterRunAutomaton.arraySize(Character.BYTES, inputs.length)
+                + ContainsCharacterRunAutomaton.arraySize(Integer.BYTES, columns.length)
+                + ContainsCharacterRunAutomaton.arraySize(Integer.BYTES, transitions.length)
+                + ContainsCharacterRunAutomaton.arraySize(RamUsageEstimator.NUM_BYTES_OBJECT_REF, matchLengths.length);
+        for (int[] lengths : matchLengths) {
+            if (lengths != null) {
+                bytes += ContainsCharacterRunAutomaton.arraySize(Integer.BYTES, lengths.length);
+            }
+        }
+        return bytes;
+    }
+
+    private boolean isSymbol(int symbol) {
+        return isSet(symbols, symbol);
+    }
+
+    private static boolean isSet(long[] bits, int symbol) {
+        return (bits[symbol >>> 6] & (1L << symbol)) != 0;
+    }
+
+    private static int[] merge(int[] own, int[] inherited) {
+        if (own == null) {
+            return inherited;
+        }
+        if (inherited == null) {
+            return own;
+        }
+        int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+        System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+        return merged;
+    }
+}
@@ -0,0 +1,327 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Transition;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Folds a lowercasing function into an automaton built from a lowercased
+ * regex. The folded automaton accepts a code point wherever the original
+ * automaton accepts its lowercased form so it can be run directly against
+ * text that was never lowercased, without converting the case of each code
+ * point while matching.
+ * <p>
+ * Lowercasing is per code point so the rules of {@link String#toLowerCase}
+ * depending on the surrounding chars (final sigma, Turkish I followed by a
+ * combining dot) or lowercasing to several chars (dotted I outside of
+ * Turkish) aren't folded.
+ */
+final class CaseFolding {
+    static final CaseFolding DEFAULT = new CaseFolding(Character::toLowerCase);
+    static final CaseFolding GREEK = new CaseFolding(CaseFolding::greekLowerCase);
+    static final CaseFolding TURKISH = new CaseFolding(CaseFolding::turkishLowerCase);
+
+    /**
+     * Code points changed by the lowercasing function, sorted.
+     */
+    private final int[] changed;
+    /**
+     * The lowercased form of each code point in changed.
+     */
+    private final int[] changedLowered;
+    /**
+     * Lowercased forms of the code points changed by the lowercasing
+     * function, sorted.
+     */
+    private final int[] lowered;
+    /**
+     * The code point that lowercases to each entry in lowered.
+     */
+    private final int[] loweredFrom;
+    /**
+     * The lowercased form of each char of the basic multilingual plane.
+     */
+    private final char[] lowerChars = new char[Character.MAX_VALUE + 1];
+    /**
+     * The lowercased form of each byte of UTF-8 encoded text: ASCII chars
+     * lowercasing to ASCII chars are lowercased, other bytes are kept.
+     */
+    private final byte[] lowerBytes = new byte[256];
+
+    /**
+     * The case folding of locale. Java has no Irish specific lowercasing
+     * rules, Irish uses the default ones.
+     */
+    static CaseFolding forLocale(Locale locale) {
+        switch (locale.getLanguage()) {
+        case "el":
+            return GREEK;
+        case "tr":
+        case "az":
+            return TURKISH;
+        default:
+            return DEFAULT;
+        }
+    }
+
+    private CaseFolding(IntUnaryOperator lowerCase) {
+        int count = 0;
+        for (int cp = 0; cp <= Character.MAX_CODE_POINT; cp++) {
+            if (lowerCase.applyAsInt(cp) != cp) {
+                count++;
+            }
+        }
+        changed = new int[count];
+        changedLowered = new int[count];
+        long[] byLowered = new long[count];
+        int i = 0;
+        for (int cp = 0; cp <= Character.MAX_CODE_POINT; cp++) {
+            int lower = lowerCase.applyAsInt(cp);
+            if (lower != cp) {
+                changed[i] = cp;
+                changedLowered[i] = lower;
+                byLowered[i] = ((long) lower << 32) | cp;
+                i++;
+            }
+        }
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            // Lowercasing never moves a code point in or out of the basic multilingual plane
+            lowerChars[c] = (char) lowerCase.applyAsInt(c);
+        }
+        for (int b = 0; b < lowerBytes.length; b++) {
+            lowerBytes[b] = (byte) (b < 0x80 && lowerChars[b] < 0x80 ? lowerChars[b] : b);
+        }
+        Arrays.sort(byLowered);
+        lowered = new int[count];
+        loweredFrom = new int[count];
+        for (i = 0; i < count; i++) {
+            lowered[i] = (int) (byLowered[i] >>> 32);
+            loweredFrom[i] = (int) byLowered[i];
+        }
+    }
+
+    /**
+     * Lowercase c, a char of the basic multilingual plane or a surrogate
+     * which is left untouched.
+     */
+    char lowerCase(char c) {
+        return lowerChars[c];
+    }
+
+    /**
+     * Lowercase a byte of UTF-8 encoded text, see {@link #lowersBytewise(char)}.
+     */
+    byte lowerByte(byte b) {
+        return lowerBytes[b & 0xFF];
+    }
+
+    /**
+     * The chars of the basic multilingual plane lowercasing to c, c first
+     * if it lowercases to itself. Empty if none does.
+     */
+    char[] charVariants(char c) {
+        int from = lowerBound(lowered, c);
+        int to = from;
+        while (to < lowered.length && lowered[to] == c) {
+            to++;
+        }
+        char[] variants = new char[to - from + 1];
+        int v = 0;
+        if (lowerChars[c] == c) {
+            variants[v++] = c;
+        }
+        for (int i = from; i < to; i++) {
+            if (loweredFrom[i] <= Character.MAX_VALUE) {
+                variants[v++] = (char) loweredFrom[i];
+            }
+        }
+        return Arrays.copyOf(variants, v);
+    }
+
+    /**
+     * The bytes of UTF-8 encoded text {@link #lowerByte(byte)} turns into b,
+     * b first if it is kept.
+     */
+    byte[] byteVariants(byte b) {
+        byte[] variants = new byte[lowerBytes.length];
+        int v = 0;
+        if (lowerBytes[b & 0xFF] == b) {
+            variants[v++] = b;
+        }
+        for (int other = 0; other < lowerBytes.length; other++) {
+            if (other != (b & 0xFF) && lowerBytes[other] == b) {
+                variants[v++] = (byte) other;
+            }
+        }
+        return Arrays.copyOf(variants, v);
+    }
+
+    /**
+     * Can the text matching c once lowercased be found by lowercasing its
+     * UTF-8 bytes one by one with {@link #lowerByte(byte)}? Only if c and
+     * every code point lowercasing to c are ASCII, or if c isn't ASCII and
+     * nothing else lowercases to it. Most non ASCII letters and i and k,
+     * which dotted I and the kelvin sign lowercase to, can't.
+     */
+    boolean lowersBytewise(char c) {
+        if (c < 0x80 && lowerBytes[c] != c) {
+            return false;
+        }
+        for (int i = lowerBound(lowered, c); i < lowered.length && lowered[i] == c; i++) {
+            if (c >= 0x80 || loweredFrom[i] >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Build a copy of automaton that accepts every code point whose
+     * lowercased form is accepted by automaton. A deterministic automaton
+     * stays deterministic.
+     */
+    Automaton fold(Automaton automaton) {
+        int numStates = automaton.getNumStates();
+        Automaton.Builder builder = new Automaton.Builder(numStates, automaton.getNumTransitions());
+        for (int s = 0; s < numStates; s++) {
+            builder.createState();
+            builder.setAccept(s, automaton.isAccept(s));
+        }
+        Transition t = new Transition();
+        for (int s = 0; s < numStates; s++) {
+            int numTransitions = automaton.initTransition(s, t);
+            for (int i = 0; i < numTransitions; i++) {
+                automaton.getNextTransition(t);
+                foldTransition(builder, s, t.dest, t.min, t.max);
+            }
+        }
+        return builder.finish();
+    }
+
+    private void foldTransition(Automaton.Builder builder, int source, int dest, int min, int max) {
+        // Code points in the range that lowercase to something outside of it
+        // can no longer follow this transition.
+        int start = min;
+        for (int i = lowerBound(changed, min); i < changed.length && changed[i] <= max; i++) {
+            if (changedLowered[i] >= min && changedLowered[i] <= max) {
+                continue;
+            }
+            if (start < changed[i]) {
+                builder.addTransition(source, dest, start, changed[i] - 1);
+            }
+            start = changed[i] + 1;
+        }
+        if (start <= max) {
+            builder.addTransition(source, dest, start, max);
+        }
+        // Code points outside of the range that lowercase into it now can.
+        for (int i = lowerBound(lowered, min); i < lowered.length && lowered[i] <= max; i++) {
+            if (loweredFrom[i] < min || loweredFrom[i] > max) {
+                builder.addTransition(source, dest, loweredFrom[i], loweredFrom[i]);
+            }
+        }
+    }
+
+    /**
+     * Index of the first element of sorted that is greater or equal to key.
+     */
+    private static int lowerBound(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Lowercase cp with the Turkish and Azeri rules: dotless I lowercases to
+     * dotless i and dotted I to i.
+     */
+    static int turkishLowerCase(int cp) {
+        switch (cp) {
+        case 'I':
+            return '\u0131'; /* small dotless i */
+        case '\u0130': /* capital dotted I */
+            return 'i';
+        default:
+            return Character.toLowerCase(cp);
+        }
+    }
+
+    /**
+     * Lowercase cp in Greek compatible way. This method is a copy of
+     * Lucene's GreekLowerCaseFilter's lowerCase method. If that method had
+     * been public and static we wouldn't need to do this.
+     */
+    static int greekLowerCase(int cp) {
+        switch (cp) {
+        /*
+         * There are two lowercase forms of sigma: U+03C2: small final sigma
+         * (end of word) U+03C3: small sigma (otherwise)
+         *
+         * Standardize both to U+03C3
+         */
+        case '\u03C2': /* small final sigma */
+            return '\u03C3'; /* small sigma */
+
+            /*
+             * Some greek characters contain diacritics. This filter removes
+             * these, converting to the lowercase base form.
+             */
+
+        case '\u0386': /* capital alpha with tonos */
+        case '\u03AC': /* small alpha with tonos */
+            return '\u03B1'; /* small alpha */
+
+        case '\u0388': /* capital epsilon with tonos */
+        case '\u03AD': /* small epsilon with tonos */
+            return '\u03B5'; /* small epsilon */
+
+        case '\u0389': /* capital eta with tonos */
+        case '\u03AE': /* small eta with tonos */
+            return '\u03B7'; /* small eta */
+
+        case '\u038A': /* capital iota with tonos */
+        case '\u03AA': /* capital iota with dialytika */
+        case '\u03AF': /* small iota with tonos */
+        case '\u03CA': /* small iota with dialytika */
+        case '\u0390': /* small iota with dialytika and tonos */
+            return '\u03B9'; /* small iota */
+
+        case '\u038E': /* capital upsilon with tonos */
+        case '\u03AB': /* capital upsilon with dialytika */
+        case '\u03CD': /* small upsilon with tonos */
+        case '\u03CB': /* small upsilon with dialytika */
+        case '\u03B0': /* small upsilon with dialytika and tonos */
+            return '\u03C5'; /* small upsilon */
+
+        case '\u038C': /* capital omicron with tonos */
+        case '\u03CC': /* small omicron with tonos */
+            return '\u03BF'; /* small omicron */
+
+        case '\u038F': /* capital omega with tonos */
+        case '\u03CE': /* small omega with tonos */
+            return '\u03C9'; /* small omega */
+
+            /*
+             * The previous implementation did the conversion below. Only
+             * implemented for backwards compatibility with old indexes.
+             */
+
+        case '\u03A2': /* reserved */
+            return '\u03C2'; /* small final sigma */
+
+        default:
+            return Character.toLowerCase(cp);
+        }
+    }
+}
@@ -1,11 +1,121 @@
 package org.wikimedia.search.extra.regex;
 
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.RunAutomaton;
+import org.elasticsearch.common.Nullable;
 
-class ContainsCharacterRunAutomaton extends RunAutomaton {
+import java.util.List;
+
+class ContainsCharacterRunAutomaton extends RunAutomaton implements Accountable {
+    /**
+     * RunAutomaton only builds a direct class map for the first 256 code
+     * points, the rest is found by binary search over the points.
+     */
+    private static final int CLASSMAP_SIZE = 256;
+
+    private final long ramBytesUsed;
+    /**
+     * Literals that any match contains, checked before running the automaton.
+     * Each char of a literal is given as the chars matching it: itself if
+     * matching is case sensitive, every char lowercasing to it otherwise.
+     */
+    private final char[][][] literals;
+    private final int[][] literalShifts;
+    /**
+     * Is the only literal also the only match of the automaton?
+     */
+    private final boolean literalIsOnlyMatch;
+    /**
+     * Finds the literals one of which any match contains, null if there are
+     * none.
+     */
+    @Nullable
+    private final AhoCorasick alternatives;
+    /**
+     * Does every match start with one of the alternatives? Then the
+     * automaton only runs from where they are found.
+     */
+    private final boolean alternativesAnchored;
+
+    /**
+     * Build a case sensitive automaton.
+     */
     public ContainsCharacterRunAutomaton(Automaton a) {
+        this(a, a, null);
+    }
+
+    /**
+     * Build a case insensitive automaton, folding the lowercasing rules into
+     * it so matching converts no case.
+     *
+     * @param lowercased automaton built from the lowercased regex
+     * @param folding lowercasing rules of the locale
+     */
+    ContainsCharacterRunAutomaton(Automaton lowercased, CaseFolding folding) {
+        this(folding.fold(lowercased), lowercased, folding);
+    }
+
+    /**
+     * @param a the automaton run, folded if matching is case insensitive
+     * @param lowercased the automaton the literals are extracted from,
+     *            matching lowercased text
+     * @param folding lowercasing rules folded into the literal searches,
+     *            null if matching is case sensitive
+     */
+    private ContainsCharacterRunAutomaton(Automaton a, Automaton lowercased, @Nullable CaseFolding folding) {
         super(a, Character.MAX_CODE_POINT);
+        // The folded automaton has several transitions for most chars, the
+        // literals are extracted from the lowercased one and folded in turn
+        List<char[]> required = RequiredLiterals.extract(lowercased);
+        literals = new char[required.size()][][];
+        literalShifts = new int[literals.length][];
+        long literalsRamBytesUsed = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = RequiredLiterals.variants(required.get(i), folding);
+            literalShifts[i] = RequiredLiterals.shiftTable(literals[i]);
+            literalsRamBytesUsed += arraySize(RamUsageEstimator.NUM_BYTES_OBJECT_REF, literals[i].length)
+                    + arraySize(Integer.BYTES, literalShifts[i].length);
+            for (char[] variants : literals[i]) {
+                literalsRamBytesUsed += arraySize(Character.BYTES, variants.length);
+            }
+        }
+        literalIsOnlyMatch = RequiredLiterals.isOnlyMatch(lowercased, required);
+        RequiredLiterals.Alternatives found = RequiredLiterals.alternatives(lowercased);
+        if (found == null) {
+            alternatives = null;
+            alternativesAnchored = false;
+        } else {
+            alternatives = AhoCorasick.forChars(found.literals, folding);
+            alternativesAnchored = found.anchored;
+            literalsRamBytesUsed += alternatives.ramBytesUsed();
+        }
+        ramBytesUsed = estimateRamBytesUsed(this, a) + literalsRamBytesUsed;
+    }
+
+    /**
+     * Estimate of the memory held by this automaton: the determinized
+     * automaton it was built from plus the run tables.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    static long estimateRamBytesUsed(RunAutomaton run, Automaton a) {
+        long points = run.getCharIntervals().length;
+        long states = run.getSize();
+        return RamUsageEstimator.shallowSizeOfInstance(run.getClass())
+                + a.ramBytesUsed()
+                + arraySize(Integer.BYTES, states * points) // transitions
+                + arraySize(Integer.BYTES, points) // points
+                + arraySize(Integer.BYTES, CLASSMAP_SIZE) // classmap
+                + arraySize(1, states); // accept
+    }
+
+    static long arraySize(int bytesPerElement, long length) {
+        return RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + bytesPerElement * length);
     }
 
     /**
@@ -14,6 +124,22 @@ class ContainsCharacterRunAutomaton extends RunAutomaton {
      * @param s string to check
      */
     public boolean contains(String s) {
+        for (int l = 0; l < literals.length; l++) {
+            if (!containsLiteral(s, literals[l], literalShifts[l])) {
+                return false;
+            }
+        }
+        if (literalIsOnlyMatch) {
+            return true;
+        }
+        if (alternatives != null) {
+            if (alternativesAnchored) {
+                return containsFromAlternatives(s);
+            }
+            if (!containsAlternative(s)) {
+                return false;
+            }
+        }
         int end = s.length();
         int offset = 0;
         // super.initial is final
@@ -21,7 +147,7 @@ class ContainsCharacterRunAutomaton extends RunAutomaton {
         while (offset < end) {
             int cp = s.codePointAt(offset);
             offset += Character.charCount(cp);
-            int p = step(initial, lowerCaseIfNeeded(cp));
+            int p = step(initial, cp);
             if (p == -1) {
                 continue;
             }
@@ -37,7 +163,7 @@ class ContainsCharacterRunAutomaton extends RunAutomaton {
              */
             for (int i = offset; i < end; i += Character.charCount(cp)) {
                 cp = s.codePointAt(i);
-                p = step(p, lowerCaseIfNeeded(cp));
+                p = step(p, cp);
                 if (p == -1) {
                     break;
                 }
@@ -49,93 +175,219 @@ class ContainsCharacterRunAutomaton extends RunAutomaton {
         return false;
     }
 
-    protected int lowerCaseIfNeeded(int cp) {
-        return cp;
+    /**
+     * Does chars contain a substring which matches the automaton? Same as
+     * {@link #contains(String)} but without requiring a String.
+     *
+     * @param chars array holding the characters to check
+     * @param offset offset of the first character to check
+     * @param length number of characters to check
+     */
+    public boolean contains(char[] chars, int offset, int length) {
+        int end = offset + length;
+        for (int l = 0; l < literals.length; l++) {
+            if (!containsLiteral(chars, offset, end, literals[l], literalShifts[l])) {
+                return false;
+            }
+        }
+        if (literalIsOnlyMatch) {
+            return true;
+        }
+        if (alternatives != null) {
+            if (alternativesAnchored) {
+                return containsFromAlternatives(chars, offset, end);
+            }
+            if (!containsAlternative(chars, offset, end)) {
+                return false;
+            }
+        }
+        // super.initial is final
+        final int initial = 0;
+        while (offset < end) {
+            int cp = Character.codePointAt(chars, offset, end);
+            offset += Character.charCount(cp);
+            int p = step(initial, cp);
+            if (p == -1) {
+                continue;
+            }
+            if (isAccept(p)) {
+                return true;
+            }
+            for (int i = offset; i < end; i += Character.charCount(cp)) {
+                cp = Character.codePointAt(chars, i, end);
+                p = step(p, cp);
+                if (p == -1) {
+                    break;
+                }
+                if (isAccept(p)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
-    public static class LowerCasing extends ContainsCharacterRunAutomaton {
-        public LowerCasing(Automaton a) {
-            super(a);
+    /**
+     * Horspool search of literal in s, matching each of its chars against
+     * its variants so the text isn't lowercased. Going char by char is the
+     * same as going code point by code point because literals only contain
+     * chars from the basic multilingual plane and lowercasing never moves a
+     * code point in or out of it.
+     */
+    private static boolean containsLiteral(String s, char[][] literal, int[] shift) {
+        int last = literal.length - 1;
+        char[] lastChars = literal[last];
+        for (int i = last; i < s.length(); ) {
+            char c = s.charAt(i);
+            if (RequiredLiterals.isVariant(lastChars, c)) {
+                int j = last - 1;
+                int k = i - 1;
+                while (j >= 0 && RequiredLiterals.isVariant(literal[j], s.charAt(k))) {
+                    j--;
+                    k--;
+                }
+                if (j < 0) {
+                    return true;
+                }
+            }
+            i += shift[c & 0xFF];
         }
+        return false;
+    }
 
-        @Override
-        protected int lowerCaseIfNeeded(int cp) {
-            return Character.toLowerCase(cp);
+    /**
+     * Horspool search of literal in chars, see
+     * {@link #containsLiteral(String, char[][], int[])}.
+     */
+    private static boolean containsLiteral(char[] chars, int offset, int end, char[][] literal, int[] shift) {
+        int last = literal.length - 1;
+        char[] lastChars = literal[last];
+        for (int i = offset + last; i < end; ) {
+            char c = chars[i];
+            if (RequiredLiterals.isVariant(lastChars, c)) {
+                int j = last - 1;
+                int k = i - 1;
+                while (j >= 0 && RequiredLiterals.isVariant(literal[j], chars[k])) {
+                    j--;
+                    k--;
+                }
+                if (j < 0) {
+                    return true;
+                }
+            }
+            i += shift[c & 0xFF];
         }
+        return false;
     }
 
-    public static class GreekLowerCasing extends ContainsCharacterRunAutomaton {
-        public GreekLowerCasing(Automaton a) {
-            super(a);
+    /**
+     * Does s contain any of the alternatives? Going char by char like
+     * {@link #containsLiteral(String, char[][], int[])}.
+     */
+    private boolean containsAlternative(String s) {
+        int state = 0;
+        for (int i = 0; i < s.length(); i++) {
+            state = alternatives.step(state, s.charAt(i));
+            if (alternatives.matchLengths(state) != null) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        /**
-         * Lowercase cp in Greek compatible way. This method is a copy of
-         * Lucene's GreekLowerCaseFilter's lowerCase method. If that method had
-         * been public and static we wouldn't need to do this.
-         */
-        @Override
-        protected int lowerCaseIfNeeded(int cp) {
-            switch (cp) {
-            /*
-             * There are two lowercase forms of sigma: U+03C2: small final sigma
-             * (end of word) U+03C3: small sigma (otherwise)
-             *
-             * Standardize both to U+03C3
-             */
-            case '\u03C2': /* small final sigma */
-                return '\u03C3'; /* small sigma */
-
-                /*
-                 * Some greek characters contain diacritics. This filter removes
-                 * these, converting to the lowercase base form.
-                 */
-
-            case '\u0386': /* capital alpha with tonos */
-            case '\u03AC': /* small alpha with tonos */
-                return '\u03B1'; /* small alpha */
-
-            case '\u0388': /* capital epsilon with tonos */
-            case '\u03AD': /* small epsilon with tonos */
-                return '\u03B5'; /* small epsilon */
-
-            case '\u0389': /* capital eta with tonos */
-            case '\u03AE': /* small eta with tonos */
-                return '\u03B7'; /* small eta */
-
-            case '\u038A': /* capital iota with tonos */
-            case '\u03AA': /* capital iota with dialytika */
-            case '\u03AF': /* small iota with tonos */
-            case '\u03CA': /* small iota with dialytika */
-            case '\u0390': /* small iota with dialytika and tonos */
-                return '\u03B9'; /* small iota */
-
-            case '\u038E': /* capital upsilon with tonos */
-            case '\u03AB': /* capital upsilon with dialytika */
-            case '\u03CD': /* small upsilon with tonos */
-            case '\u03CB': /* small upsilon with dialytika */
-            case '\u03B0': /* small upsilon with dialytika and tonos */
-                return '\u03C5'; /* small upsilon */
-
-            case '\u038C': /* capital omicron with tonos */
-            case '\u03CC': /* small omicron with tonos */
-                return '\u03BF'; /* small omicron */
+    /**
+     * Does chars contain any of the alternatives? See
+     * {@link #containsAlternative(String)}.
+     */
+    private boolean containsAlternative(char[] chars, int offset, int end) {
+        int state = 0;
+        for (int i = offset; i < end; i++) {
+            state = alternatives.step(state, chars[i]);
+            if (alternatives.matchLengths(state) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            case '\u038F': /* capital omega with tonos */
-            case '\u03CE': /* small omega with tonos */
-                return '\u03C9'; /* small omega */
+    /**
+     * Does a match start where one of the alternatives is found in s? Every
+     * match starts with one of them when they are anchored. Literals never
+     * start with a surrogate so they start on a code point.
+     */
+    private boolean containsFromAlternatives(String s) {
+        int state = 0;
+        for (int i = 0; i < s.length(); i++) {
+            state = alternatives.step(state, s.charAt(i));
+            int[] lengths = alternatives.matchLengths(state);
+            if (lengths == null) {
+                continue;
+            }
+            for (int length : lengths) {
+                if (matchesFrom(s, i + 1 - length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-                /*
-                 * The previous implementation did the conversion below. Only
-                 * implemented for backwards compatibility with old indexes.
-                 */
+    /**
+     * Does a match start where one of the alternatives is found in chars?
+     * See {@link #containsFromAlternatives(String)}.
+     */
+    private boolean containsFromAlternatives(char[] chars, int offset, int end) {
+        int state = 0;
+        for (int i = offset; i < end; i++) {
+            state = alternatives.step(state, chars[i]);
+            int[] lengths = alternatives.matchLengths(state);
+            if (lengths == null) {
+                continue;
+            }
+            for (int length : lengths) {
+                if (matchesFrom(chars, i + 1 - length, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-            case '\u03A2': /* reserved */
-                return '\u03C2'; /* small final sigma */
+    /**
+     * Does a match start at offset in s?
+     */
+    private boolean matchesFrom(String s, int offset) {
+        int p = 0;
+        for (int i = offset; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            p = step(p, cp);
+            if (p == -1) {
+                return false;
+            }
+            if (isAccept(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            default:
-                return Character.toLowerCase(cp);
+    /**
+     * Does a match start at offset in chars?
+     */
+    private boolean matchesFrom(char[] chars, int offset, int end) {
+        int p = 0;
+        for (int i = offset; i < end; ) {
+            int cp = Character.codePointAt(chars, i, end);
+            i += Character.charCount(cp);
+            p = step(p, cp);
+            if (p == -1) {
+                return false;
+            }
+            if (isAccept(p)) {
+                return true;
             }
         }
+        return false;
     }
 }
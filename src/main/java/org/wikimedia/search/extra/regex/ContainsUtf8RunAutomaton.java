@@ -0,0 +1,304 @@
+package org.wikimedia.search.extra.regex;
+
+import com.google.common.annotations.VisibleForTesting;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.ByteRunAutomaton;
+import org.elasticsearch.common.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Byte oriented version of {@link ContainsCharacterRunAutomaton} that runs
+ * directly against UTF-8 encoded text. Case insensitivity is folded into the
+ * automaton (see {@link CaseFolding}) because the bytes are never decoded,
+ * and into the literals searched before running it so the bytes are never
+ * lowercased either.
+ */
+class ContainsUtf8RunAutomaton extends ByteRunAutomaton implements Accountable {
+    private final long ramBytesUsed;
+    /**
+     * UTF-8 encoded literals that any match contains, checked before running
+     * the automaton. Each byte of a literal is given as the bytes matching
+     * it, itself first.
+     */
+    private final byte[][][] literals;
+    private final int[][] literalShifts;
+    /**
+     * Is the only literal also the only match of the automaton?
+     */
+    private final boolean literalIsOnlyMatch;
+    /**
+     * Finds the UTF-8 encoded literals one of which any match contains, null
+     * if there are none.
+     */
+    @Nullable
+    private final AhoCorasick alternatives;
+    /**
+     * Does every match start with one of the alternatives?
+     */
+    private final boolean alternativesAnchored;
+
+    /**
+     * Build a case sensitive automaton from an automaton over unicode code
+     * points.
+     *
+     * @param a the automaton to convert to UTF-8
+     * @param maxDeterminizedStates maximum number of states the UTF-8
+     *            automaton can have once determinized
+     */
+    ContainsUtf8RunAutomaton(Automaton a, int maxDeterminizedStates) {
+        this(a, a, null, maxDeterminizedStates);
+    }
+
+    /**
+     * Build a case insensitive automaton, folding the lowercasing rules into
+     * the automaton.
+     *
+     * @param lowercased automaton over unicode code points built from the
+     *            lowercased regex
+     * @param folding lowercasing rules of the locale
+     * @param maxDeterminizedStates maximum number of states the UTF-8
+     *            automaton can have once determinized
+     */
+    ContainsUtf8RunAutomaton(Automaton lowercased, CaseFolding folding, int maxDeterminizedStates) {
+        this(folding.fold(lowercased), lowercased, folding, maxDeterminizedStates);
+    }
+
+    /**
+     * @param a the automaton to convert to UTF-8
+     * @param lowercased the automaton the literals are extracted from,
+     *            matching lowercased text
+     * @param folding lowercasing rules folded into the literal searches,
+     *            null if matching is case sensitive
+     */
+    private ContainsUtf8RunAutomaton(Automaton a, Automaton lowercased, @Nullable CaseFolding folding, int maxDeterminizedStates) {
+        super(a, false, maxDeterminizedStates);
+        // The folded automaton accepts several cases of each letter so no
+        // literals are found in it. They are found in the lowercased one and
+        // folded byte by byte in turn, cut where lowercasing bytes one by one
+        // doesn't find them.
+        List<char[]> required = RequiredLiterals.extract(lowercased);
+        List<char[]> searched = new ArrayList<>(required.size());
+        boolean cut = false;
+        for (char[] literal : required) {
+            char[] run = bytewiseRun(literal, folding);
+            cut |= run != literal;
+            if (run != null) {
+                searched.add(run);
+            }
+        }
+        literals = new byte[searched.size()][][];
+        literalShifts = new int[literals.length][];
+        long literalsRamBytesUsed = 0;
+        for (int i = 0; i < literals.length; i++) {
+            literals[i] = RequiredLiterals.variants(utf8(searched.get(i)), folding);
+            literalShifts[i] = RequiredLiterals.shiftTable(literals[i]);
+            literalsRamBytesUsed += ContainsCharacterRunAutomaton.arraySize(RamUsageEstimator.NUM_BYTES_OBJECT_REF, literals[i].length)
+                    + ContainsCharacterRunAutomaton.arraySize(Integer.BYTES, literalShifts[i].length);
+            for (byte[] variants : literals[i]) {
+                literalsRamBytesUsed += ContainsCharacterRunAutomaton.arraySize(1, variants.length);
+            }
+        }
+        literalIsOnlyMatch = !cut && RequiredLiterals.isOnlyMatch(lowercased, required);
+        RequiredLiterals.Alternatives found = RequiredLiterals.alternatives(lowercased);
+        List<char[]> alternativeRuns = found == null ? null : new ArrayList<>(found.literals.size());
+        boolean alternativesCut = false;
+        if (found != null) {
+            for (char[] literal : found.literals) {
+                char[] run = bytewiseRun(literal, folding);
+                if (run == null) {
+                    // Matches containing this alternative can't be found
+                    alternativeRuns = null;
+                    break;
+                }
+                alternativesCut |= run != literal;
+                alternativeRuns.add(run);
+            }
+        }
+        if (alternativeRuns == null) {
+            alternatives = null;
+            alternativesAnchored = false;
+        } else {
+            alternatives = AhoCorasick.forUtf8(alternativeRuns.stream().map(ContainsUtf8RunAutomaton::utf8).collect(Collectors.toList()),
+                    folding);
+            alternativesAnchored = found.anchored && !alternativesCut;
+            literalsRamBytesUsed += alternatives.ramBytesUsed();
+        }
+        ramBytesUsed = ContainsCharacterRunAutomaton.estimateRamBytesUsed(this, a) + literalsRamBytesUsed;
+    }
+
+    /**
+     * The longest run of the chars of literal that lowercasing bytes one
+     * by one finds, literal itself if all of them or if matching is case
+     * sensitive, null if none.
+     */
+    @Nullable
+    private static char[] bytewiseRun(char[] literal, @Nullable CaseFolding folding) {
+        if (folding == null) {
+            return literal;
+        }
+        int bestStart = 0;
+        int bestLength = 0;
+        int start = 0;
+        for (int i = 0; i <= literal.length; i++) {
+            if (i == literal.length || !folding.lowersBytewise(literal[i])) {
+                if (i - start > bestLength) {
+                    bestStart = start;
+                    bestLength = i - start;
+                }
+                start = i + 1;
+            }
+        }
+        if (bestLength == literal.length) {
+            return literal;
+        }
+        return bestLength == 0 ? null : Arrays.copyOfRange(literal, bestStart, bestStart + bestLength);
+    }
+
+    private static byte[] utf8(char[] literal) {
+        BytesRef utf8 = new BytesRef(new String(literal));
+        return Arrays.copyOfRange(utf8.bytes, utf8.offset, utf8.offset + utf8.length);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    /**
+     * The literals searched before running the automaton.
+     */
+    @VisibleForTesting
+    List<String> literals() {
+        return Arrays.stream(literals).map(literal -> {
+            byte[] bytes = new byte[literal.length];
+            for (int i = 0; i < literal.length; i++) {
+                bytes[i] = literal[i][0];
+            }
+            return new BytesRef(bytes).utf8ToString();
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Are alternatives searched before running the automaton?
+     */
+    @VisibleForTesting
+    boolean hasAlternatives() {
+        return alternatives != null;
+    }
+
+    /**
+     * Does the UTF-8 encoded bytes contain a substring which matches the
+     * automaton?
+     */
+    public boolean contains(BytesRef bytes) {
+        return contains(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    /**
+     * Does the UTF-8 encoded bytes contain a substring which matches the
+     * automaton?
+     *
+     * @param bytes array holding the bytes to check
+     * @param offset offset of the first byte to check
+     * @param length number of bytes to check
+     */
+    public boolean contains(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+        for (int l = 0; l < literals.length; l++) {
+            if (!RequiredLiterals.contains(bytes, offset, end, literals[l], literalShifts[l])) {
+                return false;
+            }
+        }
+        if (literalIsOnlyMatch) {
+            return true;
+        }
+        if (alternatives != null) {
+            if (alternativesAnchored) {
+                return containsFromAlternatives(bytes, offset, end);
+            }
+            if (!containsAlternative(bytes, offset, end)) {
+                return false;
+            }
+        }
+        // super.initial is final
+        final int initial = 0;
+        while (offset < end) {
+            int b = bytes[offset++];
+            if ((b & 0xC0) == 0x80) {
+                // Continuation byte, matches only start on a code point
+                continue;
+            }
+            int p = step(initial, b & 0xFF);
+            if (p == -1) {
+                continue;
+            }
+            if (isAccept(p)) {
+                return true;
+            }
+            // Same unrolling as ContainsCharacterRunAutomaton
+            for (int i = offset; i < end; i++) {
+                p = step(p, bytes[i] & 0xFF);
+                if (p == -1) {
+                    break;
+                }
+                if (isAccept(p)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean containsAlternative(byte[] bytes, int offset, int end) {
+        int state = 0;
+        for (int i = offset; i < end; i++) {
+            state = alternatives.step(state, bytes[i] & 0xFF);
+            if (alternatives.matchLengths(state) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does a match start where one of the alternatives is found? Literals
+     * start with the first byte of a code point so matches do too.
+     */
+    private boolean containsFromAlternatives(byte[] bytes, int offset, int end) {
+        int state = 0;
+        for (int i = offset; i < end; i++) {
+            state = alternatives.step(state, bytes[i] & 0xFF);
+            int[] lengths = alternatives.matchLengths(state);
+            if (lengths == null) {
+                continue;
+            }
+            for (int length : lengths) {
+                if (matchesFrom(bytes, i + 1 - length, end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesFrom(byte[] bytes, int offset, int end) {
+        int p = 0;
+        for (int i = offset; i < end; i++) {
+            p = step(p, bytes[i] & 0xFF);
+            if (p == -1) {
+                return false;
+            }
+            if (isAccept(p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,179 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.action.search.SearchTask;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers the task of the search phase running on the current thread so
+ * the queries it runs can stop when it is cancelled. Queries don't get the
+ * search context but their weights are built on the thread running the
+ * phase. Also holds the admission of the phase to run expensive regexes
+ * until the phase ends, and what must happen once it ended.
+ */
+public class CurrentSearchTask implements SearchOperationListener {
+    private final ThreadLocal<Phase> phase = new ThreadLocal<>();
+
+    /**
+     * @return the task of the search phase running on this thread, null if
+     *         none
+     */
+    @Nullable
+    public SearchTask get() {
+        Phase current = phase.get();
+        return current == null ? null : current.task;
+    }
+
+    /**
+     * @return the context of the search phase running on this thread, null
+     *         if none
+     */
+    @Nullable
+    SearchContext context() {
+        Phase current = phase.get();
+        return current == null ? null : current.context;
+    }
+
+    /**
+     * Is a search phase running on this thread?
+     */
+    boolean inPhase() {
+        return phase.get() != null;
+    }
+
+    /**
+     * Is the search phase running on this thread a fetch phase? Queries
+     * named with _name build their weight again during the fetch phase to
+     * find the hits they match.
+     */
+    boolean inFetchPhase() {
+        Phase current = phase.get();
+        return current != null && current.fetch;
+    }
+
+    /**
+     * Was the search phase running on this thread admitted?
+     */
+    boolean admitted() {
+        Phase current = phase.get();
+        return current != null && current.admission != null;
+    }
+
+    /**
+     * Hold admission until the search phase running on this thread ends.
+     */
+    void admit(Releasable admission) {
+        Phase current = phase.get();
+        assert current != null && current.admission == null;
+        current.admission = admission;
+    }
+
+    /**
+     * Run action once the search phase running on this thread ends.
+     *
+     * @return false if no phase is running on this thread, then action is
+     *         never run
+     */
+    boolean onEnd(Runnable action) {
+        Phase current = phase.get();
+        if (current == null) {
+            return false;
+        }
+        current.onEnd.add(action);
+        return true;
+    }
+
+    /**
+     * Start a query phase on this thread.
+     */
+    void start(@Nullable SearchTask task) {
+        start(task, null, false);
+    }
+
+    /**
+     * Start a fetch phase on this thread.
+     */
+    void startFetch(@Nullable SearchTask task) {
+        start(task, null, true);
+    }
+
+    /**
+     * Start the phase of context on this thread.
+     */
+    private void start(@Nullable SearchTask task, @Nullable SearchContext context, boolean fetch) {
+        end();
+        phase.set(new Phase(task, context, fetch));
+    }
+
+    /**
+     * End the phase running on this thread and release its admission.
+     */
+    void end() {
+        Phase current = phase.get();
+        if (current == null) {
+            return;
+        }
+        phase.remove();
+        try {
+            for (Runnable action : current.onEnd) {
+                action.run();
+            }
+        } finally {
+            if (current.admission != null) {
+                current.admission.close();
+            }
+        }
+    }
+
+    @Override
+    public void onPreQueryPhase(SearchContext searchContext) {
+        start(searchContext.getTask(), searchContext, false);
+    }
+
+    @Override
+    public void onFailedQueryPhase(SearchContext searchContext) {
+        end();
+    }
+
+    @Override
+    public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+        end();
+    }
+
+    @Override
+    public void onPreFetchPhase(SearchContext searchContext) {
+        start(searchContext.getTask(), searchContext, true);
+    }
+
+    @Override
+    public void onFailedFetchPhase(SearchContext searchContext) {
+        end();
+    }
+
+    @Override
+    public void onFetchPhase(SearchContext searchContext, long tookInNanos) {
+        end();
+    }
+
+    private static final class Phase {
+        @Nullable
+        private final SearchTask task;
+        @Nullable
+        private final SearchContext context;
+        private final boolean fetch;
+        @Nullable
+        private Releasable admission;
+        private final List<Runnable> onEnd = new ArrayList<>(1);
+
+        Phase(@Nullable SearchTask task, @Nullable SearchContext context, boolean fetch) {
+            this.task = task;
+            this.context = context;
+            this.fetch = fetch;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.automaton.Automata;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.RunAutomaton;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds which of several automata have a match in a string in a single pass.
+ * Each automaton is tagged by concatenating it with its own marker code
+ * point, from the end of the last private use plane, and the union of the
+ * tagged automata is prefixed with <code>.*</code> and determinized. A state
+ * of the result is where an automaton matches if its marker leads to an
+ * accept state. Markers in the text are harmless: the accept states aren't
+ * checked while running. Case insensitivity is folded into the automata
+ * (see {@link CaseFolding}) so the text is matched as is.
+ */
+class MultiContainsCharacterRunAutomaton extends RunAutomaton implements Accountable {
+    /**
+     * Matches are reported as bits of a long.
+     */
+    static final int MAX_AUTOMATA = Long.SIZE;
+    private static final int FIRST_MARKER = Character.MAX_CODE_POINT - MAX_AUTOMATA;
+
+    private final long ramBytesUsed;
+    /**
+     * Automata matching when reaching each state.
+     */
+    private final long[] matches;
+    private final long all;
+
+    /**
+     * Build from automata over unicode code points.
+     *
+     * @param maxDeterminizedStates maximum number of states of the union
+     *            once determinized
+     */
+    MultiContainsCharacterRunAutomaton(List<Automaton> automata, int maxDeterminizedStates) {
+        this(union(automata, maxDeterminizedStates), automata.size(), maxDeterminizedStates);
+    }
+
+    /**
+     * Build a case insensitive automaton from automata built from lowercased
+     * regexes.
+     *
+     * @param folding lowercasing rules of the locale
+     * @param maxDeterminizedStates maximum number of states of the union
+     *            once determinized
+     */
+    MultiContainsCharacterRunAutomaton(List<Automaton> lowercased, CaseFolding folding, int maxDeterminizedStates) {
+        this(fold(lowercased, folding), maxDeterminizedStates);
+    }
+
+    private MultiContainsCharacterRunAutomaton(Automaton union, int count, int maxDeterminizedStates) {
+        super(union, Character.MAX_CODE_POINT, maxDeterminizedStates);
+        matches = new long[getSize()];
+        for (int state = 0; state < matches.length; state++) {
+            for (int i = 0; i < count; i++) {
+                int tagged = step(state, FIRST_MARKER + i);
+                if (tagged != -1 && isAccept(tagged)) {
+                    matches[state] |= 1L << i;
+                }
+            }
+        }
+        all = count == MAX_AUTOMATA ? -1L : (1L << count) - 1;
+        ramBytesUsed = ContainsCharacterRunAutomaton.estimateRamBytesUsed(this, union)
+                + ContainsCharacterRunAutomaton.arraySize(Long.BYTES, matches.length);
+    }
+
+    private static List<Automaton> fold(List<Automaton> automata, CaseFolding folding) {
+        List<Automaton> folded = new ArrayList<>(automata.size());
+        for (Automaton automaton : automata) {
+            folded.add(folding.fold(automaton));
+        }
+        return folded;
+    }
+
+    private static Automaton union(List<Automaton> automata, int maxDeterminizedStates) {
+        if (automata.isEmpty() || automata.size() > MAX_AUTOMATA) {
+            throw new IllegalArgumentException("Expected between 1 and " + MAX_AUTOMATA + " automata but got " + automata.size());
+        }
+        List<Automaton> tagged = new ArrayList<>(automata.size());
+        for (int i = 0; i < automata.size(); i++) {
+            tagged.add(Operations.concatenate(automata.get(i), Automata.makeChar(FIRST_MARKER + i)));
+        }
+        Automaton union = Operations.concatenate(Automata.makeAnyString(), Operations.union(tagged));
+        return Operations.determinize(union, maxDeterminizedStates);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    /**
+     * Which automata have a match in s?
+     *
+     * @param s string to check
+     * @param stopAtFirst stop as soon as any automaton matches
+     * @return bits of the automata with a match, by position in the list
+     *         this was built with
+     */
+    public long matches(String s, boolean stopAtFirst) {
+        int p = 0;
+        long found = matches[p];
+        for (int i = 0; i < s.length() && !done(found, stopAtFirst); ) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            p = step(p, cp);
+            found |= matches[p];
+        }
+        return found;
+    }
+
+    /**
+     * Which automata have a match in chars? Same as
+     * {@link #matches(String, boolean)} without requiring a String.
+     */
+    public long matches(char[] chars, int offset, int length, boolean stopAtFirst) {
+        int end = offset + length;
+        int p = 0;
+        long found = matches[p];
+        for (int i = offset; i < end && !done(found, stopAtFirst); ) {
+            int cp = Character.codePointAt(chars, i, end);
+            i += Character.charCount(cp);
+            p = step(p, cp);
+            found |= matches[p];
+        }
+        return found;
+    }
+
+    /**
+     * Bits of all the automata.
+     */
+    long all() {
+        return all;
+    }
+
+    private boolean done(long found, boolean stopAtFirst) {
+        return stopAtFirst ? found != 0 : found == all;
+    }
+}
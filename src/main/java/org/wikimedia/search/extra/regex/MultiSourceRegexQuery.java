@@ -0,0 +1,366 @@
+package org.wikimedia.search.extra.regex;
+
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.lucene.search.Queries;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.StreamingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Metric;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Matches the docs matching any of several regexes. Candidates are the docs
+ * matching the ngram approximation of any of the regexes and each of them
+ * is loaded once and checked against all the regexes with a single
+ * {@link MultiContainsCharacterRunAutomaton}.
+ * <p>
+ * {@link #patternQuery(int)} builds queries matching a single regex that
+ * share the automaton with this query and remember which regexes matched
+ * the docs they checked so checking several patterns against the same doc
+ * loads it only once.
+ */
+@EqualsAndHashCode(callSuper = false, exclude = "services")
+@Getter(AccessLevel.PACKAGE)
+public class MultiSourceRegexQuery extends Query {
+    private final String fieldPath;
+    /**
+     * UUID of the index searched, null if unknown.
+     */
+    @Nullable
+    private final String index;
+    private final String ngramFieldPath;
+    private final List<String> regexes;
+    /**
+     * Bits of the regexes matched by this query.
+     */
+    private final long patterns;
+    private final FieldValues.Loader loader;
+    private final Settings settings;
+    private final int gramSize;
+    private final Analyzer ngramAnalyzer;
+    private final MultiRechecker rechecker;
+    private final SourceRegexServices services;
+
+    /**
+     * Build the query.
+     *
+     * @param index UUID of the index searched, the ngram expressions of the
+     *        regexes are only cached if it is known
+     */
+    public MultiSourceRegexQuery(String fieldPath, @Nullable String index, String ngramFieldPath, List<String> regexes,
+            FieldValues.Loader loader, Settings settings, int gramSize, Analyzer ngramAnalyzer, SourceRegexServices services) {
+        this(fieldPath, index, ngramFieldPath, regexes, allPatterns(regexes.size()), loader, settings, gramSize, ngramAnalyzer,
+                new MultiRechecker(regexes, settings, services.cache()), services);
+    }
+
+    private MultiSourceRegexQuery(String fieldPath, @Nullable String index, String ngramFieldPath, List<String> regexes,
+            long patterns,
+            FieldValues.Loader loader, Settings settings, int gramSize, Analyzer ngramAnalyzer, MultiRechecker rechecker,
+            SourceRegexServices services) {
+        if (regexes.isEmpty() || regexes.size() > MultiContainsCharacterRunAutomaton.MAX_AUTOMATA) {
+            throw new IllegalArgumentException("Expected between 1 and " + MultiContainsCharacterRunAutomaton.MAX_AUTOMATA
+                    + " regexes but got " + regexes.size());
+        }
+        for (String regex : regexes) {
+            if (regex.isEmpty()) {
+                throw new IllegalArgumentException("regex must be set");
+            }
+        }
+        this.fieldPath = fieldPath;
+        this.index = index;
+        this.ngramFieldPath = ngramFieldPath;
+        this.regexes = regexes;
+        this.patterns = patterns;
+        this.loader = loader;
+        this.settings = settings;
+        this.gramSize = gramSize;
+        this.ngramAnalyzer = ngramAnalyzer;
+        this.rechecker = rechecker;
+        this.services = Objects.requireNonNull(services);
+    }
+
+    private static long allPatterns(int count) {
+        return count == MultiContainsCharacterRunAutomaton.MAX_AUTOMATA ? -1L : (1L << count) - 1;
+    }
+
+    /**
+     * Query matching the docs matching the regex at index.
+     */
+    Query patternQuery(int index) {
+        return new MultiSourceRegexQuery(fieldPath, this.index, ngramFieldPath, regexes, 1L << index, loader, settings, gramSize,
+                ngramAnalyzer, rechecker, services);
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        SourceRegexQuery.Rechecker patternRechecker = patterns == allPatterns(regexes.size())
+                ? rechecker : new PatternRechecker(rechecker, patterns);
+        if (ngramFieldPath == null) {
+            assert ngramAnalyzer == null;
+            if (settings.rejectUnaccelerated()) {
+                services.stats().increment(Metric.REJECTED);
+                throw new UnableToAccelerateRegexException(regexes.get(Long.numberOfTrailingZeros(patterns)), gramSize, null);
+            }
+            return new UnacceleratedSourceRegexQuery(patternRechecker, fieldPath, loader, settings, services,
+                    services.newProfile(selectedRegexes()));
+        }
+        assert ngramAnalyzer != null;
+        NGramQueryPlanner planner = new NGramQueryPlanner(ngramFieldPath, reader);
+        SourceRegexQuery.NGramIndex ngrams = new SourceRegexQuery.NGramIndex(index, ngramFieldPath, gramSize, ngramAnalyzer);
+        List<Query> approximations = new ArrayList<>();
+        List<Expression<String>> expressions = new ArrayList<>();
+        long estimate = 0;
+        long extractionNanos = 0;
+        int clauses = 0;
+        for (int i = 0; i < regexes.size(); i++) {
+            if ((patterns & (1L << i)) == 0) {
+                continue;
+            }
+            long start = System.nanoTime();
+            Acceleration acceleration = SourceRegexQuery.acceleration(regexes.get(i), ngrams, settings, services.cache());
+            extractionNanos += System.nanoTime() - start;
+            Expression<String> expression = acceleration.expression();
+            if (expression.alwaysFalse()) {
+                continue;
+            }
+            if (expression.alwaysTrue()) {
+                // One regex that can't be accelerated requires checking every doc
+                if (settings.rejectUnaccelerated()) {
+                    services.stats().increment(Metric.REJECTED);
+                    throw new UnableToAccelerateRegexException(regexes.get(i), gramSize, ngramFieldPath);
+                }
+                SourceRegexProfile profile = services.newProfile(selectedRegexes());
+                profile.extracted(extractionNanos, 0, null);
+                return new UnacceleratedSourceRegexQuery(patternRechecker, fieldPath, loader, settings, services, profile)
+                        .rewrite(reader);
+            }
+            clauses = (int) Math.min(Integer.MAX_VALUE, (long) clauses + expression.countClauses());
+            expressions.add(expression);
+            NGramQueryPlanner.Plan plan = expression.transform(planner);
+            if (plan.estimate() > 0) {
+                approximations.add(planner.withAdjacency(plan.query(), acceleration.literals(), ngramAnalyzer));
+                estimate += plan.estimate();
+            }
+        }
+        if (approximations.isEmpty()) {
+            services.stats().increment(Metric.ALWAYS_FALSE);
+            return Queries.newMatchNoDocsQuery("Expressions are always false or no document contains their ngrams").rewrite(reader);
+        }
+        Query approximation;
+        if (approximations.size() == 1) {
+            approximation = approximations.get(0);
+        } else {
+            BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            for (Query query : approximations) {
+                builder.add(query, Occur.SHOULD);
+            }
+            approximation = builder.build();
+        }
+        SourceRegexProfile profile = services.newProfile(selectedRegexes());
+        profile.extracted(extractionNanos, clauses, expressions.size() == 1 ? expressions.get(0) : expressions);
+        return new AcceleratedSourceRegexQuery(patternRechecker, fieldPath, loader, settings, approximation,
+                Math.min(estimate, reader.maxDoc()), services, profile).rewrite(reader);
+    }
+
+    /**
+     * The regexes matched by this query, as reported by the slow log.
+     */
+    private String selectedRegexes() {
+        if (Long.bitCount(patterns) == 1) {
+            return regexes.get(Long.numberOfTrailingZeros(patterns));
+        }
+        List<String> selected = new ArrayList<>();
+        for (int i = 0; i < regexes.size(); i++) {
+            if ((patterns & (1L << i)) != 0) {
+                selected.add(regexes.get(i));
+            }
+        }
+        return selected.toString();
+    }
+
+    /**
+     * Rechecks the values against all the regexes at once.
+     */
+    @EqualsAndHashCode(exclude = {"charRun", "cache", "memo"})
+    static class MultiRechecker implements StreamingRechecker {
+        /**
+         * Number of docs whose matches are remembered for
+         * {@link PatternRechecker}s.
+         */
+        private static final int MEMO_SIZE = 1024;
+
+        private final List<String> regexes;
+        private final Settings settings;
+        private final SourceRegexCache cache;
+        private final Map<MemoKey, Long> memo = new LinkedHashMap<MemoKey, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MemoKey, Long> eldest) {
+                return size() > MEMO_SIZE;
+            }
+        };
+
+        private MultiContainsCharacterRunAutomaton charRun;
+
+        MultiRechecker(List<String> regexes, Settings settings, SourceRegexCache cache) {
+            this.regexes = regexes;
+            this.settings = settings;
+            this.cache = cache;
+        }
+
+        @Override
+        public boolean recheck(Iterable<String> values) {
+            return matches(values, true) != 0;
+        }
+
+        @Override
+        public boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            return matches(loader, path, reader, docId, true) != 0;
+        }
+
+        /**
+         * Which regexes match the values?
+         *
+         * @param stopAtFirst stop as soon as any regex matches
+         * @return the bits of the regexes that match
+         */
+        long matches(Iterable<String> values, boolean stopAtFirst) {
+            long found = 0;
+            for (String value : values) {
+                found |= getCharRun().matches(value, stopAtFirst);
+                if (stopAtFirst ? found != 0 : found == getCharRun().all()) {
+                    break;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Which regexes match the values of the doc?
+         *
+         * @param stopAtFirst stop as soon as any regex matches
+         * @return the bits of the regexes that match
+         */
+        long matches(FieldValues.Loader loader, String path, IndexReader reader, int docId, boolean stopAtFirst) throws IOException {
+            MultiContainsCharacterRunAutomaton run = getCharRun();
+            long[] found = new long[1];
+            loader.anyMatch(path, reader, docId, (chars, offset, length) -> {
+                found[0] |= run.matches(chars, offset, length, stopAtFirst);
+                return stopAtFirst ? found[0] != 0 : found[0] == run.all();
+            });
+            return found[0];
+        }
+
+        /**
+         * Which regexes match the values of the doc, remembering the
+         * answer for the last {@link #MEMO_SIZE} docs.
+         */
+        long memoizedMatches(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            // Scorers recheck through readers wrapping the segment, key on
+            // the segment so the scorers of every pattern share the memo.
+            LeafReader leaf = (LeafReader) reader;
+            MemoKey key = new MemoKey(leaf.getCoreCacheKey(), FilterLeafReader.unwrap(leaf).getCombinedCoreAndDeletesKey(), docId);
+            synchronized (memo) {
+                Long found = memo.get(key);
+                if (found != null) {
+                    return found;
+                }
+            }
+            long found = matches(loader, path, reader, docId, false);
+            synchronized (memo) {
+                memo.put(key, found);
+            }
+            return found;
+        }
+
+        private MultiContainsCharacterRunAutomaton getCharRun() {
+            if (charRun == null) {
+                charRun = cache.multiCharRun(regexes, settings, !settings.caseSensitive());
+            }
+            return charRun;
+        }
+
+        @Override
+        public float getCost() {
+            return getCharRun().getSize();
+        }
+    }
+
+    /**
+     * Rechecks the values against some of the regexes of a
+     * {@link MultiRechecker}.
+     */
+    @EqualsAndHashCode
+    static class PatternRechecker implements StreamingRechecker {
+        private final MultiRechecker rechecker;
+        private final long patterns;
+
+        PatternRechecker(MultiRechecker rechecker, long patterns) {
+            this.rechecker = rechecker;
+            this.patterns = patterns;
+        }
+
+        @Override
+        public boolean recheck(Iterable<String> values) {
+            return (rechecker.matches(values, false) & patterns) != 0;
+        }
+
+        @Override
+        public boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            return (rechecker.memoizedMatches(loader, path, reader, docId) & patterns) != 0;
+        }
+
+        @Override
+        public float getCost() {
+            return rechecker.getCost();
+        }
+    }
+
+    @EqualsAndHashCode
+    private static final class MemoKey {
+        private final Object core;
+        private final Object deletes;
+        private final int docId;
+
+        private MemoKey(Object core, Object deletes, int docId) {
+            this.core = core;
+            this.deletes = deletes;
+            this.docId = docId;
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder b = new StringBuilder();
+        b.append(fieldPath).append(':');
+        String separator = "";
+        for (int i = 0; i < regexes.size(); i++) {
+            if ((patterns & (1L << i)) != 0) {
+                b.append(separator).append('/').append(regexes.get(i)).append('/');
+                separator = "|";
+            }
+        }
+        if (ngramFieldPath != null) {
+            b.append('~').append(ngramFieldPath);
+        }
+        return b.toString();
+    }
+}
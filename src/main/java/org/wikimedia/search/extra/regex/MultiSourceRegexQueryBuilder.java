@@ -0,0 +1,204 @@
+package org.wikimedia.search.extra.regex;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Accessors;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ConstructingObjectParser;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import static org.elasticsearch.common.xcontent.ConstructingObjectParser.constructorArg;
+
+/**
+ * Builds source_regex_multi queries: several named regexes checked against
+ * the same field in a single pass. Matches the docs matching any of them and
+ * registers each of them as a named query so hits report the names of the
+ * regexes they match in their matched_queries.
+ */
+@Accessors(chain = true, fluent = true)
+@Getter
+@Setter
+public class MultiSourceRegexQueryBuilder extends AbstractQueryBuilder<MultiSourceRegexQueryBuilder> {
+    public static final ParseField NAME = new ParseField("source_regex_multi", "sourceRegexMulti");
+
+    public static final ParseField FIELD = SourceRegexQueryBuilder.FIELD;
+    public static final ParseField REGEXES = new ParseField("regexes");
+
+    private static final ConstructingObjectParser<MultiSourceRegexQueryBuilder, QueryParseContext> PARSER;
+
+    static {
+        PARSER = new ConstructingObjectParser<MultiSourceRegexQueryBuilder, QueryParseContext>(NAME.getPreferredName(),
+                (o) -> {
+                    @SuppressWarnings("unchecked")
+                    Map<String, String> regexes = (Map<String, String>) o[1];
+                    return new MultiSourceRegexQueryBuilder((String) o[0], regexes);
+                });
+        PARSER.declareString(constructorArg(), FIELD);
+        PARSER.declareObject(constructorArg(), (p, c) -> p.mapStringsOrdered(), REGEXES);
+        PARSER.declareBoolean(MultiSourceRegexQueryBuilder::loadFromSource, SourceRegexQueryBuilder.LOAD_FROM_SOURCE);
+        PARSER.declareBoolean(MultiSourceRegexQueryBuilder::loadFromDocValues, SourceRegexQueryBuilder.LOAD_FROM_DOC_VALUES);
+        PARSER.declareString(MultiSourceRegexQueryBuilder::ngramField, SourceRegexQueryBuilder.NGRAM_FIELD);
+        PARSER.declareInt(MultiSourceRegexQueryBuilder::gramSize, SourceRegexQueryBuilder.GRAM_SIZE);
+        Settings.declare(PARSER, MultiSourceRegexQueryBuilder::settings);
+        declareStandardFields(PARSER);
+    }
+
+    private final String field;
+    /**
+     * The regexes by name, in the order they were added.
+     */
+    private final Map<String, String> regexes;
+    private boolean loadFromSource = SourceRegexQueryBuilder.DEFAULT_LOAD_FROM_SOURCE;
+    private boolean loadFromDocValues = SourceRegexQueryBuilder.DEFAULT_LOAD_FROM_DOC_VALUES;
+    private String ngramField;
+    private int gramSize = SourceRegexQueryBuilder.DEFAULT_GRAM_SIZE;
+
+    @Setter(AccessLevel.NONE)
+    private final Settings settings;
+
+    // Not part of the definition of the qb, see SourceRegexQueryBuilder
+    private SourceRegexServices services = SourceRegexServices.NONE;
+
+    /**
+     * Start building.
+     *
+     * @param field the field to load and run the regexes against
+     * @param regexes the regexes to run by name
+     */
+    public MultiSourceRegexQueryBuilder(String field, Map<String, String> regexes) {
+        this.field = Objects.requireNonNull(field);
+        this.regexes = Collections.unmodifiableMap(new LinkedHashMap<>(regexes));
+        if (regexes.isEmpty() || regexes.size() > MultiContainsCharacterRunAutomaton.MAX_AUTOMATA) {
+            throw new IllegalArgumentException("[" + NAME.getPreferredName() + "] requires between 1 and "
+                    + MultiContainsCharacterRunAutomaton.MAX_AUTOMATA + " regexes but got " + regexes.size());
+        }
+        for (Map.Entry<String, String> regex : regexes.entrySet()) {
+            if (regex.getKey().isEmpty() || regex.getValue() == null || regex.getValue().isEmpty()) {
+                throw new IllegalArgumentException("[" + NAME.getPreferredName() + "] regexes must have a name and a regex");
+            }
+        }
+        this.settings = new Settings();
+    }
+
+    public MultiSourceRegexQueryBuilder(StreamInput in, SourceRegexServices services) throws IOException {
+        this(in);
+        this.services = Objects.requireNonNull(services);
+    }
+
+    public MultiSourceRegexQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        field = in.readString();
+        int size = in.readVInt();
+        Map<String, String> regexes = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            regexes.put(in.readString(), in.readString());
+        }
+        this.regexes = Collections.unmodifiableMap(regexes);
+        loadFromSource = in.readBoolean();
+        loadFromDocValues = in.readBoolean();
+        ngramField = in.readOptionalString();
+        gramSize = in.readVInt();
+        settings = new Settings(in);
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(field);
+        out.writeVInt(regexes.size());
+        for (Map.Entry<String, String> regex : regexes.entrySet()) {
+            out.writeString(regex.getKey());
+            out.writeString(regex.getValue());
+        }
+        out.writeBoolean(loadFromSource);
+        out.writeBoolean(loadFromDocValues);
+        out.writeOptionalString(ngramField);
+        out.writeVInt(gramSize);
+        settings.writeTo(out);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME.getPreferredName();
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(field, new ArrayList<>(regexes.entrySet()), gramSize, loadFromSource, loadFromDocValues, ngramField,
+                settings);
+    }
+
+    @Override
+    protected boolean doEquals(MultiSourceRegexQueryBuilder o) {
+        // The order of the regexes matters, it is the order of the named queries
+        return Objects.equals(field, o.field) &&
+                Objects.equals(new ArrayList<>(regexes.entrySet()), new ArrayList<>(o.regexes.entrySet())) &&
+                Objects.equals(gramSize, o.gramSize) &&
+                Objects.equals(ngramField, o.ngramField) &&
+                Objects.equals(loadFromSource, o.loadFromSource) &&
+                Objects.equals(loadFromDocValues, o.loadFromDocValues) &&
+                Objects.equals(settings, o.settings);
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MultiSourceRegexQuery query = new MultiSourceRegexQuery(
+                field, context.index().getUUID(), ngramField, new ArrayList<>(regexes.values()),
+                SourceRegexQueryBuilder.loader(context, field, loadFromSource, loadFromDocValues),
+                settings, gramSize, SourceRegexQueryBuilder.ngramAnalyzer(context, ngramField), services);
+        int i = 0;
+        for (String name : regexes.keySet()) {
+            context.addNamedQuery(name, query.patternQuery(i++));
+        }
+        return query;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME.getPreferredName());
+        builder.field(FIELD.getPreferredName(), field);
+        builder.field(REGEXES.getPreferredName(), regexes);
+        if (loadFromSource != SourceRegexQueryBuilder.DEFAULT_LOAD_FROM_SOURCE) {
+            builder.field(SourceRegexQueryBuilder.LOAD_FROM_SOURCE.getPreferredName(), loadFromSource);
+        }
+        if (loadFromDocValues != SourceRegexQueryBuilder.DEFAULT_LOAD_FROM_DOC_VALUES) {
+            builder.field(SourceRegexQueryBuilder.LOAD_FROM_DOC_VALUES.getPreferredName(), loadFromDocValues);
+        }
+        if (ngramField != null) {
+            builder.field(SourceRegexQueryBuilder.NGRAM_FIELD.getPreferredName(), ngramField);
+        }
+        if (gramSize != SourceRegexQueryBuilder.DEFAULT_GRAM_SIZE) {
+            builder.field(SourceRegexQueryBuilder.GRAM_SIZE.getPreferredName(), gramSize);
+        }
+        settings.innerXContent(builder, params);
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    public static Optional<MultiSourceRegexQueryBuilder> fromXContent(QueryParseContext context, SourceRegexServices services)
+            throws IOException {
+        try {
+            MultiSourceRegexQueryBuilder builder = PARSER.parse(context.parser(), context);
+            builder.services = Objects.requireNonNull(services);
+            return Optional.of(builder);
+        } catch (IllegalArgumentException iae) {
+            throw new ParsingException(context.parser().getTokenLocation(), iae.getMessage(), iae);
+        }
+    }
+}
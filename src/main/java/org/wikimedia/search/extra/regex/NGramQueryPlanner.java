@@ -0,0 +1,263 @@
+package org.wikimedia.search.extra.regex;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.Nullable;
+import org.wikimedia.search.extra.regex.expression.Expression;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transforms expressions to queries using the document frequencies of the
+ * ngrams in the reader. Ngrams present in nearly every document cost as
+ * much to read as they prune little so they are dropped from conjunctions
+ * and the remaining clauses are ordered rarest first. Each plan carries an
+ * estimate of the number of candidates the query will find: its upper
+ * bound assuming nothing about how ngrams correlate.
+ * <p>
+ * When the ngram field is indexed with positions the ngrams of the literals
+ * every match contains must also be found next to each other. They are
+ * checked with phrase queries whose positions are only read for the
+ * candidates containing all the ngrams, before their field is loaded.
+ */
+class NGramQueryPlanner implements Expression.Transformer<String, NGramQueryPlanner.Plan> {
+    /**
+     * Clauses of a conjunction found in more than this share of the
+     * documents are dropped.
+     */
+    static final double MAX_DOC_FREQ_RATIO = 0.9;
+
+    private final String ngramField;
+    private final IndexReader reader;
+    private final Map<String, TermContext> termContexts = new HashMap<>();
+    private Boolean indexedWithPositions;
+
+    NGramQueryPlanner(String ngramField, IndexReader reader) {
+        this.ngramField = ngramField;
+        this.reader = reader;
+    }
+
+    /**
+     * Require the ngrams of each literal to be found next to each other in
+     * the docs matched by approximation. Literals are analyzed like the
+     * ngram field and only checked if the analyzer turns them into a run of
+     * ngrams of the same length at consecutive positions, like the ngram
+     * tokenizer does.
+     *
+     * @param literals literals every match of the lowercased regex contains
+     * @return approximation if the literals can't be checked, otherwise the
+     *         conjunction of approximation and a phrase query per literal
+     */
+    Query withAdjacency(Query approximation, List<String> literals, Analyzer ngramAnalyzer) throws IOException {
+        if (literals.isEmpty() || !indexedWithPositions()) {
+            return approximation;
+        }
+        BooleanQuery.Builder builder = null;
+        for (String literal : literals) {
+            PhraseQuery phrase = phrase(literal, ngramAnalyzer);
+            if (phrase == null) {
+                continue;
+            }
+            if (builder == null) {
+                builder = new BooleanQuery.Builder();
+                builder.add(approximation, Occur.FILTER);
+            }
+            builder.add(phrase, Occur.FILTER);
+        }
+        return builder == null ? approximation : builder.build();
+    }
+
+    @Nullable
+    private PhraseQuery phrase(String literal, Analyzer ngramAnalyzer) throws IOException {
+        PhraseQuery.Builder builder = new PhraseQuery.Builder();
+        int grams = 0;
+        try (TokenStream ts = ngramAnalyzer.tokenStream(ngramField, literal)) {
+            CharTermAttribute term = ts.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute positionIncrement = ts.addAttribute(PositionIncrementAttribute.class);
+            OffsetAttribute offset = ts.addAttribute(OffsetAttribute.class);
+            int gramLength = -1;
+            ts.reset();
+            while (ts.incrementToken()) {
+                int length = offset.endOffset() - offset.startOffset();
+                if ((grams > 0 && positionIncrement.getPositionIncrement() != 1) || (gramLength != -1 && length != gramLength)) {
+                    // Not a run of ngrams, their positions in the field may not match
+                    return null;
+                }
+                gramLength = length;
+                builder.add(new Term(ngramField, term.toString()), grams++);
+            }
+            ts.end();
+        }
+        return grams < 2 ? null : builder.build();
+    }
+
+    /**
+     * Does every doc of the reader, deleted ones included, have ngrams in the
+     * field? Only then can ngrams found in no doc rule out every match: an
+     * ngram field added to the mapping later has no ngrams for the docs
+     * indexed before.
+     */
+    boolean indexesEveryDoc() throws IOException {
+        long docCount = 0;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            Terms terms = leaf.reader().terms(ngramField);
+            if (terms == null) {
+                continue;
+            }
+            if (terms.getDocCount() < 0) {
+                // The codec doesn't know
+                return false;
+            }
+            docCount += terms.getDocCount();
+        }
+        return docCount == reader.maxDoc();
+    }
+
+    private boolean indexedWithPositions() {
+        if (indexedWithPositions == null) {
+            boolean positions = false;
+            for (LeafReaderContext leaf : reader.leaves()) {
+                FieldInfo info = leaf.reader().getFieldInfos().fieldInfo(ngramField);
+                if (info == null) {
+                    continue;
+                }
+                if (info.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) < 0) {
+                    positions = false;
+                    break;
+                }
+                positions = true;
+            }
+            indexedWithPositions = positions;
+        }
+        return indexedWithPositions;
+    }
+
+    @Override
+    public Plan alwaysTrue() {
+        throw new InvalidRegexException("Can't transform always true into a query.");
+    }
+
+    @Override
+    public Plan alwaysFalse() {
+        throw new InvalidRegexException("Can't transform always false into a query.");
+    }
+
+    @Override
+    public Plan leaf(String t) {
+        Term term = new Term(ngramField, t);
+        // Build the term context once so the TermQuery doesn't have to look the term up again
+        TermContext context = termContexts.computeIfAbsent(t, k -> {
+            try {
+                return TermContext.build(reader.getContext(), term);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return new Plan(new TermQuery(term, context), context.docFreq());
+    }
+
+    @Override
+    public Plan and(ImmutableSet<Plan> js) {
+        List<Plan> plans = new ArrayList<>(js);
+        plans.sort(Comparator.comparingLong(Plan::estimate));
+        Plan rarest = plans.get(0);
+        if (rarest.estimate() == 0) {
+            // Nothing can match, no need to read the other clauses
+            return rarest;
+        }
+        long maxDocFreq = (long) (reader.maxDoc() * MAX_DOC_FREQ_RATIO);
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        int clauses = 0;
+        for (Plan plan : plans) {
+            // Always keep the rarest clause so the query never matches everything
+            if (clauses > 0 && plan.estimate() > maxDocFreq) {
+                break;
+            }
+            builder.add(plan.query(), Occur.FILTER);
+            clauses++;
+        }
+        return clauses == 1 ? rarest : new Plan(builder.build(), rarest.estimate());
+    }
+
+    @Override
+    public Plan or(ImmutableSet<Plan> js) {
+        List<Plan> plans = new ArrayList<>(js.size());
+        long estimate = 0;
+        for (Plan plan : js) {
+            // Clauses that can't match anything can be skipped
+            if (plan.estimate() > 0) {
+                plans.add(plan);
+                estimate += plan.estimate();
+            }
+        }
+        if (plans.isEmpty()) {
+            return js.iterator().next();
+        }
+        if (plans.size() == 1) {
+            return plans.get(0);
+        }
+        estimate = Math.min(estimate, reader.maxDoc());
+        if (plans.stream().allMatch(p -> p.query() instanceof TermQuery)) {
+            List<BytesRef> terms = new ArrayList<>(plans.size());
+            for (Plan plan : plans) {
+                terms.add(((TermQuery) plan.query()).getTerm().bytes());
+            }
+            return new Plan(new TermInSetQuery(ngramField, terms), estimate);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (Plan plan : plans) {
+            builder.add(plan.query(), Occur.SHOULD);
+        }
+        return new Plan(builder.build(), estimate);
+    }
+
+    /**
+     * Query over the ngram field and the estimated number of documents it
+     * finds.
+     */
+    static final class Plan {
+        private final Query query;
+        private final long estimate;
+
+        Plan(Query query, long estimate) {
+            this.query = query;
+            this.estimate = estimate;
+        }
+
+        Query query() {
+            return query;
+        }
+
+        /**
+         * Estimated number of candidates, never lower than the actual number
+         * found by {@link #query()}. 0 if the query can't match anything.
+         */
+        long estimate() {
+            return estimate;
+        }
+    }
+}
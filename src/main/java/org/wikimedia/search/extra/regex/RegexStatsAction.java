@@ -0,0 +1,136 @@
+package org.wikimedia.search.extra.regex;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Snapshot;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reports the {@link SourceRegexStats} of each node.
+ */
+public class RegexStatsAction extends Action<RegexStatsAction.RegexStatsNodesRequest,
+        RegexStatsAction.RegexStatsNodesResponse, RegexStatsAction.RegexStatsRequestBuilder> {
+
+    static final String NAME = "extra:regex/stats";
+    public static final RegexStatsAction INSTANCE = new RegexStatsAction();
+
+    private RegexStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RegexStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RegexStatsRequestBuilder(client);
+    }
+
+    @Override
+    public RegexStatsNodesResponse newResponse() {
+        return new RegexStatsNodesResponse();
+    }
+
+    static class RegexStatsRequestBuilder extends ActionRequestBuilder<RegexStatsNodesRequest,
+            RegexStatsNodesResponse, RegexStatsRequestBuilder> {
+        RegexStatsRequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new RegexStatsNodesRequest());
+        }
+    }
+
+    static class RegexStatsNodesRequest extends BaseNodesRequest<RegexStatsNodesRequest> {
+    }
+
+    public static class RegexStatsNodesResponse extends BaseNodesResponse<RegexStatsNodeResponse>
+            implements ToXContent {
+
+        @Getter(AccessLevel.PACKAGE)
+        private Snapshot allNodes;
+
+        RegexStatsNodesResponse() {
+        }
+
+        RegexStatsNodesResponse(ClusterName clusterName, List<RegexStatsNodeResponse> nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+            allNodes = new Snapshot(nodes.stream().map(RegexStatsNodeResponse::getStats));
+        }
+
+        @Override
+        protected List<RegexStatsNodeResponse> readNodesFrom(StreamInput in) throws IOException {
+            return in.readList(RegexStatsNodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(StreamOutput out, List<RegexStatsNodeResponse> nodes) throws IOException {
+            out.writeStreamableList(nodes);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            allNodes = new Snapshot(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            allNodes.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("all", allNodes);
+            builder.startObject("nodes");
+            for (RegexStatsNodeResponse resp : super.getNodes()) {
+                builder.startObject(resp.getNode().getId());
+                builder.field("name", resp.getNode().getName());
+                builder.field("hostname", resp.getNode().getHostName());
+                builder.field("source_regex", resp.stats);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+
+    public static class RegexStatsNodeResponse extends BaseNodeResponse {
+        @Getter(AccessLevel.PACKAGE)
+        private Snapshot stats;
+
+        RegexStatsNodeResponse() {
+        }
+
+        RegexStatsNodeResponse(DiscoveryNode node, Snapshot stats) {
+            super(node);
+            this.stats = stats;
+        }
+
+        RegexStatsNodeResponse(StreamInput in) throws IOException {
+            readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            stats.writeTo(out);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            stats = new Snapshot(in);
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.Operations;
+import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
+import org.apache.lucene.util.automaton.Transition;
+import org.elasticsearch.common.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Finds the literals that every string accepted by an automaton contains.
+ * For example every match of <code>foo.*bar</code> contains both "foo" and
+ * "bar". Text that doesn't contain all of them can't match so checking them
+ * with a fast substring search rejects most false positive candidates
+ * without running the automaton.
+ * <p>
+ * Every accepting path goes through the dominators of the accept states in
+ * the same order. Required literals are found between consecutive dominators
+ * that are always linked by the same single code point transition.
+ * Loops like the <code>.*</code> in <code>foo.*bar</code> hide the literals
+ * that follow them so the chains are searched in the reversed automaton as
+ * well.
+ */
+final class RequiredLiterals {
+    /**
+     * Only this many literals are kept, the longest ones.
+     */
+    static final int MAX_LITERALS = 4;
+    /**
+     * Literals are cut to this many characters.
+     */
+    static final int MAX_LITERAL_LENGTH = 64;
+    /**
+     * Literals at the end of regexes are found by reversing the automaton,
+     * if it can be determinized within this many states.
+     */
+    private static final int MAX_REVERSED_STATES = 10000;
+    /**
+     * Dominators followed by more literals than this aren't used as
+     * alternatives.
+     */
+    static final int MAX_ALTERNATIVES = 256;
+
+    private RequiredLiterals() {
+        // Util class
+    }
+
+    /**
+     * Extract the literals required by automaton. Literals only contain code
+     * points from the basic multilingual plane so that they are made of as
+     * many chars as code points.
+     *
+     * @return the required literals, longest first, empty if none was found
+     */
+    static List<char[]> extract(Automaton automaton) {
+        List<char[]> literals = chains(automaton);
+        try {
+            Automaton reversed = Operations.determinize(Operations.reverse(automaton), MAX_REVERSED_STATES);
+            for (char[] literal : chains(reversed)) {
+                for (int i = 0, j = literal.length - 1; i < j; i++, j--) {
+                    char c = literal[i];
+                    literal[i] = literal[j];
+                    literal[j] = c;
+                }
+                literals.add(literal);
+            }
+        } catch (TooComplexToDeterminizeException e) {
+            // The literals found in the forward automaton will have to do
+        }
+        literals.sort((lhs, rhs) -> Integer.compare(rhs.length, lhs.length));
+        List<char[]> kept = new ArrayList<>();
+        for (char[] literal : literals) {
+            if (kept.size() < MAX_LITERALS && kept.stream().noneMatch(longer -> indexOf(longer, literal) >= 0)) {
+                kept.add(literal);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Find the literals made of transitions between consecutive dominators
+     * of the accept states. Reaching a dominator that has a single outgoing
+     * transition forces the next code point, reaching one that has a single
+     * incoming transition means the previous code point was forced. Chains
+     * are made of transitions forced in the same direction, mixing them
+     * would allow loops between the transitions.
+     */
+    private static List<char[]> chains(Automaton automaton) {
+        List<char[]> literals = new ArrayList<>();
+        int numStates = automaton.getNumStates();
+        if (numStates == 0) {
+            return literals;
+        }
+        Graph graph = new Graph(automaton);
+        List<Integer> dominators = graph.acceptDominators();
+        if (dominators == null) {
+            // Nothing is accepted
+            return literals;
+        }
+
+        int edges = dominators.size() - 1;
+        char[] labels = new char[Math.max(edges, 0)];
+        boolean[] forcedOut = new boolean[labels.length];
+        boolean[] forcedIn = new boolean[labels.length];
+        Transition t = new Transition();
+        for (int i = 0; i < edges; i++) {
+            int from = dominators.get(i);
+            int to = dominators.get(i + 1);
+            if (!graph.singleLiveTransition(from, to, t) || t.min != t.max || t.min > Character.MAX_VALUE
+                    || Character.isSurrogate((char) t.min)) {
+                continue;
+            }
+            labels[i] = (char) t.min;
+            forcedOut[i] = graph.liveOutgoing(from) == 1;
+            forcedIn[i] = graph.liveIncoming(to) == 1;
+        }
+        addRuns(literals, labels, forcedOut);
+        addRuns(literals, labels, forcedIn);
+        return literals;
+    }
+
+    private static void addRuns(List<char[]> literals, char[] labels, boolean[] forced) {
+        int start = 0;
+        while (start < labels.length) {
+            if (!forced[start]) {
+                start++;
+                continue;
+            }
+            int end = start;
+            while (end < labels.length && forced[end] && end - start < MAX_LITERAL_LENGTH) {
+                end++;
+            }
+            literals.add(Arrays.copyOfRange(labels, start, end));
+            start = end;
+        }
+    }
+
+    /**
+     * Find literals one of which starts every match right after the same
+     * dominator of the accept states, like the templates in
+     * <code>\{\{(cite web|cite news)</code>. The literals are the strings
+     * read from that dominator up to the first state that accepts, has a
+     * transition over more than one code point or whose path is already
+     * {@link #MAX_LITERAL_LENGTH} long. Of all dominators the one whose
+     * shortest literal is the longest wins.
+     *
+     * @return the alternatives or null if no dominator is followed by more
+     *         than one and at most {@link #MAX_ALTERNATIVES} literals
+     */
+    @Nullable
+    static Alternatives alternatives(Automaton automaton) {
+        if (automaton.getNumStates() == 0) {
+            return null;
+        }
+        Graph graph = new Graph(automaton);
+        List<Integer> dominators = graph.acceptDominators();
+        if (dominators == null) {
+            return null;
+        }
+        Alternatives best = null;
+        int bestShortest = 0;
+        for (int dominator : dominators) {
+            List<char[]> literals = new ArrayList<>();
+            if (!graph.literalsFrom(dominator, new StringBuilder(), literals) || literals.size() < 2) {
+                continue;
+            }
+            int shortest = literals.stream().mapToInt(l -> l.length).min().getAsInt();
+            if (shortest > bestShortest) {
+                best = new Alternatives(literals, dominator == 0);
+                bestShortest = shortest;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Literals one of which every match contains.
+     */
+    static final class Alternatives {
+        /**
+         * The literals, without duplicates.
+         */
+        final List<char[]> literals;
+        /**
+         * Do the literals follow the initial state? Then every match starts
+         * with one of them.
+         */
+        final boolean anchored;
+
+        private Alternatives(List<char[]> literals, boolean anchored) {
+            this.literals = literals;
+            this.anchored = anchored;
+        }
+    }
+
+    /**
+     * Is literal the only string accepted by automaton? Finding it is then
+     * the same as running the automaton.
+     */
+    static boolean isOnlyMatch(Automaton automaton, List<char[]> literals) {
+        if (literals.size() != 1 || !automaton.isDeterministic()) {
+            return false;
+        }
+        IntsRef singleton = Operations.getSingleton(automaton);
+        char[] literal = literals.get(0);
+        if (singleton == null || singleton.length != literal.length) {
+            return false;
+        }
+        for (int i = 0; i < literal.length; i++) {
+            if (singleton.ints[singleton.offset + i] != literal[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The chars each char of literal is matched by: itself if folding is
+     * null, every char lowercasing to it otherwise.
+     */
+    static char[][] variants(char[] literal, @Nullable CaseFolding folding) {
+        char[][] variants = new char[literal.length][];
+        for (int i = 0; i < literal.length; i++) {
+            variants[i] = folding == null ? new char[] {literal[i]} : folding.charVariants(literal[i]);
+        }
+        return variants;
+    }
+
+    /**
+     * The bytes each byte of a UTF-8 encoded literal is matched by: itself
+     * if folding is null, every byte {@link CaseFolding#lowerByte(byte)}
+     * turns into it otherwise. The literal must only hold chars
+     * {@link CaseFolding#lowersBytewise(char)} accepts so each byte comes
+     * first among its variants.
+     */
+    static byte[][] variants(byte[] literal, @Nullable CaseFolding folding) {
+        byte[][] variants = new byte[literal.length][];
+        for (int i = 0; i < literal.length; i++) {
+            variants[i] = folding == null ? new byte[] {literal[i]} : folding.byteVariants(literal[i]);
+        }
+        return variants;
+    }
+
+    /**
+     * Horspool shift table of a literal given as the variants of each of
+     * its chars. Characters are bucketed by their low byte, a bucket holds
+     * the smallest shift of the characters it holds.
+     */
+    static int[] shiftTable(char[][] literal) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, literal.length);
+        for (int i = 0; i < literal.length - 1; i++) {
+            for (char c : literal[i]) {
+                shift[c & 0xFF] = literal.length - 1 - i;
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * Horspool shift table of a UTF-8 encoded literal given as the variants
+     * of each of its bytes.
+     */
+    static int[] shiftTable(byte[][] literal) {
+        int[] shift = new int[256];
+        Arrays.fill(shift, literal.length);
+        for (int i = 0; i < literal.length - 1; i++) {
+            for (byte b : literal[i]) {
+                shift[b & 0xFF] = literal.length - 1 - i;
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * Horspool search of a literal given as the variants of each of its
+     * bytes.
+     */
+    static boolean contains(byte[] bytes, int offset, int end, byte[][] literal, int[] shift) {
+        int last = literal.length - 1;
+        byte[] lastBytes = literal[last];
+        for (int i = offset + last; i < end; i += shift[bytes[i] & 0xFF]) {
+            if (!isVariant(lastBytes, bytes[i])) {
+                continue;
+            }
+            int j = last - 1;
+            int k = i - 1;
+            while (j >= 0 && isVariant(literal[j], bytes[k])) {
+                j--;
+                k--;
+            }
+            if (j < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isVariant(char[] variants, char c) {
+        for (char v : variants) {
+            if (v == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVariant(byte[] variants, byte b) {
+        for (byte v : variants) {
+            if (v == b) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(char[] text, char[] literal) {
+        return new String(text).indexOf(new String(literal));
+    }
+
+    /**
+     * The states of the automaton that are on an accepting path, linked to a
+     * virtual sink state that follows every accept state.
+     */
+    private static final class Graph {
+        private final Automaton automaton;
+        private final int sink;
+        private final BitSet live;
+        private final int[][] successors;
+        private final int[][] predecessors;
+
+        Graph(Automaton automaton) {
+            this.automaton = automaton;
+            int numStates = automaton.getNumStates();
+            sink = numStates;
+            int[][] forward = new int[numStates + 1][];
+            int[][] backward = new int[numStates + 1][];
+            int[] backwardCounts = new int[numStates + 1];
+            Transition t = new Transition();
+            for (int s = 0; s < numStates; s++) {
+                int count = automaton.initTransition(s, t);
+                int[] dests = new int[count + 1];
+                int unique = 0;
+                for (int i = 0; i < count; i++) {
+                    automaton.getNextTransition(t);
+                    dests[unique++] = t.dest;
+                }
+                if (automaton.isAccept(s)) {
+                    dests[unique++] = sink;
+                }
+                Arrays.sort(dests, 0, unique);
+                int deduped = 0;
+                for (int i = 0; i < unique; i++) {
+                    if (deduped == 0 || dests[deduped - 1] != dests[i]) {
+                        dests[deduped++] = dests[i];
+                    }
+                }
+                forward[s] = Arrays.copyOf(dests, deduped);
+                for (int dest : forward[s]) {
+                    backwardCounts[dest]++;
+                }
+            }
+            forward[sink] = new int[0];
+            for (int s = 0; s <= numStates; s++) {
+                backward[s] = new int[backwardCounts[s]];
+                backwardCounts[s] = 0;
+            }
+            for (int s = 0; s < numStates; s++) {
+                for (int dest : forward[s]) {
+                    backward[dest][backwardCounts[dest]++] = s;
+                }
+            }
+            BitSet reachable = walk(forward, 0);
+            BitSet coReachable = walk(backward, sink);
+            reachable.and(coReachable);
+            live = reachable;
+            successors = forward;
+            predecessors = backward;
+        }
+
+        private static BitSet walk(int[][] edges, int from) {
+            BitSet seen = new BitSet(edges.length);
+            Deque<Integer> toVisit = new ArrayDeque<>();
+            seen.set(from);
+            toVisit.push(from);
+            while (!toVisit.isEmpty()) {
+                for (int dest : edges[toVisit.pop()]) {
+                    if (!seen.get(dest)) {
+                        seen.set(dest);
+                        toVisit.push(dest);
+                    }
+                }
+            }
+            return seen;
+        }
+
+        /**
+         * Immediate dominators of the live states and of the sink using the
+         * iterative algorithm from Cooper, Harvey and Kennedy's "A Simple,
+         * Fast Dominance Algorithm".
+         *
+         * @return immediate dominators indexed by state, the sink is the last
+         *         one, or null if the sink isn't reachable
+         */
+        int[] dominators() {
+            if (!live.get(sink)) {
+                return null;
+            }
+            // Reverse postorder of the live states
+            int[] postorder = new int[sink + 1];
+            Arrays.fill(postorder, -1);
+            int[] order = new int[live.cardinality()];
+            int count = 0;
+            int[] stack = new int[order.length];
+            int[] nextChild = new int[sink + 1];
+            int depth = 0;
+            stack[depth++] = 0;
+            postorder[0] = -2;
+            while (depth > 0) {
+                int node = stack[depth - 1];
+                int[] children = successors[node];
+                if (nextChild[node] < children.length) {
+                    int child = children[nextChild[node]++];
+                    if (live.get(child) && postorder[child] == -1) {
+                        postorder[child] = -2;
+                        stack[depth++] = child;
+                    }
+                } else {
+                    depth--;
+                    postorder[node] = count;
+                    order[count++] = node;
+                }
+            }
+
+            int[] idom = new int[sink + 1];
+            Arrays.fill(idom, -1);
+            idom[0] = 0;
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (int i = count - 1; i >= 0; i--) {
+                    int node = order[i];
+                    if (node == 0) {
+                        continue;
+                    }
+                    int newIdom = -1;
+                    for (int pred : predecessors[node]) {
+                        if (!live.get(pred) || idom[pred] == -1) {
+                            continue;
+                        }
+                        newIdom = newIdom == -1 ? pred : intersect(idom, postorder, pred, newIdom);
+                    }
+                    if (newIdom != idom[node]) {
+                        idom[node] = newIdom;
+                        changed = true;
+                    }
+                }
+            }
+            return idom;
+        }
+
+        private static int intersect(int[] idom, int[] postorder, int lhs, int rhs) {
+            while (lhs != rhs) {
+                while (postorder[lhs] < postorder[rhs]) {
+                    lhs = idom[lhs];
+                }
+                while (postorder[rhs] < postorder[lhs]) {
+                    rhs = idom[rhs];
+                }
+            }
+            return lhs;
+        }
+
+        /**
+         * The dominators of the accept states from the initial state on.
+         *
+         * @return the dominators or null if nothing is accepted
+         */
+        @Nullable
+        List<Integer> acceptDominators() {
+            int[] idom = dominators();
+            if (idom == null) {
+                return null;
+            }
+            List<Integer> dominators = new ArrayList<>();
+            for (int d = idom[sink]; ; d = idom[d]) {
+                dominators.add(d);
+                if (d == 0) {
+                    break;
+                }
+            }
+            Collections.reverse(dominators);
+            return dominators;
+        }
+
+        /**
+         * Add to literals the strings read from state, prefixed by path, up
+         * to the states where the literals end. See
+         * {@link RequiredLiterals#alternatives(Automaton)}.
+         *
+         * @return false if the strings can't be literals or if there are too
+         *         many of them
+         */
+        boolean literalsFrom(int state, StringBuilder path, List<char[]> literals) {
+            boolean end = path.length() == MAX_LITERAL_LENGTH || automaton.isAccept(state);
+            Transition t = new Transition();
+            int count = automaton.initTransition(state, t);
+            for (int i = 0; i < count && !end; i++) {
+                automaton.getNextTransition(t);
+                end = live.get(t.dest) && (t.min != t.max || t.min > Character.MAX_VALUE || Character.isSurrogate((char) t.min));
+            }
+            if (end) {
+                if (path.length() == 0) {
+                    return false;
+                }
+                char[] literal = path.toString().toCharArray();
+                // Non-deterministic automata can reach the same literal twice
+                if (literals.stream().noneMatch(l -> Arrays.equals(l, literal))) {
+                    literals.add(literal);
+                }
+                return literals.size() <= MAX_ALTERNATIVES;
+            }
+            count = automaton.initTransition(state, t);
+            for (int i = 0; i < count; i++) {
+                automaton.getNextTransition(t);
+                if (!live.get(t.dest)) {
+                    continue;
+                }
+                path.append((char) t.min);
+                boolean ok = literalsFrom(t.dest, path, literals);
+                path.setLength(path.length() - 1);
+                if (!ok) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Load the transition from one state to another if there is only one.
+         */
+        boolean singleLiveTransition(int from, int to, Transition t) {
+            int count = automaton.initTransition(from, t);
+            int found = 0;
+            int min = 0;
+            int max = 0;
+            for (int i = 0; i < count; i++) {
+                automaton.getNextTransition(t);
+                if (t.dest == to) {
+                    found++;
+                    min = t.min;
+                    max = t.max;
+                }
+            }
+            t.min = min;
+            t.max = max;
+            t.dest = to;
+            return found == 1;
+        }
+
+        /**
+         * Number of transitions leaving state towards live states.
+         */
+        int liveOutgoing(int state) {
+            Transition t = new Transition();
+            int count = automaton.initTransition(state, t);
+            int live = 0;
+            for (int i = 0; i < count; i++) {
+                automaton.getNextTransition(t);
+                if (this.live.get(t.dest)) {
+                    live++;
+                }
+            }
+            return live;
+        }
+
+        /**
+         * Number of transitions reaching state from live states.
+         */
+        int liveIncoming(int state) {
+            Transition t = new Transition();
+            int incoming = 0;
+            for (int pred : predecessors[state]) {
+                if (!live.get(pred)) {
+                    continue;
+                }
+                int count = automaton.initTransition(pred, t);
+                for (int i = 0; i < count; i++) {
+                    automaton.getNextTransition(t);
+                    if (t.dest == state) {
+                        incoming++;
+                    }
+                }
+            }
+            return incoming;
+        }
+    }
+}
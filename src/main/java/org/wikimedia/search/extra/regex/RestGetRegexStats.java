@@ -0,0 +1,22 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+
+public class RestGetRegexStats extends BaseRestHandler {
+    public RestGetRegexStats(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(RestRequest.Method.GET, "/_nodes/regex_stats", this);
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        return (channel) -> RegexStatsAction.INSTANCE.newRequestBuilder(client).execute(new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
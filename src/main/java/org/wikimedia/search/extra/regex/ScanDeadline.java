@@ -0,0 +1,201 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.tasks.TaskCancelledException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops the scan of a query once its timeout has elapsed or its search task
+ * was cancelled. Checking costs a clock read so the deadline is only checked
+ * every few docs: as many as are rechecked in about
+ * {@link #CHECK_INTERVAL_NANOS}, measured between checks. Slow docs shrink the
+ * interval at once, fast ones grow it by doubling. Large docs force a check
+ * once {@link #MAX_LOADED_BETWEEN_CHECKS} chars or bytes were loaded, so a
+ * run of them following many small docs can't overshoot the timeout.
+ * <p>
+ * Once the timeout elapsed the checks return false, the caller then
+ * {@link #stop()}s the scan and flags the shard result as timed out, like
+ * elasticsearch does with the timeout of the search request. The timeout is
+ * reported once to a callback, whatever the number of copies seeing it.
+ * <p>
+ * Not thread safe, concurrent slices of a scan each check a {@link #copy()}.
+ */
+final class ScanDeadline {
+    /**
+     * Targeted time between two checks.
+     */
+    static final long CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * Never recheck more docs than this between two checks.
+     */
+    static final int MAX_DOCS_BETWEEN_CHECKS = 1024;
+    /**
+     * Never load more chars or bytes than this between two checks.
+     */
+    static final long MAX_LOADED_BETWEEN_CHECKS = 1 << 20;
+
+    private final long timeoutMillis;
+    private final long startNanos;
+    private final BooleanSupplier cancelled;
+    private final LongSupplier nanoClock;
+    private final Runnable onTimeout;
+    private final AtomicBoolean timedOut;
+    private final boolean noop;
+    private boolean stopped;
+    private long lastCheckNanos;
+    private int docsBetweenChecks = 1;
+    private int docsUntilCheck = 1;
+    private long loadedUntilCheck = MAX_LOADED_BETWEEN_CHECKS;
+
+    /**
+     * @param timeoutMillis timeout of the scan in milliseconds, 0 if it
+     *            can't time out
+     * @param cancelled is the search task cancelled?
+     */
+    ScanDeadline(long timeoutMillis, BooleanSupplier cancelled) {
+        this(timeoutMillis, cancelled, () -> { });
+    }
+
+    /**
+     * @param timeoutMillis timeout of the scan in milliseconds, 0 if it
+     *            can't time out
+     * @param cancelled is the search task cancelled?
+     * @param onTimeout called once when the timeout elapses
+     */
+    ScanDeadline(long timeoutMillis, BooleanSupplier cancelled, Runnable onTimeout) {
+        this(timeoutMillis, cancelled, onTimeout, System::nanoTime);
+    }
+
+    /**
+     * @param timeoutMillis timeout of the scan in milliseconds, 0 if it
+     *            can't time out
+     * @param cancelled is the search task cancelled?
+     * @param onTimeout called once when the timeout elapses
+     * @param nanoClock clock the timeout is measured with
+     */
+    ScanDeadline(long timeoutMillis, BooleanSupplier cancelled, Runnable onTimeout, LongSupplier nanoClock) {
+        this(timeoutMillis, nanoClock.getAsLong(), cancelled, nanoClock, onTimeout, new AtomicBoolean(), false);
+    }
+
+    private ScanDeadline(long timeoutMillis, long startNanos, BooleanSupplier cancelled, LongSupplier nanoClock,
+            Runnable onTimeout, AtomicBoolean timedOut, boolean noop) {
+        this.timeoutMillis = timeoutMillis;
+        this.startNanos = startNanos;
+        this.cancelled = cancelled;
+        this.nanoClock = nanoClock;
+        this.onTimeout = onTimeout;
+        this.timedOut = timedOut;
+        this.noop = noop;
+        this.lastCheckNanos = startNanos;
+    }
+
+    /**
+     * A deadline that never passes.
+     */
+    static ScanDeadline none() {
+        return new ScanDeadline(0, 0, () -> false, () -> 0, () -> { }, new AtomicBoolean(), true);
+    }
+
+    /**
+     * A deadline checker of its own sharing the deadline and the task of this
+     * one.
+     */
+    ScanDeadline copy() {
+        ScanDeadline copy = new ScanDeadline(timeoutMillis, startNanos, cancelled, nanoClock, onTimeout, timedOut, noop);
+        copy.stopped = stopped;
+        return copy;
+    }
+
+    /**
+     * Check the deadline now, before scanning the next segment.
+     *
+     * @return false if the scan stopped and the segment must be skipped
+     */
+    boolean nextSegment() {
+        return checkNow();
+    }
+
+    /**
+     * Called before rechecking doc of the current segment, checks the
+     * deadline every few docs.
+     *
+     * @return false if the timeout elapsed, then the scan stops
+     * @throws TaskCancelledException if the search task was cancelled
+     */
+    boolean check(int doc) {
+        if (--docsUntilCheck > 0 && loadedUntilCheck > 0) {
+            return true;
+        }
+        return checkNow();
+    }
+
+    /**
+     * Called once a doc was loaded, so the next {@link #check(int)} checks
+     * the deadline if many chars or bytes were loaded since the last one.
+     *
+     * @param length number of chars or bytes loaded
+     */
+    void loaded(long length) {
+        loadedUntilCheck -= length;
+    }
+
+    /**
+     * Stop the scan, it keeps the matches found so far.
+     *
+     * @return true if the scan wasn't already stopped
+     */
+    boolean stop() {
+        boolean wasStopped = stopped;
+        stopped = true;
+        return !wasStopped;
+    }
+
+    /**
+     * Has the scan stopped?
+     */
+    boolean stopped() {
+        return stopped;
+    }
+
+    private boolean checkNow() {
+        if (noop) {
+            docsUntilCheck = Integer.MAX_VALUE;
+            loadedUntilCheck = Long.MAX_VALUE;
+            return true;
+        }
+        if (stopped) {
+            return false;
+        }
+        if (cancelled.getAsBoolean()) {
+            throw new TaskCancelledException("cancelled");
+        }
+        long now = nanoClock.getAsLong();
+        if (timeoutMillis > 0 && now - startNanos > TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) {
+            if (timedOut.compareAndSet(false, true)) {
+                onTimeout.run();
+            }
+            return false;
+        }
+        // Fewer docs than planned were rechecked when loading forced the check
+        long rechecked = docsBetweenChecks - Math.max(docsUntilCheck, 0);
+        if (rechecked > 0) {
+            long elapsed = now - lastCheckNanos;
+            long docs = elapsed <= 0 ? MAX_DOCS_BETWEEN_CHECKS : rechecked * CHECK_INTERVAL_NANOS / elapsed;
+            docsBetweenChecks = (int) Math.max(1, Math.min(Math.min(docs, 2L * docsBetweenChecks), MAX_DOCS_BETWEEN_CHECKS));
+        }
+        docsUntilCheck = docsBetweenChecks;
+        loadedUntilCheck = MAX_LOADED_BETWEEN_CHECKS;
+        lastCheckNanos = now;
+        return true;
+    }
+
+    /**
+     * Number of docs rechecked until the next check, exposed for testing.
+     */
+    int docsBetweenChecks() {
+        return docsBetweenChecks;
+    }
+}
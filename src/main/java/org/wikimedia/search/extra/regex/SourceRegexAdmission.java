@@ -0,0 +1,154 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of expensive source_regex executions running at once on
+ * the node so they can't take every search thread: unaccelerated scans and
+ * accelerated regexes expected to recheck many candidates. A search phase
+ * running such a regex holds one admission until it ends, whatever the number
+ * of regexes it runs. Phases over the limit wait in a bounded queue, then are
+ * rejected or degraded: unaccelerated regexes are then rejected like with
+ * reject_unaccelerated and accelerated ones run anyway.
+ */
+public class SourceRegexAdmission {
+    public static final Setting<Integer> MAX_CONCURRENT = new Setting<>("extra.source_regex.admission.max_concurrent",
+            s -> Integer.toString(Math.max(1, EsExecutors.boundedNumberOfProcessors(s) / 2)),
+            s -> Setting.parseInt(s, 0, "extra.source_regex.admission.max_concurrent"), Property.NodeScope);
+    public static final Setting<Integer> QUEUE_SIZE = Setting.intSetting("extra.source_regex.admission.queue_size",
+            MAX_CONCURRENT, 0, Property.NodeScope);
+    public static final Setting<TimeValue> QUEUE_TIMEOUT = Setting.timeSetting("extra.source_regex.admission.queue_timeout",
+            TimeValue.timeValueSeconds(1), Property.NodeScope);
+    public static final Setting<OnOverload> ON_OVERLOAD = new Setting<>("extra.source_regex.admission.on_overload",
+            OnOverload.REJECT.toString(), OnOverload::parse, Property.NodeScope);
+    public static final Setting<Long> EXPENSIVE_CANDIDATES = Setting.longSetting(
+            "extra.source_regex.admission.expensive_candidates", 10000, 0, Property.NodeScope);
+
+    /**
+     * Admits everything.
+     */
+    public static final SourceRegexAdmission UNLIMITED = new SourceRegexAdmission(0, 0, TimeValue.ZERO, OnOverload.REJECT,
+            Long.MAX_VALUE);
+
+    private final int maxConcurrent;
+    private final int queueSize;
+    private final TimeValue queueTimeout;
+    private final OnOverload onOverload;
+    private final long expensiveCandidates;
+    private final Semaphore running;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    public SourceRegexAdmission(Settings settings) {
+        this(MAX_CONCURRENT.get(settings), QUEUE_SIZE.get(settings), QUEUE_TIMEOUT.get(settings), ON_OVERLOAD.get(settings),
+                EXPENSIVE_CANDIDATES.get(settings));
+    }
+
+    /**
+     * @param maxConcurrent maximum number of phases running expensive regexes
+     *            at once, 0 for no limit
+     * @param queueSize maximum number of phases waiting for admission
+     * @param queueTimeout how long phases wait for admission
+     * @param onOverload what happens to phases that aren't admitted
+     * @param expensiveCandidates accelerated regexes expected to recheck
+     *            more candidates than this are expensive
+     */
+    public SourceRegexAdmission(int maxConcurrent, int queueSize, TimeValue queueTimeout, OnOverload onOverload,
+            long expensiveCandidates) {
+        this.maxConcurrent = maxConcurrent;
+        this.queueSize = queueSize;
+        this.queueTimeout = queueTimeout;
+        this.onOverload = onOverload;
+        this.expensiveCandidates = expensiveCandidates;
+        this.running = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+    }
+
+    /**
+     * Is an accelerated regex expected to recheck estimatedCandidates
+     * expensive?
+     */
+    boolean expensive(long estimatedCandidates) {
+        return estimatedCandidates > expensiveCandidates;
+    }
+
+    /**
+     * Admit the search phase running on this thread to run an expensive
+     * regex. Phases admitted hold their admission until they end, threads
+     * running no phase are always admitted.
+     *
+     * @return true if the regex can run, false if it must be degraded
+     * @throws EsRejectedExecutionException if it must be rejected
+     */
+    boolean admit(CurrentSearchTask phase) {
+        if (running == null || !phase.inPhase() || phase.admitted()) {
+            return true;
+        }
+        if (acquire()) {
+            phase.admit(running::release);
+            return true;
+        }
+        if (onOverload == OnOverload.DEGRADE) {
+            return false;
+        }
+        throw new EsRejectedExecutionException(String.format(Locale.ROOT,
+                "Too many expensive source_regex running on the node: %s running and %s waiting", maxConcurrent, queueSize));
+    }
+
+    /**
+     * Number of phases waiting for admission.
+     */
+    int queued() {
+        return queued.get();
+    }
+
+    private boolean acquire() {
+        if (running.tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > queueSize) {
+            queued.decrementAndGet();
+            return false;
+        }
+        try {
+            return running.tryAcquire(queueTimeout.nanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * What happens to the phases that aren't admitted.
+     */
+    public enum OnOverload {
+        /**
+         * Reject them with an {@link EsRejectedExecutionException}.
+         */
+        REJECT,
+        /**
+         * Reject their unaccelerated regexes like reject_unaccelerated does
+         * and run their accelerated regexes anyway.
+         */
+        DEGRADE;
+
+        static OnOverload parse(String value) {
+            return valueOf(value.toUpperCase(Locale.ROOT));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
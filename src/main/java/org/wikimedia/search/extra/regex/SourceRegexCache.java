@@ -0,0 +1,391 @@
+package org.wikimedia.search.extra.regex;
+
+import lombok.EqualsAndHashCode;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NGramIndex;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.regex.expression.AbstractCompositeExpression;
+import org.wikimedia.search.extra.regex.expression.Expression;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Node level caches for source_regex. Compiling a regex into a
+ * {@link ContainsCharacterRunAutomaton} or a {@link ContainsUtf8RunAutomaton},
+ * or several into a {@link MultiContainsCharacterRunAutomaton}, and
+ * extracting the ngram expression used to accelerate it are not cheap and
+ * without these caches they would be done for every shard and every
+ * request. Both caches are LRU and bounded by the estimated RAM used by
+ * their entries. Expressions depend on the analyzer of the ngram field so
+ * they are keyed on the analyzer instance, a search_analyzer changed by a
+ * mapping update gets expressions of its own. They are also dropped when
+ * their index is removed from the node, closing an index to change its
+ * analysis included.
+ */
+public class SourceRegexCache implements IndexEventListener {
+    public static final Setting<ByteSizeValue> AUTOMATON_CACHE_SIZE = Setting.memorySizeSetting(
+            "extra.source_regex.automaton_cache.size", "1%", Property.NodeScope);
+    public static final Setting<ByteSizeValue> EXPRESSION_CACHE_SIZE = Setting.memorySizeSetting(
+            "extra.source_regex.expression_cache.size", "0.5%", Property.NodeScope);
+
+    /**
+     * A cache that never caches anything, every lookup compiles the regex.
+     */
+    public static final SourceRegexCache DISABLED = new SourceRegexCache(new ByteSizeValue(0), new ByteSizeValue(0));
+
+    private final Cache<AutomatonKey, Accountable> automata;
+    private final Cache<ExpressionKey, Acceleration> expressions;
+
+    public SourceRegexCache(org.elasticsearch.common.settings.Settings settings) {
+        this(AUTOMATON_CACHE_SIZE.get(settings), EXPRESSION_CACHE_SIZE.get(settings));
+    }
+
+    SourceRegexCache(ByteSizeValue automatonCacheSize, ByteSizeValue expressionCacheSize) {
+        if (automatonCacheSize.getBytes() > 0) {
+            automata = CacheBuilder.<AutomatonKey, Accountable>builder()
+                    .setMaximumWeight(automatonCacheSize.getBytes())
+                    .weigher((k, v) -> k.ramBytesUsed() + v.ramBytesUsed())
+                    .build();
+        } else {
+            automata = null;
+        }
+        if (expressionCacheSize.getBytes() > 0) {
+            expressions = CacheBuilder.<ExpressionKey, Acceleration>builder()
+                    .setMaximumWeight(expressionCacheSize.getBytes())
+                    .weigher((k, v) -> k.ramBytesUsed() + v.ramBytesUsed())
+                    .build();
+        } else {
+            expressions = null;
+        }
+    }
+
+    /**
+     * Load the automaton used to recheck regex against field values.
+     *
+     * @param regex the regex to compile
+     * @param settings the settings of the query
+     * @param caseConverting should the automaton match text that was never
+     *            lowercased, the lowercasing rules of the locale are then
+     *            folded into it
+     * @return the compiled automaton, might be shared with other queries
+     */
+    ContainsCharacterRunAutomaton charRun(String regex, Settings settings, boolean caseConverting) {
+        return (ContainsCharacterRunAutomaton) automaton(new AutomatonKey(regex, settings.caseSensitive(), settings.locale(),
+                settings.maxDeterminizedStates(), caseConverting, false));
+    }
+
+    /**
+     * Load the automaton used to recheck regex against UTF-8 encoded field
+     * values. Unless the query is case sensitive the lowercasing rules of
+     * the locale are folded into the automaton.
+     *
+     * @param regex the regex to compile
+     * @param settings the settings of the query
+     * @return the compiled automaton, might be shared with other queries
+     */
+    ContainsUtf8RunAutomaton utf8Run(String regex, Settings settings) {
+        return (ContainsUtf8RunAutomaton) automaton(new AutomatonKey(regex, settings.caseSensitive(), settings.locale(),
+                settings.maxDeterminizedStates(), false, true));
+    }
+
+    /**
+     * Load the automaton used to find which of several regexes match field
+     * values in a single pass.
+     *
+     * @param regexes the regexes to compile, in the order of the bits the
+     *            automaton reports them with
+     * @param settings the settings of the query
+     * @param caseConverting should the automaton match text that was never
+     *            lowercased, the lowercasing rules of the locale are then
+     *            folded into it
+     * @return the compiled automaton, might be shared with other queries
+     */
+    MultiContainsCharacterRunAutomaton multiCharRun(List<String> regexes, Settings settings, boolean caseConverting) {
+        return (MultiContainsCharacterRunAutomaton) automaton(new AutomatonKey(regexes, settings.caseSensitive(), settings.locale(),
+                settings.maxDeterminizedStates(), caseConverting, false));
+    }
+
+    private Accountable automaton(AutomatonKey key) {
+        if (automata == null) {
+            return key.compile();
+        }
+        try {
+            return automata.computeIfAbsent(key, AutomatonKey::compile);
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Load the ngram expression and the literals used to accelerate a regex.
+     *
+     * @param lowercasedRegex the regex, lowercased with the locale of the query
+     * @param ngrams the ngram field accelerating the regex, expressions are
+     *            only cached if the index it belongs to is known
+     * @param settings the settings of the query
+     * @param builder builds the acceleration if it isn't cached
+     */
+    Acceleration acceleration(String lowercasedRegex, NGramIndex ngrams, Settings settings, Supplier<Acceleration> builder) {
+        if (expressions == null || ngrams.index() == null) {
+            return builder.get();
+        }
+        ExpressionKey key = new ExpressionKey(ngrams.index(), ngrams.path(), ngrams.analyzer(), lowercasedRegex, ngrams.gramSize(),
+                settings.maxDeterminizedStates(), settings.maxExpand(), settings.maxStatesTraced(), settings.maxNgramsExtracted(),
+                settings.maxNgramClauses(), settings.maxSimplifyVisits());
+        try {
+            return expressions.computeIfAbsent(key, (k) -> builder.get());
+        } catch (ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    /**
+     * Drop the expressions extracted for an index removed from the node.
+     */
+    @Override
+    public void afterIndexRemoved(Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+        if (expressions == null) {
+            return;
+        }
+        List<ExpressionKey> removed = new ArrayList<>();
+        for (ExpressionKey key : expressions.keys()) {
+            if (key.index.equals(index.getUUID())) {
+                removed.add(key);
+            }
+        }
+        removed.forEach(expressions::invalidate);
+    }
+
+    private static RuntimeException unwrap(ExecutionException e) {
+        // loaders do not throw checked exceptions
+        if (e.getCause() instanceof RuntimeException) {
+            return (RuntimeException) e.getCause();
+        }
+        return new IllegalStateException(e.getCause());
+    }
+
+    /**
+     * Hit, miss and eviction counters of the automaton cache.
+     */
+    public Cache.CacheStats automatonStats() {
+        if (automata == null) {
+            return new Cache.CacheStats(0, 0, 0);
+        }
+        return automata.stats();
+    }
+
+    /**
+     * Number of automata currently cached.
+     */
+    public int automatonCount() {
+        return automata == null ? 0 : automata.count();
+    }
+
+    /**
+     * Estimated RAM used by the automata currently cached.
+     */
+    public long automatonRamBytesUsed() {
+        return automata == null ? 0 : automata.weight();
+    }
+
+    /**
+     * Hit, miss and eviction counters of the expression cache.
+     */
+    public Cache.CacheStats expressionStats() {
+        if (expressions == null) {
+            return new Cache.CacheStats(0, 0, 0);
+        }
+        return expressions.stats();
+    }
+
+    /**
+     * Number of expressions currently cached.
+     */
+    public int expressionCount() {
+        return expressions == null ? 0 : expressions.count();
+    }
+
+    /**
+     * Estimated RAM used by the expressions currently cached.
+     */
+    public long expressionRamBytesUsed() {
+        return expressions == null ? 0 : expressions.weight();
+    }
+
+    /**
+     * Rough estimate of the memory held by an expression. Branches are often
+     * shared so each node is only counted once.
+     */
+    static long expressionRamBytesUsed(Expression<String> expression) {
+        Set<Expression<String>> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Expression<String>> toVisit = new ArrayDeque<>();
+        toVisit.add(expression);
+        long size = 0;
+        while (!toVisit.isEmpty()) {
+            Expression<String> current = toVisit.pop();
+            if (!seen.add(current)) {
+                continue;
+            }
+            size += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+            if (current.isComposite()) {
+                for (Expression<String> component : (AbstractCompositeExpression<String>) current) {
+                    size += 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+                    toVisit.push(component);
+                }
+            } else {
+                // leaves hold a short ngram
+                size += RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                        + Character.BYTES * current.toString().length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Everything the compiled automaton depends on.
+     */
+    @EqualsAndHashCode
+    private static final class AutomatonKey {
+        /**
+         * The regexes to compile, a single one unless compiling a
+         * {@link MultiContainsCharacterRunAutomaton}.
+         */
+        private final List<String> regexes;
+        private final boolean multi;
+        private final boolean caseSensitive;
+        private final Locale locale;
+        private final int maxDeterminizedStates;
+        private final boolean caseConverting;
+        private final boolean utf8;
+
+        private AutomatonKey(String regex, boolean caseSensitive, Locale locale, int maxDeterminizedStates, boolean caseConverting,
+                boolean utf8) {
+            this(Collections.singletonList(regex), false, caseSensitive, locale, maxDeterminizedStates, caseConverting, utf8);
+        }
+
+        private AutomatonKey(List<String> regexes, boolean caseSensitive, Locale locale, int maxDeterminizedStates,
+                boolean caseConverting, boolean utf8) {
+            this(regexes, true, caseSensitive, locale, maxDeterminizedStates, caseConverting, utf8);
+        }
+
+        private AutomatonKey(List<String> regexes, boolean multi, boolean caseSensitive, Locale locale, int maxDeterminizedStates,
+                boolean caseConverting, boolean utf8) {
+            this.regexes = regexes;
+            this.multi = multi;
+            this.caseSensitive = caseSensitive;
+            this.locale = locale;
+            this.maxDeterminizedStates = maxDeterminizedStates;
+            this.caseConverting = caseConverting;
+            this.utf8 = utf8;
+        }
+
+        private Accountable compile() {
+            CaseFolding folding = CaseFolding.forLocale(locale);
+            if (multi) {
+                List<Automaton> automata = new ArrayList<>(regexes.size());
+                for (String regex : regexes) {
+                    automata.add(automaton(regex));
+                }
+                if (!caseConverting) {
+                    return new MultiContainsCharacterRunAutomaton(automata, maxDeterminizedStates);
+                }
+                return new MultiContainsCharacterRunAutomaton(automata, folding, maxDeterminizedStates);
+            }
+            Automaton automaton = automaton(regexes.get(0));
+            if (utf8) {
+                if (caseSensitive) {
+                    return new ContainsUtf8RunAutomaton(automaton, maxDeterminizedStates);
+                }
+                return new ContainsUtf8RunAutomaton(automaton, folding, maxDeterminizedStates);
+            }
+            if (!caseConverting) {
+                return new ContainsCharacterRunAutomaton(automaton);
+            }
+            return new ContainsCharacterRunAutomaton(automaton, folding);
+        }
+
+        private Automaton automaton(String regex) {
+            String regexString = regex;
+            if (!caseSensitive) {
+                regexString = regexString.toLowerCase(locale);
+            }
+            return new RegExp(regexString, RegExp.ALL ^ RegExp.AUTOMATON).toAutomaton(maxDeterminizedStates);
+        }
+
+        private long ramBytesUsed() {
+            // the regex strings dominate the key
+            long size = 64;
+            for (String regex : regexes) {
+                size += 32 + 2L * regex.length();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Everything the extracted expression depends on. The UUID of the index
+     * lets expressions be dropped with their index.
+     */
+    @EqualsAndHashCode
+    private static final class ExpressionKey {
+        private final String index;
+        private final String ngramField;
+        /**
+         * Analyzers don't override equals so this is the analyzer instance.
+         * Indices share an instance per analyzer, a mapping pointing the
+         * field to another analyzer changes it.
+         */
+        private final Analyzer analyzer;
+        private final String lowercasedRegex;
+        private final int gramSize;
+        private final int maxDeterminizedStates;
+        private final int maxExpand;
+        private final int maxStatesTraced;
+        private final int maxNgramsExtracted;
+        private final int maxNgramClauses;
+        private final int maxSimplifyVisits;
+
+        private ExpressionKey(String index, String ngramField, Analyzer analyzer, String lowercasedRegex, int gramSize,
+                int maxDeterminizedStates, int maxExpand, int maxStatesTraced, int maxNgramsExtracted, int maxNgramClauses,
+                int maxSimplifyVisits) {
+            this.index = index;
+            this.ngramField = ngramField;
+            this.analyzer = analyzer;
+            this.lowercasedRegex = lowercasedRegex;
+            this.gramSize = gramSize;
+            this.maxDeterminizedStates = maxDeterminizedStates;
+            this.maxExpand = maxExpand;
+            this.maxStatesTraced = maxStatesTraced;
+            this.maxNgramsExtracted = maxNgramsExtracted;
+            this.maxNgramClauses = maxNgramClauses;
+            this.maxSimplifyVisits = maxSimplifyVisits;
+        }
+
+        private long ramBytesUsed() {
+            // the uuid, the field path and the analyzer are shared with the mappings
+            return 64 + 2L * lowercasedRegex.length();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how a source_regex query spent its time, reported in
+ * the description of the query and so by the profile API. The parallel
+ * slices of a scan update them concurrently so they are adders, cheap
+ * enough to always count: a doc is rechecked in microseconds while reading
+ * the clock takes tens of nanoseconds. Everything is also added to the stats
+ * of the node. The regex and its expression are kept for the slow log.
+ */
+final class SourceRegexProfile {
+    private final SourceRegexStats node;
+    @Nullable
+    private final String regex;
+    private long extractionNanos = -1;
+    private int clauses;
+    @Nullable
+    private Object expression;
+    private final LongAdder acceleratedSegments = new LongAdder();
+    private final LongAdder scannedSegments = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder rechecked = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder charsLoaded = new LongAdder();
+    private final LongAdder bytesLoaded = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder recheckNanos = new LongAdder();
+    private final LongAdder streamNanos = new LongAdder();
+
+    /**
+     * @param node stats of the node
+     * @param regex the regex of the query, null if unknown
+     */
+    SourceRegexProfile(SourceRegexStats node, @Nullable String regex) {
+        this.node = node;
+        this.regex = regex;
+    }
+
+    /**
+     * Record the extraction of the ngram expression, done while rewriting
+     * before the query runs.
+     *
+     * @param nanos time spent extracting the expression of every ngram field
+     * @param clauses number of clauses of the expression used
+     * @param expression the expression used, null if none
+     */
+    void extracted(long nanos, int clauses, @Nullable Object expression) {
+        this.extractionNanos = nanos;
+        this.clauses = clauses;
+        this.expression = expression;
+        node.extracted(nanos, clauses);
+    }
+
+    /**
+     * Record a segment searched with the approximation.
+     */
+    void acceleratedSegment() {
+        acceleratedSegments.increment();
+    }
+
+    /**
+     * Record a segment scanned because the approximation matched nearly
+     * every doc.
+     */
+    void scannedSegment() {
+        scannedSegments.increment();
+    }
+
+    /**
+     * Record a doc found by the approximation.
+     */
+    void candidate() {
+        candidates.increment();
+        node.increment(SourceRegexStats.Metric.CANDIDATES);
+    }
+
+    /**
+     * Record a doc loaded and then rechecked.
+     *
+     * @param chars number of chars loaded
+     * @param loadNanos time spent loading the field
+     * @param recheckNanos time spent running the regex
+     * @param matched did the doc match?
+     */
+    void rechecked(long chars, long loadNanos, long recheckNanos, boolean matched) {
+        counted(chars, 0, matched);
+        this.loadNanos.add(loadNanos);
+        this.recheckNanos.add(recheckNanos);
+    }
+
+    /**
+     * Record a doc rechecked while it was loaded. The time spent loading
+     * and rechecking can't be told apart so it is counted on its own.
+     *
+     * @param chars number of chars loaded
+     * @param bytes number of UTF-8 encoded bytes loaded
+     * @param nanos time spent loading and rechecking the field
+     * @param matched did the doc match?
+     */
+    void streamed(long chars, long bytes, long nanos, boolean matched) {
+        counted(chars, bytes, matched);
+        streamNanos.add(nanos);
+    }
+
+    private void counted(long chars, long bytes, boolean matched) {
+        rechecked.increment();
+        node.increment(SourceRegexStats.Metric.RECHECKED);
+        if (matched) {
+            matches.increment();
+            node.increment(SourceRegexStats.Metric.MATCHES);
+        }
+        if (chars > 0) {
+            charsLoaded.add(chars);
+            node.add(SourceRegexStats.Metric.CHARS_LOADED, chars);
+        }
+        if (bytes > 0) {
+            bytesLoaded.add(bytes);
+            node.add(SourceRegexStats.Metric.BYTES_LOADED, bytes);
+        }
+    }
+
+    @Nullable
+    String regex() {
+        return regex;
+    }
+
+    @Nullable
+    Object expression() {
+        return expression;
+    }
+
+    /**
+     * Time spent extracting the expression, loading and rechecking docs.
+     */
+    long costNanos() {
+        return Math.max(extractionNanos, 0) + loadNanos.sum() + recheckNanos.sum() + streamNanos.sum();
+    }
+
+    long candidates() {
+        return candidates.sum();
+    }
+
+    long rechecked() {
+        return rechecked.sum();
+    }
+
+    long matches() {
+        return matches.sum();
+    }
+
+    long charsLoaded() {
+        return charsLoaded.sum();
+    }
+
+    long bytesLoaded() {
+        return bytesLoaded.sum();
+    }
+
+    /**
+     * Append the counters to the description of the query, nothing if
+     * nothing was recorded.
+     */
+    void describe(StringBuilder b) {
+        if (extractionNanos >= 0) {
+            b.append(", extraction: ").append(TimeValue.timeValueNanos(extractionNanos)).append(", clauses: ").append(clauses);
+        }
+        long accelerated = acceleratedSegments.sum();
+        long scanned = scannedSegments.sum();
+        if (accelerated + scanned > 0) {
+            b.append(", segments accelerated: ").append(accelerated).append(", scanned: ").append(scanned);
+        }
+        long candidates = candidates();
+        if (candidates == 0) {
+            return;
+        }
+        b.append(", candidates: ").append(candidates);
+        b.append(", rechecked: ").append(rechecked());
+        b.append(", matches: ").append(matches());
+        long chars = charsLoaded();
+        if (chars > 0) {
+            b.append(", chars loaded: ").append(chars);
+        }
+        long bytes = bytesLoaded();
+        if (bytes > 0) {
+            b.append(", bytes loaded: ").append(bytes);
+        }
+        long load = loadNanos.sum();
+        long recheck = recheckNanos.sum();
+        if (load + recheck > 0) {
+            b.append(", load: ").append(TimeValue.timeValueNanos(load));
+            b.append(", recheck: ").append(TimeValue.timeValueNanos(recheck));
+        }
+        long stream = streamNanos.sum();
+        if (stream > 0) {
+            b.append(", load and recheck: ").append(TimeValue.timeValueNanos(stream));
+        }
+    }
+}
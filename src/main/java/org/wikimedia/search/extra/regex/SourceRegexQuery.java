@@ -4,114 +4,162 @@ import com.google.common.annotations.VisibleForTesting;
 import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.experimental.Accessors;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.CharacterRunAutomaton;
 import org.apache.lucene.util.automaton.RegExp;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.lucene.search.Queries;
 import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Metric;
 import org.wikimedia.search.extra.regex.expression.Expression;
 import org.wikimedia.search.extra.regex.expression.ExpressionRewriter;
+import org.wikimedia.search.extra.regex.expression.True;
 import org.wikimedia.search.extra.regex.ngram.AutomatonTooComplexException;
 import org.wikimedia.search.extra.regex.ngram.NGramExtractor;
 import org.wikimedia.search.extra.util.FieldValues;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 
-@EqualsAndHashCode(callSuper = false)
+@EqualsAndHashCode(callSuper = false, exclude = "services")
 @VisibleForTesting
 @Getter(AccessLevel.PACKAGE)
 public class SourceRegexQuery extends Query {
     private final String fieldPath;
-    private final String ngramFieldPath;
+    private final List<NGramIndex> ngramIndices;
     private final String regex;
     private final FieldValues.Loader loader;
     private final Settings settings;
-    private final int gramSize;
     private final Rechecker rechecker;
-    private final Analyzer ngramAnalyzer;
+    private final SourceRegexServices services;
 
     public SourceRegexQuery(String fieldPath, String ngramFieldPath, String regex, FieldValues.Loader loader, Settings settings,
             int gramSize, Analyzer ngramAnalyzer) {
+        this(fieldPath, ngramFieldPath, regex, loader, settings, gramSize, ngramAnalyzer, SourceRegexServices.NONE);
+    }
+
+    public SourceRegexQuery(String fieldPath, String ngramFieldPath, String regex, FieldValues.Loader loader, Settings settings,
+            int gramSize, Analyzer ngramAnalyzer, SourceRegexServices services) {
+        this(fieldPath, ngramFieldPath == null ? Collections.emptyList()
+                : Collections.singletonList(new NGramIndex(ngramFieldPath, gramSize, ngramAnalyzer)),
+                regex, loader, settings, services);
+    }
+
+    /**
+     * Build the query.
+     *
+     * @param ngramIndices fields containing ngrams to accelerate the regex
+     *        with, the one expected to find the fewest candidates is used
+     */
+    public SourceRegexQuery(String fieldPath, List<NGramIndex> ngramIndices, String regex, FieldValues.Loader loader,
+            Settings settings, SourceRegexServices services) {
         this.fieldPath = fieldPath;
-        this.ngramFieldPath = ngramFieldPath;
+        this.ngramIndices = Collections.unmodifiableList(new ArrayList<>(ngramIndices));
         this.regex = Objects.requireNonNull(regex);
         if (regex.isEmpty()) {
            throw new IllegalArgumentException("regex must be set");
         }
         this.loader = loader;
         this.settings = settings;
-        this.gramSize = gramSize;
-        if (!settings.caseSensitive()
-                && !settings.locale().getLanguage().equals("ga")
-                && !settings.locale().getLanguage().equals("tr")) {
-            rechecker = new NonBacktrackingOnTheFlyCaseConvertingRechecker(regex, settings);
+        this.services = Objects.requireNonNull(services);
+        SourceRegexCache cache = services.cache();
+        if (settings.utf8Recheck() && loader.readsUtf8(fieldPath)) {
+            // Values decoded by the parser of _source aren't encoded again
+            rechecker = new NonBacktrackingUtf8Rechecker(regex, settings, cache);
+        } else if (!settings.caseSensitive()) {
+            rechecker = new NonBacktrackingCaseFoldingRechecker(regex, settings, cache);
         } else {
-            rechecker = new NonBacktrackingRechecker(regex, settings);
+            rechecker = new NonBacktrackingRechecker(regex, settings, cache);
         }
-        this.ngramAnalyzer = ngramAnalyzer;
     }
 
     @Override
     public Query rewrite(IndexReader reader) throws IOException {
         // TODO: investigate moving this logic inside the Builder
         // Rewrite the query as an AcceleratedSourceRegexQuery or UnacceleratedSourceRegexQuery
-        if (ngramFieldPath == null) {
-            assert ngramAnalyzer == null;
+        if (ngramIndices.isEmpty()) {
             // Don't bother expanding the regex if there isn't a field to check
             // it against. Its unlikely to resolve to all false anyway.
             if (settings.rejectUnaccelerated()) {
-                throw new UnableToAccelerateRegexException(regex, gramSize, null);
+                services.stats().increment(Metric.REJECTED);
+                throw new UnableToAccelerateRegexException(regex, SourceRegexQueryBuilder.DEFAULT_GRAM_SIZE, null);
             }
-            return new UnacceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings);
+            return new UnacceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings, services, services.newProfile(regex));
         }
-        assert ngramAnalyzer != null;
-        try {
-            // The accelerating filter is always assumed to be case
-            // insensitive/always lowercased
-            Automaton automaton = regexToAutomaton(
-                    new RegExp(regex.toLowerCase(settings.locale()), RegExp.ALL ^ RegExp.AUTOMATON),
-                    settings.maxDeterminizedStates());
-            Expression<String> expression = new NGramExtractor(gramSize, settings.maxExpand(), settings.maxStatesTraced(),
-                    settings.maxNgramsExtracted(), ngramAnalyzer).extract(automaton).simplify();
-            if (expression.alwaysTrue()) {
-                if (settings.rejectUnaccelerated()) {
-                    throw new UnableToAccelerateRegexException(regex, gramSize, ngramFieldPath);
-                }
-                return new UnacceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings).rewrite(reader);
-            } else if (expression.alwaysFalse()) {
+        // Plan the regex against every ngram field and keep the plan finding
+        // the fewest candidates. Short literals may only be covered by the
+        // smaller grams while longer grams are usually rarer.
+        NGramIndex best = null;
+        NGramQueryPlanner bestPlanner = null;
+        NGramQueryPlanner.Plan bestPlan = null;
+        Acceleration bestAcceleration = null;
+        long extractionNanos = 0;
+        for (NGramIndex index : ngramIndices) {
+            long start = System.nanoTime();
+            Acceleration acceleration = acceleration(regex, index, settings, services.cache());
+            extractionNanos += System.nanoTime() - start;
+            Expression<String> expression = acceleration.expression();
+            if (expression.alwaysFalse()) {
+                services.stats().increment(Metric.ALWAYS_FALSE);
                 return Queries.newMatchNoDocsQuery("Expression is always false").rewrite(reader);
-            } else {
-                if (expression.countClauses() > settings.maxNgramClauses()) {
-                    // The expression is too large we will try to use a degraded disjunction
-                    // Even if we limit the number of trigram generated (number of transition)
-                    // Some loops may generate huge boolean expression. If it's the case
-                    // The time required to build and scan all the clauses may be counter productive
-                    // since we are trying to optimize not to slowdown.
-                    //
-                    // It's not clear if the the degraded disjunction will be actually optimize the
-                    // regex, if one of the ngram is very common we will certainly scan nearly all
-                    // the docs in the index resulting in a UnacceleratedSourceRegexQuery.
-
-                    expression = new ExpressionRewriter<>(expression).degradeAsDisjunction(settings.maxNgramClauses());
-                    if (expression.countClauses() > settings.maxNgramClauses() || expression.alwaysTrue()) {
-                        // Still too large, it's likely a bug or improper settings:
-                        // maxTrigramClauses very low and a large max_ngrams_extracted
-                        if (settings.rejectUnaccelerated()) {
-                            throw new UnableToAccelerateRegexException(regex, gramSize, ngramFieldPath);
-                        }
-                        return new UnacceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings).rewrite(reader);
-                    }
-                    assert !expression.alwaysFalse();
+            } else if (expression.alwaysTrue()) {
+                continue;
+            }
+            NGramQueryPlanner planner = new NGramQueryPlanner(index.path(), reader);
+            NGramQueryPlanner.Plan plan = expression.transform(planner);
+            if (plan.estimate() == 0) {
+                if (planner.indexesEveryDoc()) {
+                    services.stats().increment(Metric.ALWAYS_FALSE);
+                    return Queries.newMatchNoDocsQuery("No document contains the ngrams").rewrite(reader);
                 }
-                return new AcceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings,
-                        expression.transform(new ExpressionToQueryTransformer(ngramFieldPath))).rewrite(reader);
+                // Docs missing the field, like those indexed before it was
+                // added, may still match
+                continue;
             }
+            if (bestPlan == null || plan.estimate() < bestPlan.estimate()) {
+                best = index;
+                bestPlanner = planner;
+                bestPlan = plan;
+                bestAcceleration = acceleration;
+            }
+        }
+        SourceRegexProfile profile = services.newProfile(regex);
+        if (bestPlan == null) {
+            if (settings.rejectUnaccelerated()) {
+                NGramIndex first = ngramIndices.get(0);
+                services.stats().increment(Metric.REJECTED);
+                throw new UnableToAccelerateRegexException(regex, first.gramSize(), first.path());
+            }
+            profile.extracted(extractionNanos, 0, null);
+            return new UnacceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings, services, profile).rewrite(reader);
+        }
+        profile.extracted(extractionNanos, bestAcceleration.expression().countClauses(), bestAcceleration.expression());
+        Query approximation = bestPlanner.withAdjacency(bestPlan.query(), bestAcceleration.literals(), best.analyzer());
+        return new AcceleratedSourceRegexQuery(rechecker, fieldPath, loader, settings, approximation, bestPlan.estimate(),
+                services, profile).rewrite(reader);
+    }
+
+    /**
+     * Load the ngram expression and the literals used to accelerate regex,
+     * from the cache if they were already built.
+     */
+    static Acceleration acceleration(String regex, NGramIndex ngrams, Settings settings, SourceRegexCache cache) {
+        try {
+            // The accelerating filter is always assumed to be case
+            // insensitive/always lowercased
+            String lowercasedRegex = regex.toLowerCase(settings.locale());
+            return cache.acceleration(lowercasedRegex, ngrams, settings,
+                    () -> buildAcceleration(lowercasedRegex, ngrams.gramSize(), settings, ngrams.analyzer()));
         } catch (AutomatonTooComplexException e) {
             throw new InvalidRegexException(String.format(Locale.ROOT,
                     "Regex /%s/ too complex for maxStatesTraced setting [%s].  Use a simpler regex or raise maxStatesTraced.", regex,
@@ -121,10 +169,105 @@ public class SourceRegexQuery extends Query {
         }
     }
 
+    /**
+     * Build the ngram expression and extract the literals used to accelerate
+     * the regex. This is the costly part of the rewrite so its result is
+     * cached by {@link SourceRegexCache}.
+     *
+     * @param lowercasedRegex the regex lowercased using the locale of the query
+     */
+    private static Acceleration buildAcceleration(String lowercasedRegex, int gramSize, Settings settings,
+            Analyzer ngramAnalyzer) {
+        Automaton automaton = regexToAutomaton(
+                new RegExp(lowercasedRegex, RegExp.ALL ^ RegExp.AUTOMATON),
+                settings.maxDeterminizedStates());
+        Expression<String> expression = buildExpression(automaton, gramSize, settings, ngramAnalyzer);
+        if (expression.alwaysTrue() || expression.alwaysFalse()) {
+            return new Acceleration(expression, Collections.emptyList());
+        }
+        List<String> literals = new ArrayList<>();
+        for (char[] literal : RequiredLiterals.extract(automaton)) {
+            // Only literals spanning several ngrams have ngrams to find next to each other
+            if (literal.length > gramSize) {
+                literals.add(new String(literal));
+            }
+        }
+        return new Acceleration(expression, literals);
+    }
+
+    /**
+     * Build the ngram expression used to accelerate the regex.
+     *
+     * @return the simplified expression, {@link Expression#alwaysTrue()} if the
+     *         regex can't be accelerated or {@link Expression#alwaysFalse()} if
+     *         it can't match anything
+     */
+    private static Expression<String> buildExpression(Automaton automaton, int gramSize, Settings settings, Analyzer ngramAnalyzer) {
+        Expression<String> expression = new NGramExtractor(gramSize, settings.maxExpand(), settings.maxStatesTraced(),
+                settings.maxNgramsExtracted(), settings.maxSimplifyVisits(), ngramAnalyzer).extract(automaton).simplify();
+        if (expression.alwaysTrue() || expression.alwaysFalse()) {
+            return expression;
+        }
+        if (expression.countClauses() > settings.maxNgramClauses()) {
+            // The expression is too large we will try to use a degraded disjunction
+            // Even if we limit the number of trigram generated (number of transition)
+            // Some loops may generate huge boolean expression. If it's the case
+            // The time required to build and scan all the clauses may be counter productive
+            // since we are trying to optimize not to slowdown.
+            //
+            // It's not clear if the the degraded disjunction will be actually optimize the
+            // regex, if one of the ngram is very common we will certainly scan nearly all
+            // the docs in the index resulting in a UnacceleratedSourceRegexQuery.
+
+            expression = new ExpressionRewriter<>(expression).degradeAsDisjunction(settings.maxNgramClauses());
+            if (expression.countClauses() > settings.maxNgramClauses() || expression.alwaysTrue()) {
+                // Still too large, it's likely a bug or improper settings:
+                // maxTrigramClauses very low and a large max_ngrams_extracted
+                return True.instance();
+            }
+            assert !expression.alwaysFalse();
+        }
+        return expression;
+    }
+
     private static Automaton regexToAutomaton(RegExp regex, int maxDeterminizedStates) {
         return regex.toAutomaton(maxDeterminizedStates);
     }
 
+    /**
+     * A field containing ngrams of a single size and the analyzer producing
+     * them.
+     */
+    @Accessors(fluent = true)
+    @Getter
+    @EqualsAndHashCode
+    public static final class NGramIndex {
+        /**
+         * UUID of the index the field belongs to, null if unknown.
+         */
+        @Nullable
+        private final String index;
+        private final String path;
+        private final int gramSize;
+        private final Analyzer analyzer;
+
+        public NGramIndex(String path, int gramSize, Analyzer analyzer) {
+            this(null, path, gramSize, analyzer);
+        }
+
+        /**
+         * @param index UUID of the index the field belongs to, the ngram
+         *        expressions extracted for the field are only cached if
+         *        it is known
+         */
+        public NGramIndex(@Nullable String index, String path, int gramSize, Analyzer analyzer) {
+            this.index = index;
+            this.path = Objects.requireNonNull(path);
+            this.gramSize = gramSize;
+            this.analyzer = Objects.requireNonNull(analyzer);
+        }
+    }
+
     /**
      * Wraps all recheck operations for a single execution. Package private for
      * testing.
@@ -145,19 +288,90 @@ public class SourceRegexQuery extends Query {
     }
 
     /**
-     * Faster for case insensitive queries than the NonBacktrackingRechecker but
-     * wrong for Irish and Turkish.
+     * Rechecker that checks values while they are loaded so loading can stop
+     * at the first match rather than materializing all the values first.
      */
-    @EqualsAndHashCode(exclude = "charRun")
-    static class NonBacktrackingOnTheFlyCaseConvertingRechecker implements Rechecker {
+    interface StreamingRechecker extends Rechecker {
+        /**
+         * Load the values in a candidate document and recheck them, stopping
+         * at the first value that actually contains a match to the regex.
+         */
+        boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException;
+    }
+
+    /**
+     * Runs a UTF-8 byte automaton against the values so they never have to
+     * be decoded. Case conversion is folded into the automaton, just like
+     * NonBacktrackingCaseFoldingRechecker.
+     */
+    @EqualsAndHashCode(exclude = {"utf8Run", "cache"})
+    static class NonBacktrackingUtf8Rechecker implements StreamingRechecker {
         private final String regex;
         private final Settings settings;
+        private final SourceRegexCache cache;
+
+        private ContainsUtf8RunAutomaton utf8Run;
+
+        NonBacktrackingUtf8Rechecker(String regex, Settings settings) {
+            this(regex, settings, SourceRegexCache.DISABLED);
+        }
+
+        NonBacktrackingUtf8Rechecker(String regex, Settings settings, SourceRegexCache cache) {
+            this.regex = regex;
+            this.settings = settings;
+            this.cache = cache;
+        }
+
+        @Override
+        public boolean recheck(Iterable<String> values) {
+            for (String value : values) {
+                if (getUtf8Run().contains(new BytesRef(value))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            return loader.anyMatchUtf8(path, reader, docId, getUtf8Run()::contains);
+        }
+
+        private ContainsUtf8RunAutomaton getUtf8Run() {
+            if (utf8Run == null) {
+                utf8Run = cache.utf8Run(regex, settings);
+            }
+            return utf8Run;
+        }
+
+        @Override
+        public float getCost() {
+            return getUtf8Run().getSize();
+        }
+
+    }
+
+    /**
+     * Rechecks case insensitive queries: the lowercasing rules of the locale
+     * are folded into the automaton so the values are neither copied nor
+     * lowercased.
+     */
+    @EqualsAndHashCode(exclude = {"charRun", "cache"})
+    static class NonBacktrackingCaseFoldingRechecker implements StreamingRechecker {
+        private final String regex;
+        private final Settings settings;
+        private final SourceRegexCache cache;
 
         private ContainsCharacterRunAutomaton charRun;
 
-        NonBacktrackingOnTheFlyCaseConvertingRechecker(String regex, Settings settings) {
+        NonBacktrackingCaseFoldingRechecker(String regex, Settings settings) {
+            this(regex, settings, SourceRegexCache.DISABLED);
+        }
+
+        NonBacktrackingCaseFoldingRechecker(String regex, Settings settings, SourceRegexCache cache) {
             this.regex = regex;
             this.settings = settings;
+            this.cache = cache;
         }
 
         @Override
@@ -170,19 +384,14 @@ public class SourceRegexQuery extends Query {
             return false;
         }
 
+        @Override
+        public boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            return loader.anyMatch(path, reader, docId, getCharRun()::contains);
+        }
+
         private ContainsCharacterRunAutomaton getCharRun() {
             if (charRun == null) {
-                String regexString = regex;
-                if (!settings.caseSensitive()) {
-                    regexString = regexString.toLowerCase(settings.locale());
-                }
-                Automaton automaton = regexToAutomaton(new RegExp(regexString, RegExp.ALL ^ RegExp.AUTOMATON),
-                        settings.maxDeterminizedStates());
-                if (settings.locale().getLanguage().equals("el")) {
-                    charRun = new ContainsCharacterRunAutomaton.GreekLowerCasing(automaton);
-                } else {
-                    charRun = new ContainsCharacterRunAutomaton.LowerCasing(automaton);
-                }
+                charRun = cache.charRun(regex, settings, true);
             }
             return charRun;
         }
@@ -195,26 +404,31 @@ public class SourceRegexQuery extends Query {
     }
 
     /**
-     * Much much faster than SlowRechecker.
+     * Much much faster than SlowRechecker. Only for case sensitive queries,
+     * case insensitive ones use the NonBacktrackingCaseFoldingRechecker.
      */
-    @EqualsAndHashCode(exclude = "charRun")
-    static class NonBacktrackingRechecker implements Rechecker {
+    @EqualsAndHashCode(exclude = {"charRun", "cache"})
+    static class NonBacktrackingRechecker implements StreamingRechecker {
         private final String regex;
         private final Settings settings;
+        private final SourceRegexCache cache;
 
         private ContainsCharacterRunAutomaton charRun;
 
         NonBacktrackingRechecker(String regex, Settings settings) {
+            this(regex, settings, SourceRegexCache.DISABLED);
+        }
+
+        NonBacktrackingRechecker(String regex, Settings settings, SourceRegexCache cache) {
+            assert settings.caseSensitive() : "values would have to be lowercased";
             this.regex = regex;
             this.settings = settings;
+            this.cache = cache;
         }
 
         @Override
         public boolean recheck(Iterable<String> values) {
             for (String value : values) {
-                if (!settings.caseSensitive()) {
-                    value = value.toLowerCase(settings.locale());
-                }
                 if (getCharRun().contains(value)) {
                     return true;
                 }
@@ -222,15 +436,14 @@ public class SourceRegexQuery extends Query {
             return false;
         }
 
+        @Override
+        public boolean recheck(FieldValues.Loader loader, String path, IndexReader reader, int docId) throws IOException {
+            return loader.anyMatch(path, reader, docId, getCharRun()::contains);
+        }
+
         private ContainsCharacterRunAutomaton getCharRun() {
             if (charRun == null) {
-                String regexString = regex;
-                if (!settings.caseSensitive()) {
-                    regexString = regexString.toLowerCase(settings.locale());
-                }
-                Automaton automaton = regexToAutomaton(new RegExp(regexString, RegExp.ALL ^ RegExp.AUTOMATON),
-                        settings.maxDeterminizedStates());
-                charRun = new ContainsCharacterRunAutomaton(automaton);
+                charRun = cache.charRun(regex, settings, false);
             }
             return charRun;
         }
@@ -298,8 +511,8 @@ public class SourceRegexQuery extends Query {
     public String toString(String field) {
         StringBuilder b = new StringBuilder();
         b.append(fieldPath).append(":/").append(regex).append('/');
-        if (ngramFieldPath != null) {
-            b.append('~').append(ngramFieldPath);
+        for (NGramIndex index : ngramIndices) {
+            b.append('~').append(index.path());
         }
         return b.toString();
     }
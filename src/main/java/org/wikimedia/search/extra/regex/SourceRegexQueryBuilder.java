@@ -8,15 +8,21 @@ import lombok.Setter;
 import lombok.experimental.Accessors;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.LocaleUtils;
+import org.elasticsearch.common.xcontent.AbstractObjectParser;
 import org.elasticsearch.common.xcontent.ConstructingObjectParser;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.KeywordFieldMapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.StringFieldMapper;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryShardContext;
@@ -24,11 +30,16 @@ import org.wikimedia.search.extra.regex.expression.ExpressionRewriter;
 import org.wikimedia.search.extra.util.FieldValues;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 
 import static org.elasticsearch.common.xcontent.ConstructingObjectParser.constructorArg;
+import static org.elasticsearch.common.xcontent.ConstructingObjectParser.optionalConstructorArg;
 
 /**
  * Builds source_regex filters.
@@ -42,10 +53,13 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
     public static ParseField FIELD = new ParseField("field");
     public static ParseField REGEX = new ParseField("regex");
     public static ParseField LOAD_FROM_SOURCE = new ParseField("load_from_source");
+    public static ParseField LOAD_FROM_DOC_VALUES = new ParseField("load_from_doc_values");
     public static ParseField NGRAM_FIELD = new ParseField("ngram_field");
     public static ParseField GRAM_SIZE = new ParseField("gram_size");
+    public static ParseField NGRAM_FIELDS = new ParseField("ngram_fields");
 
     public static final boolean DEFAULT_LOAD_FROM_SOURCE = true;
+    public static final boolean DEFAULT_LOAD_FROM_DOC_VALUES = false;
     public static final int DEFAULT_GRAM_SIZE = 3;
 
     private static final ConstructingObjectParser<SourceRegexQueryBuilder, QueryParseContext> PARSER;
@@ -56,18 +70,11 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         PARSER.declareString(constructorArg(), FIELD);
         PARSER.declareString(constructorArg(), REGEX);
         PARSER.declareBoolean(SourceRegexQueryBuilder::loadFromSource, LOAD_FROM_SOURCE);
+        PARSER.declareBoolean(SourceRegexQueryBuilder::loadFromDocValues, LOAD_FROM_DOC_VALUES);
         PARSER.declareString(SourceRegexQueryBuilder::ngramField, NGRAM_FIELD);
         PARSER.declareInt(SourceRegexQueryBuilder::gramSize, GRAM_SIZE);
-        PARSER.declareInt((x,i) -> x.settings().maxExpand(i), Settings.MAX_EXPAND);
-        PARSER.declareInt((x,i) -> x.settings().maxStatesTraced(i), Settings.MAX_STATES_TRACED);
-        PARSER.declareInt((x,i) -> x.settings().maxDeterminizedStates(i), Settings.MAX_DETERMINIZED_STATES);
-        PARSER.declareInt((x,i) -> x.settings().maxNgramsExtracted(i), Settings.MAX_NGRAMS_EXTRACTED);
-        PARSER.declareInt((x,i) -> x.settings().maxInspect(i), Settings.MAX_INSPECT);
-        PARSER.declareBoolean((x,b) -> x.settings().caseSensitive(b), Settings.CASE_SENSITIVE);
-        PARSER.declareString((x,s) -> x.settings().locale(LocaleUtils.parse(s)), Settings.LOCALE);
-        PARSER.declareBoolean((x,b) -> x.settings().rejectUnaccelerated(b), Settings.REJECT_UNACCELERATED);
-        PARSER.declareInt((x,i) -> x.settings().maxNgramClauses(i), Settings.MAX_NGRAM_CLAUSES);
-        PARSER.declareString((x,s) -> x.settings().timeout(s), Settings.TIMEOUT);
+        PARSER.declareObjectArray((b, fields) -> b.ngramFields.addAll(fields), NGramField.PARSER, NGRAM_FIELDS);
+        Settings.declare(PARSER, SourceRegexQueryBuilder::settings);
         declareStandardFields(PARSER);
     }
 
@@ -80,6 +87,12 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
      */
     private boolean loadFromSource = DEFAULT_LOAD_FROM_SOURCE;
 
+    /**
+     * Should field be loaded from doc values? Takes precedence over
+     * loadFromSource.
+     */
+    private boolean loadFromDocValues = DEFAULT_LOAD_FROM_DOC_VALUES;
+
     /**
      * Field containing ngrams used to prefilter checked documents.
      * If not set then no ngram acceleration is performed.
@@ -92,9 +105,22 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
      */
     private int gramSize = DEFAULT_GRAM_SIZE;
 
+    /**
+     * More fields containing ngrams, usually of other sizes. The one
+     * expected to find the fewest candidates is used to prefilter checked
+     * documents.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final List<NGramField> ngramFields = new ArrayList<>();
+
     @Setter(AccessLevel.NONE)
     private final Settings settings;
 
+    // This intentionally is not considered in doEquals or doHashCode, as
+    // it's not part of the definition of the qb but a helper service.
+    private SourceRegexServices services = SourceRegexServices.NONE;
+
     /**
      * Start building.
      *
@@ -118,13 +144,20 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         this.settings = settings;
     }
 
+    public SourceRegexQueryBuilder(StreamInput in, SourceRegexServices services) throws IOException {
+        this(in);
+        this.services = Objects.requireNonNull(services);
+    }
+
     public SourceRegexQueryBuilder(StreamInput in) throws IOException {
         super(in);
         field = in.readString();
         regex = in.readString();
         loadFromSource = in.readBoolean();
+        loadFromDocValues = in.readBoolean();
         ngramField = in.readOptionalString();
         gramSize = in.readVInt();
+        ngramFields.addAll(in.readList(NGramField::new));
         settings = new Settings(in);
     }
 
@@ -133,8 +166,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         out.writeString(field);
         out.writeString(regex);
         out.writeBoolean(loadFromSource);
+        out.writeBoolean(loadFromDocValues);
         out.writeOptionalString(ngramField);
         out.writeVInt(gramSize);
+        out.writeList(ngramFields);
         settings.writeTo(out);
     }
 
@@ -145,7 +180,7 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
 
     @Override
     public int doHashCode() {
-        return Objects.hash(field, gramSize, loadFromSource, ngramField, regex, settings);
+        return Objects.hash(field, gramSize, loadFromSource, loadFromDocValues, ngramField, ngramFields, regex, settings);
     }
 
     @Override
@@ -153,11 +188,26 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         return Objects.equals(field, o.field) &&
                 Objects.equals(gramSize, o.gramSize) &&
                 Objects.equals(ngramField, o.ngramField) &&
+                Objects.equals(ngramFields, o.ngramFields) &&
                 Objects.equals(loadFromSource, o.loadFromSource) &&
+                Objects.equals(loadFromDocValues, o.loadFromDocValues) &&
                 Objects.equals(regex, o.regex) &&
                 Objects.equals(settings, o.settings);
     }
 
+    /**
+     * Add a field containing ngrams of gramSize to prefilter checked
+     * documents with.
+     */
+    public SourceRegexQueryBuilder addNgramField(String field, int gramSize) {
+        ngramFields.add(new NGramField(field, gramSize));
+        return this;
+    }
+
+    public List<NGramField> ngramFields() {
+        return Collections.unmodifiableList(ngramFields);
+    }
+
     public SourceRegexQueryBuilder maxStatesTraced(int i) {
         settings.maxStatesTraced = i;
         return this;
@@ -200,23 +250,105 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        final Analyzer ngramAnalyzer;
+        String index = context.index().getUUID();
+        List<SourceRegexQuery.NGramIndex> ngramIndices = new ArrayList<>(ngramFields.size() + 1);
         if (ngramField != null) {
-            MappedFieldType mapper = context.fieldMapper(ngramField);
-            if (mapper == null) {
-                throw new IllegalArgumentException("ngramField [" + ngramField + "] is unknown.");
+            ngramIndices.add(new SourceRegexQuery.NGramIndex(index, ngramField, gramSize, ngramAnalyzer(context, ngramField)));
+        }
+        for (NGramField f : ngramFields) {
+            ngramIndices.add(new SourceRegexQuery.NGramIndex(index, f.field(), f.gramSize(), ngramAnalyzer(context, f.field())));
+        }
+        return new SourceRegexQuery(
+                field, ngramIndices, regex, loader(context, field, loadFromSource, loadFromDocValues),
+                settings, services);
+    }
+
+    /**
+     * The search analyzer of the ngram field.
+     *
+     * @return the analyzer or null if ngramField is null
+     */
+    @Nullable
+    static Analyzer ngramAnalyzer(QueryShardContext context, @Nullable String ngramField) {
+        if (ngramField == null) {
+            return null;
+        }
+        MappedFieldType mapper = context.fieldMapper(ngramField);
+        if (mapper == null) {
+            throw new IllegalArgumentException("ngramField [" + ngramField + "] is unknown.");
+        }
+        Analyzer ngramAnalyzer = context.getSearchAnalyzer(mapper);
+        if (ngramAnalyzer == null) {
+            throw new IllegalArgumentException("Cannot find an analyzer for ngramField [" + ngramField + "], is this field indexed?");
+        }
+        return ngramAnalyzer;
+    }
+
+    /**
+     * The loader of the values of field. Only keyword fields can be loaded
+     * from doc values: other types either store binary values or values
+     * that are not the strings that were sent.
+     */
+    static FieldValues.Loader loader(QueryShardContext context, String field, boolean loadFromSource, boolean loadFromDocValues) {
+        if (loadFromDocValues) {
+            MappedFieldType mapper = context.fieldMapper(field);
+            if (mapper != null && !(mapper instanceof KeywordFieldMapper.KeywordFieldType
+                    || mapper instanceof StringFieldMapper.StringFieldType)) {
+                throw new IllegalArgumentException("Cannot load strings from the doc values of field [" + field + "] of type ["
+                        + mapper.typeName() + "], only keyword fields are supported.");
             }
-            ngramAnalyzer = context.getSearchAnalyzer(mapper);
-            if (ngramAnalyzer == null) {
-                throw new IllegalArgumentException("Cannot find an analyzer for ngramField [" + ngramField + "], is this field indexed?");
+            if (mapper == null || !mapper.hasDocValues()) {
+                throw new IllegalArgumentException("field [" + field + "] has no doc values.");
             }
-        } else {
-            ngramAnalyzer = null;
+            return FieldValues.loadFromDocValues();
+        } else if (loadFromSource) {
+            return FieldValues.loadFromSource();
+        }
+        return FieldValues.loadFromStoredField();
+    }
+
+    /**
+     * A field containing ngrams of a single size.
+     */
+    @Accessors(fluent = true)
+    @Getter
+    @EqualsAndHashCode
+    public static final class NGramField implements Writeable, ToXContent {
+        private static final ConstructingObjectParser<NGramField, QueryParseContext> PARSER =
+                new ConstructingObjectParser<>(NGRAM_FIELDS.getPreferredName(),
+                        (o) -> new NGramField((String) o[0], o[1] == null ? DEFAULT_GRAM_SIZE : (Integer) o[1]));
+
+        static {
+            PARSER.declareString(constructorArg(), FIELD);
+            PARSER.declareInt(optionalConstructorArg(), GRAM_SIZE);
+        }
+
+        private final String field;
+        private final int gramSize;
+
+        public NGramField(String field, int gramSize) {
+            this.field = Objects.requireNonNull(field);
+            this.gramSize = gramSize;
+        }
+
+        NGramField(StreamInput in) throws IOException {
+            field = in.readString();
+            gramSize = in.readVInt();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(field);
+            out.writeVInt(gramSize);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field(FIELD.getPreferredName(), field);
+            builder.field(GRAM_SIZE.getPreferredName(), gramSize);
+            return builder.endObject();
         }
-        return new SourceRegexQuery(
-                field, ngramField, regex,
-                loadFromSource ? FieldValues.loadFromSource() : FieldValues.loadFromStoredField(),
-                settings, gramSize, ngramAnalyzer);
     }
 
     /**
@@ -237,6 +369,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         final static ParseField REJECT_UNACCELERATED = new ParseField("reject_unaccelerated");
         final static ParseField MAX_NGRAM_CLAUSES = new ParseField("max_ngram_clauses");
         final static ParseField TIMEOUT = new ParseField("timeout");
+        final static ParseField UTF8_RECHECK = new ParseField("utf8_recheck");
+        final static ParseField PARALLEL_SCAN = new ParseField("parallel_scan");
+        final static ParseField MAX_SIMPLIFY_VISITS = new ParseField("max_simplify_visits");
+        final static ParseField PARTIAL_RESULTS = new ParseField("partial_results");
 
         private static final int DEFAULT_MAX_EXPAND = 4;
         private static final int DEFAULT_MAX_STATES_TRACED = 10000;
@@ -248,6 +384,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         private static final boolean DEFAULT_REJECT_UNACCELERATED = false;
         private static final int DEFAULT_MAX_BOOLEAN_CLAUSES = ExpressionRewriter.MAX_BOOLEAN_CLAUSES;
         private static final int DEFAULT_TIMEOUT = 0;
+        private static final boolean DEFAULT_UTF8_RECHECK = false;
+        private static final boolean DEFAULT_PARALLEL_SCAN = false;
+        private static final int DEFAULT_MAX_SIMPLIFY_VISITS = 100000;
+        private static final boolean DEFAULT_PARTIAL_RESULTS = false;
 
         /**
          * Maximum size of range transitions to expand into
@@ -307,10 +447,58 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
 
         private long timeout;
 
+        /**
+         * should candidates be rechecked against the UTF-8 bytes of the field
+         * rather than decoded strings?
+         */
+        private boolean utf8Recheck = DEFAULT_UTF8_RECHECK;
+
+        /**
+         * should unaccelerated regexes recheck slices of each segment in
+         * parallel on the source_regex_scan thread pool?
+         */
+        private boolean parallelScan = DEFAULT_PARALLEL_SCAN;
+
+        /**
+         * the maximum number of expression nodes visited while simplifying
+         * the ngram expression extracted from the regex. Past it the
+         * expression is degraded to the disjunction of its ngrams.
+         */
+        private int maxSimplifyVisits = DEFAULT_MAX_SIMPLIFY_VISITS;
+
+        /**
+         * should hitting the timeout or max_inspect stop rechecking and keep
+         * the matches found so far rather than fail the shard? Truncated
+         * shards are reported in the response headers.
+         */
+        private boolean partialResults = DEFAULT_PARTIAL_RESULTS;
+
         public Settings() {
         }
 
-        private Settings(StreamInput in) throws IOException {
+        /**
+         * Declare the settings on the parser of a query builder.
+         *
+         * @param settings the settings of the query builder being parsed
+         */
+        static <T> void declare(AbstractObjectParser<T, QueryParseContext> parser, Function<T, Settings> settings) {
+            parser.declareInt((x, i) -> settings.apply(x).maxExpand(i), MAX_EXPAND);
+            parser.declareInt((x, i) -> settings.apply(x).maxStatesTraced(i), MAX_STATES_TRACED);
+            parser.declareInt((x, i) -> settings.apply(x).maxDeterminizedStates(i), MAX_DETERMINIZED_STATES);
+            parser.declareInt((x, i) -> settings.apply(x).maxNgramsExtracted(i), MAX_NGRAMS_EXTRACTED);
+            parser.declareInt((x, i) -> settings.apply(x).maxInspect(i), MAX_INSPECT);
+            parser.declareBoolean((x, b) -> settings.apply(x).caseSensitive(b), CASE_SENSITIVE);
+            parser.declareString((x, s) -> settings.apply(x).locale(LocaleUtils.parse(s)), LOCALE);
+            parser.declareBoolean((x, b) -> settings.apply(x).rejectUnaccelerated(b), REJECT_UNACCELERATED);
+            parser.declareInt((x, i) -> settings.apply(x).maxNgramClauses(i), MAX_NGRAM_CLAUSES);
+            parser.declareString((x, s) -> settings.apply(x).timeout(s), TIMEOUT);
+            parser.declareBoolean((x, b) -> settings.apply(x).utf8Recheck(b), UTF8_RECHECK);
+            parser.declareBoolean((x, b) -> settings.apply(x).parallelScan(b), PARALLEL_SCAN);
+            parser.declareInt((x, i) -> settings.apply(x).maxSimplifyVisits(i), MAX_SIMPLIFY_VISITS);
+            parser.declareBoolean((x, b) -> settings.apply(x).partialResults(b), PARTIAL_RESULTS);
+        }
+
+        Settings(StreamInput in) throws IOException {
             maxExpand = in.readVInt();
             maxStatesTraced = in.readVInt();
             maxDeterminizedStates = in.readVInt();
@@ -321,6 +509,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
             rejectUnaccelerated = in.readBoolean();
             maxNgramClauses = in.readVInt();
             timeout = in.readVLong();
+            utf8Recheck = in.readBoolean();
+            parallelScan = in.readBoolean();
+            maxSimplifyVisits = in.readVInt();
+            partialResults = in.readBoolean();
         }
 
         public Settings timeout(long timeout) {
@@ -343,6 +535,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
             out.writeBoolean(rejectUnaccelerated);
             out.writeVInt(maxNgramClauses);
             out.writeVLong(timeout);
+            out.writeBoolean(utf8Recheck);
+            out.writeBoolean(parallelScan);
+            out.writeVInt(maxSimplifyVisits);
+            out.writeBoolean(partialResults);
         }
 
         public XContentBuilder innerXContent(XContentBuilder builder, Params params) throws IOException {
@@ -376,6 +572,18 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
             if (timeout != DEFAULT_TIMEOUT) {
                 builder.field(TIMEOUT.getPreferredName(), timeout + "ms");
             }
+            if (utf8Recheck != DEFAULT_UTF8_RECHECK) {
+                builder.field(UTF8_RECHECK.getPreferredName(), utf8Recheck);
+            }
+            if (parallelScan != DEFAULT_PARALLEL_SCAN) {
+                builder.field(PARALLEL_SCAN.getPreferredName(), parallelScan);
+            }
+            if (maxSimplifyVisits != DEFAULT_MAX_SIMPLIFY_VISITS) {
+                builder.field(MAX_SIMPLIFY_VISITS.getPreferredName(), maxSimplifyVisits);
+            }
+            if (partialResults != DEFAULT_PARTIAL_RESULTS) {
+                builder.field(PARTIAL_RESULTS.getPreferredName(), partialResults);
+            }
             return builder;
         }
     }
@@ -389,12 +597,22 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
         if (loadFromSource != DEFAULT_LOAD_FROM_SOURCE) {
             builder.field(LOAD_FROM_SOURCE.getPreferredName(), loadFromSource);
         }
+        if (loadFromDocValues != DEFAULT_LOAD_FROM_DOC_VALUES) {
+            builder.field(LOAD_FROM_DOC_VALUES.getPreferredName(), loadFromDocValues);
+        }
         if (ngramField != null) {
             builder.field(NGRAM_FIELD.getPreferredName(), ngramField);
         }
         if (gramSize != DEFAULT_GRAM_SIZE) {
             builder.field(GRAM_SIZE.getPreferredName(), gramSize);
         }
+        if (!ngramFields.isEmpty()) {
+            builder.startArray(NGRAM_FIELDS.getPreferredName());
+            for (NGramField f : ngramFields) {
+                f.toXContent(builder, params);
+            }
+            builder.endArray();
+        }
         settings.innerXContent(builder, params);
         printBoostAndQueryName(builder);
         builder.endObject();
@@ -407,4 +625,10 @@ public class SourceRegexQueryBuilder extends AbstractQueryBuilder<SourceRegexQue
             throw new ParsingException(context.parser().getTokenLocation(), iae.getMessage(), iae);
         }
     }
+
+    public static Optional<SourceRegexQueryBuilder> fromXContent(QueryParseContext context, SourceRegexServices services) throws IOException {
+        Optional<SourceRegexQueryBuilder> builder = fromXContent(context);
+        builder.ifPresent((b) -> b.services = Objects.requireNonNull(services));
+        return builder;
+    }
 }
@@ -0,0 +1,230 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.elasticsearch.action.search.SearchTask;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.ShardUtils;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Node level services shared by all the source_regex queries of a node.
+ */
+public class SourceRegexServices {
+    /**
+     * Name of the thread pool used by parallel scans of unaccelerated regexes.
+     */
+    public static final String SCAN_THREAD_POOL = "source_regex_scan";
+    private static final int SCAN_QUEUE_SIZE = 100;
+    /**
+     * Response header listing the shards where the regex stopped rechecking
+     * early and kept the matches found so far.
+     */
+    public static final String TRUNCATED_HEADER = "X-Source-Regex-Truncated";
+
+    /**
+     * Services that cache nothing and always scan serially.
+     */
+    public static final SourceRegexServices NONE = new SourceRegexServices(SourceRegexCache.DISABLED, () -> null);
+
+    private final SourceRegexCache cache;
+    private final Supplier<ThreadPool> threadPool;
+    private final CurrentSearchTask currentTask;
+    private final SourceRegexAdmission admission;
+    private final SourceRegexStats stats;
+    private final SourceRegexSlowLog slowLog;
+
+    /**
+     * @param cache cache for compiled regexes
+     * @param threadPool supplies the node thread pool, may supply null
+     *            until the node is started
+     */
+    public SourceRegexServices(SourceRegexCache cache, Supplier<ThreadPool> threadPool) {
+        this(cache, threadPool, new CurrentSearchTask(), SourceRegexAdmission.UNLIMITED,
+                new SourceRegexStats(Settings.EMPTY, threadPool, cache), SourceRegexSlowLog.DISABLED);
+    }
+
+    /**
+     * @param cache cache for compiled regexes
+     * @param threadPool supplies the node thread pool, may supply null
+     *            until the node is started
+     * @param currentTask listener tracking the search phase of each thread
+     * @param admission limits the expensive regexes running on the node
+     * @param stats stats of the node
+     * @param slowLog logs the slow regexes
+     */
+    public SourceRegexServices(SourceRegexCache cache, Supplier<ThreadPool> threadPool, CurrentSearchTask currentTask,
+            SourceRegexAdmission admission, SourceRegexStats stats, SourceRegexSlowLog slowLog) {
+        this.cache = Objects.requireNonNull(cache);
+        this.threadPool = Objects.requireNonNull(threadPool);
+        this.currentTask = Objects.requireNonNull(currentTask);
+        this.admission = Objects.requireNonNull(admission);
+        this.stats = Objects.requireNonNull(stats);
+        this.slowLog = Objects.requireNonNull(slowLog);
+    }
+
+    /**
+     * @return the cache of compiled regexes
+     */
+    SourceRegexCache cache() {
+        return cache;
+    }
+
+    /**
+     * @return the stats of the node, or stats recording nothing when the
+     *         current thread runs a fetch phase: the named regexes it runs
+     *         again were already counted by the query phase
+     */
+    SourceRegexStats stats() {
+        return currentTask.inFetchPhase() ? SourceRegexStats.DISCARDED : stats;
+    }
+
+    /**
+     * Counters of a new query, also adding to the stats of the node outside
+     * of the fetch phase.
+     */
+    SourceRegexProfile newProfile() {
+        return newProfile(null);
+    }
+
+    /**
+     * Counters of a new query running regex, also adding to the stats of the
+     * node outside of the fetch phase.
+     */
+    SourceRegexProfile newProfile(@Nullable String regex) {
+        return new SourceRegexProfile(stats(), regex);
+    }
+
+    /**
+     * Log query once the search phase running on the current thread ends if
+     * it was slow, to be called on the thread building the query weight.
+     */
+    void trackSlow(UnacceleratedSourceRegexQuery query, IndexSearcher searcher) {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        slowLog.track(currentTask, query, leaves.isEmpty() ? null : ShardUtils.extractShardId(leaves.get(0).reader()));
+    }
+
+    /**
+     * Tells if the search task running on the current thread was cancelled,
+     * to be called on the thread building the query weight.
+     */
+    BooleanSupplier cancellation() {
+        SearchTask task = currentTask.get();
+        return task == null ? () -> false : task::isCancelled;
+    }
+
+    /**
+     * Is the current thread running a fetch phase? The regexes it runs
+     * were already admitted and counted by the query phase.
+     */
+    boolean inFetchPhase() {
+        return currentTask.inFetchPhase();
+    }
+
+    /**
+     * Admit an unaccelerated scan on the current thread.
+     *
+     * @return false if the node is overloaded and the scan must be rejected
+     *         like with reject_unaccelerated
+     * @throws org.elasticsearch.common.util.concurrent.EsRejectedExecutionException
+     *             if the node is overloaded and rejects expensive regexes
+     */
+    boolean admitScan() {
+        try {
+            return admission.admit(currentTask);
+        } catch (EsRejectedExecutionException e) {
+            stats().increment(SourceRegexStats.Metric.REJECTED);
+            throw e;
+        }
+    }
+
+    /**
+     * Admit an accelerated regex on the current thread. It runs anyway if
+     * the node is overloaded and degrades expensive regexes.
+     *
+     * @param estimatedCandidates estimated number of docs to recheck
+     * @throws org.elasticsearch.common.util.concurrent.EsRejectedExecutionException
+     *             if the regex is expensive and the node is overloaded and
+     *             rejects expensive regexes
+     */
+    void admitAccelerated(long estimatedCandidates) {
+        if (admission.expensive(estimatedCandidates)) {
+            try {
+                admission.admit(currentTask);
+            } catch (EsRejectedExecutionException e) {
+                stats().increment(SourceRegexStats.Metric.REJECTED);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Flag the response of the current request as truncated, to be called on
+     * the thread running the search phase. The shard result is also flagged
+     * as timed out so the shard request cache never serves it without the
+     * flag.
+     *
+     * @param shard the shard where rechecking stopped early, null if unknown
+     * @param inspected the number of docs rechecked on that shard
+     */
+    void reportTruncated(@Nullable ShardId shard, int inspected) {
+        ThreadPool pool = threadPool.get();
+        if (pool != null) {
+            pool.getThreadContext().addResponseHeader(TRUNCATED_HEADER,
+                    (shard == null ? "" : shard + " ") + "inspected " + inspected + " docs");
+        }
+        reportTimedOut();
+    }
+
+    /**
+     * Flag the shard result of the current request as timed out, to be
+     * called on the thread running the search phase.
+     */
+    void reportTimedOut() {
+        SearchContext context = currentTask.context();
+        if (context != null) {
+            context.queryResult().searchTimedOut(true);
+        }
+    }
+
+    /**
+     * The bounded thread pool used by parallel scans. Half of the processors
+     * by default, configured with the thread_pool.source_regex_scan settings.
+     */
+    public static ExecutorBuilder<?> scanExecutorBuilder(Settings settings) {
+        int size = Math.max(1, EsExecutors.boundedNumberOfProcessors(settings) / 2);
+        return new FixedExecutorBuilder(settings, SCAN_THREAD_POOL, size, SCAN_QUEUE_SIZE, "thread_pool." + SCAN_THREAD_POOL);
+    }
+
+    /**
+     * @return the executor running parallel scans or null if scans must be
+     *         run serially
+     */
+    @Nullable
+    Executor scanExecutor() {
+        ThreadPool pool = threadPool.get();
+        return pool == null ? null : pool.executor(SCAN_THREAD_POOL);
+    }
+
+    /**
+     * @return the number of threads of the scan executor, 1 if there is
+     *         none
+     */
+    int scanThreads() {
+        ThreadPool pool = threadPool.get();
+        return pool == null ? 1 : pool.info(SCAN_THREAD_POOL).getMax();
+    }
+}
@@ -0,0 +1,145 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Logs the source_regex queries that spent more than a threshold extracting
+ * their ngram expression, loading and rechecking docs, one line per query
+ * and shard. The line is written once the search phase ended, when all the
+ * counters of the query are known. Only a sample of the queries are tracked
+ * so the log stays cheap on busy nodes, untracked queries cost a random
+ * number.
+ */
+public class SourceRegexSlowLog {
+    public static final Setting<TimeValue> THRESHOLD = Setting.timeSetting("extra.source_regex.slowlog.threshold",
+            TimeValue.timeValueNanos(-1), TimeValue.timeValueMillis(-1), Property.Dynamic, Property.NodeScope);
+    public static final Setting<Double> SAMPLE_RATE = new Setting<>("extra.source_regex.slowlog.sample_rate", "1",
+            SourceRegexSlowLog::parseSampleRate, Property.Dynamic, Property.NodeScope);
+
+    /**
+     * Logs nothing.
+     */
+    public static final SourceRegexSlowLog DISABLED = new SourceRegexSlowLog(TimeValue.timeValueNanos(-1), 1, line -> { },
+            () -> 0);
+
+    /**
+     * Maximum number of chars of the regex and of the expression logged.
+     */
+    private static final int MAX_LOGGED_CHARS = 1000;
+
+    private final Consumer<String> sink;
+    private final DoubleSupplier random;
+    private volatile long thresholdNanos;
+    private volatile double sampleRate;
+
+    public SourceRegexSlowLog(Settings settings) {
+        this(THRESHOLD.get(settings), SAMPLE_RATE.get(settings), sink(ESLoggerFactory.getLogger("extra.source_regex.slowlog")),
+                () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param threshold queries slower than this are logged, negative to log
+     *            nothing
+     * @param sampleRate ratio of the queries tracked
+     * @param sink writes the lines
+     * @param random random numbers in [0, 1) deciding if queries are tracked
+     */
+    SourceRegexSlowLog(TimeValue threshold, double sampleRate, Consumer<String> sink, DoubleSupplier random) {
+        this.sink = sink;
+        this.random = random;
+        setThreshold(threshold);
+        setSampleRate(sampleRate);
+    }
+
+    private static Consumer<String> sink(Logger logger) {
+        return line -> logger.warn("{}", line);
+    }
+
+    public void setThreshold(TimeValue threshold) {
+        this.thresholdNanos = threshold.nanos();
+    }
+
+    public void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Log query once the search phase running on this thread ends if it was
+     * slow.
+     *
+     * @param phase tracks the search phase of the current thread
+     * @param query the query whose weight is built
+     * @param shard the shard searched, null if unknown
+     */
+    void track(CurrentSearchTask phase, UnacceleratedSourceRegexQuery query, @Nullable ShardId shard) {
+        long threshold = thresholdNanos;
+        if (threshold < 0 || random.getAsDouble() >= sampleRate) {
+            return;
+        }
+        phase.onEnd(() -> {
+            long took = query.profile.costNanos();
+            if (took >= threshold) {
+                sink.accept(line(query, shard, took));
+            }
+        });
+    }
+
+    private static String line(UnacceleratedSourceRegexQuery query, @Nullable ShardId shard, long tookNanos) {
+        SourceRegexProfile profile = query.profile;
+        StringBuilder b = new StringBuilder();
+        if (shard != null) {
+            b.append(shard).append(' ');
+        }
+        b.append("took[").append(TimeValue.timeValueNanos(tookNanos)).append("], ");
+        b.append("took_millis[").append(TimeValue.timeValueNanos(tookNanos).millis()).append("], ");
+        b.append("mode[").append(query instanceof AcceleratedSourceRegexQuery ? "accelerated" : "unaccelerated").append("], ");
+        b.append("field[").append(query.fieldPath).append("], ");
+        b.append("regex[").append(truncate(profile.regex())).append("], ");
+        b.append("settings[").append(settings(query.settings)).append(']');
+        if (profile.expression() != null) {
+            b.append(", expression[").append(truncate(profile.expression())).append(']');
+        }
+        profile.describe(b);
+        return b.toString();
+    }
+
+    private static String truncate(@Nullable Object value) {
+        return value == null ? "" : Strings.cleanTruncate(value.toString(), MAX_LOGGED_CHARS);
+    }
+
+    private static String settings(SourceRegexQueryBuilder.Settings settings) {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            settings.innerXContent(builder, ToXContent.EMPTY_PARAMS);
+            return builder.endObject().string();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static double parseSampleRate(String value) {
+        double rate = Double.parseDouble(value);
+        if (!(rate >= 0 && rate <= 1)) {
+            throw new IllegalArgumentException("Failed to parse value [" + value + "] for setting ["
+                    + "extra.source_regex.slowlog.sample_rate] must be between 0 and 1");
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,462 @@
+package org.wikimedia.search.extra.regex;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Node wide counters of the source_regex queries, reported by the
+ * _nodes/regex_stats endpoint. Counters are cumulative since the node started
+ * and also reported as rates over the last minute. Histograms of the
+ * extraction of the ngram expressions only cover the last minute. Like
+ * {@link org.wikimedia.search.extra.latency.SearchLatencyListener} the window
+ * rotates every 5 seconds.
+ */
+public class SourceRegexStats extends AbstractLifecycleComponent {
+    private static final TimeValue ROTATION_DELAY = TimeValue.timeValueSeconds(5);
+    static final int NUM_ROTATIONS = (int) (TimeValue.timeValueMinutes(1).millis() / ROTATION_DELAY.millis());
+    static final double[] PERCENTILES = {50, 75, 95, 99};
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeValue.timeValueMinutes(1).nanos();
+    private static final long LOWEST_DISCERNABLE_NANOS = TimeValue.timeValueNanos(1000).nanos();
+    private static final long HIGHEST_TRACKABLE_CLAUSES = 100000;
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * What is counted.
+     */
+    enum Metric {
+        ACCELERATED,
+        UNACCELERATED,
+        REJECTED,
+        ALWAYS_FALSE,
+        EXTRACTIONS,
+        EXTRACTION_NANOS,
+        CANDIDATES,
+        RECHECKED,
+        MATCHES,
+        CHARS_LOADED,
+        BYTES_LOADED,
+        TIMEOUTS
+    }
+
+    /**
+     * Stats recording nothing, never reported.
+     */
+    static final SourceRegexStats DISCARDED = new SourceRegexStats(Settings.EMPTY, () -> null, SourceRegexCache.DISABLED) {
+        @Override
+        void add(Metric metric, long value) {
+        }
+
+        @Override
+        void increment(Metric metric) {
+        }
+
+        @Override
+        void extracted(long nanos, int clauses) {
+        }
+    };
+
+    private final Supplier<ThreadPool> threadPool;
+    private final SourceRegexCache cache;
+    private final LongSupplier nanoClock;
+    private final LongAdder[] totals = new LongAdder[Metric.values().length];
+    /**
+     * Totals at each of the last rotations, the oldest at next unless
+     * fewer than {@link #NUM_ROTATIONS} rotations happened.
+     */
+    private final long[][] history = new long[NUM_ROTATIONS][];
+    private final long[] rotationNanos = new long[NUM_ROTATIONS];
+    private final long startNanos;
+    private int next;
+    private int rotations;
+    private final RollingHistogram extractionLatency = new RollingHistogram(LOWEST_DISCERNABLE_NANOS, HIGHEST_TRACKABLE_NANOS);
+    private final RollingHistogram extractionClauses = new RollingHistogram(1, HIGHEST_TRACKABLE_CLAUSES);
+    private ThreadPool.Cancellable cancelRotation;
+
+    /**
+     * @param settings node settings
+     * @param threadPool supplies the thread pool rotating the window once the
+     *            node is started
+     * @param cache cache of the compiled regexes, its stats are reported
+     *            along with the others
+     */
+    public SourceRegexStats(Settings settings, Supplier<ThreadPool> threadPool, SourceRegexCache cache) {
+        this(settings, threadPool, cache, System::nanoTime);
+    }
+
+    SourceRegexStats(Settings settings, Supplier<ThreadPool> threadPool, SourceRegexCache cache, LongSupplier nanoClock) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.cache = cache;
+        this.nanoClock = nanoClock;
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] = new LongAdder();
+        }
+        startNanos = nanoClock.getAsLong();
+    }
+
+    @Override
+    protected void doStart() {
+        cancelRotation = threadPool.get().scheduleWithFixedDelay(this::rotate, ROTATION_DELAY, ThreadPool.Names.GENERIC);
+    }
+
+    @Override
+    protected void doStop() {
+        if (cancelRotation != null) {
+            cancelRotation.cancel();
+            cancelRotation = null;
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    void add(Metric metric, long value) {
+        totals[metric.ordinal()].add(value);
+    }
+
+    void increment(Metric metric) {
+        totals[metric.ordinal()].increment();
+    }
+
+    /**
+     * Record the extraction of the ngram expression of a query.
+     *
+     * @param nanos time spent extracting the expression
+     * @param clauses number of clauses of the expression used
+     */
+    void extracted(long nanos, int clauses) {
+        increment(Metric.EXTRACTIONS);
+        add(Metric.EXTRACTION_NANOS, nanos);
+        extractionLatency.record(nanos);
+        extractionClauses.record(clauses);
+    }
+
+    long total(Metric metric) {
+        return totals[metric.ordinal()].sum();
+    }
+
+    /**
+     * Start a new slice of the rolling window, dropping the oldest one.
+     */
+    synchronized void rotate() {
+        long[] current = new long[totals.length];
+        for (int i = 0; i < totals.length; i++) {
+            current[i] = totals[i].sum();
+        }
+        history[next] = current;
+        rotationNanos[next] = nanoClock.getAsLong();
+        next = (next + 1) % NUM_ROTATIONS;
+        rotations++;
+        extractionLatency.rotate();
+        extractionClauses.rotate();
+    }
+
+    /**
+     * A snapshot of the stats.
+     */
+    public synchronized Snapshot snapshot() {
+        long now = nanoClock.getAsLong();
+        long[] base;
+        long baseNanos;
+        if (rotations == 0) {
+            base = new long[totals.length];
+            baseNanos = startNanos;
+        } else {
+            int oldest = rotations < NUM_ROTATIONS ? 0 : next;
+            base = history[oldest];
+            baseNanos = rotationNanos[oldest];
+        }
+        double seconds = (now - baseNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        long[] values = new long[totals.length];
+        double[] rates = new double[totals.length];
+        for (int i = 0; i < totals.length; i++) {
+            values[i] = totals[i].sum();
+            rates[i] = seconds > 0 ? (values[i] - base[i]) / seconds : 0;
+        }
+        return new Snapshot(values, rates, extractionLatency.percentiles(), extractionClauses.percentiles(),
+                new CacheStats(cache.automatonStats(), cache.automatonCount(), cache.automatonRamBytesUsed()),
+                new CacheStats(cache.expressionStats(), cache.expressionCount(), cache.expressionRamBytesUsed()));
+    }
+
+    /**
+     * Histogram of the values recorded during the last minute.
+     */
+    private static final class RollingHistogram {
+        private final long highestTrackableValue;
+        private final Recorder recorder;
+        private final Histogram current;
+        private final List<Histogram> list = new ArrayList<>();
+
+        RollingHistogram(long lowestDiscernableValue, long highestTrackableValue) {
+            this.highestTrackableValue = highestTrackableValue;
+            recorder = new Recorder(lowestDiscernableValue, highestTrackableValue, SIGNIFICANT_DIGITS);
+            current = new Histogram(lowestDiscernableValue, highestTrackableValue, SIGNIFICANT_DIGITS);
+        }
+
+        // Recorder is thread safe
+        void record(long value) {
+            recorder.recordValue(Math.max(0, Math.min(value, highestTrackableValue)));
+        }
+
+        // Called with the lock of the stats
+        void rotate() {
+            Histogram hist;
+            if (list.size() < NUM_ROTATIONS) {
+                hist = recorder.getIntervalHistogram();
+                list.add(0, hist);
+            } else {
+                Collections.rotate(list, 1);
+                hist = list.get(0);
+                current.subtract(hist);
+                recorder.getIntervalHistogramInto(hist);
+            }
+            current.add(hist);
+        }
+
+        // Called with the lock of the stats
+        double[] percentiles() {
+            if (current.getTotalCount() == 0) {
+                return new double[0];
+            }
+            double[] values = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                values[i] = current.getValueAtPercentile(PERCENTILES[i]);
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Hit, miss and eviction counters and size of a cache.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    static final class CacheStats implements Writeable, ToXContent {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long count;
+        private final long ramBytesUsed;
+
+        CacheStats(Cache.CacheStats stats, long count, long ramBytesUsed) {
+            this(stats.getHits(), stats.getMisses(), stats.getEvictions(), count, ramBytesUsed);
+        }
+
+        CacheStats(long hits, long misses, long evictions, long count, long ramBytesUsed) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.count = count;
+            this.ramBytesUsed = ramBytesUsed;
+        }
+
+        CacheStats(StreamInput in) throws IOException {
+            this(in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong(), in.readVLong());
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(hits);
+            out.writeVLong(misses);
+            out.writeVLong(evictions);
+            out.writeVLong(count);
+            out.writeVLong(ramBytesUsed);
+        }
+
+        CacheStats add(CacheStats other) {
+            return new CacheStats(hits + other.hits, misses + other.misses, evictions + other.evictions,
+                    count + other.count, ramBytesUsed + other.ramBytesUsed);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("hits", hits);
+            builder.field("misses", misses);
+            builder.field("hit_ratio", ratio(hits, hits + misses));
+            builder.field("evictions", evictions);
+            builder.field("count", count);
+            builder.field("memory_size_in_bytes", ramBytesUsed);
+            return builder.endObject();
+        }
+    }
+
+    /**
+     * The stats of a node at some point, or their sum over several nodes.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    public static final class Snapshot implements Writeable, ToXContent {
+        private final long[] totals;
+        private final double[] rates;
+        /**
+         * Extraction latency in nanoseconds at each of the
+         * {@link #PERCENTILES}, empty if nothing was extracted.
+         */
+        private final double[] extractionLatency;
+        /**
+         * Number of clauses at each of the {@link #PERCENTILES}, empty if
+         * nothing was extracted.
+         */
+        private final double[] extractionClauses;
+        private final CacheStats automatonCache;
+        private final CacheStats expressionCache;
+
+        Snapshot(long[] totals, double[] rates, double[] extractionLatency, double[] extractionClauses,
+                CacheStats automatonCache, CacheStats expressionCache) {
+            this.totals = totals;
+            this.rates = rates;
+            this.extractionLatency = extractionLatency;
+            this.extractionClauses = extractionClauses;
+            this.automatonCache = automatonCache;
+            this.expressionCache = expressionCache;
+        }
+
+        /**
+         * Sum the stats of several nodes. Like for search latencies the
+         * percentiles are averaged over the nodes which makes them the
+         * average per node percentile rather than the cluster percentile.
+         */
+        Snapshot(Stream<Snapshot> snapshots) {
+            long[] sumTotals = new long[Metric.values().length];
+            double[] sumRates = new double[sumTotals.length];
+            double[] sumLatency = new double[PERCENTILES.length];
+            double[] sumClauses = new double[PERCENTILES.length];
+            int withExtractions = 0;
+            CacheStats automata = new CacheStats(0, 0, 0, 0, 0);
+            CacheStats expressions = new CacheStats(0, 0, 0, 0, 0);
+            for (Snapshot snapshot : (Iterable<Snapshot>) snapshots::iterator) {
+                for (int i = 0; i < sumTotals.length; i++) {
+                    sumTotals[i] += snapshot.totals[i];
+                    sumRates[i] += snapshot.rates[i];
+                }
+                if (snapshot.extractionLatency.length > 0) {
+                    withExtractions++;
+                    for (int i = 0; i < PERCENTILES.length; i++) {
+                        sumLatency[i] += snapshot.extractionLatency[i];
+                        sumClauses[i] += snapshot.extractionClauses[i];
+                    }
+                }
+                automata = automata.add(snapshot.automatonCache);
+                expressions = expressions.add(snapshot.expressionCache);
+            }
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sumLatency[i] /= Math.max(1, withExtractions);
+                sumClauses[i] /= Math.max(1, withExtractions);
+            }
+            this.totals = sumTotals;
+            this.rates = sumRates;
+            this.extractionLatency = withExtractions == 0 ? new double[0] : sumLatency;
+            this.extractionClauses = withExtractions == 0 ? new double[0] : sumClauses;
+            this.automatonCache = automata;
+            this.expressionCache = expressions;
+        }
+
+        Snapshot(StreamInput in) throws IOException {
+            totals = in.readVLongArray();
+            rates = in.readDoubleArray();
+            extractionLatency = in.readDoubleArray();
+            extractionClauses = in.readDoubleArray();
+            automatonCache = new CacheStats(in);
+            expressionCache = new CacheStats(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLongArray(totals);
+            out.writeDoubleArray(rates);
+            out.writeDoubleArray(extractionLatency);
+            out.writeDoubleArray(extractionClauses);
+            automatonCache.writeTo(out);
+            expressionCache.writeTo(out);
+        }
+
+        long total(Metric metric) {
+            return totals[metric.ordinal()];
+        }
+
+        double rate(Metric metric) {
+            return rates[metric.ordinal()];
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.startObject("queries");
+            counter(builder, "accelerated", Metric.ACCELERATED);
+            counter(builder, "unaccelerated", Metric.UNACCELERATED);
+            counter(builder, "rejected", Metric.REJECTED);
+            counter(builder, "always_false", Metric.ALWAYS_FALSE);
+            builder.endObject();
+
+            builder.startObject("extraction");
+            counter(builder, "extractions", Metric.EXTRACTIONS);
+            builder.field("time_in_millis", TimeValue.timeValueNanos(total(Metric.EXTRACTION_NANOS)).millis());
+            builder.startArray("latency");
+            for (int i = 0; i < extractionLatency.length; i++) {
+                builder.startObject();
+                builder.field("percentile", PERCENTILES[i]);
+                builder.field("latencyMs", extractionLatency[i] / TimeValue.NSEC_PER_MSEC);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.startArray("clauses");
+            for (int i = 0; i < extractionClauses.length; i++) {
+                builder.startObject();
+                builder.field("percentile", PERCENTILES[i]);
+                builder.field("clauses", extractionClauses[i]);
+                builder.endObject();
+            }
+            builder.endArray();
+            builder.endObject();
+
+            builder.startObject("recheck");
+            counter(builder, "candidates", Metric.CANDIDATES);
+            counter(builder, "docs", Metric.RECHECKED);
+            counter(builder, "matches", Metric.MATCHES);
+            builder.field("match_ratio", ratio(total(Metric.MATCHES), total(Metric.CANDIDATES)));
+            counter(builder, "chars_loaded", Metric.CHARS_LOADED);
+            counter(builder, "bytes_loaded", Metric.BYTES_LOADED);
+            counter(builder, "timeouts", Metric.TIMEOUTS);
+            builder.endObject();
+
+            builder.startObject("cache");
+            builder.field("automaton", automatonCache);
+            builder.field("expression", expressionCache);
+            builder.endObject();
+            return builder.endObject();
+        }
+
+        private void counter(XContentBuilder builder, String name, Metric metric) throws IOException {
+            builder.startObject(name);
+            builder.field("total", total(metric));
+            builder.field("per_second", rate(metric));
+            builder.endObject();
+        }
+    }
+
+    private static double ratio(long part, long whole) {
+        return whole == 0 ? 0 : part / (double) whole;
+    }
+}
@@ -0,0 +1,65 @@
+package org.wikimedia.search.extra.regex;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.extra.regex.RegexStatsAction.RegexStatsNodeResponse;
+import org.wikimedia.search.extra.regex.RegexStatsAction.RegexStatsNodesRequest;
+import org.wikimedia.search.extra.regex.RegexStatsAction.RegexStatsNodesResponse;
+
+import java.util.List;
+
+public class TransportRegexStatsAction extends TransportNodesAction<RegexStatsNodesRequest,
+        RegexStatsNodesResponse, TransportRegexStatsAction.RegexStatsNodeRequest,
+        RegexStatsNodeResponse> {
+    private final SourceRegexStats stats;
+
+    @Inject
+    public TransportRegexStatsAction(Settings settings, ThreadPool threadPool,
+                                     ClusterService clusterService, TransportService transportService,
+                                     ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                     SourceRegexStats stats) {
+        super(settings, RegexStatsAction.NAME, threadPool, clusterService, transportService, actionFilters, indexNameExpressionResolver,
+                RegexStatsNodesRequest::new, RegexStatsNodeRequest::new, ThreadPool.Names.MANAGEMENT,
+                RegexStatsNodeResponse.class);
+        this.stats = stats;
+    }
+
+    @Override
+    protected RegexStatsNodesResponse newResponse(RegexStatsNodesRequest request, List<RegexStatsNodeResponse> responses,
+                                                  List<FailedNodeException> failures) {
+        return new RegexStatsNodesResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected RegexStatsNodeRequest newNodeRequest(String nodeId, RegexStatsNodesRequest request) {
+        return new RegexStatsNodeRequest(nodeId);
+    }
+
+    @Override
+    protected RegexStatsNodeResponse newNodeResponse() {
+        return new RegexStatsNodeResponse();
+    }
+
+    @Override
+    protected RegexStatsNodeResponse nodeOperation(RegexStatsNodeRequest request) {
+        return new RegexStatsNodeResponse(clusterService.localNode(), stats.snapshot());
+    }
+
+    static class RegexStatsNodeRequest extends BaseNodeRequest {
+        RegexStatsNodeRequest() {
+
+        }
+
+        RegexStatsNodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+}
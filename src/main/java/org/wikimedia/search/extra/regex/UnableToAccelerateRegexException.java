@@ -4,7 +4,8 @@ import java.util.Locale;
 
 /**
  * Thrown when the filter is unable to accelerate a regex and
- * rejectUnaccelerated is set.
+ * rejectUnaccelerated is set, or when the node is too busy to scan without
+ * acceleration and degrades expensive regexes.
  */
 public class UnableToAccelerateRegexException extends RuntimeException {
     private static final long serialVersionUID = 2685216158813374775L;
@@ -12,4 +13,12 @@ public class UnableToAccelerateRegexException extends RuntimeException {
     public UnableToAccelerateRegexException(String regex, int gramSize, String ngramField) {
         super(String.format(Locale.ROOT, "Unable to accelerate \"%s\" with %s sized grams stored in %s", regex, gramSize, ngramField));
     }
+
+    /**
+     * Thrown when the node is too busy to scan field without acceleration.
+     */
+    public UnableToAccelerateRegexException(String field) {
+        super(String.format(Locale.ROOT, "Unable to accelerate regex on %s and too many expensive regexes are running on the node",
+                field));
+    }
 }
@@ -2,44 +2,76 @@ package org.wikimedia.search.extra.regex;
 
 
 import lombok.EqualsAndHashCode;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.BulkScorer;
 import org.apache.lucene.search.ConstantScoreScorer;
 import org.apache.lucene.search.ConstantScoreWeight;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.LeafCollector;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
-import org.apache.lucene.search.SimpleCollector;
-import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.ScorerSupplier;
 import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
-import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.apache.lucene.util.mutable.MutableValueInt;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.shard.ShardUtils;
 import org.wikimedia.search.extra.regex.SourceRegexQuery.Rechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.StreamingRechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
 import org.wikimedia.search.extra.util.FieldValues;
 import org.wikimedia.search.extra.util.FieldValues.Loader;
+import org.wikimedia.search.extra.util.SequentialStoredFieldsLeafReader;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Unaccelerated source_regex query.
  * It will scan all the docs in the index.
  */
-@EqualsAndHashCode( callSuper = false )
+@EqualsAndHashCode( callSuper = false, exclude = {"services", "profile"} )
 class UnacceleratedSourceRegexQuery extends Query {
+    /**
+     * Parallel scans never split a segment in slices smaller than this.
+     */
+    private static final int MIN_SLICE_DOCS = 4096;
+    /**
+     * Candidates are loaded with a {@link SequentialStoredFieldsLeafReader}
+     * if there is at least one for this many docs in the segment. Sparser
+     * candidates rarely share a stored fields block.
+     */
+    private static final int SEQUENTIAL_LOAD_MAX_DOCS_PER_CANDIDATE = 32;
+
     protected final Rechecker rechecker;
     protected final String fieldPath;
     protected final FieldValues.Loader loader;
     protected final Settings settings;
+    protected final SourceRegexServices services;
+    /**
+     * Counters reported by {@link #toString(String)} and so by the profile
+     * API.
+     */
+    protected final SourceRegexProfile profile;
     // Hack again, elasticsearch uses a frequency based caching strategy
     // unknown queries like this one are cached if used more than 5 times
     // This helps to limit our chance to be cached.
-    // This could lead to unexpected behavior if the TimeExceededException
-    // is thrown while the cache is feeding its bitset.
+    // This could lead to unexpected behavior if the scan times out or is
+    // cancelled while the cache is feeding its bitset.
     protected final long preventCache = System.currentTimeMillis();
 
     /**
@@ -50,64 +82,343 @@ class UnacceleratedSourceRegexQuery extends Query {
      * @param settings the regex settings
      */
     public UnacceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings) {
+        this(rechecker, fieldPath, loader, settings, SourceRegexServices.NONE);
+    }
+
+    /**
+     * A new unaccelerated regex query
+     * @param rechecker the rechecker used to perform the costly regex on doc content
+     * @param fieldPath the path to the field where the doc content is stored
+     * @param loader the loader used to load the field content
+     * @param settings the regex settings
+     * @param services node services providing the executor for parallel scans
+     */
+    public UnacceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings,
+            SourceRegexServices services) {
+        this(rechecker, fieldPath, loader, settings, services, services.newProfile());
+    }
+
+    /**
+     * A new unaccelerated regex query
+     * @param rechecker the rechecker used to perform the costly regex on doc content
+     * @param fieldPath the path to the field where the doc content is stored
+     * @param loader the loader used to load the field content
+     * @param settings the regex settings
+     * @param services node services providing the executor for parallel scans
+     * @param profile counters of the query, already holding those of its rewrite
+     */
+    UnacceleratedSourceRegexQuery(Rechecker rechecker, String fieldPath, Loader loader, Settings settings,
+            SourceRegexServices services, SourceRegexProfile profile) {
         super();
         this.rechecker = rechecker;
         this.fieldPath = fieldPath;
         this.loader = loader;
         this.settings = settings;
+        this.services = services;
+        this.profile = profile;
     }
 
     @Override
     public String toString(String field) {
-        return "source_regex(unaccelerated):" + field;
+        StringBuilder b = new StringBuilder("source_regex(unaccelerated");
+        profile.describe(b);
+        return b.append("):").append(field).toString();
     }
 
     @Override
     public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
-        return new ConstantScoreWeight(this) {
-            // TODO: Get rid of this shared mutable state, we should be able to use
-            // the generic timeout system.
-            private final MutableValueInt inspected = new MutableValueInt();
-            private final TimeoutChecker timeoutChecker = new TimeoutChecker(settings.timeout());
-
+        // The fetch phase builds the weights of named queries again, they
+        // were already admitted and are logged once by the query phase
+        if (!services.inFetchPhase()) {
+            admit();
+            services.trackSlow(this, searcher);
+        }
+        return new SourceRegexWeight() {
             @Override
-            public Scorer scorer(final LeafReaderContext context) throws IOException {
-                timeoutChecker.nextSegment(context);
-                // We can stop matching early if we are allowed to inspect less
-                // doc than the number of docs available in this segment.
-                // This is because we use a DocIdSetIterator.all.
-                int remaining = settings.maxInspect() - inspected.value;
-                if (remaining < 0) {
-                    remaining = 0;
+            public ScorerSupplier scorerSupplier(final LeafReaderContext context) throws IOException {
+                if (!deadline.nextSegment()) {
+                    truncate(deadline, context, inspected.value);
+                    return null;
                 }
-                int maxDoc = remaining > context.reader().maxDoc() ? context.reader().maxDoc() : remaining;
-                final DocIdSetIterator approximation = DocIdSetIterator.all(maxDoc);
-                return new ConstantScoreScorer(this, 1f, new RegexTwoPhaseIterator(approximation, context, inspected, timeoutChecker));
+                return scanSupplier(context);
             }
         };
     }
 
+    /**
+     * Weight of the source_regex queries. A parallel scan rechecks every doc
+     * of the segment before returning its scorer, it's only worth it when
+     * the regex leads the iteration: its scorers are scanned serially and
+     * lazily when another clause leads them or when they are only used to
+     * check a few docs (explain, named queries).
+     */
+    protected abstract class SourceRegexWeight extends ConstantScoreWeight {
+        // TODO: Get rid of this shared mutable state
+        protected final MutableValueInt inspected = new MutableValueInt();
+        protected final ScanDeadline deadline = newDeadline();
+
+        protected SourceRegexWeight() {
+            super(UnacceleratedSourceRegexQuery.this);
+        }
+
+        /**
+         * Supplier of the scorer of the segment, null if nothing matches.
+         * Must be called once per segment since it positions the deadline.
+         */
+        @Override
+        public abstract ScorerSupplier scorerSupplier(LeafReaderContext context) throws IOException;
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            ScorerSupplier supplier = scorerSupplier(context);
+            return supplier == null ? null : supplier.get(true);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            // Bulk scorers iterate over all the matches of the segment
+            ScorerSupplier supplier = scorerSupplier(context);
+            if (supplier == null) {
+                return null;
+            }
+            return new DefaultBulkScorer(supplier.get(false));
+        }
+
+        /**
+         * Supplier of a scorer rechecking every doc of the segment, in
+         * parallel if the scorer leads the iteration.
+         */
+        protected ScorerSupplier scanSupplier(LeafReaderContext context) {
+            return new ScorerSupplier() {
+                @Override
+                public Scorer get(boolean randomAccess) throws IOException {
+                    return scan(SourceRegexWeight.this, context, inspected, deadline, !randomAccess);
+                }
+
+                @Override
+                public long cost() {
+                    return context.reader().maxDoc();
+                }
+            };
+        }
+    }
+
+    /**
+     * Admit the scan on the node and count it. Done when building the weight
+     * rather than when rewriting because elasticsearch rewrites queries
+     * before the search phase starts while weights are built during the
+     * phase. Named queries build their weight again in the fetch phase, they
+     * are only admitted and counted in the query phase. Scans degraded or
+     * rejected by the admission only count as rejected.
+     *
+     * @throws UnableToAccelerateRegexException if the node is overloaded and
+     *             degrades expensive regexes
+     * @throws org.elasticsearch.common.util.concurrent.EsRejectedExecutionException
+     *             if the node is overloaded and rejects expensive regexes
+     */
+    protected void admit() {
+        if (!services.admitScan()) {
+            services.stats().increment(SourceRegexStats.Metric.REJECTED);
+            throw new UnableToAccelerateRegexException(fieldPath);
+        }
+        services.stats().increment(SourceRegexStats.Metric.UNACCELERATED);
+    }
+
+    /**
+     * The deadline of a new weight.
+     */
+    protected ScanDeadline newDeadline() {
+        // Timeouts may be noticed on the threads of a parallel scan
+        SourceRegexStats stats = services.stats();
+        return new ScanDeadline(settings.timeout(), services.cancellation(),
+                () -> stats.increment(SourceRegexStats.Metric.TIMEOUTS));
+    }
+
+    /**
+     * Stop the scan if it wasn't already and flag the response as truncated,
+     * or only the shard result as timed out if the scan doesn't keep partial
+     * results.
+     */
+    protected void truncate(ScanDeadline deadline, LeafReaderContext context, int inspected) {
+        if (deadline.stop()) {
+            if (settings.partialResults()) {
+                services.reportTruncated(ShardUtils.extractShardId(context.reader()), inspected);
+            } else {
+                services.reportTimedOut();
+            }
+        }
+    }
+
+    /**
+     * Scorer rechecking every doc of the segment, never null.
+     *
+     * @param deadline deadline already positioned on the segment
+     * @param leading true if the scorer leads the iteration and so may be
+     *            scanned in parallel, false if it is only advanced to the
+     *            docs found by other scorers
+     */
+    protected Scorer scan(Weight weight, LeafReaderContext context, MutableValueInt inspected, ScanDeadline deadline,
+            boolean leading) throws IOException {
+        // We can stop matching early if we are allowed to inspect less
+        // doc than the number of docs available in this segment.
+        // This is because we use a DocIdSetIterator.all.
+        int remaining = settings.maxInspect() - inspected.value;
+        if (remaining < 0) {
+            remaining = 0;
+        }
+        int maxDoc = remaining > context.reader().maxDoc() ? context.reader().maxDoc() : remaining;
+        // Deleted docs aren't inspected so the docs past maxDoc may have
+        // fitted, they are still reported as not inspected.
+        boolean truncated = settings.partialResults() && maxDoc < context.reader().maxDoc();
+        if (leading && settings.parallelScan()) {
+            Executor executor = services.scanExecutor();
+            int slices = Math.min(services.scanThreads(), (maxDoc + MIN_SLICE_DOCS - 1) / MIN_SLICE_DOCS);
+            if (executor != null && slices > 1) {
+                ParallelScan scan = new ParallelScan(context, maxDoc, deadline);
+                FixedBitSet matches = scan.run(executor, slices);
+                inspected.value += scan.inspected();
+                if (scan.truncated() || truncated) {
+                    truncate(deadline, context, inspected.value);
+                }
+                int cardinality = matches.cardinality();
+                if (cardinality == 0) {
+                    // Conjunctions don't expect null scorers from suppliers
+                    return new ConstantScoreScorer(weight, 1f, DocIdSetIterator.empty());
+                }
+                return new ConstantScoreScorer(weight, 1f, new BitSetIterator(matches, cardinality));
+            }
+        }
+        final DocIdSetIterator approximation = DocIdSetIterator.all(maxDoc);
+        return new ConstantScoreScorer(weight, 1f,
+                new RegexTwoPhaseIterator(approximation, null, context, inspected, deadline, truncated));
+    }
+
+    /**
+     * Iterates over the docs of an approximation until the scan stops so
+     * the docs left once it timed out or reached max_inspect aren't matched
+     * one by one.
+     */
+    private class StoppingIterator extends DocIdSetIterator {
+        private final DocIdSetIterator in;
+        private final LeafReaderContext context;
+        private final MutableValueInt inspected;
+        private final ScanDeadline deadline;
+        private final boolean truncated;
+        private int doc = -1;
+
+        /**
+         * @param truncated true if in stops before the end of the segment
+         *            because of max_inspect, the scan is truncated once it
+         *            is exhausted
+         */
+        StoppingIterator(DocIdSetIterator in, LeafReaderContext context, MutableValueInt inspected, ScanDeadline deadline,
+                boolean truncated) {
+            this.in = in;
+            this.context = context;
+            this.inspected = inspected;
+            this.deadline = deadline;
+            this.truncated = truncated;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public int nextDoc() throws IOException {
+            return doc = deadline.stopped() ? NO_MORE_DOCS : exhausted(in.nextDoc());
+        }
+
+        @Override
+        public int advance(int target) throws IOException {
+            return doc = deadline.stopped() ? NO_MORE_DOCS : exhausted(in.advance(target));
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+
+        private int exhausted(int next) {
+            if (next == NO_MORE_DOCS && truncated) {
+                truncate(deadline, context, inspected.value);
+            }
+            return next;
+        }
+    }
+
     protected class RegexTwoPhaseIterator extends TwoPhaseIterator {
         private final LeafReaderContext context;
-        private final TimeoutChecker timeoutChecker;
+        private final LeafReader reader;
+        private final FieldValues.Loader segmentLoader;
+        private final ScanDeadline deadline;
         private final MutableValueInt inspected;
+        /**
+         * Cheaper check run on the candidates before loading them, null if
+         * none.
+         */
+        @Nullable
+        private final TwoPhaseIterator verification;
+
+        protected RegexTwoPhaseIterator(DocIdSetIterator approximation, LeafReaderContext context, MutableValueInt inspected,
+                ScanDeadline deadline) throws IOException {
+            this(approximation, null, context, inspected, deadline);
+        }
 
-        protected RegexTwoPhaseIterator(DocIdSetIterator approximation, LeafReaderContext context, MutableValueInt inspected, TimeoutChecker timeoutChecker) {
-            super(approximation);
+        /**
+         * @param verification two phase iterator over approximation, its
+         *            matches are checked before loading the doc
+         */
+        protected RegexTwoPhaseIterator(DocIdSetIterator approximation, @Nullable TwoPhaseIterator verification,
+                LeafReaderContext context, MutableValueInt inspected, ScanDeadline deadline) throws IOException {
+            this(approximation, verification, context, inspected, deadline, false);
+        }
+
+        /**
+         * @param truncated true if approximation stops before the end of the
+         *            segment because of max_inspect
+         */
+        private RegexTwoPhaseIterator(DocIdSetIterator approximation, @Nullable TwoPhaseIterator verification,
+                LeafReaderContext context, MutableValueInt inspected, ScanDeadline deadline, boolean truncated) throws IOException {
+            super(new StoppingIterator(approximation, context, inspected, deadline, truncated));
+            assert verification == null || verification.approximation() == approximation;
+            this.verification = verification;
             this.context = context;
+            // Candidates come in doc id order so they can share the stored
+            // fields blocks decompressed by a sequential reader.
+            if (approximation.cost() * SEQUENTIAL_LOAD_MAX_DOCS_PER_CANDIDATE >= context.reader().maxDoc()) {
+                this.reader = SequentialStoredFieldsLeafReader.wrap(context.reader());
+            } else {
+                this.reader = context.reader();
+            }
+            this.segmentLoader = loader.forSegment(fieldPath, context.reader());
             this.inspected = inspected;
-            this.timeoutChecker = timeoutChecker;
+            this.deadline = deadline;
         }
 
         @Override
         public boolean matches() throws IOException {
-            timeoutChecker.check(approximation.docID());
+            if (deadline.stopped()) {
+                return false;
+            }
+            profile.candidate();
+            if (!deadline.check(approximation.docID())) {
+                truncate(deadline, context, inspected.value);
+                return false;
+            }
             if (inspected.value >= settings.maxInspect()) {
+                if (settings.partialResults()) {
+                    truncate(deadline, context, inspected.value);
+                }
                 return false;
             }
-            List<String> values = loader.load(fieldPath, context.reader(), approximation.docID());
+            if (verification != null && !verification.matches()) {
+                return false;
+            }
+            boolean matches = recheck(segmentLoader, reader, approximation.docID(), deadline);
             inspected.value++;
-            return rechecker.recheck(values);
+            return matches;
         }
 
         @Override
@@ -118,69 +429,216 @@ class UnacceleratedSourceRegexQuery extends Query {
              * the field data (I/O and mem) then we add a rechecker specific
              * cost that depends on the number of states.
              */
-            return 10000f + rechecker.getCost();
+            return 10000f + rechecker.getCost() + (verification == null ? 0 : verification.matchCost());
+        }
+    }
+
+    /**
+     * Load the field of a doc and recheck it against the regex.
+     *
+     * @param segmentLoader loader of the segment of the doc
+     * @param deadline deadline of the scan, told how much was loaded
+     */
+    protected boolean recheck(FieldValues.Loader segmentLoader, LeafReader reader, int docId, ScanDeadline deadline)
+            throws IOException {
+        long start = System.nanoTime();
+        if (rechecker instanceof StreamingRechecker) {
+            LengthCountingLoader counting = new LengthCountingLoader(segmentLoader);
+            boolean matched = ((StreamingRechecker) rechecker).recheck(counting, fieldPath, reader, docId);
+            profile.streamed(counting.chars, counting.bytes, System.nanoTime() - start, matched);
+            deadline.loaded(counting.chars + counting.bytes);
+            return matched;
+        }
+        List<String> values = segmentLoader.load(fieldPath, reader, docId);
+        long loaded = System.nanoTime();
+        boolean matched = rechecker.recheck(values);
+        long chars = 0;
+        for (String value : values) {
+            chars += value.length();
         }
+        profile.rechecked(chars, loaded - start, System.nanoTime() - loaded, matched);
+        deadline.loaded(chars);
+        return matched;
     }
 
     /**
-     * Horrible hack to workaround the fact that TimeLimitingCollector.TimeExceededException has a private ctor
-     * FIXME: find proper solutions to handle timeouts
+     * Rechecks all the docs of a segment by splitting them in slices run
+     * concurrently. Slices are multiples of 64 docs long so each one sets
+     * distinct words of the shared bitset. The inspected count and the
+     * deadline are shared by all the slices.
      */
-    protected static class TimeoutChecker {
-        private LeafCollector collector;
-        private final Collector topCollector;
+    private class ParallelScan {
+        private final LeafReaderContext context;
+        private final int maxDoc;
+        private final ScanDeadline deadline;
+        private final FixedBitSet matches;
+        private final AtomicInteger inspected = new AtomicInteger();
+        private volatile boolean aborted;
+        private volatile boolean truncated;
 
-        public TimeoutChecker(long timeout, Counter counter) {
-            if (timeout > 0) {
-                topCollector = new TimeLimitingCollector(NULL_COLLECTOR, counter, timeout);
-            } else {
-                topCollector = NULL_COLLECTOR;
-            }
+        /**
+         * @param context the segment to scan
+         * @param maxDoc scan the docs up to this one (exclusive), no more
+         *            than max_inspect allows
+         * @param deadline deadline already positioned on the segment
+         */
+        ParallelScan(LeafReaderContext context, int maxDoc, ScanDeadline deadline) {
+            this.context = context;
+            this.maxDoc = maxDoc;
+            this.deadline = deadline;
+            this.matches = new FixedBitSet(context.reader().maxDoc());
         }
 
-        public TimeoutChecker(long timeout) {
-            this(timeout, COUNTER);
+        /**
+         * Scan the segment, the first slice runs on the calling thread and
+         * the others on executor or also on the calling thread if executor
+         * rejects them.
+         *
+         * @return the docs matching the regex
+         */
+        FixedBitSet run(Executor executor, int slices) throws IOException {
+            // Build the automaton once here rather than in every slice
+            rechecker.getCost();
+            int sliceSize = ((maxDoc + slices - 1) / slices + 63) & ~63;
+            List<FutureTask<Void>> tasks = new ArrayList<>(slices - 1);
+            for (int start = sliceSize; start < maxDoc; start += sliceSize) {
+                final int from = start;
+                final int to = Math.min(start + sliceSize, maxDoc);
+                FutureTask<Void> task = new FutureTask<>(() -> {
+                    scan(from, to);
+                    return null;
+                });
+                tasks.add(task);
+                try {
+                    executor.execute(task);
+                } catch (EsRejectedExecutionException | RejectedExecutionException e) {
+                    task.run();
+                }
+            }
+            Throwable failure = null;
+            try {
+                scan(0, Math.min(sliceSize, maxDoc));
+            } catch (IOException | RuntimeException e) {
+                aborted = true;
+                failure = e;
+            }
+            // Always wait for the other slices, they still read the segment
+            for (FutureTask<Void> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    aborted = true;
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                } catch (InterruptedException e) {
+                    aborted = true;
+                    Thread.currentThread().interrupt();
+                    throw new ThreadInterruptedException(e);
+                }
+            }
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            } else if (failure != null) {
+                throw new RuntimeException(failure);
+            }
+            return matches;
         }
 
-        public void check(int docId) throws IOException {
-            collector.collect(docId);
+        /**
+         * @return the number of docs inspected by the scan
+         */
+        int inspected() {
+            return inspected.get();
         }
 
-        public void nextSegment(LeafReaderContext context) throws IOException {
-            collector = topCollector.getLeafCollector(context);
+        /**
+         * @return true if the scan timed out before rechecking all the docs
+         */
+        boolean truncated() {
+            return truncated;
         }
 
-        private static final Collector NULL_COLLECTOR = new SimpleCollector() {
-            @Override
-            public void collect(int doc) throws IOException {}
-            @Override
-            public boolean needsScores() {
-                return true;
+        private void scan(int from, int to) throws IOException {
+            // Each slice has its own sequential reader, loader and deadline, they aren't thread safe
+            LeafReader reader = SequentialStoredFieldsLeafReader.wrap(context.reader());
+            FieldValues.Loader segmentLoader = loader.forSegment(fieldPath, context.reader());
+            ScanDeadline deadline = this.deadline.copy();
+            Bits liveDocs = reader.getLiveDocs();
+            for (int doc = from; doc < to && !aborted; doc++) {
+                if (liveDocs != null && !liveDocs.get(doc)) {
+                    continue;
+                }
+                profile.candidate();
+                if (!deadline.check(doc)) {
+                    truncated = true;
+                    aborted = true;
+                    return;
+                }
+                inspected.incrementAndGet();
+                if (recheck(segmentLoader, reader, doc, deadline)) {
+                    matches.set(doc);
+                }
             }
-        };
+        }
+    }
 
-        /**
-         * Simple naive Counter impl.
-         * We need this not to spawn a new thread.
-         * Elastic uses its own Counter that we can't access.
-         * The purpose of having a counter updated by a thread
-         * is to avoid too many syscall, for us the overhead
-         * of calling System.currentTimeMillis() on every doc
-         * is marginal compared to loading the field content
-         * and applying the regex.
-         */
-        private static final Counter COUNTER = new Counter() {
-            @Override
-            public long addAndGet(long delta) {
-                // Should never be called in our context
-                // Only a TimerThread can call this method
-                throw new UnsupportedOperationException("This counter is not meant to be used with like that...");
+    /**
+     * Counts the length of the values fed to the matchers of streaming
+     * rechecks, chars for strings and bytes for UTF-8 values each on their
+     * own. Values not fed because an earlier one matched aren't counted.
+     */
+    private static class LengthCountingLoader implements FieldValues.Loader {
+        private final FieldValues.Loader delegate;
+        private long chars;
+        private long bytes;
+
+        LengthCountingLoader(FieldValues.Loader delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+            List<String> values = delegate.load(path, reader, docId);
+            for (String value : values) {
+                chars += value.length();
             }
+            return values;
+        }
 
-            @Override
-            public long get() {
-                return System.currentTimeMillis();
+        @Override
+        public List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException {
+            List<BytesRef> values = delegate.loadUtf8(path, reader, docId);
+            for (BytesRef value : values) {
+                bytes += value.length;
             }
-        };
+            return values;
+        }
+
+        @Override
+        public boolean anyMatch(String path, IndexReader reader, int docId, FieldValues.CharsMatcher matcher) throws IOException {
+            return delegate.anyMatch(path, reader, docId, (values, offset, length) -> {
+                chars += length;
+                return matcher.matches(values, offset, length);
+            });
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, FieldValues.Utf8Matcher matcher)
+                throws IOException {
+            return delegate.anyMatchUtf8(path, reader, docId, (values, offset, length) -> {
+                bytes += length;
+                return matcher.matches(values, offset, length);
+            });
+        }
+
+        @Override
+        public boolean readsUtf8(String path) {
+            return delegate.readsUtf8(path);
+        }
     }
 }
@@ -2,7 +2,7 @@ package org.wikimedia.search.extra.regex.expression;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
-import lombok.EqualsAndHashCode;
+import org.elasticsearch.common.Nullable;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -12,14 +12,25 @@ import java.util.Set;
 
 
 /**
- * Abstract parent for composite expressions like And and Or.
+ * Abstract parent for composite expressions like And and Or. Their hash code
+ * and the result of simplifying them are computed once as their components
+ * are often shared by many parents.
  */
-@EqualsAndHashCode(exclude = {"simplified", "toString", "numClauses"})
 public abstract class AbstractCompositeExpression<T> implements Expression<T>, Iterable<Expression<T>> {
     private static final int MAX_COMPONENT_STRING_LENGTH = 1000;
     private static final int MAX_COMPONENTS_SIZE_FOR_TO_STRING = 10;
     private final ImmutableSet<Expression<T>> components;
     private boolean simplified;
+    /**
+     * The result of simplifying this expression if it isn't simplified.
+     */
+    private Expression<T> simplifiedForm;
+    /**
+     * Store this expression is interned in, null if it isn't.
+     */
+    @Nullable
+    private ExpressionStore<T> store;
+    private int hashCode;
     private String toString = null;
     private int numClauses = -1;
 
@@ -46,6 +57,22 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
      */
     protected abstract AbstractCompositeExpression<T> newFrom(ImmutableSet<Expression<T>> components);
 
+    /**
+     * Build an expression of this type with a list of components, interned in
+     * the store of this expression if it has one.
+     */
+    private AbstractCompositeExpression<T> build(ImmutableSet<Expression<T>> components) {
+        AbstractCompositeExpression<T> built = newFrom(components);
+        return store == null ? built : store.intern(built);
+    }
+
+    /**
+     * Called by the store this expression is interned in.
+     */
+    void interned(ExpressionStore<T> store) {
+        this.store = store;
+    }
+
     /**
      * Does this component of this expression affect the outcome of the overall
      * expression? For example the TRUE in (TRUE AND foo) doesn't effect the
@@ -71,17 +98,53 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
         return false;
     }
 
+    /**
+     * Simplify with the simplifier of the store this expression is interned
+     * in, or with a simplifier without budget if it isn't interned.
+     */
     @Override
     public Expression<T> simplify() {
-        if (simplified) {
-            return this;
+        if (isSimplified()) {
+            return simplifiedForm();
+        }
+        return (store == null ? new Simplifier<T>(Simplifier.UNLIMITED) : store.simplifier()).simplify(this);
+    }
+
+    /**
+     * Is the result of simplifying this expression known?
+     */
+    boolean isSimplified() {
+        return simplified || simplifiedForm != null;
+    }
+
+    /**
+     * The result of simplifying this expression, only valid if
+     * {@link #isSimplified()}.
+     */
+    Expression<T> simplifiedForm() {
+        return simplified ? this : simplifiedForm;
+    }
+
+    /**
+     * Simplify this expression once all its components are simplified.
+     */
+    void simplifyOnce(Simplifier<T> simplifier) {
+        Expression<T> result = doSimplify(simplifier);
+        if (result == this) {
+            simplified = true;
+        } else {
+            simplifiedForm = result;
         }
+    }
+
+    private Expression<T> doSimplify(Simplifier<T> simplifier) {
         Iterator<Expression<T>> componentsItr = components.iterator();
         List<Expression<T>> newComponentsBuilder = null;
         boolean changed = false;
         while (componentsItr.hasNext()) {
             Expression<T> expression = componentsItr.next();
-            Expression<T> simplified = expression.simplify();
+            Expression<T> simplified = expression.isComposite()
+                    ? ((AbstractCompositeExpression<T>) expression).simplifiedForm() : expression.simplify();
             changed |= expression != simplified;
             if (doesNotAffectOutcome(simplified)) {
                 changed |= true;
@@ -112,22 +175,21 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
             return newComponentsBuilder.get(0);
         default:
         }
-        Expression<T> commonExtracted = extractCommon(changed ? newComponentsBuilder : components);
+        Expression<T> commonExtracted = extractCommon(changed ? newComponentsBuilder : components, simplifier);
         if (commonExtracted != null) {
             return commonExtracted;
         }
 
         if (!changed) {
-            this.simplified = true;
             return this;
         } else {
-            AbstractCompositeExpression<T> result = newFrom(ImmutableSet.copyOf(newComponentsBuilder));
+            AbstractCompositeExpression<T> result = build(ImmutableSet.copyOf(newComponentsBuilder));
             result.simplified = true;
             return result;
         }
     }
 
-    private Expression<T> extractCommon(Iterable<Expression<T>> newComponents) {
+    private Expression<T> extractCommon(Iterable<Expression<T>> newComponents, Simplifier<T> simplifier) {
         // Are all composite subexpressions of the same type?
         boolean allCompositesOfSameType = true;
         // Are all the non-composite subexpressions of this type the same?
@@ -178,13 +240,13 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
                     AbstractCompositeExpression<T> composite = null;
                     for (Expression<T> component : newComponents) {
                         composite = (AbstractCompositeExpression<T>) component;
-                        extractedComponents.add(composite.newFrom(ImmutableSet.copyOf(Sets.difference(composite.components, sharedComponents)))
-                                .simplify());
+                        extractedComponents.add(simplifier.visit(
+                                composite.build(ImmutableSet.copyOf(Sets.difference(composite.components, sharedComponents)))));
                     }
-                    sharedComponents.add(newFrom(extractedComponents.build()).simplify());
+                    sharedComponents.add(simplifier.visit(build(extractedComponents.build())));
                     // if sharedComponents is not null newComponents is not empty and composite has been set
                     assert composite != null;
-                    return composite.newFrom(ImmutableSet.copyOf(sharedComponents)).simplify();
+                    return simplifier.visit(composite.build(ImmutableSet.copyOf(sharedComponents)));
                 }
             }
         } else {
@@ -198,8 +260,8 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
                         continue;
                     }
                     composite = (AbstractCompositeExpression<T>) component;
-                    extractedComponents.add(composite.newFrom(ImmutableSet.copyOf(Sets.difference(composite.components, sharedComponents)))
-                            .simplify());
+                    extractedComponents.add(simplifier.visit(
+                            composite.build(ImmutableSet.copyOf(Sets.difference(composite.components, sharedComponents)))));
                 }
                 // In the rare case that there aren't any composites but all the
                 // non-composits are the same we should just return that
@@ -209,8 +271,8 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
                 }
                 // Add True to represent the extracted common component
                 extractedComponents.add(True.instance());
-                sharedComponents.add(newFrom(extractedComponents.build()).simplify());
-                return composite.newFrom(ImmutableSet.copyOf(sharedComponents)).simplify();
+                sharedComponents.add(simplifier.visit(build(extractedComponents.build())));
+                return simplifier.visit(composite.build(ImmutableSet.copyOf(sharedComponents)));
             }
         }
         return null;
@@ -238,6 +300,35 @@ public abstract class AbstractCompositeExpression<T> implements Expression<T>, I
         return true;
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        AbstractCompositeExpression<?> other = (AbstractCompositeExpression<?>) o;
+        if (store != null && store == other.store) {
+            // Expressions interned in the same store are only equal to themselves
+            return false;
+        }
+        return hashCode() == other.hashCode() && components.equals(other.components);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hashCode;
+        if (h == 0) {
+            h = 31 * toStringJoiner().hashCode() + components.hashCode();
+            if (h == 0) {
+                h = 1;
+            }
+            hashCode = h;
+        }
+        return h;
+    }
+
     @Override
     public Iterator<Expression<T>> iterator() {
         return components.iterator();
@@ -0,0 +1,97 @@
+package org.wikimedia.search.extra.regex.expression;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hash-conses expressions: structurally equal expressions built through the
+ * same store are the same object. Expressions built by automata share most
+ * of their branches so the logical tree is really a DAG. Interning keeps it a
+ * DAG and lets composites interned in the same store be compared by identity
+ * so simplifying them costs time and memory proportional to the DAG rather
+ * than to the tree it expands to. Composites built while simplifying an
+ * interned composite are interned in its store too, and interned composites
+ * are simplified by the {@link Simplifier} of the store, sharing its budget.
+ * <p>
+ * Not thread safe. {@link #clear()} the store once the expression is built
+ * and simplified so the expression doesn't keep every intermediate node
+ * alive.
+ *
+ * @param <T> type stored in leaves
+ */
+public final class ExpressionStore<T> {
+    private final Simplifier<T> simplifier;
+    private Map<Expression<T>, Expression<T>> nodes = new HashMap<>();
+
+    public ExpressionStore() {
+        this(Simplifier.UNLIMITED);
+    }
+
+    /**
+     * Build it.
+     *
+     * @param maxSimplifyVisits maximum number of nodes visited while
+     *            simplifying the expressions interned in this store
+     */
+    public ExpressionStore(int maxSimplifyVisits) {
+        simplifier = new Simplifier<>(maxSimplifyVisits);
+    }
+
+    /**
+     * The simplifier of the expressions interned in this store.
+     */
+    public Simplifier<T> simplifier() {
+        return simplifier;
+    }
+
+    /**
+     * The leaf containing t.
+     */
+    public Expression<T> leaf(T t) {
+        return intern(new Leaf<>(t));
+    }
+
+    /**
+     * The conjunction of components.
+     */
+    public Expression<T> and(ImmutableSet<Expression<T>> components) {
+        return intern(new And<>(components));
+    }
+
+    /**
+     * The disjunction of components.
+     */
+    public Expression<T> or(ImmutableSet<Expression<T>> components) {
+        return intern(new Or<>(components));
+    }
+
+    /**
+     * Forget the interned expressions. Expressions built afterwards aren't
+     * interned.
+     */
+    public void clear() {
+        nodes = null;
+    }
+
+    /**
+     * The interned expression structurally equal to expression.
+     */
+    @SuppressWarnings("unchecked")
+    <E extends Expression<T>> E intern(E expression) {
+        if (nodes == null) {
+            return expression;
+        }
+        Expression<T> found = nodes.get(expression);
+        if (found != null) {
+            // Equal expressions are always of the same class
+            return (E) found;
+        }
+        if (expression.isComposite()) {
+            ((AbstractCompositeExpression<T>) expression).interned(this);
+        }
+        nodes.put(expression, expression);
+        return expression;
+    }
+}
@@ -1,6 +1,7 @@
 package org.wikimedia.search.extra.regex.expression;
 
 import com.google.common.collect.ImmutableSet;
+import org.elasticsearch.common.Nullable;
 
 import java.util.List;
 
@@ -9,6 +10,16 @@ import java.util.List;
  */
 public final class Or<T> extends AbstractCompositeExpression<T> {
     public static <T> Expression<T> fromExpressionSources(List<? extends ExpressionSource<T>> sources) {
+        return fromExpressionSources(sources, null);
+    }
+
+    /**
+     * Build the simplified disjunction of the expressions of sources.
+     *
+     * @param store store to intern the disjunction in, null not to intern it
+     */
+    public static <T> Expression<T> fromExpressionSources(List<? extends ExpressionSource<T>> sources,
+            @Nullable ExpressionStore<T> store) {
         switch (sources.size()) {
         case 0:
             return True.instance();
@@ -19,7 +30,7 @@ public final class Or<T> extends AbstractCompositeExpression<T> {
             for (ExpressionSource<T> source : sources) {
                 or.add(source.expression());
             }
-            return new Or<>(or.build()).simplify();
+            return (store == null ? new Or<>(or.build()) : store.or(or.build())).simplify();
         }
     }
 
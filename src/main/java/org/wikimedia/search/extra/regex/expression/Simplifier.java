@@ -0,0 +1,169 @@
+package org.wikimedia.search.extra.regex.expression;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Simplifies expressions with a work list rather than by recursing through
+ * their components, within a budget of node visits shared by every
+ * expression it simplifies. Once the budget is spent expressions are
+ * degraded to the disjunction of their leaves: less selective than the
+ * simplified expression but still matching everything it matches. Unless
+ * they are true without any of their leaves, then they degrade to
+ * {@link True}. Degrading
+ * only walks the expressions but may be repeated for many of them so it gets
+ * its own budget, {@link #DEGRADE_VISITS_RATIO} times larger, past which
+ * expressions degrade to {@link True}.
+ *
+ * @param <T> type stored in leaves
+ */
+public final class Simplifier<T> {
+    /**
+     * Budget large enough to never run out.
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    /**
+     * Ratio of the budget for degrading expressions to the budget for
+     * simplifying them.
+     */
+    static final int DEGRADE_VISITS_RATIO = 10;
+
+    private int remainingVisits;
+    private int remainingDegradeVisits;
+
+    /**
+     * Build it.
+     *
+     * @param maxVisits maximum number of nodes visited while simplifying
+     */
+    public Simplifier(int maxVisits) {
+        this.remainingVisits = maxVisits;
+        this.remainingDegradeVisits = (int) Math.min(Integer.MAX_VALUE, (long) maxVisits * DEGRADE_VISITS_RATIO);
+    }
+
+    /**
+     * Simplify expression.
+     *
+     * @return the simplified expression or, if the budget ran out, a sound
+     *         but less simplified one
+     */
+    public Expression<T> simplify(Expression<T> expression) {
+        if (!expression.isComposite()) {
+            return expression.simplify();
+        }
+        try {
+            return visit((AbstractCompositeExpression<T>) expression);
+        } catch (BudgetExhaustedException e) {
+            return degrade(expression);
+        }
+    }
+
+    /**
+     * Has the budget run out?
+     */
+    public boolean exhausted() {
+        return remainingVisits <= 0;
+    }
+
+    /**
+     * Simplify the components of root before root itself, remembering the
+     * result of simplifying each of them so shared components are only
+     * simplified once.
+     */
+    Expression<T> visit(AbstractCompositeExpression<T> root) {
+        Deque<AbstractCompositeExpression<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (!toVisit.isEmpty()) {
+            AbstractCompositeExpression<T> current = toVisit.peek();
+            if (current.isSimplified()) {
+                toVisit.pop();
+                continue;
+            }
+            if (remainingVisits <= 0) {
+                throw BudgetExhaustedException.INSTANCE;
+            }
+            remainingVisits--;
+            boolean componentsSimplified = true;
+            for (Expression<T> component : current) {
+                if (component.isComposite() && !((AbstractCompositeExpression<T>) component).isSimplified()) {
+                    toVisit.push((AbstractCompositeExpression<T>) component);
+                    componentsSimplified = false;
+                }
+            }
+            if (componentsSimplified) {
+                toVisit.pop();
+                current.simplifyOnce(this);
+            }
+        }
+        return root.simplifiedForm();
+    }
+
+    /**
+     * The disjunction of the leaves of expression, or {@link True} if
+     * expression is true even when all its leaves are false.
+     */
+    private Expression<T> degrade(Expression<T> expression) {
+        Set<Expression<T>> leaves = new LinkedHashSet<>();
+        // Value of each node when all the leaves are false
+        Map<Expression<T>, Boolean> values = new IdentityHashMap<>();
+        Deque<Expression<T>> toVisit = new ArrayDeque<>();
+        toVisit.push(expression);
+        while (!toVisit.isEmpty()) {
+            Expression<T> current = toVisit.peek();
+            if (values.containsKey(current)) {
+                toVisit.pop();
+                continue;
+            }
+            if (remainingDegradeVisits <= 0) {
+                return True.instance();
+            }
+            remainingDegradeVisits--;
+            if (!current.isComposite()) {
+                toVisit.pop();
+                if (!current.alwaysTrue() && !current.alwaysFalse()) {
+                    leaves.add(current);
+                }
+                values.put(current, current.alwaysTrue());
+                continue;
+            }
+            boolean componentsVisited = true;
+            for (Expression<T> component : (AbstractCompositeExpression<T>) current) {
+                if (!values.containsKey(component)) {
+                    toVisit.push(component);
+                    componentsVisited = false;
+                }
+            }
+            if (componentsVisited) {
+                toVisit.pop();
+                boolean and = current instanceof And;
+                boolean value = and;
+                for (Expression<T> component : (AbstractCompositeExpression<T>) current) {
+                    value = and ? value && values.get(component) : value || values.get(component);
+                }
+                values.put(current, value);
+            }
+        }
+        if (values.get(expression) || leaves.isEmpty()) {
+            return True.instance();
+        }
+        return leaves.size() == 1 ? leaves.iterator().next() : new Or<>(ImmutableSet.copyOf(leaves));
+    }
+
+    /**
+     * Thrown to unwind the simplification once the budget ran out.
+     */
+    private static final class BudgetExhaustedException extends RuntimeException {
+        private static final long serialVersionUID = 4528702938502349210L;
+        private static final BudgetExhaustedException INSTANCE = new BudgetExhaustedException();
+
+        private BudgetExhaustedException() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -1,31 +1,37 @@
 package org.wikimedia.search.extra.regex.ngram;
 
+import com.carrotsearch.hppc.IntArrayDeque;
+import com.carrotsearch.hppc.LongIntHashMap;
 import com.google.common.collect.ImmutableSet;
-import lombok.EqualsAndHashCode;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.Transition;
 import org.elasticsearch.common.io.FastStringReader;
-import org.wikimedia.search.extra.regex.expression.And;
 import org.wikimedia.search.extra.regex.expression.Expression;
 import org.wikimedia.search.extra.regex.expression.ExpressionSource;
+import org.wikimedia.search.extra.regex.expression.ExpressionStore;
 import org.wikimedia.search.extra.regex.expression.False;
-import org.wikimedia.search.extra.regex.expression.Leaf;
 import org.wikimedia.search.extra.regex.expression.Or;
 import org.wikimedia.search.extra.regex.expression.True;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 
 /**
  * A finite automaton who's transitions are ngrams that must be in the string or
  * ngrams we can't check for. Not thread safe one bit.
+ * <p>
+ * States are keyed on their source state and the interned id of their
+ * prefix and the ngram built by adding a code point to a prefix is only
+ * built once, so tracing allocates little more than the states and
+ * transitions themselves.
  */
 public class NGramAutomaton {
     private final Automaton source;
@@ -33,10 +39,47 @@ public class NGramAutomaton {
     private final int maxExpand;
     private final int maxStatesTraced;
     private final int maxTransitions;
-    private final List<NGramState> initialStates = new ArrayList<>();
     private final List<NGramState> acceptStates = new ArrayList<>();
-    private final Map<NGramState, NGramState> states = new HashMap<>();
+    /**
+     * Ids of the states in acceptStates.
+     */
+    private final BitSet acceptStateIds = new BitSet();
+    /**
+     * States in the order they were built, indexed by their id.
+     */
+    private final List<NGramState> states = new ArrayList<>();
+    /**
+     * Ids of the states by {@link #stateKey(int, int)} of their source state
+     * and prefix.
+     */
+    private final LongIntHashMap stateIds = new LongIntHashMap();
+    private final Prefixes prefixes = new Prefixes();
+    /**
+     * Ids of the ngrams by {@link #key(int, int)} of their prefix and last
+     * code point.
+     */
+    private final LongIntHashMap ngramIds = new LongIntHashMap();
+    /**
+     * Prefix of the state an ngram leads to, by ngram id.
+     */
+    private int[] ngramNextPrefixes = new int[16];
+    /**
+     * The ngrams by id, null if they contain a code point we can't match.
+     * Analyzed when used by a transition.
+     */
+    private String[] ngrams = new String[16];
+    private final BitSet analyzedNgrams = new BitSet();
+    private int ngramCount;
+    /**
+     * Work array holding the code points of an ngram.
+     */
+    private final int[] ngramCodePoints;
     private final Analyzer ngramAnalyzer;
+    /**
+     * Interns the expressions so the branches shared by states are shared
+     * by the expression too.
+     */
+    private final ExpressionStore<String> store;
 
     /**
      * Build it.
@@ -51,12 +94,24 @@ public class NGramAutomaton {
      *            converted to ngram expressions at the cost of more time.
      */
     public NGramAutomaton(Automaton source, int gramSize, int maxExpand, int maxStatesTraced, int maxTransitions, Analyzer ngramAnalyzer) {
+        this(source, gramSize, maxExpand, maxStatesTraced, maxTransitions, ngramAnalyzer, new ExpressionStore<>());
+    }
+
+    /**
+     * Build it.
+     * @param store store to intern the expression in, the caller should
+     *            clear it once done with it
+     */
+    public NGramAutomaton(Automaton source, int gramSize, int maxExpand, int maxStatesTraced, int maxTransitions, Analyzer ngramAnalyzer,
+            ExpressionStore<String> store) {
+        this.store = store;
         this.source = source;
         this.gramSize = gramSize;
         this.maxExpand = maxExpand;
         this.maxStatesTraced = maxStatesTraced;
         this.maxTransitions = maxTransitions;
         this.ngramAnalyzer = ngramAnalyzer;
+        this.ngramCodePoints = new int[gramSize];
         if (source.getNumStates() == 0) {
             return;
         }
@@ -74,9 +129,9 @@ public class NGramAutomaton {
         StringBuilder b = new StringBuilder("digraph Automaton {\n");
         b.append("  rankdir = LR;\n");
         b.append("  initial [shape=plaintext,label=\"\"];\n");
-        for (NGramState state : states.keySet()) {
+        for (NGramState state : states) {
             b.append("  ").append(state.dotName());
-            if (acceptStates.contains(state)) {
+            if (acceptStateIds.get(state.id)) {
                 b.append(" [shape=doublecircle,label=\"").append(state).append("\"];\n");
             } else {
                 b.append(" [shape=circle,label=\"").append(state).append("\"];\n");
@@ -97,7 +152,7 @@ public class NGramAutomaton {
      * probably should call {@link Expression#simplify()} on it.
      */
     public Expression<String> expression() {
-        return Or.fromExpressionSources(acceptStates);
+        return Or.fromExpressionSources(acceptStates, store);
     }
 
     /**
@@ -113,20 +168,25 @@ public class NGramAutomaton {
             // Hit an accept state before finishing a trigram - meaning you
             // could match this without using any of the trigrams we might find
             // later. In that case we just give up.
-            initialStates.clear();
             states.clear();
+            stateIds.clear();
             return false;
         }
         if (offset == gramSize - 1) {
             // We've walked deeply enough to find an initial state.
-            NGramState state = new NGramState(currentState, new String(codePoints, 0, gramSize - 1), true);
+            int prefix = Prefixes.ROOT;
+            for (int i = 0; i < gramSize - 1; i++) {
+                prefix = prefixes.child(prefix, codePoints[i]);
+            }
             // Only add one copy of each state - if we've already seen this
             // state just ignore it.
-            if (states.containsKey(state)) {
+            long key = stateKey(currentState, prefix);
+            if (stateIds.containsKey(key)) {
                 return true;
             }
-            initialStates.add(state);
-            states.put(state, state);
+            NGramState state = new NGramState(states.size(), currentState, prefix, true);
+            states.add(state);
+            stateIds.put(key, state.id);
             return true;
         }
         // TODO build fewer of these
@@ -154,9 +214,11 @@ public class NGramAutomaton {
     }
 
     private void traceRemainingStates() {
-        LinkedList<NGramState> leftToProcess = new LinkedList<>();
-        leftToProcess.addAll(initialStates);
-        int[] codePoint = new int[1];
+        // Only the initial states have been built so far
+        IntArrayDeque leftToProcess = new IntArrayDeque(Math.max(states.size(), 16));
+        for (NGramState state : states) {
+            leftToProcess.addLast(state.id);
+        }
         int statesTraced = 0;
         Transition transition = new Transition();
         int currentTransitions = 0;
@@ -165,15 +227,15 @@ public class NGramAutomaton {
                 throw new AutomatonTooComplexException();
             }
             statesTraced++;
-            NGramState from = leftToProcess.pop();
-            if (acceptStates.contains(from)) {
+            NGramState from = states.get(leftToProcess.removeFirst());
+            if (acceptStateIds.get(from.id)) {
                 // Any transitions out of accept states aren't interesting for
                 // finding required ngrams
                 continue;
             }
             int totalLeavingState = source.initTransition(from.sourceState, transition);
             if (currentTransitions >= maxTransitions) {
-                acceptStates.add(from);
+                addAcceptState(from);
                 continue;
             }
             for (int currentLeavingState = 0; currentLeavingState < totalLeavingState; currentLeavingState++) {
@@ -188,20 +250,14 @@ public class NGramAutomaton {
                     max = transition.max;
                 }
                 for (int c = min; c <= max; c++) {
-                    codePoint[0] = c;
-                    String ngram = from.prefix + new String(codePoint, 0, 1);
-                    NGramState next = buildOrFind(leftToProcess, transition.dest, ngram.substring(1));
-                    // Transitions containing an invalid character contain no
-                    // prefix.
-                    if (ngram.indexOf(0) >= 0) {
-                        ngram = null;
-                    }
+                    int ngram = ngram(from.prefix, c);
+                    NGramState next = buildOrFind(leftToProcess, transition.dest, ngramNextPrefixes[ngram]);
                     if (currentTransitions >= maxTransitions) {
-                        acceptStates.add(from);
+                        addAcceptState(from);
                         continue;
                     }
                     currentTransitions++;
-                    NGramTransition ngramTransition = new NGramTransition(from, next, analyze(ngram));
+                    NGramTransition ngramTransition = new NGramTransition(from, next, analyzedNgram(ngram));
                     from.outgoingTransitions.add(ngramTransition);
                     ngramTransition.to.incomingTransitions.add(ngramTransition);
                 }
@@ -209,6 +265,45 @@ public class NGramAutomaton {
         }
     }
 
+    /**
+     * Find or build the ngram made of prefix followed by codePoint.
+     *
+     * @return the id of the ngram
+     */
+    private int ngram(int prefix, int codePoint) {
+        long key = key(prefix, codePoint);
+        int ngram = ngramIds.getOrDefault(key, -1);
+        if (ngram >= 0) {
+            return ngram;
+        }
+        prefixes.codePoints(prefix, ngramCodePoints, gramSize - 1);
+        ngramCodePoints[gramSize - 1] = codePoint;
+        int nextPrefix = Prefixes.ROOT;
+        // Transitions containing an invalid character contain no prefix.
+        boolean valid = ngramCodePoints[0] != 0;
+        for (int i = 1; i < gramSize; i++) {
+            nextPrefix = prefixes.child(nextPrefix, ngramCodePoints[i]);
+            valid &= ngramCodePoints[i] != 0;
+        }
+        ngram = ngramCount++;
+        ngramNextPrefixes = ArrayUtil.grow(ngramNextPrefixes, ngramCount);
+        if (ngrams.length < ngramCount) {
+            ngrams = Arrays.copyOf(ngrams, ArrayUtil.oversize(ngramCount, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+        }
+        ngramNextPrefixes[ngram] = nextPrefix;
+        ngrams[ngram] = valid ? new String(ngramCodePoints, 0, gramSize) : null;
+        ngramIds.put(key, ngram);
+        return ngram;
+    }
+
+    private String analyzedNgram(int ngram) {
+        if (!analyzedNgrams.get(ngram)) {
+            ngrams[ngram] = analyze(ngrams[ngram]);
+            analyzedNgrams.set(ngram);
+        }
+        return ngrams[ngram];
+    }
+
     private String analyze(String ngram) {
         if (ngram == null) {
             return ngram;
@@ -231,43 +326,114 @@ public class NGramAutomaton {
         return ngram;
     }
 
-    private NGramState buildOrFind(LinkedList<NGramState> leftToProcess, int sourceState, String prefix) {
-        NGramState built = new NGramState(sourceState, prefix, false);
-        NGramState found = states.get(built);
-        if (found != null) {
-            return found;
+    private NGramState buildOrFind(IntArrayDeque leftToProcess, int sourceState, int prefix) {
+        long key = stateKey(sourceState, prefix);
+        int found = stateIds.getOrDefault(key, -1);
+        if (found >= 0) {
+            return states.get(found);
         }
+        NGramState built = new NGramState(states.size(), sourceState, prefix, false);
         if (source.isAccept(sourceState)) {
-            acceptStates.add(built);
+            addAcceptState(built);
         }
-        states.put(built, built);
-        leftToProcess.add(built);
+        states.add(built);
+        stateIds.put(key, built.id);
+        leftToProcess.addLast(built.id);
         return built;
     }
 
+    private void addAcceptState(NGramState state) {
+        acceptStates.add(state);
+        acceptStateIds.set(state.id);
+    }
+
     /**
-     * State in the ngram graph. Equals and hashcode only use the sourceState
-     * and prefix.
+     * Pack a prefix id and a code point into a single key. Code points never
+     * use more than 21 bits.
+     */
+    private static long key(int id, int codePoint) {
+        return ((long) id << 21) | codePoint;
+    }
+
+    /**
+     * Pack a state id and a prefix id into a single key. Both ids may use
+     * all 31 bits.
      */
-    @EqualsAndHashCode(of = { "prefix", "sourceState" })
-    private static class NGramState implements ExpressionSource<String> {
+    private static long stateKey(int state, int prefix) {
+        return ((long) state << 32) | prefix;
+    }
+
+    /**
+     * Interns the prefixes of the states as ints. Each prefix is a node in a
+     * trie of code points so a prefix is found or built by walking its code
+     * points from the root.
+     */
+    private static final class Prefixes {
         /**
-         * We use the 0 char to stand in for code points we can't match.
+         * The empty prefix.
          */
-        private static final String INVALID_CHAR = new String(new int[] { 0 }, 0, 1);
+        private static final int ROOT = 0;
+
+        /**
+         * Children by {@link NGramAutomaton#key(int, int)} of their parent
+         * and their last code point.
+         */
+        private final LongIntHashMap children = new LongIntHashMap();
+        private int[] parents = new int[16];
+        private int[] lastCodePoints = new int[16];
+        private int size = 1;
+
+        /**
+         * Find or build the prefix made of parent followed by codePoint.
+         */
+        int child(int parent, int codePoint) {
+            long key = key(parent, codePoint);
+            int child = children.getOrDefault(key, -1);
+            if (child >= 0) {
+                return child;
+            }
+            child = size++;
+            parents = ArrayUtil.grow(parents, size);
+            lastCodePoints = ArrayUtil.grow(lastCodePoints, size);
+            parents[child] = parent;
+            lastCodePoints[child] = codePoint;
+            children.put(key, child);
+            return child;
+        }
+
+        /**
+         * Copy the length code points of prefix into the start of codePoints.
+         */
+        void codePoints(int prefix, int[] codePoints, int length) {
+            for (int i = length - 1; i >= 0; i--) {
+                codePoints[i] = lastCodePoints[prefix];
+                prefix = parents[prefix];
+            }
+        }
+    }
+
+    /**
+     * State in the ngram graph. Identified by its id, unique per sourceState
+     * and prefix.
+     */
+    private class NGramState implements ExpressionSource<String> {
         /**
          * We print code points we can't match as double underscores.
          */
         private static final String INVALID_PRINT_CHAR = "__";
 
+        /**
+         * Index of this state in {@link NGramAutomaton#states}.
+         */
+        private final int id;
         /**
          * State in the source automaton.
          */
         private final int sourceState;
         /**
-         * Prefix of the ngram transitions that come from this state.
+         * Id of the prefix of the ngram transitions that come from this state.
          */
-        private final String prefix;
+        private final int prefix;
         /**
          * Is this an initial state? Initial states are potential starts of the
          * regex and thus all incoming transitions are not required.
@@ -291,7 +457,8 @@ public class NGramAutomaton {
          */
         private boolean inPath = false;
 
-        private NGramState(int sourceState, String prefix, boolean initial) {
+        private NGramState(int id, int sourceState, int prefix, boolean initial) {
+            this.id = id;
             this.sourceState = sourceState;
             this.prefix = prefix;
             this.initial = initial;
@@ -311,7 +478,17 @@ public class NGramAutomaton {
         }
 
         public String prettyPrefix() {
-            return prefix.replace(INVALID_CHAR, INVALID_PRINT_CHAR);
+            int[] codePoints = new int[gramSize - 1];
+            prefixes.codePoints(prefix, codePoints, codePoints.length);
+            StringBuilder b = new StringBuilder();
+            for (int codePoint : codePoints) {
+                if (codePoint == 0) {
+                    b.append(INVALID_PRINT_CHAR);
+                } else {
+                    b.appendCodePoint(codePoint);
+                }
+            }
+            return b.toString();
         }
 
         @Override
@@ -321,7 +498,7 @@ public class NGramAutomaton {
                     expression = True.instance();
                 } else {
                     inPath = true;
-                    expression = Or.fromExpressionSources(incomingTransitions);
+                    expression = Or.fromExpressionSources(incomingTransitions, store);
                     inPath = false;
                 }
             }
@@ -329,7 +506,7 @@ public class NGramAutomaton {
         }
     }
 
-    private static class NGramTransition implements ExpressionSource<String> {
+    private class NGramTransition implements ExpressionSource<String> {
         private final NGramState from;
         private final NGramState to;
         private final String ngram;
@@ -348,7 +525,7 @@ public class NGramAutomaton {
             if (ngram == null) {
                 return from.expression();
             }
-            return new And<>(ImmutableSet.of(from.expression(), new Leaf<>(ngram)));
+            return store.and(ImmutableSet.of(from.expression(), store.leaf(ngram)));
         }
 
         @Override
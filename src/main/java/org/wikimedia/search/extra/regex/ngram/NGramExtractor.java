@@ -3,6 +3,8 @@ package org.wikimedia.search.extra.regex.ngram;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.util.automaton.Automaton;
 import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.ExpressionStore;
+import org.wikimedia.search.extra.regex.expression.Simplifier;
 import org.wikimedia.search.extra.regex.expression.True;
 
 /**
@@ -13,6 +15,7 @@ public class NGramExtractor {
     private final int maxExpand;
     private final int maxStatesTraced;
     private final int maxNgrams;
+    private final int maxSimplifyVisits;
     private final Analyzer ngramAnalyzer;
 
     /**
@@ -31,10 +34,24 @@ public class NGramExtractor {
      * @param ngramAnalyzer the analyzer used to generate indexed ngrams
      */
     public NGramExtractor(int gramSize, int maxExpand, int maxStatesTraced, int maxNgrams, Analyzer ngramAnalyzer) {
+        this(gramSize, maxExpand, maxStatesTraced, maxNgrams, Simplifier.UNLIMITED, ngramAnalyzer);
+    }
+
+    /**
+     * Build it.
+     *
+     * @param maxSimplifyVisits the maximum number of expression nodes visited
+     *            while simplifying the expression. Past it the expression is
+     *            degraded to the disjunction of its ngrams.
+     * @see #NGramExtractor(int, int, int, int, Analyzer)
+     */
+    public NGramExtractor(int gramSize, int maxExpand, int maxStatesTraced, int maxNgrams, int maxSimplifyVisits,
+            Analyzer ngramAnalyzer) {
         this.gramSize = gramSize;
         this.maxExpand = maxExpand;
         this.maxStatesTraced = maxStatesTraced;
         this.maxNgrams = maxNgrams;
+        this.maxSimplifyVisits = maxSimplifyVisits;
         this.ngramAnalyzer = ngramAnalyzer;
     }
 
@@ -45,6 +62,13 @@ public class NGramExtractor {
         if (automaton.isAccept(0)) {
             return True.instance();
         }
-        return new NGramAutomaton(automaton, gramSize, maxExpand, maxStatesTraced, maxNgrams, ngramAnalyzer).expression().simplify();
+        ExpressionStore<String> store = new ExpressionStore<>(maxSimplifyVisits);
+        try {
+            return new NGramAutomaton(automaton, gramSize, maxExpand, maxStatesTraced, maxNgrams, ngramAnalyzer, store)
+                    .expression().simplify();
+        } finally {
+            // The simplified expression doesn't need the nodes it was simplified from
+            store.clear();
+        }
     }
 }
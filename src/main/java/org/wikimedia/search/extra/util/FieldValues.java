@@ -1,13 +1,32 @@
 package org.wikimedia.search.extra.util;
 
+import com.carrotsearch.hppc.IntArrayList;
 import com.google.common.collect.ImmutableSet;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentParser.Token;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.index.fieldvisitor.CustomFieldsVisitor;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -25,6 +44,66 @@ public abstract class FieldValues {
          * Load the value of the string at path from reader for docId.
          */
         List<String> load(String path, IndexReader reader, int docId) throws IOException;
+
+        /**
+         * Load the value of the string at path from reader for docId as UTF-8
+         * encoded bytes without decoding them to strings.
+         */
+        List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException;
+
+        /**
+         * Feed the values of the string at path from reader for docId to
+         * matcher as they are read, stopping as soon as one matches.
+         *
+         * @return true if a value matched
+         */
+        boolean anyMatch(String path, IndexReader reader, int docId, CharsMatcher matcher) throws IOException;
+
+        /**
+         * Feed the UTF-8 encoded values of the string at path from reader
+         * for docId to matcher as they are read, stopping as soon as one
+         * matches.
+         *
+         * @return true if a value matched
+         */
+        boolean anyMatchUtf8(String path, IndexReader reader, int docId, Utf8Matcher matcher) throws IOException;
+
+        /**
+         * Are the values at path read as UTF-8 bytes? If not the UTF-8
+         * methods encode the decoded strings again and gain nothing over the
+         * others.
+         */
+        boolean readsUtf8(String path);
+
+        /**
+         * Loader of the values of the string at path from the docs of a
+         * single segment, used by a single thread. Loaders resolving
+         * per-segment structures do it once here rather than for every doc.
+         *
+         * @param reader the segment, the returned loader must only be used
+         *            with it or a reader wrapping it
+         */
+        default Loader forSegment(String path, LeafReader reader) throws IOException {
+            return this;
+        }
+    }
+
+    /**
+     * Matches values without requiring them to be materialized as strings.
+     * The characters are only valid for the duration of the call.
+     */
+    @FunctionalInterface
+    public interface CharsMatcher {
+        boolean matches(char[] chars, int offset, int length);
+    }
+
+    /**
+     * Matches UTF-8 encoded values. The bytes are only valid for the
+     * duration of the call.
+     */
+    @FunctionalInterface
+    public interface Utf8Matcher {
+        boolean matches(byte[] bytes, int offset, int length);
     }
 
     /**
@@ -45,24 +124,577 @@ public abstract class FieldValues {
         return Stored.INSTANCE;
     }
 
+    /**
+     * Load field values from sorted, sorted set or binary doc values. Reading
+     * doc values doesn't decompress whole stored field blocks so this is much
+     * cheaper than the other loaders for short fields. The reader must be a
+     * leaf reader. Sorted set doc values hold the distinct values of the doc
+     * in sorted order rather than the values as they were sent.
+     */
+    public static FieldValues.Loader loadFromDocValues() {
+        return DocValuesLoader.INSTANCE;
+    }
+
     private FieldValues() {
         // Util class
     }
 
+    /**
+     * Loads values from _source by streaming it with an XContentParser.
+     * Subtrees that can't contain the path are skipped and parsing stops as
+     * soon as the path has been read, or a matcher matched, so only the
+     * values at the path are ever created. Follows the rules of
+     * {@link XContentMapValues#extractRawValues(String, Map)}, including
+     * matching object keys that contain dots, except that when an object has
+     * several keys matching the path (like <code>a</code> and
+     * <code>a.b</code>) the first one in the document wins rather than the
+     * shortest.
+     * <p>
+     * The UTF-8 methods read top level fields of JSON sources without parsing
+     * them, see {@link RawJson}.
+     */
     private static class Source implements FieldValues.Loader {
         private static final FieldValues.Loader INSTANCE = new Source();
+
         @Override
         public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+            List<String> values = new ArrayList<>();
+            extract(path, source(reader, docId), (parser, token) -> {
+                values.add(text(parser, token));
+                return false;
+            });
+            return values;
+        }
+
+        @Override
+        public List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException {
+            List<BytesRef> values = new ArrayList<>();
+            anyMatchUtf8(path, reader, docId, (bytes, offset, length) -> {
+                // Re-encoded values share a scratch buffer
+                values.add(BytesRef.deepCopyOf(new BytesRef(bytes, offset, length)));
+                return false;
+            });
+            return values;
+        }
+
+        @Override
+        public boolean anyMatch(String path, IndexReader reader, int docId, CharsMatcher matcher) throws IOException {
+            return extract(path, source(reader, docId), (parser, token) -> {
+                if (token == Token.VALUE_STRING) {
+                    // Straight from the parser's buffer
+                    return matcher.matches(parser.textCharacters(), parser.textOffset(), parser.textLength());
+                }
+                char[] chars = text(parser, token).toCharArray();
+                return matcher.matches(chars, 0, chars.length);
+            });
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, Utf8Matcher matcher) throws IOException {
+            BytesReference source = source(reader, docId);
+            if (readsUtf8(path) && XContentFactory.xContentType(source) == XContentType.JSON) {
+                List<BytesRef> values = RawJson.topLevelStrings(source.toBytesRef(), path);
+                if (values != null) {
+                    for (BytesRef value : values) {
+                        if (matcher.matches(value.bytes, value.offset, value.length)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            }
+            BytesRefBuilder scratch = new BytesRefBuilder();
+            // The parser decoded the values already, encode them again
+            return extract(path, source, (parser, token) -> {
+                if (token == Token.VALUE_STRING) {
+                    scratch.copyChars(parser.textCharacters(), parser.textOffset(), parser.textLength());
+                } else {
+                    scratch.copyChars(text(parser, token));
+                }
+                return matcher.matches(scratch.bytes(), 0, scratch.length());
+            });
+        }
+
+        /**
+         * Top level fields of JSON sources are read as UTF-8, others are
+         * decoded by the parser.
+         */
+        @Override
+        public boolean readsUtf8(String path) {
+            return path.indexOf('.') < 0;
+        }
+
+        private static String text(XContentParser parser, Token token) throws IOException {
+            if (token == Token.VALUE_NUMBER) {
+                // Same representation as the Number extractRawValues would find
+                return parser.numberValue().toString();
+            }
+            return parser.text();
+        }
+
+        private static BytesReference source(IndexReader reader, int docId) throws IOException {
             CustomFieldsVisitor visitor = new CustomFieldsVisitor(Collections.emptySet(), true);
             reader.document(docId, visitor);
-            BytesReference source = visitor.source();
-            // deprecated but still in use in core
-            // Monitor how it evolves in core and FetchSubPhase.java
-            // https://github.com/elastic/elasticsearch/blob/master/core/src/main/java/org/elasticsearch/search/fetch/FetchPhase.java#L233
-            Map<String, Object> map = XContentHelper.convertToMap(source, false).v2();
-            return XContentMapValues.extractRawValues(path, map).stream()
-                    .map(Object::toString)
-                    .collect(Collectors.toList());
+            return visitor.source();
+        }
+
+        /**
+         * Feed the values at path to sink.
+         *
+         * @return true if the sink stopped the extraction
+         */
+        private static boolean extract(String path, BytesReference source, ValueSink sink) throws IOException {
+            try (XContentParser parser = XContentHelper.createParser(NamedXContentRegistry.EMPTY, source,
+                    XContentFactory.xContentType(source))) {
+                if (parser.nextToken() != Token.START_OBJECT) {
+                    return false;
+                }
+                // No need to read the rest of the source once the path is found
+                Extractor extractor = new Extractor(parser, path.split("\\."), sink);
+                extractor.extractObject(0);
+                return extractor.stopped;
+            }
+        }
+    }
+
+    /**
+     * Finds the strings of a top level field in a JSON source without parsing
+     * it, so their UTF-8 bytes are matched where they are rather than decoded
+     * and encoded again. Strings with escape sequences are decoded to UTF-8
+     * on their own. Follows the same rules as {@link Extractor} but gives up
+     * on what it can't match as is: keys with escape sequences, numbers and
+     * booleans which the parser formats, malformed JSON.
+     */
+    private static final class RawJson {
+        private final byte[] bytes;
+        private final int end;
+        private int pos;
+        /**
+         * Did the last string skipped contain escape sequences?
+         */
+        private boolean escaped;
+        /**
+         * The strings with escape sequences, decoded one after the other.
+         */
+        private final BytesRefBuilder decoded = new BytesRefBuilder();
+
+        private RawJson(BytesRef source) {
+            this.bytes = source.bytes;
+            this.pos = source.offset;
+            this.end = source.offset + source.length;
+        }
+
+        /**
+         * @return the values of field, pointing into source unless they
+         *         had escape sequences, null if they can't be matched
+         *         without parsing the source
+         */
+        @Nullable
+        static List<BytesRef> topLevelStrings(BytesRef source, String field) {
+            RawJson json = new RawJson(source);
+            // Offset and length of each value, negative offsets are in decoded
+            IntArrayList spans = new IntArrayList();
+            if (!json.topLevelStrings(field.getBytes(StandardCharsets.UTF_8), spans)) {
+                return null;
+            }
+            List<BytesRef> values = new ArrayList<>(spans.size() / 2);
+            for (int i = 0; i < spans.size(); i += 2) {
+                int offset = spans.get(i);
+                values.add(offset >= 0 ? new BytesRef(json.bytes, offset, spans.get(i + 1))
+                        : new BytesRef(json.decoded.bytes(), -offset - 1, spans.get(i + 1)));
+            }
+            return values;
+        }
+
+        private boolean topLevelStrings(byte[] field, IntArrayList spans) {
+            if (next() != '{') {
+                return false;
+            }
+            pos++;
+            if (next() == '}') {
+                return true;
+            }
+            while (true) {
+                if (next() != '"') {
+                    return false;
+                }
+                int keyStart = pos + 1;
+                if (!skipString() || escaped) {
+                    return false;
+                }
+                boolean matches = equals(field, keyStart, pos - 1);
+                if (next() != ':') {
+                    return false;
+                }
+                pos++;
+                // Null values don't match, the first other value wins
+                if (matches && next() != 'n') {
+                    return strings(spans);
+                }
+                if (!skipValue()) {
+                    return false;
+                }
+                int separator = next();
+                if (separator == '}') {
+                    return true;
+                }
+                if (separator != ',') {
+                    return false;
+                }
+                pos++;
+            }
+        }
+
+        /**
+         * Add the strings of the value at pos to spans, skipping nulls and
+         * objects.
+         */
+        private boolean strings(IntArrayList spans) {
+            switch (next()) {
+            case '"':
+                int start = pos + 1;
+                if (!skipString()) {
+                    return false;
+                }
+                if (!escaped) {
+                    spans.add(start, pos - 1 - start);
+                    return true;
+                }
+                int decodedStart = decoded.length();
+                if (!decode(start, pos - 1)) {
+                    return false;
+                }
+                spans.add(-decodedStart - 1, decoded.length() - decodedStart);
+                return true;
+            case '[':
+                pos++;
+                if (next() == ']') {
+                    pos++;
+                    return true;
+                }
+                while (true) {
+                    if (!strings(spans)) {
+                        return false;
+                    }
+                    int separator = next();
+                    pos++;
+                    if (separator == ']') {
+                        return true;
+                    }
+                    if (separator != ',') {
+                        return false;
+                    }
+                }
+            case '{':
+            case 'n':
+                return skipValue();
+            default:
+                return false;
+            }
+        }
+
+        /**
+         * Skip the value at pos.
+         *
+         * @return false if it isn't terminated
+         */
+        private boolean skipValue() {
+            int c = next();
+            if (c == '"') {
+                return skipString();
+            }
+            if (c == '{' || c == '[') {
+                int depth = 0;
+                while (pos < end) {
+                    byte b = bytes[pos];
+                    if (b == '"') {
+                        if (!skipString()) {
+                            return false;
+                        }
+                        continue;
+                    }
+                    if (b == '{' || b == '[') {
+                        depth++;
+                    } else if ((b == '}' || b == ']') && --depth == 0) {
+                        pos++;
+                        return true;
+                    }
+                    pos++;
+                }
+                return false;
+            }
+            // Scalars end at the first delimiter
+            int start = pos;
+            while (pos < end && !isDelimiter(bytes[pos])) {
+                pos++;
+            }
+            return pos > start && pos < end;
+        }
+
+        /**
+         * Skip the string starting at pos, noting if it has escape sequences.
+         * UTF-8 continuation bytes never look like quotes or backslashes.
+         *
+         * @return false if it isn't terminated
+         */
+        private boolean skipString() {
+            escaped = false;
+            for (int i = pos + 1; i < end; i++) {
+                byte b = bytes[i];
+                if (b == '"') {
+                    pos = i + 1;
+                    return true;
+                }
+                if (b == '\\') {
+                    escaped = true;
+                    i++;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Append the string between from and to, its escape sequences
+         * decoded, to decoded. Unpaired surrogates become the replacement
+         * char like they do when {@link BytesRefBuilder#copyChars} encodes
+         * what the parser decoded.
+         *
+         * @return false if an escape sequence is invalid
+         */
+        private boolean decode(int from, int to) {
+            int run = from;
+            for (int i = from; i < to; i++) {
+                if (bytes[i] != '\\') {
+                    continue;
+                }
+                decoded.append(bytes, run, i - run);
+                if (++i == to) {
+                    return false;
+                }
+                switch (bytes[i]) {
+                case '"':
+                case '\\':
+                case '/':
+                    decoded.append(bytes[i]);
+                    break;
+                case 'b':
+                    decoded.append((byte) '\b');
+                    break;
+                case 'f':
+                    decoded.append((byte) '\f');
+                    break;
+                case 'n':
+                    decoded.append((byte) '\n');
+                    break;
+                case 'r':
+                    decoded.append((byte) '\r');
+                    break;
+                case 't':
+                    decoded.append((byte) '\t');
+                    break;
+                case 'u':
+                    int c = hex(i + 1, to);
+                    if (c < 0) {
+                        return false;
+                    }
+                    i += 4;
+                    int codePoint = c;
+                    if (Character.isHighSurrogate((char) c) && i + 6 < to && bytes[i + 1] == '\\' && bytes[i + 2] == 'u') {
+                        int low = hex(i + 3, to);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            codePoint = Character.toCodePoint((char) c, (char) low);
+                            i += 6;
+                        }
+                    }
+                    if (codePoint <= Character.MAX_VALUE && Character.isSurrogate((char) codePoint)) {
+                        codePoint = 0xFFFD;
+                    }
+                    appendUtf8(codePoint);
+                    break;
+                default:
+                    return false;
+                }
+                run = i + 1;
+            }
+            decoded.append(bytes, run, to - run);
+            return true;
+        }
+
+        /**
+         * The four hex digits at from, -1 if they aren't all before to.
+         */
+        private int hex(int from, int to) {
+            if (from + 4 > to) {
+                return -1;
+            }
+            int value = 0;
+            for (int i = from; i < from + 4; i++) {
+                int digit = Character.digit(bytes[i], 16);
+                if (digit < 0) {
+                    return -1;
+                }
+                value = (value << 4) | digit;
+            }
+            return value;
+        }
+
+        private void appendUtf8(int codePoint) {
+            if (codePoint < 0x80) {
+                decoded.append((byte) codePoint);
+            } else if (codePoint < 0x800) {
+                decoded.append((byte) (0xC0 | (codePoint >> 6)));
+                decoded.append((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (codePoint < 0x10000) {
+                decoded.append((byte) (0xE0 | (codePoint >> 12)));
+                decoded.append((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                decoded.append((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                decoded.append((byte) (0xF0 | (codePoint >> 18)));
+                decoded.append((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                decoded.append((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                decoded.append((byte) (0x80 | (codePoint & 0x3F)));
+            }
+        }
+
+        /**
+         * Skip whitespace.
+         *
+         * @return the byte at pos, -1 if there is none left
+         */
+        private int next() {
+            while (pos < end && isWhitespace(bytes[pos])) {
+                pos++;
+            }
+            return pos < end ? bytes[pos] : -1;
+        }
+
+        private boolean equals(byte[] field, int from, int to) {
+            if (to - from != field.length) {
+                return false;
+            }
+            for (int i = 0; i < field.length; i++) {
+                if (bytes[from + i] != field[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isWhitespace(byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+
+        private static boolean isDelimiter(byte b) {
+            return b == ',' || b == '}' || b == ']' || isWhitespace(b);
+        }
+    }
+
+    /**
+     * Receives the scalar values found at the path.
+     */
+    @FunctionalInterface
+    private interface ValueSink {
+        /**
+         * Handle the value the parser is positioned on.
+         *
+         * @return true to stop the extraction
+         */
+        boolean accept(XContentParser parser, Token token) throws IOException;
+    }
+
+    /**
+     * Walks a parser feeding the values found at path to a sink.
+     */
+    private static class Extractor {
+        private final XContentParser parser;
+        private final String[] path;
+        private final ValueSink sink;
+        private boolean stopped;
+
+        Extractor(XContentParser parser, String[] path, ValueSink sink) {
+            this.parser = parser;
+            this.path = path;
+            this.sink = sink;
+        }
+
+        /**
+         * Extract values from the object the parser is positioned on. Returns
+         * as soon as a key matching the path with a non null value has been
+         * read, leaving the parser inside the object.
+         *
+         * @return true if a key matched the path
+         */
+        boolean extractObject(int index) throws IOException {
+            while (parser.nextToken() == Token.FIELD_NAME) {
+                int next = matchPath(parser.currentName(), index);
+                Token token = parser.nextToken();
+                if (next < 0) {
+                    parser.skipChildren();
+                } else if (token != Token.VALUE_NULL) {
+                    extractValue(token, next);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void extractArray(int index) throws IOException {
+            Token token;
+            while (!stopped && (token = parser.nextToken()) != Token.END_ARRAY) {
+                extractValue(token, index);
+            }
+        }
+
+        private void extractValue(Token token, int index) throws IOException {
+            switch (token) {
+            case START_OBJECT:
+                if (index == path.length) {
+                    parser.skipChildren();
+                } else if (extractObject(index) && !stopped) {
+                    skipRestOfObject();
+                }
+                break;
+            case START_ARRAY:
+                extractArray(index);
+                break;
+            case VALUE_NULL:
+                break;
+            default:
+                stopped = sink.accept(parser, token);
+                break;
+            }
+        }
+
+        private void skipRestOfObject() throws IOException {
+            while (parser.nextToken() != Token.END_OBJECT) {
+                parser.skipChildren();
+            }
+        }
+
+        /**
+         * Match an object key against path, starting at index. Keys may
+         * contain dots and match several elements of the path at once.
+         *
+         * @return the index of the next path element to match or -1 if the
+         *         key does not match
+         */
+        private int matchPath(String key, int index) {
+            int pos = 0;
+            for (int i = index; i < path.length; i++) {
+                String element = path[i];
+                if (!key.startsWith(element, pos)) {
+                    return -1;
+                }
+                pos += element.length();
+                if (pos == key.length()) {
+                    return i + 1;
+                }
+                if (key.charAt(pos) != '.') {
+                    return -1;
+                }
+                pos++;
+            }
+            return -1;
         }
     }
 
@@ -74,5 +706,209 @@ public abstract class FieldValues {
             reader.document(docId, visitor);
             return visitor.fields().get(path).stream().map(Object::toString).collect(Collectors.toList());
         }
+
+        @Override
+        public List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException {
+            List<BytesRef> values = new ArrayList<>();
+            reader.document(docId, new Utf8Visitor(path, (bytes, offset, length) -> {
+                // Lucene hands a fresh array for every value
+                values.add(new BytesRef(bytes, offset, length));
+                return false;
+            }));
+            return values;
+        }
+
+        @Override
+        public boolean anyMatch(String path, IndexReader reader, int docId, CharsMatcher matcher) throws IOException {
+            CharsRefBuilder scratch = new CharsRefBuilder();
+            return anyMatchUtf8(path, reader, docId, (bytes, offset, length) -> {
+                scratch.copyUTF8Bytes(bytes, offset, length);
+                return matcher.matches(scratch.chars(), 0, scratch.length());
+            });
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, Utf8Matcher matcher) throws IOException {
+            Utf8Visitor visitor = new Utf8Visitor(path, matcher);
+            reader.document(docId, visitor);
+            return visitor.matched;
+        }
+
+        @Override
+        public boolean readsUtf8(String path) {
+            return true;
+        }
+    }
+
+    private static class DocValuesLoader implements FieldValues.Loader {
+        private static final FieldValues.Loader INSTANCE = new DocValuesLoader();
+
+        @Override
+        public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+            List<String> values = new ArrayList<>();
+            anyMatchUtf8(path, reader, docId, (bytes, offset, length) -> {
+                values.add(new BytesRef(bytes, offset, length).utf8ToString());
+                return false;
+            });
+            return values;
+        }
+
+        @Override
+        public List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException {
+            List<BytesRef> values = new ArrayList<>();
+            anyMatchUtf8(path, reader, docId, (bytes, offset, length) -> {
+                // Doc values reuse their BytesRef
+                values.add(BytesRef.deepCopyOf(new BytesRef(bytes, offset, length)));
+                return false;
+            });
+            return values;
+        }
+
+        @Override
+        public boolean anyMatch(String path, IndexReader reader, int docId, CharsMatcher matcher) throws IOException {
+            CharsRefBuilder scratch = new CharsRefBuilder();
+            return anyMatchUtf8(path, reader, docId, (bytes, offset, length) -> {
+                scratch.copyUTF8Bytes(bytes, offset, length);
+                return matcher.matches(scratch.chars(), 0, scratch.length());
+            });
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, Utf8Matcher matcher) throws IOException {
+            if (!(reader instanceof LeafReader)) {
+                throw new IllegalArgumentException("Doc values can only be loaded from a leaf reader but got [" + reader + "]");
+            }
+            return forSegment(path, (LeafReader) reader).anyMatchUtf8(path, reader, docId, matcher);
+        }
+
+        @Override
+        public boolean readsUtf8(String path) {
+            return true;
+        }
+
+        @Override
+        public Loader forSegment(String path, LeafReader reader) throws IOException {
+            FieldInfo info = reader.getFieldInfos().fieldInfo(path);
+            if (info == null) {
+                return new SegmentDocValues((docId, matcher) -> false);
+            }
+            switch (info.getDocValuesType()) {
+            case NONE:
+                return new SegmentDocValues((docId, matcher) -> false);
+            case SORTED_SET:
+                SortedSetDocValues sortedSet = reader.getSortedSetDocValues(path);
+                return new SegmentDocValues((docId, matcher) -> {
+                    sortedSet.setDocument(docId);
+                    for (long ord = sortedSet.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = sortedSet.nextOrd()) {
+                        BytesRef value = sortedSet.lookupOrd(ord);
+                        if (matcher.matches(value.bytes, value.offset, value.length)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                });
+            case SORTED:
+                SortedDocValues sorted = reader.getSortedDocValues(path);
+                return new SegmentDocValues((docId, matcher) -> {
+                    int ord = sorted.getOrd(docId);
+                    if (ord < 0) {
+                        return false;
+                    }
+                    BytesRef value = sorted.lookupOrd(ord);
+                    return matcher.matches(value.bytes, value.offset, value.length);
+                });
+            case BINARY:
+                Bits docsWithField = reader.getDocsWithField(path);
+                BinaryDocValues binary = reader.getBinaryDocValues(path);
+                return new SegmentDocValues((docId, matcher) -> {
+                    if (docsWithField == null || !docsWithField.get(docId)) {
+                        return false;
+                    }
+                    BytesRef value = binary.get(docId);
+                    return matcher.matches(value.bytes, value.offset, value.length);
+                });
+            default:
+                throw new IllegalArgumentException("Cannot load strings from [" + info.getDocValuesType()
+                        + "] doc values of field [" + path + "]");
+            }
+        }
+    }
+
+    /**
+     * Doc values of a single segment, looked up once for all its docs.
+     */
+    private static class SegmentDocValues extends DocValuesLoader {
+        private final DocValuesMatcher values;
+
+        SegmentDocValues(DocValuesMatcher values) {
+            this.values = values;
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, Utf8Matcher matcher) throws IOException {
+            return values.anyMatch(docId, matcher);
+        }
+    }
+
+    /**
+     * Feeds the doc values of a doc to a matcher.
+     */
+    @FunctionalInterface
+    private interface DocValuesMatcher {
+        boolean anyMatch(int docId, Utf8Matcher matcher) throws IOException;
+    }
+
+    /**
+     * Feeds the values of a single stored field to a matcher, keeping
+     * strings in the UTF-8 form Lucene stores them in. Stops visiting once
+     * the matcher matched.
+     */
+    private static class Utf8Visitor extends StoredFieldVisitor {
+        private final String field;
+        private final Utf8Matcher matcher;
+        private boolean matched;
+
+        Utf8Visitor(String field, Utf8Matcher matcher) {
+            this.field = field;
+            this.matcher = matcher;
+        }
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) throws IOException {
+            if (matched) {
+                return Status.STOP;
+            }
+            return field.equals(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void stringField(FieldInfo fieldInfo, byte[] value) throws IOException {
+            matched = matcher.matches(value, 0, value.length);
+        }
+
+        @Override
+        public void intField(FieldInfo fieldInfo, int value) throws IOException {
+            match(Integer.toString(value));
+        }
+
+        @Override
+        public void longField(FieldInfo fieldInfo, long value) throws IOException {
+            match(Long.toString(value));
+        }
+
+        @Override
+        public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+            match(Float.toString(value));
+        }
+
+        @Override
+        public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+            match(Double.toString(value));
+        }
+
+        private void match(String value) {
+            BytesRef bytes = new BytesRef(value);
+            matched = matcher.matches(bytes.bytes, bytes.offset, bytes.length);
+        }
     }
 }
@@ -0,0 +1,78 @@
+package org.wikimedia.search.extra.util;
+
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.index.CodecReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.elasticsearch.common.lucene.index.ElasticsearchLeafReader;
+
+import java.io.IOException;
+
+/**
+ * Leaf reader loading stored fields through the merge instance of the
+ * segment's stored fields reader. Stored fields are compressed in blocks of
+ * documents and the regular reader decompresses the block again for every
+ * document it loads. The merge instance keeps the last block it decompressed
+ * so loading documents in increasing doc id order decompresses each block
+ * only once for all the documents it holds. Loading documents in any other
+ * order still works but is slower.
+ * <p>
+ * Not thread safe: wrap the segment once per thread.
+ */
+public final class SequentialStoredFieldsLeafReader extends FilterLeafReader {
+    private final StoredFieldsReader fieldsReader;
+
+    private SequentialStoredFieldsLeafReader(LeafReader in, StoredFieldsReader fieldsReader) {
+        super(in);
+        this.fieldsReader = fieldsReader;
+    }
+
+    /**
+     * Wrap reader to load its stored fields sequentially. Readers are only
+     * wrapped when the segment under them can be reached through wrappers
+     * that do not filter stored fields, otherwise reader is returned as is.
+     */
+    public static LeafReader wrap(LeafReader reader) throws IOException {
+        LeafReader segment = reader;
+        while (segment instanceof ElasticsearchLeafReader) {
+            segment = ((ElasticsearchLeafReader) segment).getDelegate();
+        }
+        if (!(segment instanceof CodecReader)) {
+            return reader;
+        }
+        StoredFieldsReader fieldsReader = ((CodecReader) segment).getFieldsReader();
+        if (fieldsReader == null) {
+            return reader;
+        }
+        StoredFieldsReader sequential = fieldsReader.getMergeInstance();
+        if (sequential == fieldsReader) {
+            // The codec doesn't have a sequential reader, this is the
+            // segment's shared reader so let the segment use it.
+            return reader;
+        }
+        return new SequentialStoredFieldsLeafReader(reader, sequential);
+    }
+
+    /**
+     * Same docs as the wrapped reader, only loaded differently.
+     */
+    @Override
+    public Object getCoreCacheKey() {
+        return in.getCoreCacheKey();
+    }
+
+    @Override
+    public Object getCombinedCoreAndDeletesKey() {
+        return in.getCombinedCoreAndDeletesKey();
+    }
+
+    @Override
+    public void document(int docID, StoredFieldVisitor visitor) throws IOException {
+        ensureOpen();
+        if (docID < 0 || docID >= maxDoc()) {
+            throw new IndexOutOfBoundsException("docID must be >= 0 and < maxDoc=" + maxDoc() + " (got docID=" + docID + ")");
+        }
+        fieldsReader.visitDocument(docID, visitor);
+    }
+}
@@ -0,0 +1,124 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingCaseFoldingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingUtf8Rechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+public class AcceleratedSourceRegexQueryTest extends LuceneTestCase {
+    private static final int DOCS_PER_SEGMENT = 100;
+
+    @Test
+    public void scansSegmentsWhereTheApproximationMatchesEverything() throws IOException {
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig().setMergePolicy(NoMergePolicy.INSTANCE))) {
+                // In the first segment every doc has the ngram
+                for (int i = 0; i < DOCS_PER_SEGMENT; i++) {
+                    writer.addDocument(doc(i % 10 == 0 ? "a needle" : "needless hay", true));
+                }
+                writer.commit();
+                // In the second one only a few do
+                for (int i = 0; i < DOCS_PER_SEGMENT; i++) {
+                    writer.addDocument(i % 10 == 0 ? doc("a needle", true) : doc("hay", false));
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                assertEquals(2, reader.leaves().size());
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setQueryCache(null);
+                Settings settings = new Settings();
+                AcceleratedSourceRegexQuery query = new AcceleratedSourceRegexQuery(
+                        new NonBacktrackingCaseFoldingRechecker("a needle", settings), "field", FieldValues.loadFromStoredField(), settings,
+                        new TermQuery(new Term("ngram", "nee")), 110, SourceRegexServices.NONE);
+                assertEquals(20, searcher.count(query));
+                assertThat(query.toString(), containsString("~110 candidates, segments accelerated: 1, scanned: 1"));
+                // Every doc of the scanned segment and the docs with the ngram in the other are candidates
+                assertEquals(110, query.profile.candidates());
+                assertEquals(110, query.profile.rechecked());
+                assertEquals(20, query.profile.matches());
+                assertEquals(10 * "a needle".length() + 10 * "a needle".length() + 90 * "needless hay".length(),
+                        query.profile.charsLoaded());
+                assertThat(query.toString(), containsString("candidates: 110, rechecked: 110, matches: 20, chars loaded: 1240"));
+                // Not matching anything in a segment doesn't count
+                Query missing = new AcceleratedSourceRegexQuery(new NonBacktrackingCaseFoldingRechecker("a needle", settings), "field",
+                        FieldValues.loadFromStoredField(), settings, new TermQuery(new Term("ngram", "xyz")));
+                assertEquals(0, searcher.count(missing));
+                assertEquals("source_regex(accelerated):", missing.toString());
+            }
+        }
+    }
+
+    @Test
+    public void countsWhatStreamingRechecksLoad() throws IOException {
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+                writer.addDocument(doc("hay", true));
+                writer.addDocument(doc("a néedle", true));
+            }
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setQueryCache(null);
+                Settings settings = new Settings();
+                AcceleratedSourceRegexQuery chars = new AcceleratedSourceRegexQuery(
+                        new NonBacktrackingCaseFoldingRechecker("néedle", settings), "field",
+                        FieldValues.loadFromStoredField(), settings, new TermQuery(new Term("ngram", "nee")), 2,
+                        SourceRegexServices.NONE);
+                assertEquals(1, searcher.count(chars));
+                assertEquals("hay".length() + "a néedle".length(), chars.profile.charsLoaded());
+                assertEquals(0, chars.profile.bytesLoaded());
+                assertThat(chars.toString(), containsString("chars loaded: 11, load and recheck: "));
+                assertThat(chars.toString(), not(containsString("load: ")));
+
+                AcceleratedSourceRegexQuery utf8 = new AcceleratedSourceRegexQuery(
+                        new NonBacktrackingUtf8Rechecker("néedle", settings), "field",
+                        FieldValues.loadFromStoredField(), settings, new TermQuery(new Term("ngram", "nee")), 2,
+                        SourceRegexServices.NONE);
+                assertEquals(1, searcher.count(utf8));
+                // é is two bytes long
+                assertEquals(12, utf8.profile.bytesLoaded());
+                assertEquals(0, utf8.profile.charsLoaded());
+                assertThat(utf8.toString(), containsString("bytes loaded: 12, load and recheck: "));
+                assertThat(utf8.toString(), not(containsString("chars loaded")));
+
+                Settings sensitive = new Settings().caseSensitive(true);
+                AcceleratedSourceRegexQuery sensitiveChars = new AcceleratedSourceRegexQuery(
+                        new NonBacktrackingRechecker("néedle", sensitive), "field", FieldValues.loadFromStoredField(), sensitive,
+                        new TermQuery(new Term("ngram", "nee")), 2, SourceRegexServices.NONE);
+                assertEquals(1, searcher.count(sensitiveChars));
+                assertEquals(11, sensitiveChars.profile.charsLoaded());
+                assertThat(sensitiveChars.toString(), containsString("load and recheck: "));
+            }
+        }
+    }
+
+    private static Document doc(String text, boolean ngram) {
+        Document doc = new Document();
+        doc.add(new StoredField("field", text));
+        if (ngram) {
+            doc.add(new StringField("ngram", "nee", Field.Store.NO));
+        }
+        return doc;
+    }
+}
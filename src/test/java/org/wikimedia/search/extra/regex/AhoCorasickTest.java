@@ -0,0 +1,75 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class AhoCorasickTest extends LuceneTestCase {
+    @Test
+    public void overlappingLiterals() {
+        AhoCorasick matcher = AhoCorasick.forChars(literals("he", "she", "his", "hers"));
+        assertEquals(Arrays.asList("she:1", "he:2", "hers:2"), matches(matcher, "ushers"));
+        assertEquals(Arrays.asList("his:1"), matches(matcher, "this"));
+        assertEquals(Arrays.asList(), matches(matcher, "hxs"));
+    }
+
+    @Test
+    public void caseFoldedIntoTheTable() {
+        AhoCorasick matcher = AhoCorasick.forChars(literals("he", "she", "kit"), CaseFolding.DEFAULT);
+        assertEquals(Arrays.asList("ShE:1", "hE:2"), matches(matcher, "uShErs"));
+        // The kelvin sign lowercases to k
+        assertEquals(Arrays.asList("\u212AIT:0"), matches(matcher, "\u212AIT"));
+        AhoCorasick utf8 = AhoCorasick.forUtf8(Collections.singletonList("kit".getBytes(StandardCharsets.UTF_8)), CaseFolding.DEFAULT);
+        assertEquals(0, utf8.step(0, 'x'));
+        int state = 0;
+        for (byte b : "KIT".getBytes(StandardCharsets.UTF_8)) {
+            state = utf8.step(state, b & 0xFF);
+        }
+        assertNotNull(utf8.matchLengths(state));
+    }
+
+    @Test
+    public void sameAsIndexOf() {
+        for (int round = 0; round < 100; round++) {
+            List<String> strings = new ArrayList<>();
+            for (int i = 0; i < random().nextInt(10) + 1; i++) {
+                strings.add(TestUtil.randomSimpleStringRange(random(), 'a', 'd', 4) + "x");
+            }
+            AhoCorasick matcher = AhoCorasick.forChars(strings.stream().map(String::toCharArray).collect(Collectors.toList()));
+            String text = TestUtil.randomSimpleStringRange(random(), 'a', 'x', 100);
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                state = matcher.step(state, text.charAt(i));
+                int end = i + 1;
+                boolean expected = strings.stream().anyMatch(s -> text.startsWith(s, end - s.length()));
+                assertEquals(strings + " ending at " + end + " in " + text, expected, matcher.matchLengths(state) != null);
+            }
+        }
+    }
+
+    private static List<char[]> literals(String... literals) {
+        return Arrays.stream(literals).map(String::toCharArray).collect(Collectors.toList());
+    }
+
+    private static List<String> matches(AhoCorasick matcher, String text) {
+        List<String> matches = new ArrayList<>();
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            state = matcher.step(state, text.charAt(i));
+            int[] lengths = matcher.matchLengths(state);
+            if (lengths != null) {
+                for (int length : lengths) {
+                    matches.add(text.substring(i + 1 - length, i + 1) + ":" + (i + 1 - length));
+                }
+            }
+        }
+        return matches;
+    }
+}
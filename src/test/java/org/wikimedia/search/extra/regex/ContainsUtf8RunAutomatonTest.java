@@ -0,0 +1,148 @@
+package org.wikimedia.search.extra.regex;
+
+import com.carrotsearch.randomizedtesting.generators.RandomPicks;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+public class ContainsUtf8RunAutomatonTest extends LuceneTestCase {
+    private static final String[] REGEXES = {"cat", "i h[ai]ve", "[^a]b", "λ\\+μ", "stra(ß|ss)e", "ςt[aeiou]st", "ά",
+        "[A-Z]+", "a.c", "[^]]*s[tabcse]{1,3}", "x*y", "İ", "[À-ÿ]{2}",
+        "\\{\\{(cite web|cite news|infobox)", "[0-9](cat|λ)", "kitten", "(cat|dog)s? [0-9]"};
+    private static final String[] SNIPPETS = {"CAT", "I HaVe", "Ab", "Λ+Μ", "STRASSE", "Straße", "ΣTEST", "Ά", "İ", "ÀÉ",
+        "XY", "abc", "{{Cite News", "{{INFOBOX", "3Λ", "KİTTEN", "\u212AITTEN", "DOGS 7"};
+
+    @Test
+    public void caseSensitive() {
+        Settings settings = new Settings().caseSensitive(true);
+        assertTrue(utf8("Cat", settings).contains(utf8("A Cat")));
+        assertFalse(utf8("Cat", settings).contains(utf8("a cat")));
+        assertSameAsCharRun(settings, false);
+    }
+
+    @Test
+    public void caseInsensitive() {
+        Settings settings = new Settings();
+        assertTrue(utf8("i h[ai]ve", settings).contains(utf8("I HAVE the test")));
+        assertTrue(utf8("λ\\+μ", settings).contains(utf8("ONLY Λ+Μ")));
+        // [^a] must not match A because it is lowercased to a
+        assertFalse(utf8("[^a]b", settings).contains(utf8("Ab")));
+        assertSameAsCharRun(settings, true);
+    }
+
+    @Test
+    public void caseInsensitiveLiterals() {
+        Settings settings = new Settings();
+        ContainsUtf8RunAutomaton run = utf8("Needle[0-9]ROPES", settings);
+        assertEquals(Arrays.asList("needle", "ropes"), run.literals());
+        assertTrue(run.contains(utf8("a NEEDLE7RoPeS")));
+        assertFalse(run.contains(utf8("a NEEDLE7RoPe")));
+        // Dotted I lowercases to i and the kelvin sign to k so bytes
+        // lowercased one by one only find the rest of the literal
+        run = utf8("kitten", settings);
+        assertEquals(Collections.singletonList("tten"), run.literals());
+        assertTrue(run.contains(utf8("\u212AİTTEN")));
+        assertTrue(utf8("(cat|dog)s? [0-9]", settings).hasAlternatives());
+    }
+
+    @Test
+    public void greek() {
+        Settings settings = new Settings().locale(new Locale("el"));
+        assertTrue(utf8("α", settings).contains(utf8("Ά")));
+        assertTrue(utf8("σ", settings).contains(utf8("ς")));
+        assertSameAsCharRun(settings, true);
+    }
+
+    @Test
+    public void turkish() {
+        Settings settings = new Settings().locale(new Locale("tr"));
+        // I lowercases to dotless i and dotted I to i
+        assertTrue(utf8("ı", settings).contains(utf8("I")));
+        assertFalse(utf8("i", settings).contains(utf8("I")));
+        assertTrue(utf8("i", settings).contains(utf8("İ")));
+        assertTrue(SourceRegexCache.DISABLED.charRun("ırmak", settings, true).contains("IRMAK"));
+        assertFalse(SourceRegexCache.DISABLED.charRun("irmak", settings, true).contains("IRMAK"));
+        assertSameAsCharRun(settings, true);
+    }
+
+    @Test
+    public void turkishSameAsLowercasingTheText() {
+        for (Locale locale : new Locale[] {new Locale("tr"), new Locale("az")}) {
+            Settings settings = new Settings().locale(locale);
+            for (String regex : REGEXES) {
+                ContainsCharacterRunAutomaton folded = SourceRegexCache.DISABLED.charRun(regex, settings, true);
+                ContainsCharacterRunAutomaton lowercased = SourceRegexCache.DISABLED.charRun(regex, settings, false);
+                for (int i = 0; i < 50; i++) {
+                    String s = TestUtil.randomSimpleString(random(), 20) + RandomPicks.randomFrom(random(), SNIPPETS);
+                    assertEquals(locale + ": /" + regex + "/ against [" + s + "]", lowercased.contains(s.toLowerCase(locale)),
+                            folded.contains(s));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void turkishCombiningDotAboveIsNotFolded() {
+        // String.toLowerCase turns I followed by a combining dot above into
+        // i but folding goes char by char: the I folds to ı and the dot stays
+        Locale turkish = new Locale("tr");
+        Settings settings = new Settings().locale(turkish);
+        assertEquals("i", "I\u0307".toLowerCase(turkish));
+        assertFalse(SourceRegexCache.DISABLED.charRun("i", settings, true).contains("I\u0307"));
+        assertFalse(utf8("i", settings).contains(utf8("I\u0307")));
+        assertTrue(SourceRegexCache.DISABLED.charRun("ı\u0307", settings, true).contains("I\u0307"));
+        assertTrue(utf8("ı\u0307", settings).contains(utf8("I\u0307")));
+    }
+
+    @Test
+    public void matchesOnlyStartOnCodePoints() {
+        // ā is encoded C4 81 and Ł is C5 81, the trailing 81 of ā must not
+        // be mistaken for the start of a Ł
+        Settings settings = new Settings().caseSensitive(true);
+        assertTrue(utf8("Ł", settings).contains(utf8("xāŁ")));
+        assertFalse(utf8("Ł", settings).contains(utf8("xāā")));
+    }
+
+    private void assertSameAsCharRun(Settings settings, boolean caseConverting) {
+        for (String regex : REGEXES) {
+            ContainsCharacterRunAutomaton charRun = SourceRegexCache.DISABLED.charRun(regex, settings, caseConverting);
+            ContainsUtf8RunAutomaton utf8Run = utf8(regex, settings);
+            for (int i = 0; i < 200; i++) {
+                String s = randomText();
+                boolean expected = charRun.contains(s);
+                assertEquals("/" + regex + "/ against [" + s + "]", expected, utf8Run.contains(utf8(s)));
+                char[] chars = ("Ł" + s + "Ł").toCharArray();
+                assertEquals("/" + regex + "/ against [" + s + "]", expected, charRun.contains(chars, 1, s.length()));
+            }
+        }
+    }
+
+    private String randomText() {
+        switch (random().nextInt(3)) {
+        case 0:
+            return TestUtil.randomUnicodeString(random(), 20);
+        case 1:
+            return TestUtil.randomRealisticUnicodeString(random(), 20);
+        default:
+            return TestUtil.randomSimpleString(random(), 20) + RandomPicks.randomFrom(random(), SNIPPETS);
+        }
+    }
+
+    private static ContainsUtf8RunAutomaton utf8(String regex, Settings settings) {
+        return SourceRegexCache.DISABLED.utf8Run(regex, settings);
+    }
+
+    private static BytesRef utf8(String s) {
+        // Offset the bytes to make sure the offset is respected
+        BytesRef bytes = new BytesRef("Ł" + s);
+        bytes.offset += 2;
+        bytes.length -= 2;
+        return bytes;
+    }
+}
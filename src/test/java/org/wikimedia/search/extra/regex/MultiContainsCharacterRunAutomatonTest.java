@@ -0,0 +1,98 @@
+package org.wikimedia.search.extra.regex;
+
+import com.carrotsearch.randomizedtesting.generators.RandomPicks;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+public class MultiContainsCharacterRunAutomatonTest extends LuceneTestCase {
+    private static final List<String> REGEXES = Arrays.asList("cat", "cats?", "(cat|dog)s", "foo.*bar", "[a-z]+\\@[a-z]+\\.org",
+            "λ\\+μ", "stra(ß|ss)e", "\\{\\{cite (web|news)", "x(yz)+w", "[0-9]{3}");
+    private static final String[] SNIPPETS = {"cat", "dogs", "foo bar", "x@y.org", "Λ+Μ", "STRASSE", "{{Cite News", "xyzyzw", "123"};
+
+    @Test
+    public void reportsEveryMatch() {
+        MultiContainsCharacterRunAutomaton run = new MultiContainsCharacterRunAutomaton(automata(REGEXES), 10000);
+        assertEquals(0b11, run.matches("a cat", false));
+        assertEquals(0b111, run.matches("cats", false));
+        assertEquals(0b1000, run.matches("a foo and a bar", false));
+        assertEquals(0, run.matches("nothing", false));
+        // Stopping at the first match only reports the regexes matching there
+        assertEquals(0b11, run.matches("cats", true));
+        // Markers in the text aren't matches
+        String marker = new String(Character.toChars(Character.MAX_CODE_POINT - 64));
+        assertEquals(0, run.matches(marker + "ca" + marker + "t", false));
+    }
+
+    @Test
+    public void sameAsSeparateAutomata() {
+        assertSameAsSeparate(new MultiContainsCharacterRunAutomaton(automata(REGEXES), 10000), false);
+        List<String> lowercased = REGEXES.stream().map(r -> r.toLowerCase(Locale.ROOT)).collect(Collectors.toList());
+        assertSameAsSeparate(new MultiContainsCharacterRunAutomaton(automata(lowercased), CaseFolding.DEFAULT, 10000), true);
+    }
+
+    @Test
+    public void tooManyAutomata() {
+        List<String> regexes = new ArrayList<>();
+        for (int i = 0; i <= MultiContainsCharacterRunAutomaton.MAX_AUTOMATA; i++) {
+            regexes.add("a" + i);
+        }
+        expectThrows(IllegalArgumentException.class, () -> new MultiContainsCharacterRunAutomaton(automata(regexes), 10000));
+        MultiContainsCharacterRunAutomaton run = new MultiContainsCharacterRunAutomaton(automata(regexes.subList(0, 64)), 100000);
+        assertEquals(1L << 63 | 1L << 6, run.matches("a63", false));
+    }
+
+    private void assertSameAsSeparate(MultiContainsCharacterRunAutomaton run, boolean lowerCasing) {
+        List<CharacterRunAutomaton> separate = REGEXES.stream()
+                .map(r -> new CharacterRunAutomaton(automaton(".*(" + (lowerCasing ? r.toLowerCase(Locale.ROOT) : r) + ").*")))
+                .collect(Collectors.toList());
+        for (int i = 0; i < 500; i++) {
+            String s = randomText();
+            String checked = lowerCasing ? lowerCase(s) : s;
+            long expected = 0;
+            for (int r = 0; r < separate.size(); r++) {
+                if (separate.get(r).run(checked)) {
+                    expected |= 1L << r;
+                }
+            }
+            assertEquals(s, expected, run.matches(s, false));
+            assertEquals(s, expected, run.matches(("x" + s).toCharArray(), 1, s.length(), false));
+            assertEquals(s, expected != 0, run.matches(s, true) != 0);
+        }
+    }
+
+    private static List<Automaton> automata(List<String> regexes) {
+        return regexes.stream().map(MultiContainsCharacterRunAutomatonTest::automaton).collect(Collectors.toList());
+    }
+
+    private static Automaton automaton(String regex) {
+        return new RegExp(regex, RegExp.ALL ^ RegExp.AUTOMATON).toAutomaton(10000);
+    }
+
+    private static String lowerCase(String s) {
+        StringBuilder b = new StringBuilder();
+        s.codePoints().map(Character::toLowerCase).forEach(b::appendCodePoint);
+        return b.toString();
+    }
+
+    private String randomText() {
+        switch (random().nextInt(3)) {
+        case 0:
+            return TestUtil.randomUnicodeString(random(), 20);
+        case 1:
+            return TestUtil.randomRealisticUnicodeString(random(), 20);
+        default:
+            return TestUtil.randomSimpleString(random(), 10) + RandomPicks.randomFrom(random(), SNIPPETS)
+                    + TestUtil.randomSimpleString(random(), 10) + RandomPicks.randomFrom(random(), SNIPPETS);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.test.AbstractQueryTestCase;
+import org.wikimedia.search.extra.MockPluginWithoutNativeScript;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+public class MultiSourceRegexQueryBuilderESTest extends AbstractQueryTestCase<MultiSourceRegexQueryBuilder> {
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singleton(MockPluginWithoutNativeScript.class);
+    }
+    private static final String MY_FIELD = "regex_field";
+    private static final String MY_FIELD_NGRAM = "regex_field_ngram";
+
+    @Override
+    protected void initializeAdditionalMappings(MapperService mapperService) throws IOException {
+        mapperService.merge("trigram_field",
+                new CompressedXContent("{\"properties\":{" +
+                        "\""+MY_FIELD+"\":{\"type\":\"text\" }," +
+                        "\""+MY_FIELD_NGRAM+"\":{\"type\":\"text\" }" +
+                        "}}" ),
+                MapperService.MergeReason.MAPPING_UPDATE, false);
+    }
+
+    @Override
+    protected String[] shuffleProtectedFields() {
+        // The order of the regexes is the order of the named queries
+        return new String[] {MultiSourceRegexQueryBuilder.REGEXES.getPreferredName()};
+    }
+
+    @Override
+    protected MultiSourceRegexQueryBuilder doCreateTestQueryBuilder() {
+        Map<String, String> regexes = new LinkedHashMap<>();
+        int count = randomIntBetween(1, 5);
+        for (int i = 0; i < count; i++) {
+            regexes.put("regex" + i, randomFrom("ramdom[reg]ex", "cats?", "foo.*bar", "a(b|c)d"));
+        }
+        MultiSourceRegexQueryBuilder builder = new MultiSourceRegexQueryBuilder(MY_FIELD, regexes);
+        if (randomBoolean()) {
+            builder.ngramField(MY_FIELD_NGRAM);
+        }
+        if (randomBoolean()) {
+            builder.gramSize(randomIntBetween(2, 4));
+        }
+        if (randomBoolean()) {
+            builder.loadFromSource(randomBoolean());
+        }
+        if (randomBoolean()) {
+            builder.settings().maxInspect(randomIntBetween(1, 10000));
+        }
+        if (randomBoolean()) {
+            builder.settings().rejectUnaccelerated(randomBoolean());
+        }
+        if (randomBoolean()) {
+            builder.settings().locale(randomFrom(Locale.FRENCH, Locale.ENGLISH, new Locale("el"), new Locale("tr")));
+        }
+        if (randomBoolean()) {
+            builder.settings().caseSensitive(randomBoolean());
+        }
+        if (randomBoolean()) {
+            builder.settings().maxDeterminizedStates(randomIntBetween(1000, 20000));
+        }
+        return builder;
+    }
+
+    @Override
+    protected void doAssertLuceneQuery(MultiSourceRegexQueryBuilder queryBuilder, Query query, SearchContext context)
+            throws IOException {
+        assertThat(query, instanceOf(MultiSourceRegexQuery.class));
+        MultiSourceRegexQuery mquery = (MultiSourceRegexQuery) query;
+        assertEquals(queryBuilder.field(), mquery.getFieldPath());
+        assertEquals(queryBuilder.ngramField(), mquery.getNgramFieldPath());
+        assertEquals(queryBuilder.settings(), mquery.getSettings());
+        assertEquals(queryBuilder.regexes().size(), mquery.getRegexes().size());
+        assertTrue(context.getQueryShardContext().copyNamedQueries().keySet().containsAll(queryBuilder.regexes().keySet()));
+    }
+
+    public void testParseDocExample() throws IOException {
+        String json = "{\"source_regex_multi\": {\n" +
+                "   \"field\": \"" + MY_FIELD + "\",\n" +
+                "   \"regexes\": {\n" +
+                "       \"cite\": \"\\\\{\\\\{cite (web|news)\",\n" +
+                "       \"infobox\": \"\\\\{\\\\{infobox\"\n" +
+                "   },\n" +
+                "   \"ngram_field\" : \"" + MY_FIELD_NGRAM + "\",\n" +
+                "   \"max_inspect\" : 11\n" +
+                "}}";
+        QueryBuilder builder = parseQuery(json);
+        assertThat(builder, instanceOf(MultiSourceRegexQueryBuilder.class));
+        Map<String, String> regexes = new LinkedHashMap<>();
+        regexes.put("cite", "\\{\\{cite (web|news)");
+        regexes.put("infobox", "\\{\\{infobox");
+        MultiSourceRegexQueryBuilder expected = new MultiSourceRegexQueryBuilder(MY_FIELD, regexes);
+        expected.ngramField(MY_FIELD_NGRAM);
+        expected.settings().maxInspect(11);
+        assertEquals(expected, builder);
+        assertEquals(Arrays.asList("cite", "infobox"), Arrays.asList(((MultiSourceRegexQueryBuilder) builder).regexes().keySet()
+                .toArray(new String[0])));
+    }
+
+    public void testRejectsEmptyRegexes() {
+        String json = "{\"source_regex_multi\": {\"field\": \"" + MY_FIELD + "\", \"regexes\": {}}}";
+        assertThat(expectThrows(ParsingException.class, () -> parseQuery(json)).getCause().getCause().getMessage(),
+                containsString("requires between 1 and 64 regexes"));
+    }
+
+    @Override
+    protected Query rewrite(Query query) throws IOException {
+        // Do not rewrite, rewriting deserves its own subtest
+        return query;
+    }
+
+    public void testLuceneRewrite() throws IOException {
+        Map<String, String> regexes = new LinkedHashMap<>();
+        regexes.put("a", "abc");
+        regexes.put("b", "def");
+        MultiSourceRegexQueryBuilder builder = new MultiSourceRegexQueryBuilder(MY_FIELD, regexes);
+        assertThat(buildAndRewrite(builder), instanceOf(UnacceleratedSourceRegexQuery.class));
+
+        builder.settings().rejectUnaccelerated(true);
+        expectThrows(UnableToAccelerateRegexException.class, () -> buildAndRewrite(builder));
+
+        builder.ngramField(MY_FIELD_NGRAM);
+        assertThat(buildAndRewrite(builder), instanceOf(AcceleratedSourceRegexQuery.class));
+
+        // A single regex that can't be accelerated makes the whole query unaccelerated
+        regexes.put("c", "a.c");
+        MultiSourceRegexQueryBuilder unaccelerated = new MultiSourceRegexQueryBuilder(MY_FIELD, regexes);
+        unaccelerated.ngramField(MY_FIELD_NGRAM);
+        assertThat(buildAndRewrite(unaccelerated), instanceOf(UnacceleratedSourceRegexQuery.class));
+    }
+
+    public void testPatternsLoadEachDocOnce() throws IOException {
+        List<String> regexes = Arrays.asList("abc", "def", "gh+i");
+        int docs = randomIntBetween(10, 100);
+        try (Directory directory = newDirectory()) {
+            IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer()).setCodec(TestUtil.getDefaultCodec());
+            try (IndexWriter writer = new IndexWriter(directory, config)) {
+                for (int i = 0; i < docs; i++) {
+                    Document doc = new Document();
+                    doc.add(new StoredField(MY_FIELD, randomFrom("abc def", "ghhi", "jkl")));
+                    writer.addDocument(doc);
+                }
+                writer.forceMerge(1);
+            }
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = new IndexSearcher(reader);
+                searcher.setQueryCache(null);
+                CountingLoader loader = new CountingLoader();
+                MultiSourceRegexQuery query = new MultiSourceRegexQuery(MY_FIELD, null, null, regexes, loader,
+                        new SourceRegexQueryBuilder.Settings(), 3, null, SourceRegexServices.NONE);
+                // Like named queries, check each pattern against every doc with a scorer of its own
+                for (int i = 0; i < regexes.size(); i++) {
+                    Weight weight = searcher.createNormalizedWeight(query.patternQuery(i), false);
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        Scorer scorer = weight.scorer(leaf);
+                        TwoPhaseIterator twoPhase = scorer.twoPhaseIterator();
+                        while (twoPhase.approximation().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                            twoPhase.matches();
+                        }
+                    }
+                }
+                assertEquals(docs, loader.loads);
+            }
+        }
+    }
+
+    /**
+     * Loads stored fields, counting how many times a doc is loaded.
+     */
+    private static class CountingLoader implements FieldValues.Loader {
+        private final FieldValues.Loader delegate = FieldValues.loadFromStoredField();
+        private int loads;
+
+        @Override
+        public List<String> load(String path, IndexReader reader, int docId) throws IOException {
+            loads++;
+            return delegate.load(path, reader, docId);
+        }
+
+        @Override
+        public List<BytesRef> loadUtf8(String path, IndexReader reader, int docId) throws IOException {
+            loads++;
+            return delegate.loadUtf8(path, reader, docId);
+        }
+
+        @Override
+        public boolean anyMatch(String path, IndexReader reader, int docId, FieldValues.CharsMatcher matcher) throws IOException {
+            loads++;
+            return delegate.anyMatch(path, reader, docId, matcher);
+        }
+
+        @Override
+        public boolean anyMatchUtf8(String path, IndexReader reader, int docId, FieldValues.Utf8Matcher matcher)
+                throws IOException {
+            loads++;
+            return delegate.anyMatchUtf8(path, reader, docId, matcher);
+        }
+
+        @Override
+        public boolean readsUtf8(String path) {
+            return delegate.readsUtf8(path);
+        }
+    }
+
+    private Query buildAndRewrite(MultiSourceRegexQueryBuilder query) throws IOException {
+        MemoryIndex index = new MemoryIndex();
+        index.addField(MY_FIELD_NGRAM, "abc", new KeywordAnalyzer());
+        index.addField(MY_FIELD_NGRAM, "def", new KeywordAnalyzer());
+        IndexReader ir = index.createSearcher().getIndexReader();
+        QueryShardContext context = createShardContext();
+        QueryBuilder rewritten = QueryBuilder.rewriteQuery(query, context);
+        Query lquery = rewritten.toQuery(context);
+        return lquery.rewrite(ir);
+    }
+}
@@ -0,0 +1,170 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.ngram.NGramTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.expression.And;
+import org.wikimedia.search.extra.regex.expression.Expression;
+import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.instanceOf;
+
+public class NGramQueryPlannerTest extends LuceneTestCase {
+    private static final int DOCS = 100;
+    private static final String FIELD = "ngram";
+
+    private final Leaf<String> the = new Leaf<>("the");
+    private final Leaf<String> he = new Leaf<>("he ");
+    private final Leaf<String> qrs = new Leaf<>("qrs");
+    private final Leaf<String> xyz = new Leaf<>("xyz");
+    private final Leaf<String> abc = new Leaf<>("abc");
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void plan() throws IOException {
+        try (Directory directory = newDirectory()) {
+            index(directory);
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                // Near universal ngrams are dropped
+                NGramQueryPlanner.Plan plan = plan(reader, new And<>(the, he, xyz));
+                assertEquals(new TermQuery(new Term(FIELD, "xyz")), plan.query());
+                assertEquals(3, plan.estimate());
+
+                // The rest are sorted rarest first
+                plan = plan(reader, new And<>(qrs, the, xyz));
+                assertEquals(Arrays.asList("xyz", "qrs"), terms(plan.query()));
+                assertEquals(3, plan.estimate());
+
+                // The rarest is kept even when everything is common
+                plan = plan(reader, new And<>(the, he));
+                assertEquals(new TermQuery(new Term(FIELD, "he ")), plan.query());
+
+                // Missing ngrams make conjunctions match nothing
+                assertEquals(0, plan(reader, new And<>(the, abc)).estimate());
+                // And are skipped in disjunctions
+                plan = plan(reader, new Or<>(abc, xyz));
+                assertEquals(new TermQuery(new Term(FIELD, "xyz")), plan.query());
+                assertEquals(0, plan(reader, new Or<>(abc, new And<>(abc, the))).estimate());
+
+                plan = plan(reader, new Or<>(qrs, new And<>(the, xyz)));
+                assertEquals(13, plan.estimate());
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void findsAtLeastTheSameDocs() throws IOException {
+        List<Expression<String>> expressions = Arrays.asList(new And<>(the, he, xyz), new And<>(qrs, the, xyz),
+                new Or<>(qrs, new And<>(the, xyz)), new And<>(the, new Or<>(he, qrs)), new And<>(he, new Or<>(qrs, abc)));
+        try (Directory directory = newDirectory()) {
+            index(directory);
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                for (Expression<String> expression : expressions) {
+                    int expected = searcher.count(expression.transform(new ExpressionToQueryTransformer(FIELD)));
+                    NGramQueryPlanner.Plan plan = plan(reader, expression);
+                    int found = searcher.count(plan.query());
+                    assertTrue(expression.toString(), found >= expected);
+                    assertTrue(expression.toString(), plan.estimate() >= found);
+                }
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void adjacency() throws IOException {
+        Analyzer trigrams = new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                return new TokenStreamComponents(new NGramTokenizer(3, 3));
+            }
+        };
+        try (Directory directory = newDirectory()) {
+            try (IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig(trigrams))) {
+                for (String text : new String[] {"foobar", "foo and bar", "barfoo", "xfoobarx"}) {
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, text, Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+            }
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                IndexSearcher searcher = newSearcher(reader);
+                NGramQueryPlanner planner = new NGramQueryPlanner(FIELD, reader);
+                Expression<String> expression = new And<>(new Leaf<>("foo"), new Leaf<>("oob"), new Leaf<>("oba"),
+                        new Leaf<>("bar"));
+                Query approximation = expression.transform(planner).query();
+                assertEquals(2, searcher.count(approximation));
+                Query adjacent = planner.withAdjacency(approximation, Collections.singletonList("foobar"), trigrams);
+                assertEquals(2, searcher.count(adjacent));
+                approximation = new And<>(new Leaf<>("foo"), new Leaf<>("bar")).transform(planner).query();
+                assertEquals(4, searcher.count(approximation));
+                adjacent = planner.withAdjacency(approximation, Collections.singletonList("foobar"), trigrams);
+                assertEquals(2, searcher.count(adjacent));
+                // Literals too short to be made of several ngrams aren't checked
+                assertSame(approximation, planner.withAdjacency(approximation, Collections.singletonList("foo"), trigrams));
+            }
+        }
+        // Without positions nothing is checked
+        try (Directory directory = newDirectory()) {
+            index(directory);
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                NGramQueryPlanner planner = new NGramQueryPlanner(FIELD, reader);
+                Query approximation = new And<>(the, xyz).transform(planner).query();
+                assertSame(approximation, planner.withAdjacency(approximation, Collections.singletonList("thexyz"), trigrams));
+            }
+        }
+    }
+
+    private static NGramQueryPlanner.Plan plan(IndexReader reader, Expression<String> expression) {
+        return expression.transform(new NGramQueryPlanner(FIELD, reader));
+    }
+
+    private static List<String> terms(Query query) {
+        assertThat(query, instanceOf(BooleanQuery.class));
+        return ((BooleanQuery) query).clauses().stream().map(BooleanClause::getQuery)
+                .map(q -> ((TermQuery) q).getTerm().text()).collect(Collectors.toList());
+    }
+
+    private static void index(Directory directory) throws IOException {
+        try (IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig())) {
+            for (int i = 0; i < DOCS; i++) {
+                Document doc = new Document();
+                doc.add(new StringField(FIELD, "the", Field.Store.NO));
+                if (i % 20 != 0) {
+                    doc.add(new StringField(FIELD, "he ", Field.Store.NO));
+                }
+                if (i % 10 == 0) {
+                    doc.add(new StringField(FIELD, "qrs", Field.Store.NO));
+                }
+                if (i < 3) {
+                    doc.add(new StringField(FIELD, "xyz", Field.Store.NO));
+                }
+                writer.addDocument(doc);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.wikimedia.search.extra.regex;
+
+import com.carrotsearch.randomizedtesting.generators.RandomPicks;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.automaton.Automaton;
+import org.apache.lucene.util.automaton.CharacterRunAutomaton;
+import org.apache.lucene.util.automaton.RegExp;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class RequiredLiteralsTest extends LuceneTestCase {
+    private static final String[] REGEXES = {"foo.*bar", "cat", "cats?", "(cat|dog)s", "ab(c|d)ef", "[a-z]+\\@[a-z]+\\.org",
+        "x(yz)+w", "λ\\+μ", "stra(ß|ss)e", "[^a]b", "(ab|ac)", "hi(gh)*", "a{2,3}", "a.c", "\\{\\{cite (web|news)", "é.*è",
+        "(foo|bar|baz)x", "[0-9](cat|dog)", "\\{\\{(cite web|cite news|infobox)", "(a|bc)d*", "x(yz|zy)+w"};
+    private static final String[] SNIPPETS = {"foo", "bar", "cat", "dogs", "abcef", "x@y.org", "xyzyzw", "Λ+Μ", "STRASSE", "ab",
+        "{{cite web", "{{Cite News", "aaa", "É è",
+        "bazx", "7dog", "{{Infobox", "bcdd", "xzyyzw"};
+
+    @Test
+    public void extract() {
+        assertLiterals("foo.*bar", "foo", "bar");
+        assertLiterals("cat", "cat");
+        assertLiterals("(cat|dog)s", "s");
+        assertLiterals("ab(c|d)ef", "ab", "ef");
+        assertLiterals("[a-z]+\\@[a-z]+\\.org", ".org", "@");
+        assertLiterals("x(yz)+w", "xyz", "yzw");
+        assertLiterals("\\{\\{cite (web|news)", "{{cite ");
+        assertLiterals("a*");
+        assertLiterals("(ab|ac)", "a");
+        assertLiterals("a.c|b.d");
+        // Only BMP code points make it into literals
+        assertLiterals("a😀b", "a", "b");
+    }
+
+    @Test
+    public void alternatives() {
+        assertAlternatives("\\{\\{(cite web|cite news|infobox)", true, "{{cite news", "{{cite web", "{{infobox");
+        assertAlternatives("(foo|bar|baz)x", true, "barx", "bazx", "foox");
+        // The digit can't be part of a literal
+        assertAlternatives("[0-9](cat|dog)", false, "cat", "dog");
+        assertAlternatives("(a|bc)d*", true, "a", "bc");
+        // Single literals are found by extract
+        assertNull(RequiredLiterals.alternatives(automaton("cat")));
+        assertNull(RequiredLiterals.alternatives(automaton("[a-z]+")));
+        assertNull(RequiredLiterals.alternatives(automaton("(a|b)*")));
+    }
+
+    @Test
+    public void onlyMatch() {
+        assertTrue(RequiredLiterals.isOnlyMatch(automaton("cat"), RequiredLiterals.extract(automaton("cat"))));
+        assertFalse(RequiredLiterals.isOnlyMatch(automaton("cats?"), RequiredLiterals.extract(automaton("cats?"))));
+        assertFalse(RequiredLiterals.isOnlyMatch(automaton("foo.*bar"), RequiredLiterals.extract(automaton("foo.*bar"))));
+    }
+
+    @Test
+    public void prefilterDoesNotChangeMatches() {
+        for (String regex : REGEXES) {
+            CharacterRunAutomaton reference = new CharacterRunAutomaton(automaton(".*(" + regex + ").*"));
+            ContainsCharacterRunAutomaton sensitive = new ContainsCharacterRunAutomaton(automaton(regex));
+            ContainsCharacterRunAutomaton insensitive = new ContainsCharacterRunAutomaton(automaton(regex), CaseFolding.DEFAULT);
+            for (int i = 0; i < 200; i++) {
+                String s = randomText();
+                String message = "/" + regex + "/ against [" + s + "]";
+                assertEquals(message, reference.run(s), sensitive.contains(s));
+                assertEquals(message, reference.run(s), sensitive.contains(s.toCharArray(), 0, s.length()));
+                assertEquals(message, reference.run(lowerCase(s)), insensitive.contains(s));
+                assertEquals(message, reference.run(lowerCase(s)), insensitive.contains(s.toCharArray(), 0, s.length()));
+            }
+        }
+    }
+
+    private static void assertLiterals(String regex, String... expected) {
+        List<String> literals = RequiredLiterals.extract(automaton(regex)).stream().map(String::new).collect(Collectors.toList());
+        assertEquals(regex, Arrays.asList(expected), literals);
+    }
+
+    private static void assertAlternatives(String regex, boolean anchored, String... expected) {
+        RequiredLiterals.Alternatives alternatives = RequiredLiterals.alternatives(automaton(regex));
+        assertNotNull(regex, alternatives);
+        assertEquals(regex, anchored, alternatives.anchored);
+        assertEquals(regex, Arrays.asList(expected), alternatives.literals.stream().map(String::new).sorted().collect(Collectors.toList()));
+    }
+
+    private static Automaton automaton(String regex) {
+        return new RegExp(regex, RegExp.ALL ^ RegExp.AUTOMATON).toAutomaton(10000);
+    }
+
+    private static String lowerCase(String s) {
+        StringBuilder b = new StringBuilder();
+        s.codePoints().map(Character::toLowerCase).forEach(b::appendCodePoint);
+        return b.toString();
+    }
+
+    private String randomText() {
+        switch (random().nextInt(3)) {
+        case 0:
+            return TestUtil.randomUnicodeString(random(), 20);
+        case 1:
+            return TestUtil.randomRealisticUnicodeString(random(), 20);
+        default:
+            return TestUtil.randomSimpleString(random(), 10) + RandomPicks.randomFrom(random(), SNIPPETS)
+                    + TestUtil.randomSimpleString(random(), 10);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class ScanDeadlineTest extends LuceneTestCase {
+    private final AtomicLong nanos = new AtomicLong(random().nextLong());
+    private final AtomicInteger clockReads = new AtomicInteger();
+    private final LongSupplier clock = () -> {
+        clockReads.incrementAndGet();
+        return nanos.get();
+    };
+
+    @Test
+    public void timeout() {
+        ScanDeadline deadline = new ScanDeadline(10, () -> false, () -> { }, clock);
+        assertTrue(deadline.nextSegment());
+        elapse(5);
+        assertTrue(deadline.check(0));
+        elapse(6);
+        assertFalse(deadline.check(1));
+        assertFalse(deadline.stopped());
+        assertTrue(deadline.stop());
+        assertFalse(deadline.stop());
+        // Following segments are skipped
+        assertFalse(deadline.nextSegment());
+        assertFalse(deadline.copy().nextSegment());
+    }
+
+    @Test
+    public void timeoutAlsoCheckedWhenSwitchingSegments() {
+        ScanDeadline deadline = new ScanDeadline(10, () -> false, () -> { }, clock);
+        assertTrue(deadline.nextSegment());
+        elapse(11);
+        assertFalse(deadline.nextSegment());
+    }
+
+    @Test
+    public void reportsTimeoutOnce() {
+        AtomicInteger timeouts = new AtomicInteger();
+        ScanDeadline deadline = new ScanDeadline(10, () -> false, timeouts::incrementAndGet, clock);
+        ScanDeadline copy = deadline.copy();
+        assertTrue(deadline.nextSegment());
+        assertTrue(copy.nextSegment());
+        assertEquals(0, timeouts.get());
+        elapse(11);
+        assertFalse(deadline.nextSegment());
+        assertFalse(copy.nextSegment());
+        assertEquals(1, timeouts.get());
+    }
+
+    @Test
+    public void noop() {
+        ScanDeadline deadline = ScanDeadline.none();
+        deadline.nextSegment();
+        for (int doc = 0; doc < 10000; doc++) {
+            deadline.check(doc);
+        }
+        deadline.nextSegment();
+
+        // Without timeout only cancellation is checked
+        ScanDeadline noTimeout = new ScanDeadline(0, () -> false, () -> { }, clock);
+        noTimeout.nextSegment();
+        elapse(Long.MAX_VALUE / 2_000_000);
+        noTimeout.check(0);
+    }
+
+    @Test
+    public void cancelled() {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        ScanDeadline deadline = new ScanDeadline(0, cancelled::get, () -> { }, clock);
+        deadline.nextSegment();
+        deadline.check(0);
+        cancelled.set(true);
+        expectThrows(TaskCancelledException.class, () -> deadline.check(1));
+        // Copies share the task
+        expectThrows(TaskCancelledException.class, () -> deadline.copy().check(0));
+    }
+
+    @Test
+    public void adaptsToTheCostOfDocs() {
+        long start = nanos.get();
+        ScanDeadline deadline = new ScanDeadline(1000, () -> false, () -> { }, clock);
+        deadline.nextSegment();
+        // Cheap docs are checked less and less often
+        int doc = 0;
+        for (int i = 0; i < 100000; i++) {
+            nanos.addAndGet(100);
+            deadline.check(doc++);
+        }
+        assertEquals(ScanDeadline.MAX_DOCS_BETWEEN_CHECKS, deadline.docsBetweenChecks());
+        assertTrue(clockReads.get() < 200);
+        // A slow doc shrinks the interval at once
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(50));
+        int reads = clockReads.get();
+        while (clockReads.get() == reads) {
+            deadline.check(doc++);
+        }
+        assertEquals(20, deadline.docsBetweenChecks());
+        // The deadline is still checked a few milliseconds after it passes
+        deadline.nextSegment();
+        for (int i = 0; deadline.check(i); i++) {
+            nanos.addAndGet(100);
+            assertTrue(nanos.get() - start < TimeUnit.MILLISECONDS.toNanos(1002));
+        }
+    }
+
+    @Test
+    public void largeDocsForceACheck() {
+        ScanDeadline deadline = new ScanDeadline(1000, () -> false, () -> { }, clock);
+        deadline.nextSegment();
+        int doc = 0;
+        for (int i = 0; i < 100000; i++) {
+            deadline.check(doc++);
+        }
+        assertEquals(ScanDeadline.MAX_DOCS_BETWEEN_CHECKS, deadline.docsBetweenChecks());
+        // Loading a large doc forces a check
+        int reads = clockReads.get();
+        deadline.loaded(ScanDeadline.MAX_LOADED_BETWEEN_CHECKS);
+        assertTrue(deadline.check(doc++));
+        assertEquals(reads + 1, clockReads.get());
+        // So do many smaller ones
+        reads = clockReads.get();
+        deadline.loaded(ScanDeadline.MAX_LOADED_BETWEEN_CHECKS / 2);
+        deadline.check(doc++);
+        assertEquals(reads, clockReads.get());
+        deadline.loaded(ScanDeadline.MAX_LOADED_BETWEEN_CHECKS / 2);
+        // The next doc checks although few docs were rechecked since the last check
+        elapse(1001);
+        assertFalse(deadline.check(doc++));
+        assertEquals(reads + 1, clockReads.get());
+    }
+
+    @Test
+    public void withCurrentTime() throws InterruptedException {
+        ScanDeadline deadline = new ScanDeadline(500, () -> false);
+        assertTrue(deadline.nextSegment());
+        Thread.sleep(5);
+        assertTrue(deadline.check(0));
+        Thread.sleep(1000);
+        assertFalse(deadline.check(1));
+    }
+
+    private void elapse(long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
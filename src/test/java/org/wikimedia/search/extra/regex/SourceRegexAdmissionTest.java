@@ -0,0 +1,106 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexAdmission.OnOverload;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.instanceOf;
+
+public class SourceRegexAdmissionTest extends LuceneTestCase {
+    private final CurrentSearchTask phase = new CurrentSearchTask();
+
+    @Test
+    public void rejects() throws Exception {
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 0, TimeValue.ZERO, OnOverload.REJECT, 100);
+        phase.start(null);
+        assertTrue(admission.admit(phase));
+        // A phase only needs one admission
+        assertTrue(admission.admit(phase));
+        ExecutionException e = expectThrows(ExecutionException.class, () -> inOtherPhase(admission).get());
+        assertThat(e.getCause(), instanceOf(EsRejectedExecutionException.class));
+        // Threads running no phase are never limited
+        assertTrue(inOtherThread(() -> admission.admit(new CurrentSearchTask())).get());
+        phase.end();
+        assertTrue(inOtherPhase(admission).get());
+    }
+
+    @Test
+    public void degrades() throws Exception {
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 0, TimeValue.ZERO, OnOverload.DEGRADE, 100);
+        phase.start(null);
+        assertTrue(admission.admit(phase));
+        assertFalse(inOtherPhase(admission).get());
+        phase.end();
+        assertTrue(inOtherPhase(admission).get());
+    }
+
+    @Test
+    public void queues() throws Exception {
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 1, TimeValue.timeValueSeconds(30), OnOverload.DEGRADE, 100);
+        phase.start(null);
+        assertTrue(admission.admit(phase));
+        Future<Boolean> waiting = inOtherPhase(admission);
+        while (admission.queued() == 0) {
+            Thread.sleep(1);
+        }
+        // The queue is full
+        assertFalse(inOtherPhase(admission).get());
+        assertFalse(waiting.isDone());
+        phase.end();
+        assertTrue(waiting.get(30, TimeUnit.SECONDS));
+        assertEquals(0, admission.queued());
+    }
+
+    @Test
+    public void queueTimesOut() throws Exception {
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 1, TimeValue.timeValueMillis(10), OnOverload.DEGRADE, 100);
+        phase.start(null);
+        assertTrue(admission.admit(phase));
+        assertFalse(inOtherPhase(admission).get());
+        phase.end();
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        phase.start(null);
+        assertTrue(SourceRegexAdmission.UNLIMITED.admit(phase));
+        assertTrue(inOtherPhase(SourceRegexAdmission.UNLIMITED).get());
+        phase.end();
+        assertFalse(SourceRegexAdmission.UNLIMITED.expensive(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void expensive() {
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 0, TimeValue.ZERO, OnOverload.REJECT, 100);
+        assertFalse(admission.expensive(100));
+        assertTrue(admission.expensive(101));
+    }
+
+    /**
+     * Admit a phase started on another thread, it ends right after.
+     */
+    private Future<Boolean> inOtherPhase(SourceRegexAdmission admission) {
+        return inOtherThread(() -> {
+            phase.start(null);
+            try {
+                return admission.admit(phase);
+            } finally {
+                phase.end();
+            }
+        });
+    }
+
+    private static Future<Boolean> inOtherThread(Callable<Boolean> callable) {
+        FutureTask<Boolean> task = new FutureTask<>(callable);
+        new Thread(task).start();
+        return task;
+    }
+}
@@ -1,7 +1,9 @@
 package org.wikimedia.search.extra.regex;
 
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.MatchNoDocsQuery;
 import org.apache.lucene.search.Query;
 import org.elasticsearch.common.compress.CompressedXContent;
 import org.elasticsearch.index.mapper.MapperService;
@@ -17,9 +19,12 @@ import org.wikimedia.search.extra.router.TokenCountRouterQueryBuilder;
 import org.wikimedia.search.extra.util.FieldValues;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.instanceOf;
@@ -31,26 +36,42 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
     }
     private static final String MY_FIELD = "regex_field";
     private static final String MY_FIELD_NGRAM = "regex_field_ngram";
+    private static final String MY_FIELD_BIGRAM = "regex_field_bigram";
+    private static final String MY_KEYWORD_FIELD = "regex_keyword_field";
+    private static final String MY_BINARY_FIELD = "regex_binary_field";
+    private static final String MY_KEYWORD_NO_DOC_VALUES_FIELD = "regex_keyword_no_doc_values_field";
 
     @Override
     protected void initializeAdditionalMappings(MapperService mapperService) throws IOException {
         mapperService.merge("trigram_field",
                 new CompressedXContent("{\"properties\":{" +
                         "\""+MY_FIELD+"\":{\"type\":\"text\" }," +
-                        "\""+MY_FIELD_NGRAM+"\":{\"type\":\"text\" }" +
+                        "\""+MY_FIELD_NGRAM+"\":{\"type\":\"text\" }," +
+                        "\""+MY_FIELD_BIGRAM+"\":{\"type\":\"text\" }," +
+                        "\""+MY_KEYWORD_FIELD+"\":{\"type\":\"keyword\" }," +
+                        "\""+MY_KEYWORD_NO_DOC_VALUES_FIELD+"\":{\"type\":\"keyword\", \"doc_values\":false }," +
+                        "\""+MY_BINARY_FIELD+"\":{\"type\":\"binary\", \"doc_values\":true }" +
                         "}}" ),
                 MapperService.MergeReason.MAPPING_UPDATE, false);
     }
 
     @Override
     protected SourceRegexQueryBuilder doCreateTestQueryBuilder() {
-        SourceRegexQueryBuilder builder = new SourceRegexQueryBuilder(MY_FIELD, "ramdom[reg]ex");
+        boolean docValues = randomBoolean();
+        SourceRegexQueryBuilder builder = new SourceRegexQueryBuilder(docValues ? MY_KEYWORD_FIELD : MY_FIELD, "ramdom[reg]ex");
+        builder.loadFromDocValues(docValues);
         if (randomBoolean()) {
             builder.caseSensitive(randomBoolean());
         }
         if (randomBoolean()) {
             builder.gramSize(randomIntBetween(2, 4));
         }
+        if (randomBoolean()) {
+            builder.ngramField(MY_FIELD_NGRAM);
+        }
+        for (int i = randomIntBetween(0, 2); i > 0; i--) {
+            builder.addNgramField(randomFrom(MY_FIELD_NGRAM, MY_FIELD_BIGRAM), randomIntBetween(2, 4));
+        }
         if (randomBoolean()) {
             builder.loadFromSource(randomBoolean());
         }
@@ -81,12 +102,24 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
         if (randomBoolean()) {
             builder.settings().maxNgramsExtracted(randomIntBetween(1, 200));
         }
+        if (randomBoolean()) {
+            builder.settings().maxSimplifyVisits(randomIntBetween(1, 200000));
+        }
         if (randomBoolean()) {
             builder.settings().maxExpand(randomIntBetween(1, 200));
         }
         if (randomBoolean()) {
             builder.settings().maxStatesTraced(randomIntBetween(100, 10000));
         }
+        if (randomBoolean()) {
+            builder.settings().utf8Recheck(randomBoolean());
+        }
+        if (randomBoolean()) {
+            builder.settings().parallelScan(randomBoolean());
+        }
+        if (randomBoolean()) {
+            builder.settings().partialResults(randomBoolean());
+        }
         return builder;
     }
 
@@ -95,18 +128,26 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
         assertThat(query, instanceOf(SourceRegexQuery.class));
         SourceRegexQuery rquery = (SourceRegexQuery) query;
         assertEquals(queryBuilder.field(), rquery.getFieldPath());
-        assertEquals(queryBuilder.ngramField(), rquery.getNgramFieldPath());
-        if (queryBuilder.loadFromSource()) {
+        List<String> ngramFields = new ArrayList<>();
+        if (queryBuilder.ngramField() != null) {
+            ngramFields.add(queryBuilder.ngramField());
+        }
+        queryBuilder.ngramFields().forEach(f -> ngramFields.add(f.field()));
+        assertEquals(ngramFields, rquery.getNgramIndices().stream().map(SourceRegexQuery.NGramIndex::path)
+                .collect(Collectors.toList()));
+        if (queryBuilder.loadFromDocValues()) {
+            assertSame(FieldValues.loadFromDocValues(), ((SourceRegexQuery) query).getLoader());
+        } else if (queryBuilder.loadFromSource()) {
             assertSame(FieldValues.loadFromSource(), ((SourceRegexQuery) query).getLoader());
         } else {
             assertSame(FieldValues.loadFromStoredField(), ((SourceRegexQuery) query).getLoader());
         }
 
         assertEquals(queryBuilder.settings(), rquery.getSettings());
-        if (!queryBuilder.settings().caseSensitive()
-                && !rquery.getSettings().locale().getLanguage().equals("ga")
-                && !rquery.getSettings().locale().getLanguage().equals("tr")) {
-            assertThat(rquery.getRechecker(), instanceOf(SourceRegexQuery.NonBacktrackingOnTheFlyCaseConvertingRechecker.class));
+        if (queryBuilder.settings().utf8Recheck() && rquery.getLoader().readsUtf8(rquery.getFieldPath())) {
+            assertThat(rquery.getRechecker(), instanceOf(SourceRegexQuery.NonBacktrackingUtf8Rechecker.class));
+        } else if (!queryBuilder.settings().caseSensitive()) {
+            assertThat(rquery.getRechecker(), instanceOf(SourceRegexQuery.NonBacktrackingCaseFoldingRechecker.class));
         } else {
             assertThat(rquery.getRechecker(), instanceOf(SourceRegexQuery.NonBacktrackingRechecker.class));
         }
@@ -123,11 +164,13 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
                 "   \"max_states_traced\" : 10001,\n" +
                 "   \"max_determinized_states\" : 20001,\n" +
                 "   \"max_ngrams_extracted\" : 101,\n" +
+                "   \"max_simplify_visits\" : 1000,\n" +
                 "   \"max_inspect\" : 11,\n" +
                 "   \"locale\" : \"fr\",\n" +
                 "   \"reject_unaccelerated\" : true,\n" +
                 "   \"max_ngram_clauses\" : 1001,\n" +
-                "   \"timeout\" : \"1000ms\"\n" +
+                "   \"timeout\" : \"1000ms\",\n" +
+                "   \"utf8_recheck\" : true\n" +
                 "}}";
         QueryBuilder builder = parseQuery(json);
         assertThat(builder, instanceOf(SourceRegexQueryBuilder.class));
@@ -140,14 +183,49 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
         expected.maxStatesTraced(10001);
         expected.maxDeterminizedStates(20001);
         expected.settings().maxNgramsExtracted(101);
+        expected.settings().maxSimplifyVisits(1000);
         expected.maxInspect(11);
         expected.locale(Locale.FRENCH);
         expected.rejectUnaccelerated(true);
         expected.settings().maxNgramClauses(1001);
         expected.settings().timeout(1000);
+        expected.settings().utf8Recheck(true);
         assertEquals(expected, parsed);
     }
 
+    public void testParseNgramFields() throws IOException {
+        String json = "{\"source_regex\": {\n" +
+                "   \"field\": \"" + MY_FIELD + "\",\n" +
+                "   \"regex\": \"regex[a-z]\",\n" +
+                "   \"ngram_fields\" : [\n" +
+                "       {\"field\": \"" + MY_FIELD_NGRAM + "\"},\n" +
+                "       {\"field\": \"" + MY_FIELD_BIGRAM + "\", \"gram_size\": 2}\n" +
+                "   ]\n" +
+                "}}";
+        QueryBuilder builder = parseQuery(json);
+        SourceRegexQueryBuilder expected = new SourceRegexQueryBuilder(MY_FIELD, "regex[a-z]");
+        expected.addNgramField(MY_FIELD_NGRAM, 3);
+        expected.addNgramField(MY_FIELD_BIGRAM, 2);
+        assertEquals(expected, builder);
+    }
+
+    public void testDocValuesRequired() {
+        SourceRegexQueryBuilder builder = new SourceRegexQueryBuilder(MY_KEYWORD_NO_DOC_VALUES_FIELD, "regex");
+        builder.loadFromDocValues(true);
+        assertThat(expectThrows(IllegalArgumentException.class, () -> builder.toQuery(createShardContext())).getMessage(),
+                containsString("has no doc values"));
+    }
+
+    public void testDocValuesOnlyFromKeywords() {
+        assumeTrue("test runs only when at least a type is registered", getCurrentTypes().length > 0);
+        for (String field : new String[] {INT_FIELD_NAME, MY_BINARY_FIELD}) {
+            SourceRegexQueryBuilder builder = new SourceRegexQueryBuilder(field, "regex");
+            builder.loadFromDocValues(true);
+            assertThat(expectThrows(IllegalArgumentException.class, () -> builder.toQuery(createShardContext())).getMessage(),
+                    containsString("only keyword fields are supported"));
+        }
+    }
+
     public void testUnknownAnalyzer() {
         TokenCountRouterQueryBuilder expected = new TokenCountRouterQueryBuilder();
         expected.field("unknown_field");
@@ -182,15 +260,49 @@ public class SourceRegexBuilderESTest extends AbstractQueryTestCase<SourceRegexQ
         builder.ngramField(MY_FIELD_NGRAM);
         rewritten = buildAndRewrite(builder);
         assertThat(rewritten, instanceOf(AcceleratedSourceRegexQuery.class));
+        assertEquals(1, ((AcceleratedSourceRegexQuery) rewritten).estimatedCandidates());
+
+        // No doc has the ngrams of this one
+        assertThat(buildAndRewrite(new SourceRegexQueryBuilder(MY_FIELD, "xyz").ngramField(MY_FIELD_NGRAM)),
+                instanceOf(MatchNoDocsQuery.class));
 
         builder.settings().maxExpand(2);
         expectThrows(UnableToAccelerateRegexException.class, () -> buildAndRewrite(builder));
 
+        // Too short for trigrams but bigrams accelerate it
+        SourceRegexQueryBuilder shortRegex = new SourceRegexQueryBuilder(MY_FIELD, "ab").ngramField(MY_FIELD_NGRAM)
+                .rejectUnaccelerated(true);
+        expectThrows(UnableToAccelerateRegexException.class, () -> buildAndRewrite(shortRegex));
+        shortRegex.addNgramField(MY_FIELD_BIGRAM, 2);
+        rewritten = buildAndRewrite(shortRegex);
+        assertThat(rewritten, instanceOf(AcceleratedSourceRegexQuery.class));
+        assertEquals(1, ((AcceleratedSourceRegexQuery) rewritten).estimatedCandidates());
+
+        // Bigrams missing from the docs don't rule out the regex when the trigrams find it
+        SourceRegexQueryBuilder newBigrams = new SourceRegexQueryBuilder(MY_FIELD, "ab0").ngramField(MY_FIELD_NGRAM)
+                .addNgramField(MY_FIELD_BIGRAM, 2);
+        rewritten = buildAndRewrite(newBigrams, false);
+        assertThat(rewritten, instanceOf(AcceleratedSourceRegexQuery.class));
+        assertEquals(1, ((AcceleratedSourceRegexQuery) rewritten).estimatedCandidates());
+
         // TODO: move more tests from SourceRegexQueryIntegrationTests here
     }
 
     private Query buildAndRewrite(SourceRegexQueryBuilder query) throws IOException {
-        IndexReader ir = new MemoryIndex().createSearcher().getIndexReader();
+        return buildAndRewrite(query, true);
+    }
+
+    /**
+     * @param withBigrams false if the doc has no bigrams, like the docs
+     *            indexed before the bigram field was added
+     */
+    private Query buildAndRewrite(SourceRegexQueryBuilder query, boolean withBigrams) throws IOException {
+        MemoryIndex index = new MemoryIndex();
+        index.addField(MY_FIELD_NGRAM, "ab0", new KeywordAnalyzer());
+        if (withBigrams) {
+            index.addField(MY_FIELD_BIGRAM, "ab", new KeywordAnalyzer());
+        }
+        IndexReader ir = index.createSearcher().getIndexReader();
         QueryShardContext context = createShardContext();
         QueryBuilder rewritten = QueryBuilder.rewriteQuery(query, context);
         Query lquery = rewritten.toQuery(context);
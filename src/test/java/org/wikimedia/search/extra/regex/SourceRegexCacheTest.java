@@ -0,0 +1,189 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NGramIndex;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SourceRegexCacheTest extends LuceneTestCase {
+    @Test
+    public void testCompilesOnce() {
+        SourceRegexCache cache = cache();
+        Settings settings = new Settings();
+        ContainsCharacterRunAutomaton first = cache.charRun("fo[o]+", settings, true);
+        ContainsCharacterRunAutomaton second = cache.charRun("fo[o]+", settings, true);
+        assertThat(second, sameInstance(first));
+        assertTrue(first.contains("a FOOOO b"));
+        assertEquals(1, cache.automatonStats().getMisses());
+        assertEquals(1, cache.automatonStats().getHits());
+        assertEquals(1, cache.automatonCount());
+        assertThat(cache.automatonRamBytesUsed(), greaterThan(0L));
+    }
+
+    @Test
+    public void testKeyedOnSettings() {
+        SourceRegexCache cache = cache();
+        Settings settings = new Settings();
+        ContainsCharacterRunAutomaton insensitive = cache.charRun("foo", settings, true);
+        ContainsCharacterRunAutomaton plain = cache.charRun("foo", settings, false);
+        assertThat(plain, not(sameInstance(insensitive)));
+        assertTrue(insensitive.contains("FOO"));
+        assertFalse(plain.contains("FOO"));
+
+        ContainsCharacterRunAutomaton turkish = cache.charRun("foo", new Settings().locale(new Locale("tr")), true);
+        assertThat(turkish, not(sameInstance(insensitive)));
+
+        ContainsCharacterRunAutomaton sensitive = cache.charRun("Foo", new Settings().caseSensitive(true), false);
+        assertTrue(sensitive.contains("Foo"));
+        assertFalse(sensitive.contains("foo"));
+
+        cache.charRun("foo", new Settings().maxDeterminizedStates(100), true);
+        assertEquals(5, cache.automatonStats().getMisses());
+        assertEquals(0, cache.automatonStats().getHits());
+    }
+
+    @Test
+    public void testEvictsByRam() {
+        long oneAutomaton = cache().charRun("regex0", new Settings(), true).ramBytesUsed();
+        SourceRegexCache cache = new SourceRegexCache(new ByteSizeValue(oneAutomaton * 4), new ByteSizeValue(0));
+        for (int i = 0; i < 20; i++) {
+            cache.charRun("regex" + i, new Settings(), true);
+        }
+        assertThat(cache.automatonStats().getEvictions(), greaterThan(0L));
+        assertThat(cache.automatonRamBytesUsed(), lessThanOrEqualTo(oneAutomaton * 4));
+    }
+
+    @Test
+    public void testDisabled() {
+        ContainsCharacterRunAutomaton first = SourceRegexCache.DISABLED.charRun("foo", new Settings(), true);
+        ContainsCharacterRunAutomaton second = SourceRegexCache.DISABLED.charRun("foo", new Settings(), true);
+        assertThat(second, not(sameInstance(first)));
+        assertEquals(0, SourceRegexCache.DISABLED.automatonStats().getMisses());
+        assertEquals(0, SourceRegexCache.DISABLED.automatonCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRegexIsNotCached() {
+        SourceRegexCache cache = cache();
+        try {
+            cache.charRun("[", new Settings(), true);
+        } finally {
+            assertEquals(0, cache.automatonCount());
+        }
+    }
+
+    @Test
+    public void testExpressionCachedAcrossQueries() throws IOException {
+        SourceRegexCache cache = cache();
+        KeywordAnalyzer analyzer = new KeywordAnalyzer();
+        Query first = rewrite(cache, "Hero of legend", new Settings(), analyzer);
+        Query second = rewrite(cache, "hero Of legend", new Settings(), analyzer);
+        assertThat(first, instanceOf(AcceleratedSourceRegexQuery.class));
+        assertThat(second, instanceOf(AcceleratedSourceRegexQuery.class));
+        assertEquals(1, cache.expressionStats().getMisses());
+        assertEquals(1, cache.expressionStats().getHits());
+        assertThat(cache.expressionRamBytesUsed(), greaterThan(0L));
+
+        // Another index or different extraction settings can't reuse the plan
+        rewrite(cache, "other", "hero of legend", new Settings(), new KeywordAnalyzer());
+        rewrite(cache, "hero of legend", new Settings().maxNgramsExtracted(3), analyzer);
+        rewrite(cache, "hero of legend", new Settings().maxSimplifyVisits(3), analyzer);
+        rewrite(cache, "hero of legend", new Settings().maxDeterminizedStates(100), analyzer);
+        assertEquals(5, cache.expressionStats().getMisses());
+        assertEquals(5, cache.expressionCount());
+    }
+
+    @Test
+    public void testExpressionsDroppedWithTheirIndex() throws IOException {
+        SourceRegexCache cache = cache();
+        KeywordAnalyzer other = new KeywordAnalyzer();
+        rewrite(cache, "hero of legend", new Settings(), new KeywordAnalyzer());
+        rewrite(cache, "other", "hero of legend", new Settings(), other);
+        assertEquals(2, cache.expressionCount());
+        cache.afterIndexRemoved(new Index("test", "uuid"), null, IndexRemovalReason.CLOSED);
+        assertEquals(1, cache.expressionCount());
+        rewrite(cache, "other", "hero of legend", new Settings(), other);
+        assertEquals(1, cache.expressionStats().getHits());
+    }
+
+    @Test
+    public void testExpressionsKeyedOnTheAnalyzer() throws IOException {
+        SourceRegexCache cache = cache();
+        KeywordAnalyzer analyzer = new KeywordAnalyzer();
+        rewrite(cache, "hero of legend", new Settings(), analyzer);
+        // Like a mapping update changing the search_analyzer of the field
+        rewrite(cache, "hero of legend", new Settings(), new KeywordAnalyzer());
+        assertEquals(2, cache.expressionStats().getMisses());
+        rewrite(cache, "hero of legend", new Settings(), analyzer);
+        assertEquals(1, cache.expressionStats().getHits());
+    }
+
+    @Test
+    public void testExpressionsNotCachedWithoutIndex() throws IOException {
+        SourceRegexCache cache = cache();
+        rewrite(cache, null, "hero of legend", new Settings(), new KeywordAnalyzer());
+        assertEquals(0, cache.expressionCount());
+    }
+
+    @Test
+    public void testUnacceleratableIsCached() throws IOException {
+        SourceRegexCache cache = cache();
+        KeywordAnalyzer analyzer = new KeywordAnalyzer();
+        for (int i = 0; i < 2; i++) {
+            assertThat(rewrite(cache, "he", new Settings(), analyzer), instanceOf(UnacceleratedSourceRegexQuery.class));
+            expectThrows(UnableToAccelerateRegexException.class,
+                    () -> rewrite(cache, "he", new Settings().rejectUnaccelerated(true), analyzer));
+        }
+        assertEquals(1, cache.expressionStats().getMisses());
+        assertEquals(3, cache.expressionStats().getHits());
+    }
+
+    @Test
+    public void testExpressionFailuresAreNotCached() throws IOException {
+        SourceRegexCache cache = cache();
+        expectThrows(InvalidRegexException.class,
+                () -> rewrite(cache, "te[st]t", new Settings().maxStatesTraced(2), new KeywordAnalyzer()));
+        assertEquals(0, cache.expressionCount());
+    }
+
+    private static SourceRegexCache cache() {
+        return new SourceRegexCache(new ByteSizeValue(1, ByteSizeUnit.MB), new ByteSizeValue(1, ByteSizeUnit.MB));
+    }
+
+    private static Query rewrite(SourceRegexCache cache, String regex, Settings settings, KeywordAnalyzer analyzer) throws IOException {
+        return rewrite(cache, "uuid", regex, settings, analyzer);
+    }
+
+    private static Query rewrite(SourceRegexCache cache, String indexUUID, String regex, Settings settings, KeywordAnalyzer analyzer)
+            throws IOException {
+        // Index the trigrams of the regex so the accelerated query can find them
+        MemoryIndex index = new MemoryIndex();
+        String text = regex.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            index.addField("field.ngram", text.substring(i, i + 3), analyzer);
+        }
+        IndexReader reader = index.createSearcher().getIndexReader();
+        return new SourceRegexQuery("field", singletonList(new NGramIndex(indexUUID, "field.ngram", 3, analyzer)), regex,
+                FieldValues.loadFromSource(), settings, new SourceRegexServices(cache, () -> null))
+                .rewrite(reader);
+    }
+}
@@ -3,18 +3,31 @@ package org.wikimedia.search.extra.regex;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.profile.ProfileResult;
+import org.elasticsearch.search.profile.ProfileShardResult;
+import org.elasticsearch.search.profile.query.QueryProfileShardResult;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.wikimedia.search.extra.AbstractPluginIntegrationTest;
+import org.wikimedia.search.extra.regex.RegexStatsAction.RegexStatsNodesResponse;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Metric;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Snapshot;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -22,8 +35,12 @@ import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcke
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFailures;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchHits;
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.anyOf;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.hasItem;
 
 public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTest {
     @Test
@@ -130,6 +147,24 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         assertHitCount(response, 10);
     }
 
+    @Test
+    public void partialResultsAreFlaggedAsTimedOut() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        List<IndexRequestBuilder> builders = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            builders.add(doc("findme" + i, "test"));
+        }
+        indexRandom(true, builders);
+        SourceRegexQueryBuilder builder = filter("test").maxInspect(1);
+        builder.settings().partialResults(true);
+        for (int i = 0; i < 2; i++) {
+            // Truncated results must not be served from the request cache without the flag
+            SearchResponse response = search(builder).setSize(0).setRequestCache(true).get();
+            assertTrue(response.isTimedOut());
+        }
+        assertFalse(search(filter("test")).setSize(0).setRequestCache(true).get().isTimedOut());
+    }
+
     @Test
     public void rejectEmptyRegex() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -273,6 +308,25 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         // I can't find any way from here to mark it otherwise.
     }
 
+    @Test
+    public void severalGramSizes() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "I have the test in me."), doc("missme", "The best time."));
+
+        // Trigrams can't accelerate this one but bigrams can
+        SearchResponse response = search(filter("te.*me").addNgramField("test.bigram", 2).rejectUnaccelerated(true)).get();
+        assertSearchHits(response, "findme");
+
+        // Quadgrams can accelerate this one, either field will do
+        response = search(filter("test.*me").ngramField("test.quadgram").gramSize(4).addNgramField("test.bigram", 2)
+                .rejectUnaccelerated(true)).get();
+        assertSearchHits(response, "findme");
+
+        // Still rejected if none of them can accelerate it
+        assertFailures(search(filter("t.*me").addNgramField("test.quadgram", 4).rejectUnaccelerated(true)),
+                RestStatus.INTERNAL_SERVER_ERROR, containsString("Unable to accelerate"));
+    }
+
     @Test
     public void leadingMultibyte() throws InterruptedException, ExecutionException, IOException {
         setup();
@@ -281,6 +335,53 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         assertSearchHits(response, "findme");
     }
 
+    @Test
+    public void utf8Recheck() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "I HAVE the \u03C2test using only λ+μ in me."));
+        assertSearchHits(search(utf8(filter("i h[ai]ve"))).get(), "findme");
+        assertSearchHits(search(utf8(filter("only Λ\\+Μ"))).get(), "findme");
+        assertSearchHits(search(utf8(filter("\u03C2t[aeiou]st"))).get(), "findme");
+        assertHitCount(search(utf8(filter("i h[ai]ve").caseSensitive(true))).get(), 0);
+        assertSearchHits(search(utf8(filter("I H[AI]VE").caseSensitive(true))).get(), "findme");
+        // Unaccelerated
+        assertSearchHits(search(utf8(filter("t..t"))).get(), "findme");
+    }
+
+    @Test
+    public void loadFromDocValues() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "I have the test in me."), doc("chaff", "chaff"));
+        SourceRegexQueryBuilder builder = new SourceRegexQueryBuilder("test.keyword", "h[ai]ve.+TEST");
+        builder.loadFromDocValues(true);
+        assertSearchHits(search(builder).get(), "findme");
+        builder.ngramField("test.trigram");
+        assertSearchHits(search(builder).get(), "findme");
+    }
+
+    @Test
+    public void multi() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("cat", "I have a cat."), doc("both", "Cats and dogs."), doc("chaff", "chaff"));
+        Map<String, String> regexes = new LinkedHashMap<>();
+        regexes.put("feline", "cats?");
+        regexes.put("canine", "dogs?");
+        MultiSourceRegexQueryBuilder builder = new MultiSourceRegexQueryBuilder("test", regexes);
+        for (String ngramField : new String[] {null, "test.trigram"}) {
+            builder.ngramField(ngramField);
+            SearchResponse response = client().prepareSearch("test").setTypes("test").setQuery(builder).get();
+            assertSearchHits(response, "cat", "both");
+            for (SearchHit hit : response.getHits()) {
+                if (hit.getId().equals("cat")) {
+                    assertArrayEquals(new String[] {"feline"}, hit.getMatchedQueries());
+                } else {
+                    assertEquals(new HashSet<>(Arrays.asList("feline", "canine")),
+                            new HashSet<>(Arrays.asList(hit.getMatchedQueries())));
+                }
+            }
+        }
+    }
+
     @Test
     public void manyLowerCasing() throws Exception {
         // With the English analyzer
@@ -366,6 +467,53 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         assertSearchHits(response, "eszett");
     }
 
+    @Test
+    public void profile() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "test"), doc("chaff", "chaff"));
+        SearchResponse response = search(filter("test")).setProfile(true).get();
+        assertSearchHits(response, "findme");
+        List<String> descriptions = new ArrayList<>();
+        for (ProfileShardResult shard : response.getProfileResults().values()) {
+            for (QueryProfileShardResult query : shard.getQueryProfileResults()) {
+                for (ProfileResult result : query.getQueryResults()) {
+                    descriptions.add(result.getLuceneDescription());
+                }
+            }
+        }
+        assertThat(descriptions, hasItem(allOf(containsString("source_regex(accelerated"), containsString("clauses: 2"),
+                containsString("candidates: 1, rechecked: 1, matches: 1"))));
+    }
+
+    @Test
+    public void nodeStats() throws InterruptedException, ExecutionException, IOException {
+        setup();
+        indexRandom(true, doc("findme", "test"), doc("chaff", "chaff"));
+        Snapshot before = regexStats().getAllNodes();
+        // Queries built here only use the services of the node running them
+        // once sent over the wire, never run them on the local node
+        Client coordinating = internalCluster().coordOnlyNodeClient();
+        assertSearchHits(search(coordinating, filter("test")).get(), "findme");
+        assertSearchHits(search(coordinating, filter("t..t")).get(), "findme");
+        assertFailures(search(coordinating, filter("t..t").rejectUnaccelerated(true)), RestStatus.INTERNAL_SERVER_ERROR,
+                containsString("Unable to accelerate"));
+        RegexStatsNodesResponse response = regexStats();
+        Snapshot after = response.getAllNodes();
+        // Every shard running the query counts it
+        for (Metric metric : new Metric[] {Metric.ACCELERATED, Metric.UNACCELERATED, Metric.REJECTED}) {
+            assertThat(metric.toString(), after.total(metric) - before.total(metric), greaterThanOrEqualTo(1L));
+        }
+        assertEquals(before.total(Metric.MATCHES) + 2, after.total(Metric.MATCHES));
+        assertThat(after.total(Metric.CANDIDATES), greaterThanOrEqualTo(after.total(Metric.MATCHES)));
+        assertThat(after.getExpressionCache().getMisses(), greaterThan(0L));
+
+        XContentBuilder builder = jsonBuilder().startObject();
+        response.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+        assertThat(json, allOf(containsString("\"accelerated\":{\"total\":"), containsString("\"per_second\":"),
+                containsString("\"match_ratio\":"), containsString("\"hit_ratio\":")));
+    }
+
     /**
      * Not really a test but can be uncommented for basic performance testing.
      * Its not reliable to make performance assertions in these tests,
@@ -405,6 +553,10 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         logger.info("Accelerated:  {}", (System.currentTimeMillis() - start) / rounds);
     }
 
+    private RegexStatsNodesResponse regexStats() throws InterruptedException, ExecutionException {
+        return client().prepareExecute(RegexStatsAction.INSTANCE).execute().get();
+    }
+
     private IndexRequestBuilder doc(String id, String fieldValue) {
         return client().prepareIndex("test", "test", id).setSource("test", fieldValue);
     }
@@ -429,10 +581,19 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         return builder;
     }
 
+    private SourceRegexQueryBuilder utf8(SourceRegexQueryBuilder builder) {
+        builder.settings().utf8Recheck(true);
+        return builder;
+    }
+
     private SearchRequestBuilder search(SourceRegexQueryBuilder builder) {
         return client().prepareSearch("test").setTypes("test").setQuery(builder);
     }
 
+    private SearchRequestBuilder search(Client client, SourceRegexQueryBuilder builder) {
+        return client.prepareSearch("test").setTypes("test").setQuery(builder);
+    }
+
     private void setup() throws IOException {
         setup("root");
     }
@@ -447,6 +608,7 @@ public class SourceRegexQueryIntegrationTest extends AbstractPluginIntegrationTe
         buildSubfield(mapping, "trigram");
         buildSubfield(mapping, "quadgram");
         buildSubfield(mapping, "spectrigram");
+        mapping.startObject("keyword").field("type", "keyword").endObject();
         mapping.endObject()
             .endObject()
             .endObject()
@@ -6,8 +6,9 @@ import com.google.common.io.Resources;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.junit.Test;
-import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingOnTheFlyCaseConvertingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingCaseFoldingRechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingUtf8Rechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQuery.Rechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQuery.SlowRechecker;
 import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
@@ -69,11 +70,14 @@ public class SourceRegexQueryRecheckTest {
 
     private void many(String name, String regex, Settings settings, int times, boolean matchIsNearTheEnd) {
         long slow = manyTestCase(new SlowRechecker(regex, settings), "slow", name, settings, times, regex);
-        long nonBacktracking = manyTestCase(new NonBacktrackingRechecker(regex, settings), "non backtracking", name, settings, times, regex);
-        if (!settings.caseSensitive()) {
-            long nonBacktrackingCaseConverting = manyTestCase(new NonBacktrackingOnTheFlyCaseConvertingRechecker(regex, settings),
-                    "case converting", name, settings, times, regex);
+        if (settings.caseSensitive()) {
+            long nonBacktracking = manyTestCase(new NonBacktrackingRechecker(regex, settings), "non backtracking", name, settings,
+                    times, regex);
+        } else {
+            long nonBacktrackingCaseFolding = manyTestCase(new NonBacktrackingCaseFoldingRechecker(regex, settings),
+                    "case folding", name, settings, times, regex);
         }
+        long utf8 = manyTestCase(new NonBacktrackingUtf8Rechecker(regex, settings), "utf8", name, settings, times, regex);
     }
 
     private long manyTestCase(Rechecker rechecker, String recheckerName, String name, Settings settings, int times, String regex) {
@@ -0,0 +1,112 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingCaseFoldingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.startsWith;
+
+public class SourceRegexSlowLogTest extends LuceneTestCase {
+    private final List<String> lines = new ArrayList<>();
+    private final CurrentSearchTask phase = new CurrentSearchTask();
+
+    @Test
+    public void logsSlowQueries() {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(TimeValue.timeValueMillis(2), 1, lines::add, () -> 0);
+        UnacceleratedSourceRegexQuery query = query(new Settings().maxInspect(10));
+        phase.start(null);
+        slowLog.track(phase, query, null);
+        query.profile.extracted(TimeValue.timeValueMillis(1).nanos(), 0, null);
+        query.profile.candidate();
+        query.profile.rechecked(8, TimeValue.timeValueMillis(1).nanos(), TimeValue.timeValueMillis(1).nanos(), true);
+        assertEquals(0, lines.size());
+        phase.end();
+        assertEquals(1, lines.size());
+        assertThat(lines.get(0), startsWith("took[3ms], took_millis[3], mode[unaccelerated], field[field], regex[need+le], "
+                + "settings[{\"max_inspect\":10}], extraction: 1ms, clauses: 0"));
+        assertThat(lines.get(0), containsString("candidates: 1, rechecked: 1, matches: 1, chars loaded: 8, load: 1ms, recheck: 1ms"));
+    }
+
+    @Test
+    public void logsTheRegexOfUnacceleratedScans() throws IOException {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(TimeValue.ZERO, 1, lines::add, () -> 0);
+        Settings settings = new Settings();
+        Query rewritten = new SourceRegexQuery("field", null, "need+le", FieldValues.loadFromStoredField(), settings,
+                SourceRegexQueryBuilder.DEFAULT_GRAM_SIZE, null).rewrite(new MultiReader());
+        assertThat(rewritten, instanceOf(UnacceleratedSourceRegexQuery.class));
+        phase.start(null);
+        slowLog.track(phase, (UnacceleratedSourceRegexQuery) rewritten, null);
+        phase.end();
+        assertEquals(1, lines.size());
+        assertThat(lines.get(0), containsString("mode[unaccelerated], field[field], regex[need+le], "));
+    }
+
+    @Test
+    public void logsOnceWhenTheFetchPhaseBuildsTheWeightAgain() throws IOException {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(TimeValue.ZERO, 1, lines::add, () -> 0);
+        SourceRegexServices services = new SourceRegexServices(SourceRegexCache.DISABLED, () -> null, phase,
+                SourceRegexAdmission.UNLIMITED, SourceRegexStats.DISCARDED, slowLog);
+        IndexSearcher searcher = new IndexSearcher(new MultiReader());
+        Query query = searcher.rewrite(new SourceRegexQuery("field", null, "need+le", FieldValues.loadFromStoredField(),
+                new Settings(), SourceRegexQueryBuilder.DEFAULT_GRAM_SIZE, null, services));
+        phase.start(null);
+        searcher.createNormalizedWeight(query, false);
+        // Named queries build their weight again to fetch the hits
+        phase.startFetch(null);
+        searcher.createNormalizedWeight(query, false);
+        phase.end();
+        assertEquals(1, lines.size());
+    }
+
+    @Test
+    public void skipsFastQueries() {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(TimeValue.timeValueMillis(2), 1, lines::add, () -> 0);
+        UnacceleratedSourceRegexQuery query = query(new Settings());
+        phase.start(null);
+        slowLog.track(phase, query, null);
+        query.profile.rechecked(8, 0, TimeValue.timeValueMillis(1).nanos(), true);
+        phase.end();
+        assertEquals(0, lines.size());
+    }
+
+    @Test
+    public void samplesQueries() {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(TimeValue.ZERO, 0.5, lines::add, () -> 0.6);
+        phase.start(null);
+        slowLog.track(phase, query(new Settings()), null);
+        phase.end();
+        assertEquals(0, lines.size());
+        slowLog.setSampleRate(1);
+        phase.start(null);
+        slowLog.track(phase, query(new Settings()), null);
+        phase.end();
+        assertEquals(1, lines.size());
+    }
+
+    @Test
+    public void disabledByDefault() {
+        SourceRegexSlowLog slowLog = new SourceRegexSlowLog(org.elasticsearch.common.settings.Settings.EMPTY);
+        assertTrue(SourceRegexSlowLog.THRESHOLD.get(org.elasticsearch.common.settings.Settings.EMPTY).nanos() < 0);
+        // Tracking nothing doesn't need a phase
+        slowLog.track(phase, query(new Settings()), null);
+        expectThrows(IllegalArgumentException.class, () -> SourceRegexSlowLog.SAMPLE_RATE.get(
+                org.elasticsearch.common.settings.Settings.builder().put(SourceRegexSlowLog.SAMPLE_RATE.getKey(), 2).build()));
+    }
+
+    private static UnacceleratedSourceRegexQuery query(Settings settings) {
+        return new UnacceleratedSourceRegexQuery(new NonBacktrackingCaseFoldingRechecker("need+le", settings), "field",
+                FieldValues.loadFromStoredField(), settings, SourceRegexServices.NONE, SourceRegexServices.NONE.newProfile("need+le"));
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Metric;
+import org.wikimedia.search.extra.regex.SourceRegexStats.Snapshot;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+public class SourceRegexStatsTest extends LuceneTestCase {
+    private final AtomicLong nanos = new AtomicLong(random().nextLong());
+    private final SourceRegexStats stats = new SourceRegexStats(Settings.EMPTY, () -> null, SourceRegexCache.DISABLED, nanos::get);
+
+    @Test
+    public void ratesBeforeRotating() {
+        stats.add(Metric.RECHECKED, 100);
+        elapse(10);
+        Snapshot snapshot = stats.snapshot();
+        assertEquals(100, snapshot.total(Metric.RECHECKED));
+        assertEquals(10, snapshot.rate(Metric.RECHECKED), 0.001);
+        assertEquals(0, snapshot.rate(Metric.MATCHES), 0);
+    }
+
+    @Test
+    public void ratesCoverTheLastMinute() {
+        stats.add(Metric.RECHECKED, 1000);
+        for (int i = 0; i < SourceRegexStats.NUM_ROTATIONS; i++) {
+            stats.rotate();
+            stats.add(Metric.RECHECKED, 50);
+            elapse(5);
+        }
+        Snapshot snapshot = stats.snapshot();
+        assertEquals(1000 + 50 * SourceRegexStats.NUM_ROTATIONS, snapshot.total(Metric.RECHECKED));
+        // The first thousand was counted before the window
+        assertEquals(10, snapshot.rate(Metric.RECHECKED), 0.001);
+        // Once rotated out the older counts are dropped
+        stats.rotate();
+        elapse(5);
+        assertEquals((50 * (SourceRegexStats.NUM_ROTATIONS - 1)) / 60d, stats.snapshot().rate(Metric.RECHECKED), 0.001);
+    }
+
+    @Test
+    public void extractionPercentiles() {
+        assertEquals(0, stats.snapshot().getExtractionLatency().length);
+        for (int i = 1; i <= 100; i++) {
+            stats.extracted(TimeValue.timeValueMillis(i).nanos(), i);
+        }
+        // Only reported once in the window
+        assertEquals(0, stats.snapshot().getExtractionLatency().length);
+        stats.rotate();
+        Snapshot snapshot = stats.snapshot();
+        assertEquals(100, snapshot.total(Metric.EXTRACTIONS));
+        assertEquals(SourceRegexStats.PERCENTILES.length, snapshot.getExtractionLatency().length);
+        assertEquals(TimeValue.timeValueMillis(50).nanos(), snapshot.getExtractionLatency()[0], TimeValue.timeValueMillis(1).nanos());
+        assertEquals(99, snapshot.getExtractionClauses()[3], 1);
+    }
+
+    @Test
+    public void sumsNodes() throws IOException {
+        stats.add(Metric.CANDIDATES, 10);
+        stats.extracted(100000, 4);
+        stats.rotate();
+        Snapshot first = stats.snapshot();
+        SourceRegexStats other = new SourceRegexStats(Settings.EMPTY, () -> null, SourceRegexCache.DISABLED, nanos::get);
+        other.add(Metric.CANDIDATES, 5);
+        Snapshot sum = new Snapshot(Stream.of(first, roundTrip(other.snapshot())));
+        assertEquals(15, sum.total(Metric.CANDIDATES));
+        // Nodes that extracted nothing don't count in the percentiles
+        assertEquals(4, sum.getExtractionClauses()[0], 0.1);
+    }
+
+    private Snapshot roundTrip(Snapshot snapshot) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            snapshot.writeTo(out);
+            return new Snapshot(out.bytes().streamInput());
+        }
+    }
+
+    private void elapse(long seconds) {
+        nanos.addAndGet(TimeValue.timeValueSeconds(seconds).nanos());
+    }
+}
@@ -0,0 +1,327 @@
+package org.wikimedia.search.extra.regex;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.wikimedia.search.extra.regex.SourceRegexAdmission.OnOverload;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NGramIndex;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.NonBacktrackingCaseFoldingRechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQuery.Rechecker;
+import org.wikimedia.search.extra.regex.SourceRegexQueryBuilder.Settings;
+import org.wikimedia.search.extra.util.FieldValues;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+
+public class UnacceleratedSourceRegexQueryESTest extends ESTestCase {
+    private static final int DOCS = 20000;
+
+    private ThreadPool threadPool;
+    private Directory directory;
+    private IndexReader reader;
+    private IndexSearcher searcher;
+
+    @Before
+    public void setup() throws IOException {
+        org.elasticsearch.common.settings.Settings nodeSettings = org.elasticsearch.common.settings.Settings.builder()
+                .put("node.name", getTestName())
+                .put("processors", 8)
+                .build();
+        threadPool = new ThreadPool(nodeSettings, SourceRegexServices.scanExecutorBuilder(nodeSettings));
+        directory = newDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()))) {
+            for (int i = 0; i < DOCS; i++) {
+                Document doc = new Document();
+                doc.add(new StoredField("field", (i % 7 == 0 ? "a needle " : "hay ") + i));
+                doc.add(new StringField("all", "all", Field.Store.NO));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        reader.close();
+        directory.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    public void testSameMatchesAsSerialScan() throws IOException {
+        Settings settings = new Settings();
+        ScoreDoc[] serial = searcher.search(query("need+le", settings, SourceRegexServices.NONE), DOCS).scoreDocs;
+        assertEquals((DOCS + 6) / 7, serial.length);
+        settings.parallelScan(true);
+        ScoreDoc[] parallel = searcher.search(query("need+le", settings, services()), DOCS).scoreDocs;
+        assertEquals(docs(serial), docs(parallel));
+        // Without executor the scan is serial
+        parallel = searcher.search(query("need+le", settings, SourceRegexServices.NONE), DOCS).scoreDocs;
+        assertEquals(docs(serial), docs(parallel));
+    }
+
+    public void testOnlyLeadingScorersScanInParallel() throws IOException {
+        Settings settings = new Settings().parallelScan(true);
+        Weight weight = searcher.createNormalizedWeight(query("need+le", settings, services()), false);
+        LeafReaderContext leaf = reader.leaves().get(0);
+        // Scorers led by other clauses or used to explain a doc are rechecked lazily
+        assertNotNull(weight.scorer(leaf).twoPhaseIterator());
+        assertNotNull(weight.scorerSupplier(leaf).get(true).twoPhaseIterator());
+        assertNull(weight.scorerSupplier(leaf).get(false).twoPhaseIterator());
+    }
+
+    public void testParallelScanMatchingNothingInConjunction() throws IOException {
+        Settings settings = new Settings().parallelScan(true);
+        // As costly as the scan so both clauses lead the conjunction
+        Query query = new BooleanQuery.Builder()
+                .add(query("nothing", settings, services()), Occur.FILTER)
+                .add(new TermQuery(new Term("all", "all")), Occur.FILTER)
+                .build();
+        assertEquals(0, searcher.count(query));
+        assertEquals(0, searcher.search(query, 10).totalHits);
+    }
+
+    public void testMaxInspectIsGlobal() throws IOException {
+        int maxInspect = randomIntBetween(1, DOCS / 2);
+        Settings settings = new Settings().parallelScan(true).maxInspect(maxInspect);
+        assertEquals(maxInspect, searcher.count(query("[0-9]", settings, services())));
+    }
+
+    public void testTimeoutStopsAllSlices() throws IOException {
+        Rechecker slow = new Rechecker() {
+            @Override
+            public boolean recheck(Iterable<String> values) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return true;
+            }
+
+            @Override
+            public float getCost() {
+                return 1;
+            }
+        };
+        Settings settings = new Settings().parallelScan(true).timeout(100);
+        SourceRegexServices services = services();
+        Query query = new UnacceleratedSourceRegexQuery(slow, "field", FieldValues.loadFromStoredField(), settings, services);
+        assertThat(searcher.count(query), lessThan(DOCS));
+        assertEquals(1, services.stats().snapshot().total(SourceRegexStats.Metric.TIMEOUTS));
+        // Only partial results are reported as truncated
+        assertNull(threadPool.getThreadContext().getResponseHeaders().get(SourceRegexServices.TRUNCATED_HEADER));
+    }
+
+    public void testPartialResultsOnTimeout() throws IOException {
+        Rechecker slow = new Rechecker() {
+            @Override
+            public boolean recheck(Iterable<String> values) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return true;
+            }
+
+            @Override
+            public float getCost() {
+                return 1;
+            }
+        };
+        Settings settings = new Settings().parallelScan(randomBoolean()).timeout(100).partialResults(true);
+        Query query = new UnacceleratedSourceRegexQuery(slow, "field", FieldValues.loadFromStoredField(), settings, services());
+        int found = searcher.count(query);
+        assertThat(found, greaterThan(0));
+        assertThat(found, lessThan(DOCS));
+        assertEquals(singletonList("inspected " + found + " docs"),
+                threadPool.getThreadContext().getResponseHeaders().get(SourceRegexServices.TRUNCATED_HEADER));
+    }
+
+    public void testStoppedScanSkipsTheRemainingDocs() throws IOException {
+        Rechecker slow = new Rechecker() {
+            @Override
+            public boolean recheck(Iterable<String> values) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return true;
+            }
+
+            @Override
+            public float getCost() {
+                return 1;
+            }
+        };
+        Settings settings = new Settings().timeout(100).partialResults(true);
+        Query query = new UnacceleratedSourceRegexQuery(slow, "field", FieldValues.loadFromStoredField(), settings, services());
+        Weight weight = searcher.createNormalizedWeight(query, false);
+        TwoPhaseIterator twoPhase = weight.scorer(reader.leaves().get(0)).twoPhaseIterator();
+        int candidates = 0;
+        int matches = 0;
+        while (twoPhase.approximation().nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            candidates++;
+            if (twoPhase.matches()) {
+                matches++;
+            }
+        }
+        // Only the doc noticing the timeout isn't rechecked
+        assertEquals(matches + 1, candidates);
+        assertThat(candidates, lessThan(DOCS));
+    }
+
+    public void testPartialResultsOnMaxInspect() throws IOException {
+        int maxInspect = randomIntBetween(1, DOCS / 2);
+        Settings settings = new Settings().parallelScan(randomBoolean()).maxInspect(maxInspect).partialResults(true);
+        assertEquals(maxInspect, searcher.count(query("[0-9]", settings, services())));
+        assertEquals(singletonList("inspected " + maxInspect + " docs"),
+                threadPool.getThreadContext().getResponseHeaders().get(SourceRegexServices.TRUNCATED_HEADER));
+    }
+
+    public void testNotTruncatedWhenEverythingIsInspected() throws IOException {
+        Settings settings = new Settings().parallelScan(randomBoolean()).maxInspect(DOCS).partialResults(true);
+        assertEquals(DOCS, searcher.count(query("[0-9]", settings, services())));
+        assertNull(threadPool.getThreadContext().getResponseHeaders().get(SourceRegexServices.TRUNCATED_HEADER));
+    }
+
+    public void testAdmittedWhenBuildingTheWeight() throws Exception {
+        CurrentSearchTask phase = new CurrentSearchTask();
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 0, TimeValue.ZERO, OnOverload.DEGRADE, 100);
+        SourceRegexStats stats = new SourceRegexStats(org.elasticsearch.common.settings.Settings.EMPTY, () -> threadPool,
+                SourceRegexCache.DISABLED);
+        SourceRegexServices services = new SourceRegexServices(SourceRegexCache.DISABLED, () -> threadPool, phase, admission,
+                stats, SourceRegexSlowLog.DISABLED);
+        // Another phase holds the only admission
+        FutureTask<Boolean> other = new FutureTask<>(() -> {
+            phase.start(null);
+            return admission.admit(phase);
+        });
+        new Thread(other).start();
+        assertTrue(other.get());
+        // Rewriting happens before the phase starts and doesn't need admission
+        Query query = searcher.rewrite(query("need+le", new Settings(), services));
+        phase.start(null);
+        try {
+            UnableToAccelerateRegexException e = expectThrows(UnableToAccelerateRegexException.class, () -> searcher.count(query));
+            assertThat(e.getMessage(), containsString("too many expensive regexes"));
+        } finally {
+            phase.end();
+        }
+        // The degraded scan only counts as rejected
+        assertEquals(1, stats.snapshot().total(SourceRegexStats.Metric.REJECTED));
+        assertEquals(0, stats.snapshot().total(SourceRegexStats.Metric.UNACCELERATED));
+    }
+
+    public void testAdmittedAndCountedOnlyInTheQueryPhase() throws Exception {
+        CurrentSearchTask phase = new CurrentSearchTask();
+        SourceRegexAdmission admission = new SourceRegexAdmission(1, 0, TimeValue.ZERO, OnOverload.REJECT, 100);
+        SourceRegexStats stats = new SourceRegexStats(org.elasticsearch.common.settings.Settings.EMPTY, () -> threadPool,
+                SourceRegexCache.DISABLED);
+        SourceRegexServices services = new SourceRegexServices(SourceRegexCache.DISABLED, () -> threadPool, phase, admission,
+                stats, SourceRegexSlowLog.DISABLED);
+        Query query = searcher.rewrite(query("need+le", new Settings(), services));
+        phase.start(null);
+        try {
+            searcher.count(query);
+        } finally {
+            phase.end();
+        }
+        // Another phase holds the only admission
+        FutureTask<Boolean> other = new FutureTask<>(() -> {
+            phase.start(null);
+            return admission.admit(phase);
+        });
+        new Thread(other).start();
+        assertTrue(other.get());
+        // Named queries build their weight again to fetch the hits
+        phase.startFetch(null);
+        try {
+            searcher.createNormalizedWeight(query, false);
+        } finally {
+            phase.end();
+        }
+        assertEquals(1, stats.snapshot().total(SourceRegexStats.Metric.UNACCELERATED));
+        assertEquals(0, stats.snapshot().total(SourceRegexStats.Metric.REJECTED));
+    }
+
+    public void testNodeStatsOnlyRecordedInTheQueryPhase() throws Exception {
+        CurrentSearchTask phase = new CurrentSearchTask();
+        SourceRegexStats stats = new SourceRegexStats(org.elasticsearch.common.settings.Settings.EMPTY, () -> threadPool,
+                SourceRegexCache.DISABLED);
+        SourceRegexServices services = new SourceRegexServices(SourceRegexCache.DISABLED, () -> threadPool, phase,
+                SourceRegexAdmission.UNLIMITED, stats, SourceRegexSlowLog.DISABLED);
+        KeywordAnalyzer analyzer = new KeywordAnalyzer();
+        MemoryIndex index = new MemoryIndex();
+        index.addField("field.ngram", "nee", analyzer);
+        IndexReader ngrams = index.createSearcher().getIndexReader();
+        List<NGramIndex> ngramIndices = singletonList(new NGramIndex("field.ngram", 3, analyzer));
+        // Named queries are rewritten again to fetch the hits
+        for (boolean fetch : new boolean[] {false, true}) {
+            if (fetch) {
+                phase.startFetch(null);
+            } else {
+                phase.start(null);
+            }
+            try {
+                new SourceRegexQuery("field", ngramIndices, "nee", FieldValues.loadFromStoredField(), new Settings(), services)
+                        .rewrite(ngrams);
+                new SourceRegexQuery("field", ngramIndices, "xyz", FieldValues.loadFromStoredField(), new Settings(), services)
+                        .rewrite(ngrams);
+            } finally {
+                phase.end();
+            }
+        }
+        assertEquals(1, stats.snapshot().total(SourceRegexStats.Metric.EXTRACTIONS));
+        assertEquals(1, stats.snapshot().total(SourceRegexStats.Metric.ALWAYS_FALSE));
+    }
+
+    private SourceRegexServices services() {
+        return new SourceRegexServices(SourceRegexCache.DISABLED, () -> threadPool);
+    }
+
+    private static Query query(String regex, Settings settings, SourceRegexServices services) {
+        return new UnacceleratedSourceRegexQuery(new NonBacktrackingCaseFoldingRechecker(regex, settings), "field",
+                FieldValues.loadFromStoredField(), settings, services);
+    }
+
+    private static String docs(ScoreDoc[] scoreDocs) {
+        return Arrays.toString(Arrays.stream(scoreDocs).mapToInt(d -> d.doc).sorted().toArray());
+    }
+}
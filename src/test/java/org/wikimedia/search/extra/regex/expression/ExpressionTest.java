@@ -1,5 +1,6 @@
 package org.wikimedia.search.extra.regex.expression;
 
+import com.google.common.collect.ImmutableSet;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.RegExp;
@@ -11,6 +12,8 @@ import java.util.Locale;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 public class ExpressionTest {
@@ -65,6 +68,80 @@ public class ExpressionTest {
         assertEquals(foo, new Or<>(foo, new And<>(foo)).simplify());
     }
 
+    @Test
+    public void interned() {
+        ExpressionStore<String> store = new ExpressionStore<>();
+        Expression<String> and = store.and(ImmutableSet.of(store.leaf("foo"), store.leaf("bar")));
+        assertSame(store.leaf("foo"), store.leaf("foo"));
+        assertSame(and, store.and(ImmutableSet.of(store.leaf("bar"), store.leaf("foo"))));
+        assertNotSame(and, store.or(ImmutableSet.of(store.leaf("foo"), store.leaf("bar"))));
+        // Still equal to expressions built without the store
+        assertEquals(new And<>(foo, bar), and);
+        assertEquals(and, new And<>(foo, bar));
+
+        // Expressions built while simplifying are interned too
+        Expression<String> or = store.or(ImmutableSet.of(store.and(ImmutableSet.of(store.leaf("foo"), store.leaf("bar"))),
+                store.and(ImmutableSet.of(store.leaf("foo"), store.leaf("baz")))));
+        Expression<String> simplified = or.simplify();
+        assertEquals(new And<>(foo, new Or<>(bar, baz)), simplified);
+        assertSame(simplified, store.and(ImmutableSet.of(store.leaf("foo"), store.or(ImmutableSet.of(store.leaf("bar"),
+                store.leaf("baz"))))));
+
+        store.clear();
+        assertNotSame(store.leaf("foo"), store.leaf("foo"));
+        assertEquals(store.leaf("foo"), store.leaf("foo"));
+    }
+
+    @Test
+    public void simplifyIsMemoized() {
+        Expression<String> or = new Or<>(new And<>(foo, bar), new And<>(foo, baz));
+        assertSame(or.simplify(), or.simplify());
+    }
+
+    /**
+     * Each level shares the previous one between both its branches so the
+     * expression expands to a tree of 2^60 nodes.
+     */
+    @Test(timeout=1000)
+    public void sharedBranches() {
+        ExpressionStore<String> store = new ExpressionStore<>();
+        Expression<String> expression = store.leaf("x");
+        ImmutableSet.Builder<Expression<String>> expected = ImmutableSet.builder();
+        expected.add(new Leaf<>("x"));
+        for (int i = 0; i < 60; i++) {
+            expression = store.or(ImmutableSet.of(store.and(ImmutableSet.of(store.leaf("a" + i), expression)),
+                    store.and(ImmutableSet.of(store.leaf("b" + i), expression))));
+            expected.add(new Or<>(new Leaf<>("a" + i), new Leaf<>("b" + i)));
+        }
+        assertEquals(new And<>(expected.build()), expression.simplify());
+    }
+
+    @Test
+    public void deepExpressionsDontBlowTheStack() {
+        Expression<String> expression = new Leaf<>("x");
+        for (int i = 0; i < 100000; i++) {
+            expression = new And<>(new Leaf<>("a" + i), new Or<>(new Leaf<>("b" + i), expression));
+        }
+        assertSame(expression, expression.simplify());
+    }
+
+    @Test
+    public void outOfBudget() {
+        Expression<String> or = new Or<>(new And<>(foo, bar), new And<>(foo, baz));
+        Simplifier<String> simplifier = new Simplifier<>(2);
+        // Degraded to the disjunction of the leaves, still matching everything the expression matches
+        assertEquals(new Or<>(foo, bar, baz), simplifier.simplify(or));
+        assertTrue(simplifier.exhausted());
+        // Constants can't be degraded to leaves
+        assertEquals(foo, simplifier.simplify(new And<>(foo, new Or<>(False.instance(), new And<String>(foo)))));
+        assertEquals(True.instance(), simplifier.simplify(new And<>(foo, new Or<>(True.instance(), new And<>(bar)))));
+
+        // Enough budget
+        simplifier = new Simplifier<>(10);
+        assertEquals(new And<>(foo, new Or<>(bar, baz)), simplifier.simplify(or));
+        assertFalse(simplifier.exhausted());
+    }
+
     @Test
     public void testDegradedDisjunction() {
         String regex = "[ab]*a[cd]{50,80}";
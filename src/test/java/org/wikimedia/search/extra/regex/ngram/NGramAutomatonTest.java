@@ -4,8 +4,10 @@ import com.carrotsearch.randomizedtesting.RandomizedRunner;
 import com.carrotsearch.randomizedtesting.RandomizedTest;
 import com.carrotsearch.randomizedtesting.annotations.Repeat;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.util.automaton.Automata;
 import org.apache.lucene.util.automaton.Automaton;
 import org.apache.lucene.util.automaton.AutomatonTestUtil;
+import org.apache.lucene.util.automaton.Operations;
 import org.apache.lucene.util.automaton.RegExp;
 import org.apache.lucene.util.automaton.TooComplexToDeterminizeException;
 import org.junit.Assert;
@@ -230,6 +232,76 @@ public class NGramAutomatonTest extends RandomizedTest {
         expression = expression.simplify();
     }
 
+    @Test
+    public void supplementaryCodePoints() {
+        // Shifting a supplementary code point out of the prefix must shift
+        // both of its chars
+        assertTrigramExpression("a\uD835\uDCB3bc", new And<String>(leaves("a\uD835\uDCB3b", "\uD835\uDCB3bc")));
+    }
+
+    /**
+     * Corpus of regexes exercising expanded and skipped char classes, loops,
+     * converging paths, and the transitions limit.
+     */
+    private static final String[] EQUIVALENCE_CORPUS = {
+        "cat", "(cat)|(dog)|(cow)", ".*cat", "cat.*", "[abcd]oop", "[abcde]oop", "oop[abcd]", "a|(lopi)",
+        "(a|[j-t])lopi", "ab(cdef)*gh", "(ajdef)|(cdef)", "h[efas] te.*me", "a(b+|c+)d", "(abc|cba)def", "abc+de",
+        "(abc*)+de", "ab(cd)*ef", "te.*me", "[^]]*alt=[^]\\|}]{10,20}", "[ac]*a[de]{5,10}", "(foo|bar|baz)+qux",
+        "[a-c]{2,4}x[d-f]{2}", "(ab|abc|abcd)(e|ef)g", "((a|b)c)*(d|e)f.*g(h|i)", "x(yz)?(yz)?(yz)?w",
+        "\\$\\{[a-z]+\\}", "é[èê]ï", "(un|deux|trois|quatre) (un|deux|trois|quatre)",
+    };
+
+    /**
+     * The primitive keyed automaton builds the same expressions as the object
+     * keyed one it replaced.
+     */
+    @Test
+    public void sameAsReference() {
+        for (String regex : EQUIVALENCE_CORPUS) {
+            Automaton automaton = new RegExp(regex).toAutomaton(20000);
+            for (int gramSize = 1; gramSize <= 5; gramSize++) {
+                for (int maxExpand : new int[] {1, 4, 10}) {
+                    for (int maxTransitions : new int[] {3, 20, 500}) {
+                        assertSameAsReference(regex, automaton, gramSize, maxExpand, maxTransitions);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    @Repeat(iterations=100)
+    public void randomSameAsReference() {
+        // The reference split supplementary code points when shifting them out
+        // of prefixes so only compare them on the basic multilingual plane
+        Automaton automaton = Operations.intersection(AutomatonTestUtil.randomAutomaton(getRandom()),
+                Operations.repeat(Automata.makeCharRange(0, Character.MAX_VALUE)));
+        assertSameAsReference(automaton.toString(), automaton, between(1, 5), between(1, 10), between(1, 500));
+    }
+
+    private void assertSameAsReference(String description, Automaton automaton, int gramSize, int maxExpand,
+            int maxTransitions) {
+        String message = description + " gramSize=" + gramSize + " maxExpand=" + maxExpand
+                + " maxTransitions=" + maxTransitions;
+        Expression<String> expected;
+        try {
+            expected = new ReferenceNGramAutomaton(automaton, gramSize, maxExpand, 10000, maxTransitions,
+                    new KeywordAnalyzer()).expression();
+        } catch (AutomatonTooComplexException e) {
+            try {
+                new NGramAutomaton(automaton, gramSize, maxExpand, 10000, maxTransitions, new KeywordAnalyzer());
+                Assert.fail(message + " should be too complex");
+            } catch (AutomatonTooComplexException expectedException) {
+                // Same as the reference
+            }
+            return;
+        }
+        Expression<String> expression = new NGramAutomaton(automaton, gramSize, maxExpand, 10000, maxTransitions,
+                new KeywordAnalyzer()).expression();
+        Assert.assertEquals(message, expected, expression);
+        Assert.assertEquals(message, expected.simplify(), expression.simplify());
+    }
+
     /**
      * Asserts that the provided regex extracts the expected expression when
      * configured to extract trigrams. Uses 4 as maxExpand just because I had to
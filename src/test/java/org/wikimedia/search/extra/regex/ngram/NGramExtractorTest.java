@@ -6,6 +6,7 @@ import org.apache.lucene.util.automaton.RegExp;
 import org.junit.Test;
 import org.wikimedia.search.extra.regex.expression.And;
 import org.wikimedia.search.extra.regex.expression.Leaf;
+import org.wikimedia.search.extra.regex.expression.Or;
 import org.wikimedia.search.extra.regex.expression.True;
 
 import static org.junit.Assert.assertEquals;
@@ -38,4 +39,18 @@ public class NGramExtractorTest {
                 new And<String>(leaves("her", "ero", "ro ")),
                 gram.extract(automaton));
     }
+
+    @Test
+    public void maxSimplifyVisits() {
+        Automaton automaton = new RegExp("(ajdef)|(cdef)").toAutomaton();
+        assertEquals(
+                new And<String>(new Or<String>(new And<String>(leaves("ajd", "jde")), new Leaf<>("cde")), new Leaf<>("def")),
+                new NGramExtractor(3, 4, 10000, 100, 100, new KeywordAnalyzer()).extract(automaton));
+        // Out of budget the ngrams are still all found, just not required
+        assertEquals(
+                new Or<String>(leaves("ajd", "jde", "cde", "def")),
+                new NGramExtractor(3, 4, 10000, 100, 3, new KeywordAnalyzer()).extract(automaton));
+        // And when degrading runs out of budget too nothing is required
+        assertEquals(True.<String> instance(), new NGramExtractor(3, 4, 10000, 100, 1, new KeywordAnalyzer()).extract(automaton));
+    }
 }
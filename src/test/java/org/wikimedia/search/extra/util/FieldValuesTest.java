@@ -0,0 +1,231 @@
+package org.wikimedia.search.extra.util;
+
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+public class FieldValuesTest extends LuceneTestCase {
+    private static final String SOURCE = "{"
+            + "\"a\": \"top\","
+            + "\"b\": {\"c\": \"nested\", \"d\": {\"c\": \"deeper\"}, \"e\": [\"one\", null, [\"two\"], {\"f\": \"three\"}]},"
+            + "\"g\": [{\"h\": \"λ+μ\"}, {\"h\": [\"Straße\", 12]}, {\"i\": \"skipped\"}],"
+            + "\"j.k\": \"dotted\","
+            + "\"l\": {\"m.n\": {\"o\": \"mixed\"}},"
+            + "\"p\": {\"q\": \"object at the end\"},"
+            + "\"r\": 1.5, \"s\": true, \"t\": null"
+            + "}";
+
+    @Test
+    public void loadFromSource() throws IOException {
+        for (XContentType type : new XContentType[] {XContentType.JSON, XContentType.SMILE, XContentType.CBOR}) {
+            try (Directory directory = newDirectory()) {
+                try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory)) {
+                    Document doc = new Document();
+                    doc.add(new StoredField(SourceFieldMapper.NAME, toBytesRef(SOURCE, type)));
+                    writer.addDocument(doc);
+                    try (IndexReader reader = writer.getReader()) {
+                        assertSource(reader, "a", "top");
+                        assertSource(reader, "b.c", "nested");
+                        assertSource(reader, "b.d.c", "deeper");
+                        assertSource(reader, "b.e", "one", "two");
+                        assertSource(reader, "b.e.f", "one", "two", "three");
+                        assertSource(reader, "g.h", "λ+μ", "Straße", "12");
+                        assertSource(reader, "j.k", "dotted");
+                        assertSource(reader, "l.m.n.o", "mixed");
+                        assertSource(reader, "p");
+                        assertSource(reader, "r", "1.5");
+                        assertSource(reader, "s", "true");
+                        assertSource(reader, "t");
+                        assertSource(reader, "missing");
+                        assertSource(reader, "a.b", "top");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void loadFromSourceStopsOnceThePathIsRead() throws IOException {
+        // The source is truncated after "b" so reading past it fails
+        BytesRef truncated = new BytesRef("{\"a\": {\"b\": \"found\", \"c\": {\"d\": 1}}, \"b\": \"found\", \"e\": [");
+        try (Directory directory = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory)) {
+                Document doc = new Document();
+                doc.add(new StoredField(SourceFieldMapper.NAME, truncated));
+                writer.addDocument(doc);
+                try (IndexReader reader = writer.getReader()) {
+                    assertEquals(Arrays.asList("found"), FieldValues.loadFromSource().load("a.b", reader, 0));
+                    assertEquals(Arrays.asList("found"), FieldValues.loadFromSource().load("b", reader, 0));
+                    assertEquals(Arrays.asList(new BytesRef("found")), FieldValues.loadFromSource().loadUtf8("b", reader, 0));
+                    expectThrows(IOException.class, () -> FieldValues.loadFromSource().load("e", reader, 0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void anyMatchStopsAtTheFirstMatch() throws IOException {
+        // The source is truncated after the match so reading past it fails
+        BytesRef truncated = new BytesRef("{\"a\": [\"skipped\", \"match me\", \"never read");
+        try (Directory directory = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory)) {
+                Document doc = new Document();
+                doc.add(new StoredField(SourceFieldMapper.NAME, truncated));
+                for (String value : new String[] {"skipped", "match me", "never read"}) {
+                    doc.add(new StoredField("a", value));
+                }
+                writer.addDocument(doc);
+                try (IndexReader reader = writer.getReader()) {
+                    for (FieldValues.Loader loader : new FieldValues.Loader[] {FieldValues.loadFromSource(),
+                            FieldValues.loadFromStoredField()}) {
+                        List<String> seen = new ArrayList<>();
+                        assertTrue(loader.anyMatch("a", reader, 0, (chars, offset, length) -> {
+                            String value = new String(chars, offset, length);
+                            seen.add(value);
+                            return value.startsWith("match");
+                        }));
+                        assertEquals(Arrays.asList("skipped", "match me"), seen);
+
+                        seen.clear();
+                        assertTrue(loader.anyMatchUtf8("a", reader, 0, (bytes, offset, length) -> {
+                            String value = new BytesRef(bytes, offset, length).utf8ToString();
+                            seen.add(value);
+                            return value.startsWith("match");
+                        }));
+                        assertEquals(Arrays.asList("skipped", "match me"), seen);
+                    }
+                    expectThrows(IOException.class, () -> FieldValues.loadFromSource().anyMatch("a", reader, 0, (c, o, l) -> false));
+                    assertFalse(FieldValues.loadFromStoredField().anyMatch("a", reader, 0, (c, o, l) -> false));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void loadFromDocValues() throws IOException {
+        try (Directory directory = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory)) {
+                Document doc = new Document();
+                doc.add(new SortedSetDocValuesField("sorted_set", new BytesRef("λ+μ")));
+                doc.add(new SortedSetDocValuesField("sorted_set", new BytesRef("a value")));
+                doc.add(new SortedDocValuesField("sorted", new BytesRef("single")));
+                doc.add(new BinaryDocValuesField("binary", new BytesRef("binary")));
+                doc.add(new NumericDocValuesField("numeric", 1));
+                writer.addDocument(doc);
+                writer.addDocument(new Document());
+                try (IndexReader reader = writer.getReader()) {
+                    assertEquals(1, reader.leaves().size());
+                    LeafReader leaf = reader.leaves().get(0).reader();
+                    FieldValues.Loader loader = FieldValues.loadFromDocValues();
+                    assertEquals(Arrays.asList("a value", "λ+μ"), loader.load("sorted_set", leaf, 0));
+                    assertEquals(Arrays.asList(new BytesRef("a value"), new BytesRef("λ+μ")), loader.loadUtf8("sorted_set", leaf, 0));
+                    assertEquals(Arrays.asList("single"), loader.load("sorted", leaf, 0));
+                    assertEquals(Arrays.asList("binary"), loader.load("binary", leaf, 0));
+                    assertTrue(loader.anyMatch("sorted_set", leaf, 0, (chars, offset, length) -> chars[offset] == 'λ'));
+                    assertFalse(loader.anyMatch("sorted_set", leaf, 0, (chars, offset, length) -> false));
+                    for (String field : new String[] {"sorted_set", "sorted", "binary", "missing"}) {
+                        assertEquals(Collections.emptyList(), loader.load(field, leaf, 1));
+                    }
+                    expectThrows(IllegalArgumentException.class, () -> loader.load("numeric", leaf, 0));
+                    FieldValues.Loader segment = loader.forSegment("sorted_set", leaf);
+                    assertEquals(Arrays.asList("a value", "λ+μ"), segment.load("sorted_set", leaf, 0));
+                    assertEquals(Collections.emptyList(), segment.load("sorted_set", leaf, 1));
+                    expectThrows(IllegalArgumentException.class, () -> loader.forSegment("numeric", leaf));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void onlySourceDecodesValues() {
+        assertTrue(FieldValues.loadFromSource().readsUtf8("a"));
+        assertFalse(FieldValues.loadFromSource().readsUtf8("b.c"));
+        assertTrue(FieldValues.loadFromStoredField().readsUtf8("b.c"));
+        assertTrue(FieldValues.loadFromDocValues().readsUtf8("b.c"));
+    }
+
+    @Test
+    public void loadTopLevelUtf8FromRawJson() throws IOException {
+        String json = "{ \"a.b\" : \"dotted\", \"b\": {\"a\": [\"]}\"]}, \"n\": null,\n"
+                + "\"a\" :\t[ \"λ+μ\", null, [\"two\", {\"c\": \"skipped\"}], \"\\\"quoted\\\"\" ],\n"
+                + "\"n\": \"not null\", \"a\": \"second\", \"num\": [\"x\", 1.50],\n"
+                + "\"text\": \"line one\\nline \\u0074wo \\ud83d\\ude00\" }";
+        try (Directory directory = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), directory)) {
+                Document doc = new Document();
+                doc.add(new StoredField(SourceFieldMapper.NAME, new BytesRef(json)));
+                writer.addDocument(doc);
+                try (IndexReader reader = writer.getReader()) {
+                    for (String path : new String[] {"a", "b", "n", "num", "text", "missing"}) {
+                        List<String> utf8 = FieldValues.loadFromSource().loadUtf8(path, reader, 0).stream()
+                                .map(BytesRef::utf8ToString)
+                                .collect(Collectors.toList());
+                        assertEquals(path, FieldValues.loadFromSource().load(path, reader, 0), utf8);
+                    }
+                    // Plain strings are matched where they are in the source
+                    List<Integer> offsets = new ArrayList<>();
+                    assertFalse(FieldValues.loadFromSource().anyMatchUtf8("n", reader, 0, (bytes, offset, length) -> {
+                        assertEquals("not null", new BytesRef(bytes, offset, length).utf8ToString());
+                        offsets.add(offset);
+                        return false;
+                    }));
+                    assertEquals(Collections.singletonList(new BytesRef(json.substring(0, json.indexOf("not null"))).length),
+                            offsets);
+                    // Escape sequences are decoded to UTF-8 without parsing
+                    List<String> decoded = new ArrayList<>();
+                    assertTrue(FieldValues.loadFromSource().anyMatchUtf8("text", reader, 0, (bytes, offset, length) -> {
+                        decoded.add(new BytesRef(bytes, offset, length).utf8ToString());
+                        return true;
+                    }));
+                    assertEquals(Collections.singletonList("line one\nline two \ud83d\ude00"), decoded);
+                }
+            }
+        }
+    }
+
+    private static void assertSource(IndexReader reader, String path, String... expected) throws IOException {
+        List<String> strings = FieldValues.loadFromSource().load(path, reader, 0);
+        assertEquals(path, Arrays.asList(expected), strings);
+        List<String> utf8 = FieldValues.loadFromSource().loadUtf8(path, reader, 0).stream()
+                .map(BytesRef::utf8ToString)
+                .collect(Collectors.toList());
+        assertEquals(path, strings, utf8);
+        List<String> streamed = new ArrayList<>();
+        assertFalse(FieldValues.loadFromSource().anyMatch(path, reader, 0, (chars, offset, length) -> {
+            streamed.add(new String(chars, offset, length));
+            return false;
+        }));
+        assertEquals(path, strings, streamed);
+    }
+
+    private static BytesRef toBytesRef(String json, XContentType type) throws IOException {
+        try (XContentBuilder builder = XContentFactory.contentBuilder(type)) {
+            builder.rawValue(new BytesArray(json), XContentType.JSON);
+            BytesReference bytes = builder.bytes();
+            return bytes.toBytesRef();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.wikimedia.search.extra.util;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.common.lucene.index.ElasticsearchDirectoryReader;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class SequentialStoredFieldsLeafReaderTest extends LuceneTestCase {
+    private static final int DOCS = 1000;
+
+    @Test
+    public void loadsTheSameDocuments() throws IOException {
+        try (Directory directory = newDirectory()) {
+            index(directory);
+            try (IndexReader reader = DirectoryReader.open(directory)) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                LeafReader sequential = SequentialStoredFieldsLeafReader.wrap(leaf);
+                assertThat(sequential, instanceOf(SequentialStoredFieldsLeafReader.class));
+                for (int doc = 0; doc < DOCS; doc += random().nextInt(10) + 1) {
+                    assertEquals(leaf.document(doc).toString(), sequential.document(doc).toString());
+                }
+                // Out of order is slower but still works
+                for (int i = 0; i < 100; i++) {
+                    int doc = random().nextInt(DOCS);
+                    assertEquals(leaf.document(doc).toString(), sequential.document(doc).toString());
+                }
+                expectThrows(IndexOutOfBoundsException.class, () -> sequential.document(DOCS));
+            }
+        }
+    }
+
+    @Test
+    public void unwrapsOnlyElasticsearchReaders() throws IOException {
+        try (Directory directory = newDirectory()) {
+            index(directory);
+            try (IndexReader reader = ElasticsearchDirectoryReader.wrap(DirectoryReader.open(directory), new ShardId("index", "_na_", 0))) {
+                LeafReader leaf = reader.leaves().get(0).reader();
+                assertThat(SequentialStoredFieldsLeafReader.wrap(leaf), instanceOf(SequentialStoredFieldsLeafReader.class));
+                // Unknown wrappers might filter the stored fields
+                LeafReader filtered = new FilterLeafReader(leaf) {};
+                assertThat(SequentialStoredFieldsLeafReader.wrap(filtered), sameInstance(filtered));
+            }
+        }
+    }
+
+    private static void index(Directory directory) throws IOException {
+        try (IndexWriter writer = new IndexWriter(directory, newIndexWriterConfig().setCodec(TestUtil.getDefaultCodec()))) {
+            for (int i = 0; i < DOCS; i++) {
+                Document doc = new Document();
+                doc.add(new StoredField("field", TestUtil.randomRealisticUnicodeString(random(), 200)));
+                doc.add(new StoredField("id", i));
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+    }
+}